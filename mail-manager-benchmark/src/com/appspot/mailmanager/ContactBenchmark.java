@@ -0,0 +1,88 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * Benchmarks the parsing of {@link Contact Contacts} and their conversion into addresses, both with and without the {@link ContactCache}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+public class ContactBenchmark {
+
+    private Contact contact;
+    private String json;
+
+    @Param({ "Jane Doe", "Zo\u00eb \u00c5ngstr\u00f6m" })
+    private String name;
+
+    @Setup
+    public void setup() throws Exception {
+        contact = new Contact("jane.doe@example.com", name);
+        json = contact.toJSON().toString();
+    }
+
+    @Benchmark
+    public InternetAddress createInternetAddress() throws Exception {
+        return contact.createInternetAddress();
+    }
+
+    @Benchmark
+    public Contact fromJSONObject() throws Exception {
+        return Contact.fromJSON(new JSONObject(json));
+    }
+
+    @Benchmark
+    public Contact fromJSONReader() throws Exception {
+        try (JSONReader reader = new JSONReader(new StringReader(json), Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            return Contact.fromJSON(reader);
+        }
+    }
+
+    @Benchmark
+    public InternetAddress toInternetAddress() throws Exception {
+        return contact.toInternetAddress();
+    }
+}
\ No newline at end of file
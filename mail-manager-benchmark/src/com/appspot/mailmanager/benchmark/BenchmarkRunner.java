@@ -0,0 +1,52 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled so that the allocation rate is reported alongside the throughput of each benchmark.
+ * <p>
+ * The first argument, if any, is used as a regular expression to select which benchmarks are to be run.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Runs the benchmarks.
+     * 
+     * @param args
+     *            the command-line arguments
+     * @throws RunnerException
+     *             If the benchmarks could not be run.
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(args.length > 0 ? args[0] : "com\\.appspot\\.mailmanager\\..*Benchmark")
+                .addProfiler(GCProfiler.class).build();
+
+        new Runner(options).run();
+    }
+}
\ No newline at end of file
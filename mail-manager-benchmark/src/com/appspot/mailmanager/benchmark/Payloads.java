@@ -0,0 +1,123 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.benchmark;
+
+import com.google.appengine.labs.repackaged.org.json.JSONArray;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * Generates realistic payloads for use within benchmarks.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public final class Payloads {
+
+    /** The paragraph which is repeated to build the content of a message. */
+    private static final String PARAGRAPH = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. Praesent ut ligula sit amet turpis egestas tempus & "
+            + "nunc \"vitae\" <pulvinar> elit. Sed eget nibh vel massa commodo ultrices ac non velit.";
+
+    /**
+     * Generates the content of a message containing approximately {@code size} characters.
+     * 
+     * @param size
+     *            the number of characters of content to be generated
+     * @param html
+     *            {@code true} to generate HTML; otherwise {@code false} to generate plain text
+     * @return The generated content.
+     */
+    public static String body(int size, boolean html) {
+        StringBuilder buff = new StringBuilder(size + PARAGRAPH.length() * 2);
+        if (html) {
+            buff.append("<!DOCTYPE html><html><head><title>Newsletter</title></head><body>");
+        }
+
+        while (buff.length() < size) {
+            if (html) {
+                buff.append("<p style=\"font-family: sans-serif;\">").append(PARAGRAPH.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;"))
+                        .append("</p>\n");
+            } else {
+                buff.append(PARAGRAPH).append("\n\n");
+            }
+        }
+
+        if (html) {
+            buff.append("</body></html>");
+        }
+        return buff.toString();
+    }
+
+    /**
+     * Generates a contact with a unique email address based on the specified {@code index}.
+     * 
+     * @param index
+     *            the index of the contact
+     * @return The {@code JSONObject} for the contact.
+     * @throws JSONException
+     *             If the contact could not be generated.
+     */
+    public static JSONObject contact(int index) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("email", "recipient." + index + "@example.com");
+        json.put("name", "Recipient " + index);
+
+        return json;
+    }
+
+    /**
+     * Generates the JSON body of a request to send a message with the specified number of {@code recipients} and {@code bodySize}.
+     * 
+     * @param recipients
+     *            the number of recipients
+     * @param bodySize
+     *            the number of characters of content
+     * @param html
+     *            {@code true} to send HTML content; otherwise {@code false} to send plain text
+     * @return The generated JSON string.
+     * @throws JSONException
+     *             If the request could not be generated.
+     */
+    public static String sendRequest(int recipients, int bodySize, boolean html) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("apiKey", "5f2b7c1e-8d3a-4e6b-9c0f-1a2b3c4d5e6f");
+        json.put(html ? "html" : "text", body(bodySize, html));
+        json.put("subject", "Benchmark newsletter");
+
+        JSONObject sender = new JSONObject();
+        sender.put("email", "newsletter@example.com");
+        sender.put("name", "Example Newsletter");
+        json.put("sender", sender);
+
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < recipients; i++) {
+            array.put(contact(i));
+        }
+        json.put("recipients", array);
+
+        return json.toString();
+    }
+
+    /**
+     * Prevents instantiation of {@link Payloads}.
+     */
+    private Payloads() {
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.appspot.mailmanager.benchmark.Payloads;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * Benchmarks the construction of messages by {@link SendManager}, from adding the content alone through to assembling and writing the complete MIME
+ * message as a {@code Transport} would.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+public class MessageBenchmark {
+
+    /**
+     * An {@code OutputStream} which discards everything written to it.
+     */
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+
+        @Override
+        public void write(int b) {
+        }
+    }
+
+    @Param({ "1024", "1048576" })
+    private int bodySize;
+
+    @Param({ "text", "html" })
+    private String format;
+
+    private SendManager manager;
+
+    @Param({ "1", "100", "10000" })
+    private int recipients;
+
+    private SendRequest request;
+    private Session session;
+
+    @Setup
+    public void setup() throws Exception {
+        manager = SendManager.getInstance();
+        request = SendRequest.fromJSON(new JSONObject(Payloads.sendRequest(recipients, bodySize, "html".equals(format))));
+        session = Session.getInstance(new Properties());
+    }
+
+    @Benchmark
+    public Message addContent() throws Exception {
+        Message message = new MimeMessage(session);
+        manager.addContent(message, request.getHtml(), request.getText(), request.getAttachments());
+
+        return message;
+    }
+
+    @Benchmark
+    public Message createMessage() throws Exception {
+        return manager.createMessage(request, request.getRecipients(), request.getHtml(), request.getText());
+    }
+
+    @Benchmark
+    public Message createAndWriteMessage() throws Exception {
+        Message message = manager.createMessage(request, request.getRecipients(), request.getHtml(), request.getText());
+        message.writeTo(new NullOutputStream());
+
+        return message;
+    }
+}
\ No newline at end of file
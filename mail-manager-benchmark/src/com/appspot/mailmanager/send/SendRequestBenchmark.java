@@ -0,0 +1,107 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.appspot.mailmanager.CBORReader;
+import com.appspot.mailmanager.CBORWriter;
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.benchmark.Payloads;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * Benchmarks the parsing and serialization of {@link SendRequest SendRequests} of varying sizes.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+public class SendRequestBenchmark {
+
+    @Param({ "1024", "1048576" })
+    private int bodySize;
+
+    private byte[] cbor;
+
+    @Param({ "text", "html" })
+    private String format;
+
+    private String json;
+
+    @Param({ "1", "100", "10000" })
+    private int recipients;
+
+    private SendRequest request;
+
+    @Setup
+    public void setup() throws Exception {
+        json = Payloads.sendRequest(recipients, bodySize, "html".equals(format));
+        request = SendRequest.fromJSON(new JSONObject(json));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CBORWriter(out).write(new JSONObject(json));
+        cbor = out.toByteArray();
+    }
+
+    @Benchmark
+    public SendRequest fromCBORReader() throws Exception {
+        try (CBORReader reader = new CBORReader(new ByteArrayInputStream(cbor), Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            return SendRequest.fromJSON(reader);
+        }
+    }
+
+    @Benchmark
+    public SendRequest fromJSONObject() throws Exception {
+        return SendRequest.fromJSON(new JSONObject(json));
+    }
+
+    @Benchmark
+    public SendRequest fromJSONReader() throws Exception {
+        try (JSONReader reader = new JSONReader(new StringReader(json), Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            return SendRequest.fromJSON(reader);
+        }
+    }
+
+    @Benchmark
+    public String toJSON() throws Exception {
+        return request.toJSON().toString();
+    }
+}
\ No newline at end of file
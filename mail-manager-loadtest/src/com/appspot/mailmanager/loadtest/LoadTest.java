@@ -0,0 +1,402 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.appspot.mailmanager.metrics.LatencyHistogram;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+import com.google.appengine.tools.development.DevAppServer;
+import com.google.appengine.tools.development.DevAppServerFactory;
+
+/**
+ * An end-to-end load test which replays a configurable mix of send traffic against Mail Manager running within an embedded development server.
+ * <p>
+ * Outgoing mail is relayed by the development mail service to an in-process {@link SmtpSink} so that the full path of each request, from reading the
+ * request body through to the SMTP conversation, is exercised without any mail leaving the machine. Latency percentiles, throughput, and errors are
+ * reported for each {@link Scenario} once the test has completed; requests sent during the warmup period are excluded.
+ * <p>
+ * See {@link LoadTestOptions} for the options which can be provided as command-line arguments.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class LoadTest {
+
+    /**
+     * The results recorded for a single {@link Scenario}.
+     */
+    private static class Result {
+
+        final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+        final LatencyHistogram latencies = new LatencyHistogram();
+
+        void error(String reason) {
+            AtomicLong count = errors.get(reason);
+            if (count == null) {
+                AtomicLong existing = errors.putIfAbsent(reason, count = new AtomicLong());
+                if (existing != null) {
+                    count = existing;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        long getErrorCount() {
+            long total = 0;
+            for (AtomicLong count : errors.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+    }
+
+    /** The cookie used to sign in to the development server as an administrator. */
+    private static final String ADMIN_COOKIE = "dev_appserver_login=loadtest@example.com:true:loadtest";
+    /** The number of milliseconds to wait when connecting to, or reading from, the server. */
+    private static final int TIMEOUT = 60000;
+
+    /**
+     * Runs the load test.
+     * 
+     * @param args
+     *            the command-line arguments, each in the form {@code name=value}
+     * @throws Exception
+     *             If the load test could not be run.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        System.out.println("Options: " + options);
+
+        try (SmtpSink sink = new SmtpSink(options.getInt("smtpDelay"))) {
+            DevAppServer server = startServer(options, sink);
+
+            try {
+                new LoadTest(options, "http://127.0.0.1:" + options.getInt("port")).run(sink);
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Starts the development server hosting the application under test, configuring its mail service to relay to the specified {@code sink}.
+     * 
+     * @param options
+     *            the {@link LoadTestOptions} to be used
+     * @param sink
+     *            the {@link SmtpSink} to which mail is to be relayed
+     * @return The started {@code DevAppServer}.
+     * @throws Exception
+     *             If the server could not be started.
+     */
+    private static DevAppServer startServer(LoadTestOptions options, SmtpSink sink) throws Exception {
+        DevAppServer server = new DevAppServerFactory().createDevAppServer(new File(options.getString("war")), "127.0.0.1", options.getInt("port"));
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put("datastore.no_storage", "true");
+        properties.put("mail.smtp_host", "127.0.0.1");
+        properties.put("mail.smtp_port", String.valueOf(sink.getPort()));
+        server.setServiceProperties(properties);
+        server.start();
+
+        return server;
+    }
+
+    private final String baseUrl;
+    private final LoadTestOptions options;
+    private final Map<Scenario, Result> results = new EnumMap<>(Scenario.class);
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new instance of {@link LoadTest} which sends requests to the server at {@code baseUrl} using the {@code options} provided.
+     * 
+     * @param options
+     *            the {@link LoadTestOptions} to be used
+     * @param baseUrl
+     *            the base URL of the server
+     */
+    public LoadTest(LoadTestOptions options, String baseUrl) {
+        this.options = options;
+        this.baseUrl = baseUrl;
+
+        for (Scenario scenario : Scenario.values()) {
+            results.put(scenario, new Result());
+        }
+    }
+
+    /**
+     * Creates the applications between which requests are spread, raising their rate limits so that they do not throttle the test.
+     * 
+     * @return The API keys of the created applications.
+     * @throws IOException
+     *             If an application could not be created.
+     * @throws JSONException
+     *             If a response could not be parsed.
+     */
+    private List<String> createApplications() throws IOException, JSONException {
+        int count = options.getInt("applications");
+        List<String> apiKeys = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            String name = "loadtest-" + i;
+            JSONObject application = new JSONObject(request("PUT", "/application?name=" + URLEncoder.encode(name, "UTF-8")));
+            String apiKey = application.getString("apiKey");
+
+            request("POST", "/application?action=limit&apiKey=" + URLEncoder.encode(apiKey, "UTF-8") + "&rateLimit=" + options.getString("rateLimit")
+                    + "&rateBurst=" + options.getString("rateBurst"));
+
+            apiKeys.add(apiKey);
+        }
+
+        return apiKeys;
+    }
+
+    /**
+     * Prints the results of the load test, along with the mail received by the SMTP sink while measuring, to standard output.
+     * 
+     * @param seconds
+     *            the number of seconds for which results were measured
+     * @param messages
+     *            the number of messages received by the SMTP sink
+     * @param recipients
+     *            the number of recipients received by the SMTP sink
+     * @param bytes
+     *            the number of message bytes received by the SMTP sink
+     */
+    private void report(double seconds, long messages, long recipients, long bytes) {
+        System.out.println();
+        System.out.println(String.format("%-8s %10s %8s %10s %10s %10s %10s %10s", "scenario", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms",
+                "max ms"));
+
+        for (Map.Entry<Scenario, Result> entry : results.entrySet()) {
+            LatencyHistogram latencies = entry.getValue().latencies;
+            if (latencies.getCount() == 0) {
+                continue;
+            }
+
+            System.out.println(String.format("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f", entry.getKey().name().toLowerCase(), latencies.getCount(),
+                    entry.getValue().getErrorCount(), latencies.getCount() / seconds, latencies.getValueAtPercentile(50) / 1000.0,
+                    latencies.getValueAtPercentile(99) / 1000.0, latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMax() / 1000.0));
+
+            for (Map.Entry<String, AtomicLong> error : new TreeMap<>(entry.getValue().errors).entrySet()) {
+                System.out.println(String.format("    %-40s %10d", error.getKey(), error.getValue().get()));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("SMTP sink: %d messages (%.1f/s), %d recipients, %.1f MB", messages, messages / seconds, recipients,
+                bytes / (1024.0 * 1024.0)));
+    }
+
+    /**
+     * Sends a request to the server and returns the body of its response.
+     * 
+     * @param method
+     *            the HTTP method
+     * @param path
+     *            the path, including any query string
+     * @return The response body.
+     * @throws IOException
+     *             If the request failed or the server did not respond with a successful status.
+     */
+    private String request(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Cookie", ADMIN_COOKIE);
+
+        int status = connection.getResponseCode();
+        if (status >= 300) {
+            throw new IOException(method + " " + path + " failed with status " + status);
+        }
+
+        StringBuilder body = new StringBuilder();
+        try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[1024];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, count);
+            }
+        }
+
+        return body.toString();
+    }
+
+    /**
+     * Runs the load test, replaying traffic for the warmup and measurement periods before reporting the results.
+     * 
+     * @param sink
+     *            the {@link SmtpSink} to which mail is relayed
+     * @throws Exception
+     *             If the load test could not be run.
+     */
+    public void run(SmtpSink sink) throws Exception {
+        final List<String> apiKeys = createApplications();
+        final Map<Scenario, Integer> mix = options.getMix();
+        int threads = options.getInt("threads");
+
+        System.out.println("Created " + apiKeys.size() + " applications; warming up for " + options.getInt("warmup") + "s with " + threads + " threads");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Random random = ThreadLocalRandom.current();
+                    while (running) {
+                        send(select(mix, random), apiKeys.get(random.nextInt(apiKeys.size())), random);
+                    }
+                }
+            });
+        }
+
+        TimeUnit.SECONDS.sleep(options.getInt("warmup"));
+
+        long[] baseline = { sink.getMessages(), sink.getRecipients(), sink.getBytes() };
+        measuring = true;
+        long start = System.nanoTime();
+        System.out.println("Measuring for " + options.getInt("duration") + "s");
+
+        TimeUnit.SECONDS.sleep(options.getInt("duration"));
+
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long messages = sink.getMessages() - baseline[0];
+        long recipients = sink.getRecipients() - baseline[1];
+        long bytes = sink.getBytes() - baseline[2];
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        report(seconds, messages, recipients, bytes);
+    }
+
+    /**
+     * Selects a {@link Scenario} at random according to the weights in the specified {@code mix}.
+     * 
+     * @param mix
+     *            the weights mapped to their {@link Scenario Scenarios}
+     * @param random
+     *            the {@code Random} to be used
+     * @return The selected {@link Scenario}.
+     */
+    private Scenario select(Map<Scenario, Integer> mix, Random random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+
+        int value = random.nextInt(total);
+        for (Map.Entry<Scenario, Integer> entry : mix.entrySet()) {
+            value -= entry.getValue();
+            if (value < 0) {
+                return entry.getKey();
+            }
+        }
+
+        throw new IllegalStateException("Unreachable");
+    }
+
+    /**
+     * Sends a single request for the specified {@code scenario} and, if measuring, records its latency and any error.
+     * 
+     * @param scenario
+     *            the {@link Scenario} to be replayed
+     * @param apiKey
+     *            the API key of the application making the request
+     * @param random
+     *            the {@code Random} to be used
+     */
+    private void send(Scenario scenario, String apiKey, Random random) {
+        String error = null;
+        long start = 0;
+        long elapsed;
+
+        try {
+            byte[] payload = scenario.createPayload(apiKey, options, random).getBytes(StandardCharsets.UTF_8);
+
+            start = System.nanoTime();
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + scenario.getPath()).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(payload.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(payload);
+            }
+
+            int status = connection.getResponseCode();
+            try (InputStream input = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+                if (input != null) {
+                    byte[] buffer = new byte[4096];
+                    while (input.read(buffer) != -1) {
+                        // Drain the response so that the connection can be reused
+                    }
+                }
+            }
+            elapsed = System.nanoTime() - start;
+
+            if (status >= 400) {
+                error = "HTTP " + status;
+            }
+        } catch (IOException | JSONException e) {
+            error = e.getClass().getSimpleName();
+            elapsed = start == 0 ? -1 : System.nanoTime() - start;
+        }
+
+        if (measuring) {
+            Result result = results.get(scenario);
+            if (elapsed >= 0) {
+                result.latencies.record(elapsed);
+            }
+            if (error != null) {
+                result.error(error);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,175 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The options controlling a load test, which are provided as {@code name=value} command-line arguments.
+ * <p>
+ * The supported options and their defaults are:
+ * <ul>
+ * <li>{@code war} ({@code ../mail-manager/war}) - the exploded WAR directory of the application under test</li>
+ * <li>{@code port} ({@code 8080}) - the port on which the embedded server listens</li>
+ * <li>{@code applications} ({@code 10}) - the number of applications between which requests are spread</li>
+ * <li>{@code threads} ({@code 32}) - the number of concurrent clients</li>
+ * <li>{@code warmup} ({@code 10}) - the number of seconds for which requests are sent before being measured</li>
+ * <li>{@code duration} ({@code 60}) - the number of seconds for which requests are measured</li>
+ * <li>{@code mix} ({@code single:90,large:5,batch:5}) - the relative weight of each {@link Scenario}</li>
+ * <li>{@code bodySize} ({@code 2048}) - the number of characters in the body of each message</li>
+ * <li>{@code largeRecipients} ({@code 1000}) - the number of recipients of each message in the {@link Scenario#LARGE} scenario</li>
+ * <li>{@code chunkSize} ({@code 100}) - the chunk size used to fan out the recipients in the {@link Scenario#LARGE} scenario</li>
+ * <li>{@code batchSize} ({@code 10}) - the number of messages in each request in the {@link Scenario#BATCH} scenario</li>
+ * <li>{@code smtpDelay} ({@code 0}) - the number of milliseconds for which the SMTP sink delays each message</li>
+ * <li>{@code rateLimit} ({@code 100000}) - the rate limit given to each application so that it does not throttle the test</li>
+ * <li>{@code rateBurst} ({@code 10000}) - the rate burst given to each application</li>
+ * </ul>
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class LoadTestOptions {
+
+    private static final Properties DEFAULTS = new Properties();
+
+    static {
+        DEFAULTS.setProperty("applications", "10");
+        DEFAULTS.setProperty("batchSize", "10");
+        DEFAULTS.setProperty("bodySize", "2048");
+        DEFAULTS.setProperty("chunkSize", "100");
+        DEFAULTS.setProperty("duration", "60");
+        DEFAULTS.setProperty("largeRecipients", "1000");
+        DEFAULTS.setProperty("mix", "single:90,large:5,batch:5");
+        DEFAULTS.setProperty("port", "8080");
+        DEFAULTS.setProperty("rateBurst", "10000");
+        DEFAULTS.setProperty("rateLimit", "100000");
+        DEFAULTS.setProperty("smtpDelay", "0");
+        DEFAULTS.setProperty("threads", "32");
+        DEFAULTS.setProperty("war", "../mail-manager/war");
+        DEFAULTS.setProperty("warmup", "10");
+    }
+
+    /**
+     * Parses the specified command-line {@code args} into {@link LoadTestOptions}.
+     * 
+     * @param args
+     *            the command-line arguments, each in the form {@code name=value}
+     * @return The parsed {@link LoadTestOptions}.
+     * @throws IllegalArgumentException
+     *             If any argument is malformed or the option is not supported.
+     */
+    public static LoadTestOptions parse(String[] args) {
+        Properties properties = new Properties(DEFAULTS);
+
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("Invalid argument: " + arg);
+            }
+
+            String name = arg.substring(0, index);
+            if (DEFAULTS.getProperty(name) == null) {
+                throw new IllegalArgumentException("Unsupported option: " + name);
+            }
+
+            properties.setProperty(name, arg.substring(index + 1));
+        }
+
+        return new LoadTestOptions(properties);
+    }
+
+    private final Properties properties;
+
+    /**
+     * Creates a new instance of {@link LoadTestOptions} based on the {@code properties} provided.
+     * 
+     * @param properties
+     *            the {@code Properties} containing the options
+     */
+    private LoadTestOptions(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Returns the value of the option with the specified {@code name} as an {@code int}.
+     * 
+     * @param name
+     *            the name of the option
+     * @return The option value.
+     * @throws NumberFormatException
+     *             If the value is not an integer.
+     */
+    public int getInt(String name) {
+        return Integer.parseInt(getString(name));
+    }
+
+    /**
+     * Returns the relative weight of each {@link Scenario} as specified by the {@code mix} option.
+     * 
+     * @return The weights mapped to their {@link Scenario Scenarios}, excluding any with no weight.
+     * @throws IllegalArgumentException
+     *             If the {@code mix} option is malformed or contains no positive weights.
+     */
+    public Map<Scenario, Integer> getMix() {
+        Map<Scenario, Integer> mix = new LinkedHashMap<>();
+
+        for (String entry : getString("mix").split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight > 0) {
+                mix.put(Scenario.valueOf(parts[0].trim().toUpperCase()), weight);
+            }
+        }
+
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix");
+        }
+        return mix;
+    }
+
+    /**
+     * Returns the value of the option with the specified {@code name}.
+     * 
+     * @param name
+     *            the name of the option
+     * @return The option value.
+     */
+    public String getString(String name) {
+        return properties.getProperty(name);
+    }
+
+    /*
+     * @see Object#toString()
+     */
+    @Override
+    public String toString() {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            options.put(name, properties.getProperty(name));
+        }
+        return options.toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,147 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.loadtest;
+
+import java.util.Random;
+
+import com.google.appengine.labs.repackaged.org.json.JSONArray;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * The types of traffic which can be mixed within a load test.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public enum Scenario {
+
+    /** A single message sent to a single recipient. */
+    SINGLE("/send") {
+
+        @Override
+        String createPayload(String apiKey, LoadTestOptions options, Random random) throws JSONException {
+            return createMessage(apiKey, options, random, 1).toString();
+        }
+    },
+
+    /** A single message sent to a large list of recipients which are fanned out into chunks. */
+    LARGE("/send") {
+
+        @Override
+        String createPayload(String apiKey, LoadTestOptions options, Random random) throws JSONException {
+            JSONObject json = createMessage(apiKey, options, random, options.getInt("largeRecipients"));
+            json.put("chunkSize", options.getInt("chunkSize"));
+
+            return json.toString();
+        }
+    },
+
+    /** Many messages, each sent to a single recipient, within a single batch request. */
+    BATCH("/send/batch") {
+
+        @Override
+        String createPayload(String apiKey, LoadTestOptions options, Random random) throws JSONException {
+            JSONArray json = new JSONArray();
+            for (int i = 0; i < options.getInt("batchSize"); i++) {
+                json.put(createMessage(apiKey, options, random, 1));
+            }
+
+            return json.toString();
+        }
+    };
+
+    /** The paragraph which is repeated to build the body of each message. */
+    private static final String PARAGRAPH = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. Praesent ut ligula sit amet turpis egestas tempus.\n";
+
+    /**
+     * Creates a message with the specified number of {@code recipients}.
+     * 
+     * @param apiKey
+     *            the API key of the application sending the message
+     * @param options
+     *            the {@link LoadTestOptions} to be used
+     * @param random
+     *            the {@code Random} used to generate unique recipients
+     * @param recipients
+     *            the number of recipients
+     * @return The {@code JSONObject} for the message.
+     * @throws JSONException
+     *             If the message could not be created.
+     */
+    private static JSONObject createMessage(String apiKey, LoadTestOptions options, Random random, int recipients) throws JSONException {
+        int bodySize = options.getInt("bodySize");
+        StringBuilder body = new StringBuilder(bodySize + PARAGRAPH.length());
+        while (body.length() < bodySize) {
+            body.append(PARAGRAPH);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("apiKey", apiKey);
+        json.put("sender", new JSONObject().put("email", "loadtest@example.com"));
+        json.put("subject", "Load test");
+        json.put("text", body.toString());
+
+        JSONArray array = new JSONArray();
+        long id = random.nextLong() & Long.MAX_VALUE;
+        for (int i = 0; i < recipients; i++) {
+            array.put(new JSONObject().put("email", "recipient." + id + "." + i + "@example.com"));
+        }
+        json.put("recipients", array);
+
+        return json;
+    }
+
+    private final String path;
+
+    /**
+     * Creates a new instance of {@link Scenario} whose requests are sent to the {@code path} provided.
+     * 
+     * @param path
+     *            the path of the servlet to which requests are sent
+     */
+    private Scenario(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Creates the JSON body of a request for this {@link Scenario}.
+     * 
+     * @param apiKey
+     *            the API key of the application making the request
+     * @param options
+     *            the {@link LoadTestOptions} to be used
+     * @param random
+     *            the {@code Random} to be used
+     * @return The JSON body.
+     * @throws JSONException
+     *             If the body could not be created.
+     */
+    abstract String createPayload(String apiKey, LoadTestOptions options, Random random) throws JSONException;
+
+    /**
+     * Returns the path of the servlet to which requests for this {@link Scenario} are sent.
+     * 
+     * @return The path.
+     */
+    public String getPath() {
+        return path;
+    }
+}
\ No newline at end of file
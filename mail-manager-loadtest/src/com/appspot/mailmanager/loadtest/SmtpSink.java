@@ -0,0 +1,232 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A minimal in-process SMTP server which accepts and discards every message while counting them.
+ * <p>
+ * Only the commands required to relay a message are supported and no extensions are advertised. Each message can optionally be delayed before it is
+ * accepted to simulate a slow mail server.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class SmtpSink implements AutoCloseable {
+
+    private static final String CLASS_NAME = SmtpSink.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final long delay;
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong recipients = new AtomicLong();
+    private final ServerSocket serverSocket;
+
+    /**
+     * Creates a new instance of {@link SmtpSink} listening on an ephemeral port of the loopback address which delays each message by {@code delay}.
+     * 
+     * @param delay
+     *            the number of milliseconds to wait before accepting each message
+     * @throws IOException
+     *             If the server socket could not be opened.
+     */
+    public SmtpSink(long delay) throws IOException {
+        this.delay = delay;
+        this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+
+        Thread acceptor = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "smtp-sink");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Accepts connections until this {@link SmtpSink} is closed, handling each on its own thread.
+     */
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+
+                Thread handler = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                }, "smtp-sink-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.log(Level.WARNING, "Failed to accept connection", e);
+                }
+            }
+        }
+    }
+
+    /*
+     * @see AutoCloseable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Returns the total number of bytes of message data that have been accepted.
+     * 
+     * @return The byte count.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the number of messages that have been accepted.
+     * 
+     * @return The message count.
+     */
+    public long getMessages() {
+        return messages.get();
+    }
+
+    /**
+     * Returns the port on which this {@link SmtpSink} is listening.
+     * 
+     * @return The port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the total number of recipients of the messages that have been accepted.
+     * 
+     * @return The recipient count.
+     */
+    public long getRecipients() {
+        return recipients.get();
+    }
+
+    /**
+     * Handles an SMTP session on the specified {@code socket} until the client quits or disconnects.
+     * 
+     * @param socket
+     *            the {@code Socket} for the connection
+     */
+    private void handle(Socket socket) {
+        try (Socket connection = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.ISO_8859_1));
+                Writer out = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.ISO_8859_1)) {
+            reply(out, "220 localhost SMTP sink");
+
+            int pending = 0;
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String command = (line.length() > 4 ? line.substring(0, 4) : line).toUpperCase();
+
+                switch (command) {
+                case "HELO":
+                case "EHLO":
+                    reply(out, "250 localhost");
+                    break;
+                case "MAIL":
+                    pending = 0;
+                    reply(out, "250 OK");
+                    break;
+                case "RCPT":
+                    pending++;
+                    reply(out, "250 OK");
+                    break;
+                case "DATA":
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+
+                    long size = 0;
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        size += line.length() + 2;
+                    }
+
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+
+                    bytes.addAndGet(size);
+                    recipients.addAndGet(pending);
+                    messages.incrementAndGet();
+                    pending = 0;
+                    reply(out, "250 OK");
+                    break;
+                case "RSET":
+                    pending = 0;
+                    reply(out, "250 OK");
+                    break;
+                case "NOOP":
+                    reply(out, "250 OK");
+                    break;
+                case "QUIT":
+                    reply(out, "221 Bye");
+                    return;
+                default:
+                    reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.log(Level.FINER, "Connection closed", e);
+        }
+    }
+
+    /**
+     * Writes the specified {@code reply} to the client.
+     * 
+     * @param out
+     *            the {@code Writer} for the connection
+     * @param reply
+     *            the reply to be written
+     * @throws IOException
+     *             If the reply could not be written.
+     */
+    private void reply(Writer out, String reply) throws IOException {
+        out.write(reply);
+        out.write("\r\n");
+        out.flush();
+    }
+}
\ No newline at end of file
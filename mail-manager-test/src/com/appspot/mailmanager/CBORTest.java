@@ -0,0 +1,168 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import com.appspot.mailmanager.send.SendRequest;
+import com.google.appengine.labs.repackaged.org.json.JSONArray;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * Tests that values written by {@link CBORWriter} are read back unchanged by {@link CBORReader}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class CBORTest {
+
+    private static final int MAX_LENGTH = 1024 * 1024;
+
+    private static byte[] write(Object value) throws IOException, JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CBORWriter(out).write(value);
+        return out.toByteArray();
+    }
+
+    private static CBORReader reader(byte[] bytes) {
+        return new CBORReader(new ByteArrayInputStream(bytes), MAX_LENGTH, MAX_LENGTH);
+    }
+
+    @Test
+    public void testEncodesIntegersInShortestForm() throws IOException, JSONException {
+        assertArrayEquals(new byte[] { 0x17 }, write(23L));
+        assertArrayEquals(new byte[] { 0x18, 0x18 }, write(24L));
+        assertArrayEquals(new byte[] { 0x19, 0x01, 0x00 }, write(256L));
+        assertArrayEquals(new byte[] { 0x20 }, write(-1L));
+        assertArrayEquals(new byte[] { (byte) 0xF6 }, write(JSONObject.NULL));
+    }
+
+    @Test
+    public void testRoundTripsIntegers() throws IOException, JSONException {
+        long[] values = { 0, 1, 23, 24, 255, 256, 65535, 65536, 0xFFFFFFFFL, 0x100000000L, Long.MAX_VALUE, -1, -24, -25, -256, -257, -65537,
+                Long.MIN_VALUE };
+
+        for (long value : values) {
+            DocumentReader reader = reader(write(value));
+            assertEquals(DocumentReader.Token.NUMBER, reader.peek());
+            assertEquals(value, reader.nextLong());
+            assertEquals(DocumentReader.Token.END_DOCUMENT, reader.peek());
+        }
+    }
+
+    @Test
+    public void testRoundTripsStrings() throws IOException, JSONException {
+        String[] values = { "", "a", "Hello, world", "caf\u00e9 \u20ac \ud834\udd1e", new String(new char[300]).replace('\0', 'x') };
+
+        for (String value : values) {
+            DocumentReader reader = reader(write(value));
+            assertEquals(DocumentReader.Token.STRING, reader.peek());
+            assertEquals(value, reader.nextString());
+        }
+    }
+
+    @Test
+    public void testRoundTripsStructures() throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        array.put(1L);
+        array.put(true);
+        array.put(false);
+        array.put(JSONObject.NULL);
+        array.put("text");
+
+        JSONObject nested = new JSONObject();
+        nested.put("empty", new JSONObject());
+
+        JSONObject json = new JSONObject();
+        json.put("array", array);
+        json.put("nested", nested);
+
+        DocumentReader reader = reader(write(json));
+        reader.beginObject();
+
+        assertEquals("array", reader.nextName());
+        reader.beginArray();
+        assertEquals(1, reader.nextLong());
+        assertTrue(reader.nextBoolean());
+        assertFalse(reader.nextBoolean());
+        assertEquals(DocumentReader.Token.NULL, reader.peek());
+        assertNull(reader.nextStringOrNull());
+        assertEquals("text", reader.nextString());
+        assertFalse(reader.hasNext());
+        reader.endArray();
+
+        assertEquals("nested", reader.nextName());
+        reader.beginObject();
+        assertEquals("empty", reader.nextName());
+        reader.beginObject();
+        reader.endObject();
+        reader.endObject();
+
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals(DocumentReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void testSkipsValues() throws IOException, JSONException {
+        JSONObject skipped = new JSONObject();
+        skipped.put("values", new JSONArray().put(1L).put("two").put(new JSONObject()));
+
+        JSONObject json = new JSONObject();
+        json.put("skipped", skipped);
+        json.put("kept", "value");
+
+        DocumentReader reader = reader(write(json));
+        reader.beginObject();
+        assertEquals("skipped", reader.nextName());
+        reader.skipValue();
+        assertEquals("kept", reader.nextName());
+        assertEquals("value", reader.nextString());
+        reader.endObject();
+    }
+
+    @Test
+    public void testRoundTripsSendRequest() throws IOException, JSONException {
+        String json = "{\"apiKey\":\"key\",\"async\":true,\"chunkSize\":300,\"idempotencyKey\":\"retry-1\",\"merge\":true,\"priority\":\"high\","
+                + "\"sendAt\":1893456000000,\"sender\":{\"email\":\"sender@example.com\",\"name\":\"Sender\"},"
+                + "\"recipients\":[{\"email\":\"jo@example.com\",\"name\":\"Jo\"},{\"email\":\"sam@example.com\"}],\"subject\":\"Hello \u00e9\","
+                + "\"text\":\"Hi {{name}}\",\"html\":\"<p>Hi {{name}}</p>\",\"variables\":{\"greeting\":\"Hi\",\"none\":null},"
+                + "\"recipientVariables\":{\"jo@example.com\":{\"first\":\"Jo\"}}}";
+        SendRequest request = SendRequest.fromJSON(new JSONReader(new StringReader(json), MAX_LENGTH, MAX_LENGTH));
+
+        SendRequest decoded = SendRequest.fromJSON(reader(write(request.toJSON())));
+
+        assertEquals(request, decoded);
+        assertEquals(request.getSendAt(), decoded.getSendAt());
+        assertEquals(request.getPriority(), decoded.getPriority());
+    }
+}
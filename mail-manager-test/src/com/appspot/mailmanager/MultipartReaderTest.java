@@ -0,0 +1,215 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link MultipartReader}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class MultipartReaderTest {
+
+    private static final String BOUNDARY = "----boundary";
+
+    /**
+     * An {@code InputStream} which returns at most one byte from each read so that every boundary straddles the buffer.
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static byte[] body(String... parts) {
+        StringBuilder body = new StringBuilder();
+        for (String part : parts) {
+            body.append("--").append(BOUNDARY).append("\r\n").append(part).append("\r\n");
+        }
+        body.append("--").append(BOUNDARY).append("--\r\n");
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static String read(MultipartReader.Part part) throws IOException {
+        return new String(readFully(part.getInputStream()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testReadsParts() throws IOException {
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body(
+                "Content-Disposition: form-data; name=\"request\"\r\nContent-Type: application/json\r\n\r\n{\"a\":1}",
+                "Content-Disposition: form-data; name=\"file\"; filename=\"report.txt\"\r\n\r\nline 1\r\nline 2")), BOUNDARY);
+
+        MultipartReader.Part request = reader.nextPart();
+        assertEquals("request", request.getName());
+        assertNull(request.getFileName());
+        assertEquals("application/json", request.getContentType());
+        assertEquals("{\"a\":1}", read(request));
+
+        MultipartReader.Part file = reader.nextPart();
+        assertEquals("file", file.getName());
+        assertEquals("report.txt", file.getFileName());
+        assertNull(file.getContentType());
+        assertEquals("line 1\r\nline 2", read(file));
+
+        assertNull(reader.nextPart());
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void testSkipsPreambleAndUnreadParts() throws IOException {
+        byte[] parts = body("Content-Disposition: form-data; name=\"skipped\"\r\n\r\nnot read",
+                "Content-Disposition: form-data; name=\"kept\"\r\n\r\nread");
+        byte[] preamble = "This is the preamble\r\n".getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[preamble.length + parts.length];
+        System.arraycopy(preamble, 0, body, 0, preamble.length);
+        System.arraycopy(parts, 0, body, preamble.length, parts.length);
+
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body), BOUNDARY);
+
+        assertEquals("skipped", reader.nextPart().getName());
+        MultipartReader.Part kept = reader.nextPart();
+        assertEquals("kept", kept.getName());
+        assertEquals("read", read(kept));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void testReadsLargeBinaryPartAcrossBuffers() throws IOException {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        // Include sequences which resemble the delimiter without matching it
+        byte[] nearMiss = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "x").getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(nearMiss, 0, content, 8190, nearMiss.length);
+        System.arraycopy(nearMiss, 0, content, 50000, nearMiss.length);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--").getBytes(StandardCharsets.UTF_8));
+
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body.toByteArray()), BOUNDARY);
+        assertArrayEquals(content, readFully(reader.nextPart().getInputStream()));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void testReadsOneByteAtATime() throws IOException {
+        byte[] body = body("Content-Disposition: form-data; name=\"a\"\r\n\r\nfirst", "Content-Disposition: form-data; name=\"b\"\r\n\r\nsecond");
+        MultipartReader reader = new MultipartReader(new TrickleInputStream(new ByteArrayInputStream(body)), BOUNDARY);
+
+        assertEquals("first", read(reader.nextPart()));
+        assertEquals("second", read(reader.nextPart()));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void testRejectsTruncatedBody() throws IOException {
+        byte[] body = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nunterminated").getBytes(StandardCharsets.UTF_8);
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body), BOUNDARY);
+
+        MultipartReader.Part part = reader.nextPart();
+        try {
+            readFully(part.getInputStream());
+            fail("Expected the truncated part to be rejected");
+        } catch (IOException e) {
+            assertEquals("Unexpected end of multipart body", e.getMessage());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsMalformedHeader() throws IOException {
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body("Not a header\r\n\r\ncontent")), BOUNDARY);
+
+        reader.nextPart();
+    }
+
+    @Test
+    public void testRejectsOversizedHeaders() throws IOException {
+        String header = "X-Padding: " + new String(new char[10000]).replace('\0', 'x');
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body(header + "\r\n\r\ncontent")), BOUNDARY);
+
+        try {
+            reader.nextPart();
+            fail("Expected the headers to be rejected");
+        } catch (IOException e) {
+            assertEquals("Multipart headers too large", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testGetParameter() {
+        String header = "form-data; name=\"file\"; filename=\"a \\\"quoted\\\"; name.txt\"; size=10";
+
+        assertEquals("file", MultipartReader.getParameter(header, "name"));
+        assertEquals("a \"quoted\"; name.txt", MultipartReader.getParameter(header, "filename"));
+        assertEquals("10", MultipartReader.getParameter(header, "SIZE"));
+        assertNull(MultipartReader.getParameter(header, "missing"));
+        assertNull(MultipartReader.getParameter(null, "name"));
+        assertEquals(BOUNDARY, MultipartReader.getBoundary("multipart/form-data; boundary=" + BOUNDARY));
+    }
+
+    @Test
+    public void testIsMultipart() {
+        assertTrue(MultipartReader.isMultipart(" Multipart/Form-Data; boundary=x"));
+        assertFalse(MultipartReader.isMultipart("application/json"));
+        assertFalse(MultipartReader.isMultipart(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsLongBoundary() {
+        new MultipartReader(new ByteArrayInputStream(new byte[0]), new String(new char[71]).replace('\0', 'b'));
+    }
+}
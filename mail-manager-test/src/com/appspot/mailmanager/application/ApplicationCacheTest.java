@@ -0,0 +1,137 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ApplicationCache}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class ApplicationCacheTest {
+
+    @Test
+    public void testLooksUpByApiKeyAndName() {
+        ApplicationCache cache = new ApplicationCache(10, 60000);
+        Application application = new Application("key", "name");
+        cache.put(application);
+
+        assertSame(application, cache.getByApiKey("key"));
+        assertSame(application, cache.getByName("name"));
+        assertNull(cache.getByApiKey("other"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredEntriesAreRemoved() {
+        ApplicationCache cache = new ApplicationCache(10, 0);
+        cache.put(new Application("key", "name"));
+
+        assertNull(cache.getByApiKey("key"));
+        assertNull(cache.getByName("name"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws InterruptedException {
+        ApplicationCache cache = new ApplicationCache(2, 60000);
+        cache.put(new Application("first", "first"));
+        Thread.sleep(1);
+        cache.put(new Application("second", "second"));
+        Thread.sleep(1);
+
+        // Using the first entry makes the second the least recently used
+        cache.getByApiKey("first");
+        cache.put(new Application("third", "third"));
+
+        assertEquals(2, cache.getSize());
+        assertNull(cache.getByApiKey("second"));
+        assertNull(cache.getByName("second"));
+        assertEquals("first", cache.getByApiKey("first").getName());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testReplacesRenamedApplication() {
+        ApplicationCache cache = new ApplicationCache(10, 60000);
+        cache.put(new Application("key", "old"));
+        cache.put(new Application("key", "new"));
+
+        assertNull(cache.getByName("old"));
+        assertEquals("new", cache.getByApiKey("key").getName());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testRemovalDuringLoadPreventsCaching() {
+        ApplicationCache cache = new ApplicationCache(10, 60000);
+        long stamp = cache.getStamp();
+
+        cache.invalidateApiKey("key");
+
+        assertFalse(cache.put(new Application("key", "name"), stamp));
+        assertNull(cache.getByApiKey("key"));
+        assertTrue(cache.put(new Application("key", "name"), cache.getStamp()));
+    }
+
+    @Test
+    public void testRemembersMissingApiKeys() {
+        ApplicationCache cache = new ApplicationCache(10, 60000, 60000);
+
+        assertFalse(cache.isMissing("key"));
+        cache.putMissing("key");
+        assertTrue(cache.isMissing("key"));
+
+        // Caching the application, or invalidating its API key, forgets that it was missing
+        cache.put(new Application("key", "name"));
+        assertFalse(cache.isMissing("key"));
+        cache.putMissing("other");
+        cache.invalidateApiKey("other");
+        assertFalse(cache.isMissing("other"));
+    }
+
+    @Test
+    public void testMissingApiKeysExpire() {
+        ApplicationCache cache = new ApplicationCache(10, 60000, 0);
+        cache.putMissing("key");
+        assertFalse(cache.isMissing("key"));
+    }
+
+    @Test
+    public void testMissingApiKeysAreBounded() {
+        ApplicationCache cache = new ApplicationCache(2, 60000, 60000);
+        cache.putMissing("first");
+        cache.putMissing("second");
+        cache.putMissing("third");
+
+        assertFalse(cache.isMissing("first"));
+        assertFalse(cache.isMissing("second"));
+        assertTrue(cache.isMissing("third"));
+    }
+}
\ No newline at end of file
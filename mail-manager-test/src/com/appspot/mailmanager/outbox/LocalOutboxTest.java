@@ -0,0 +1,224 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.send.Priority;
+import com.appspot.mailmanager.send.SendRequest;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * Tests for {@link LocalOutbox}, covering the lease, retry, and dead letter life cycle which every {@link Outbox} must follow.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class LocalOutboxTest {
+
+    private static final long LEASE = 60000;
+
+    private static OutboxMessage message(String id, Priority priority, long availableAt) {
+        String json = "{\"apiKey\":\"outbox-test\",\"priority\":\"" + priority.getName() + "\",\"sender\":{\"email\":\"sender@example.com\"},"
+                + "\"recipients\":[{\"email\":\"recipient@example.com\"}],\"subject\":\"Subject\",\"text\":\"Hello\"}";
+
+        try {
+            SendRequest request = SendRequest.fromJSON(new JSONReader(new StringReader(json), json.length(), json.length()));
+            OutboxMessage message = new OutboxMessage(id, request);
+            message.setAvailableAt(availableAt);
+            return message;
+        } catch (IOException | JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static OutboxMessage ready(String id, long tag) {
+        OutboxMessage message = message(id, Priority.NORMAL, 0);
+        message.setTag(tag);
+        return message;
+    }
+
+    @Test
+    public void testLeasesAvailableMessagesInOrder() {
+        LocalOutbox outbox = new LocalOutbox();
+        long now = System.currentTimeMillis();
+        outbox.add(message("later", Priority.NORMAL, now - 1000));
+        outbox.add(message("earlier", Priority.NORMAL, now - 2000));
+        outbox.add(message("future", Priority.NORMAL, now + LEASE));
+        outbox.add(message("other", Priority.HIGH, now - 3000));
+
+        List<OutboxMessage> leased = outbox.lease(Priority.NORMAL, 10, LEASE);
+
+        assertEquals(2, leased.size());
+        assertEquals("earlier", leased.get(0).getId());
+        assertEquals("later", leased.get(1).getId());
+        assertNotNull(leased.get(0).getLeaseId());
+    }
+
+    @Test
+    public void testLeasesReadyMessagesInTagOrder() {
+        LocalOutbox outbox = new LocalOutbox();
+        outbox.add(ready("heavy", 2000));
+        outbox.add(ready("light", 0));
+        outbox.add(ready("middle", 1000));
+
+        List<OutboxMessage> leased = outbox.lease(Priority.NORMAL, 10, LEASE);
+
+        assertEquals(3, leased.size());
+        assertEquals("light", leased.get(0).getId());
+        assertEquals("middle", leased.get(1).getId());
+        assertEquals("heavy", leased.get(2).getId());
+        assertEquals(1000, leased.get(1).getTag());
+    }
+
+    @Test
+    public void testLeasesDueMessagesBeforeReadyMessages() {
+        LocalOutbox outbox = new LocalOutbox();
+        outbox.add(ready("ready", 0));
+        outbox.add(message("retry", Priority.NORMAL, System.currentTimeMillis() - 1000));
+
+        List<OutboxMessage> leased = outbox.lease(Priority.NORMAL, 1, LEASE);
+
+        assertEquals(1, leased.size());
+        assertEquals("retry", leased.get(0).getId());
+        assertEquals("ready", outbox.lease(Priority.NORMAL, 1, LEASE).get(0).getId());
+    }
+
+    @Test
+    public void testReadyMessageIsLeasedWhateverItsTag() {
+        LocalOutbox outbox = new LocalOutbox();
+        // Tags are virtual, so one far ahead of the wall clock must not hold a message back while a worker is idle
+        outbox.add(ready("id", System.currentTimeMillis() + 1000 * LEASE));
+
+        List<OutboxMessage> leased = outbox.lease(Priority.NORMAL, 1, LEASE);
+
+        assertEquals(1, leased.size());
+        assertFalse(leased.get(0).isReady());
+    }
+
+    @Test
+    public void testLeaseLimitsBatchSize() {
+        LocalOutbox outbox = new LocalOutbox();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            outbox.add(message("message-" + i, Priority.NORMAL, now - 1000 + i));
+        }
+
+        assertEquals(3, outbox.lease(Priority.NORMAL, 3, LEASE).size());
+        assertEquals(2, outbox.lease(Priority.NORMAL, 3, LEASE).size());
+        assertTrue(outbox.lease(Priority.NORMAL, 3, LEASE).isEmpty());
+    }
+
+    @Test
+    public void testCompleteRemovesMessage() {
+        LocalOutbox outbox = new LocalOutbox();
+        outbox.add(message("id", Priority.NORMAL, 0));
+
+        OutboxMessage leased = outbox.lease(Priority.NORMAL, 1, LEASE).get(0);
+
+        assertTrue(outbox.complete(leased));
+        assertNull(outbox.get("id"));
+        assertFalse(outbox.complete(leased));
+    }
+
+    @Test
+    public void testExpiredLeaseCanBeTakenByAnotherWorker() {
+        LocalOutbox outbox = new LocalOutbox();
+        outbox.add(message("id", Priority.NORMAL, 0));
+
+        OutboxMessage first = outbox.lease(Priority.NORMAL, 1, -1).get(0);
+        OutboxMessage second = outbox.lease(Priority.NORMAL, 1, LEASE).get(0);
+
+        // The first worker has lost its lease, so only the second can complete the message
+        assertFalse(outbox.complete(first));
+        assertFalse(outbox.retry(first, 0, "Transport unavailable"));
+        assertFalse(outbox.deadLetter(first, "Transport unavailable"));
+        assertTrue(outbox.complete(second));
+    }
+
+    @Test
+    public void testRetryReleasesLeaseUntilAvailable() {
+        LocalOutbox outbox = new LocalOutbox();
+        outbox.add(message("id", Priority.NORMAL, 0));
+
+        OutboxMessage leased = outbox.lease(Priority.NORMAL, 1, LEASE).get(0);
+        assertTrue(outbox.retry(leased, System.currentTimeMillis() + LEASE, "Transport unavailable"));
+
+        OutboxMessage stored = outbox.get("id");
+        assertEquals(1, stored.getAttempts());
+        assertEquals("Transport unavailable", stored.getError());
+        assertNull(stored.getLeaseId());
+        assertTrue(outbox.lease(Priority.NORMAL, 1, LEASE).isEmpty());
+        assertFalse(outbox.retry(stored, 0, "Transport unavailable"));
+    }
+
+    @Test
+    public void testRetriedMessageIsLeasedAgain() {
+        LocalOutbox outbox = new LocalOutbox();
+        outbox.add(message("id", Priority.NORMAL, 0));
+
+        OutboxMessage leased = outbox.lease(Priority.NORMAL, 1, LEASE).get(0);
+        assertTrue(outbox.retry(leased, 0, "Transport unavailable"));
+
+        List<OutboxMessage> retried = outbox.lease(Priority.NORMAL, 1, LEASE);
+        assertEquals(1, retried.size());
+        assertEquals(1, retried.get(0).getAttempts());
+    }
+
+    @Test
+    public void testDeadLetterMovesMessage() {
+        LocalOutbox outbox = new LocalOutbox();
+        outbox.add(message("id", Priority.NORMAL, 0));
+
+        OutboxMessage leased = outbox.lease(Priority.NORMAL, 1, LEASE).get(0);
+        assertTrue(outbox.deadLetter(leased, "Invalid address"));
+
+        assertNull(outbox.get("id"));
+        OutboxMessage deadLetter = outbox.getDeadLetter("id");
+        assertNotNull(deadLetter);
+        assertEquals(1, deadLetter.getAttempts());
+        assertEquals("Invalid address", deadLetter.getError());
+        assertTrue(outbox.lease(Priority.NORMAL, 1, LEASE).isEmpty());
+    }
+
+    @Test
+    public void testMessagesAreCopied() {
+        LocalOutbox outbox = new LocalOutbox();
+        OutboxMessage message = message("id", Priority.NORMAL, 0);
+        outbox.add(message);
+
+        message.setAttempts(5);
+        assertEquals(0, outbox.get("id").getAttempts());
+
+        outbox.get("id").setAttempts(5);
+        assertEquals(0, outbox.get("id").getAttempts());
+    }
+}
@@ -0,0 +1,83 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.MailException;
+import com.appspot.mailmanager.send.SendRequest;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * Tests for {@link OutboxManager}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class OutboxManagerTest {
+
+    private static void assertBackoff(int attempts, long min, long max) {
+        for (int i = 0; i < 100; i++) {
+            long backoff = OutboxManager.getBackoff(attempts);
+            assertTrue("Backoff of " + backoff + " outside [" + min + ", " + max + "]", backoff >= min && backoff <= max);
+        }
+    }
+
+    @Test
+    public void testBackoffDoublesWithJitter() {
+        assertBackoff(1, 500, 1000);
+        assertBackoff(2, 1000, 2000);
+        assertBackoff(4, 4000, 8000);
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        long max = 60 * 60 * 1000L;
+
+        assertBackoff(100, max / 2, max);
+        assertBackoff(Integer.MAX_VALUE, max / 2, max);
+    }
+
+    @Test
+    public void testRejectsRequestTooLargeToBeQueued() throws IOException, JSONException {
+        char[] text = new char[OutboxMessage.MAX_REQUEST_SIZE + 1];
+        Arrays.fill(text, 'a');
+
+        String json = "{\"apiKey\":\"outbox-test\",\"sender\":{\"email\":\"sender@example.com\"},\"recipients\":[{\"email\":\"recipient@example.com\"}],"
+                + "\"subject\":\"Subject\",\"text\":\"" + new String(text) + "\"}";
+        SendRequest request = SendRequest.fromJSON(new JSONReader(new StringReader(json), json.length(), json.length()));
+
+        try {
+            OutboxManager.getInstance().add("large", request);
+            fail("Expected the request to be rejected");
+        } catch (MailException e) {
+            assertEquals("Message too large to be queued", e.getMessage());
+        }
+    }
+}
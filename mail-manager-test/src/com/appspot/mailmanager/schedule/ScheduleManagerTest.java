@@ -0,0 +1,73 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.MailException;
+import com.appspot.mailmanager.send.SendRequest;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * Tests for {@link ScheduleManager}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class ScheduleManagerTest {
+
+    private static SendRequest request(String text) throws IOException, JSONException {
+        String json = "{\"apiKey\":\"schedule-test\",\"sender\":{\"email\":\"sender@example.com\"},\"recipients\":[{\"email\":\"recipient@example.com\"}],"
+                + "\"subject\":\"Subject\",\"text\":\"" + text + "\",\"sendAt\":" + (System.currentTimeMillis() + 60000) + "}";
+        return SendRequest.fromJSON(new JSONReader(new StringReader(json), json.length(), json.length()));
+    }
+
+    @Test
+    public void testRejectsRequestTooLargeToBeScheduled() throws IOException, JSONException {
+        char[] text = new char[ScheduledMessage.MAX_REQUEST_SIZE + 1];
+        Arrays.fill(text, 'a');
+
+        try {
+            ScheduleManager.getInstance().add("large", request(new String(text)));
+            fail("Expected the request to be rejected");
+        } catch (MailException e) {
+            assertEquals("Message too large to be scheduled", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testStartsBeforeScheduling() throws IOException, JSONException {
+        // Background threads are disabled here, so the message must be rejected before anything is written to the schedule
+        try {
+            ScheduleManager.getInstance().add("unstarted", request("Hello"));
+            fail("Expected the request to be rejected");
+        } catch (MailException e) {
+            assertEquals("Unable to start background worker", e.getMessage());
+        }
+    }
+}
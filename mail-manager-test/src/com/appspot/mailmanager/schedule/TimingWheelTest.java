@@ -0,0 +1,150 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimingWheel}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class TimingWheelTest {
+
+    private static List<String> advance(TimingWheel<String> wheel, long now) {
+        List<String> expired = new ArrayList<>();
+        wheel.advance(now, expired);
+        return expired;
+    }
+
+    @Test
+    public void testReleasesItemsDuringTheirTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0);
+        assertTrue(wheel.add("a", 25));
+        assertTrue(wheel.add("b", 29));
+        assertEquals(2, wheel.size());
+
+        assertTrue(advance(wheel, 19).isEmpty());
+        assertEquals(Arrays.asList("a", "b"), advance(wheel, 20));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRejectsItemsAlreadyDue() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8, 100);
+
+        assertFalse(wheel.add("past", 50));
+        assertFalse(wheel.add("current tick", 109));
+        assertTrue(wheel.add("next tick", 110));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testReleasesInOrderOfTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0);
+        wheel.add("c", 60);
+        wheel.add("a", 20);
+        wheel.add("b", 40);
+
+        assertEquals(Arrays.asList("a", "b", "c"), advance(wheel, 70));
+    }
+
+    @Test
+    public void testCascadesFromOverflowWheels() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 4, 0);
+        wheel.add("level 1", 55);
+        wheel.add("level 2", 170);
+        wheel.add("level 3", 1000);
+        assertEquals(3, wheel.size());
+
+        assertTrue(advance(wheel, 49).isEmpty());
+        assertEquals(Arrays.asList("level 1"), advance(wheel, 50));
+        assertTrue(advance(wheel, 169).isEmpty());
+        assertEquals(Arrays.asList("level 2"), advance(wheel, 170));
+        assertTrue(advance(wheel, 999).isEmpty());
+        assertEquals(Arrays.asList("level 3"), advance(wheel, 1000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testJumpsAheadWhenEmpty() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 4, 0);
+        wheel.add("early", 500);
+        assertEquals(Arrays.asList("early"), advance(wheel, 500));
+
+        advance(wheel, 1000000000L);
+        assertFalse(wheel.add("stale", 1000000005L));
+        assertTrue(wheel.add("fresh", 1000000010L));
+        assertEquals(Arrays.asList("fresh"), advance(wheel, 1000000010L));
+    }
+
+    @Test
+    public void testReleasesEveryItemNeitherEarlyNorLate() {
+        long tick = 10;
+        Random random = new Random(42);
+        TimingWheel<Integer> wheel = new TimingWheel<>(tick, 16, 0);
+        Map<Integer, Long> due = new HashMap<>();
+        long now = 0;
+        int next = 0;
+
+        for (int step = 0; step < 2000; step++) {
+            for (int i = random.nextInt(5); i > 0; i--) {
+                long time = now + random.nextInt(random.nextBoolean() ? 200 : 50000);
+                if (wheel.add(next, time)) {
+                    due.put(next, time);
+                } else {
+                    assertTrue(time < now - now % tick + tick);
+                }
+                next++;
+            }
+
+            now += random.nextInt(random.nextInt(10) == 0 ? 5000 : 30);
+
+            List<Integer> expired = new ArrayList<>();
+            wheel.advance(now, expired);
+            for (Integer item : expired) {
+                long time = due.remove(item);
+                assertTrue("Released " + item + " due at " + time + " early at " + now, time - time % tick <= now);
+            }
+            for (Map.Entry<Integer, Long> entry : due.entrySet()) {
+                long time = entry.getValue();
+                assertTrue("Held " + entry.getKey() + " due at " + time + " late at " + now, time - time % tick > now);
+            }
+            assertEquals(due.size(), wheel.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidTick() {
+        new TimingWheel<String>(0, 8, 0);
+    }
+}
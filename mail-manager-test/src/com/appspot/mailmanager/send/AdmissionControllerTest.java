@@ -0,0 +1,165 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AdmissionController}, which rely on its default limits of 20 requests, growing to at most 200 and shrinking by 10% to no fewer than
+ * 2, along with 64MB of bodies.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class AdmissionControllerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_BYTES = 64 * 1024 * 1024L;
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(10);
+
+    private static void acquire(AdmissionController controller, int requests) throws OverloadException {
+        for (int i = 0; i < requests; i++) {
+            controller.acquire(0);
+        }
+    }
+
+    private static void assertShed(AdmissionController controller, int requests, long bytes) {
+        try {
+            controller.acquire(requests, bytes);
+            fail("Expected request to be shed");
+        } catch (OverloadException e) {
+            assertTrue(e.getRetryAfterSeconds() > 0);
+        }
+    }
+
+    @Test
+    public void testShedsOnceLimitReached() throws OverloadException {
+        AdmissionController controller = new AdmissionController();
+
+        acquire(controller, 20);
+        assertShed(controller, 1, 0);
+
+        controller.release(0);
+        controller.acquire(0);
+    }
+
+    @Test
+    public void testShedsOnceByteLimitReached() throws OverloadException {
+        AdmissionController controller = new AdmissionController();
+
+        controller.acquire(MAX_BYTES / 2);
+        controller.acquire(MAX_BYTES / 2);
+        assertShed(controller, 1, 1);
+        assertShed(controller, 0, 1);
+
+        controller.release(MAX_BYTES / 2);
+        controller.acquire(0, MAX_BYTES / 2);
+    }
+
+    @Test
+    public void testAdmitsOversizedRequestWhenIdle() throws OverloadException {
+        AdmissionController controller = new AdmissionController();
+
+        controller.acquire(50, MAX_BYTES * 2);
+        assertShed(controller, 1, 0);
+    }
+
+    @Test
+    public void testSlowSendDecreasesLimit() {
+        AdmissionController controller = new AdmissionController();
+
+        controller.sample(SLOW, false);
+        assertEquals(18, controller.getLimit());
+    }
+
+    @Test
+    public void testFailureDecreasesLimit() {
+        AdmissionController controller = new AdmissionController();
+
+        controller.sample(FAST, true);
+        assertEquals(18, controller.getLimit());
+    }
+
+    @Test
+    public void testDecreasesOnlyOncePerLatency() {
+        AdmissionController controller = new AdmissionController();
+
+        controller.sample(SLOW, false);
+        controller.sample(SLOW, true);
+        controller.sample(SLOW, false);
+        assertEquals(18, controller.getLimit());
+    }
+
+    @Test
+    public void testFastSendsIncreaseLimitWhenApproached() throws OverloadException {
+        AdmissionController controller = new AdmissionController();
+        acquire(controller, 10);
+
+        // Each fast send adds the reciprocal of the limit, so about a limit's worth are needed to grow it by one
+        for (int i = 0; i < 25; i++) {
+            controller.sample(FAST, false);
+        }
+        assertEquals(21, controller.getLimit());
+
+        acquire(controller, 11);
+        assertShed(controller, 1, 0);
+    }
+
+    @Test
+    public void testFastSendsDoNotIncreaseLimitWhenIdle() {
+        AdmissionController controller = new AdmissionController();
+
+        for (int i = 0; i < 100; i++) {
+            controller.sample(FAST, false);
+        }
+        assertEquals(20, controller.getLimit());
+    }
+
+    @Test
+    public void testShedsLowerLanesFirst() throws OverloadException {
+        AdmissionController controller = new AdmissionController();
+        acquire(controller, 11);
+
+        // Only half of the limit is shared with the low lane, while the high lane can use all of it
+        try {
+            controller.admit(Priority.LOW);
+            fail("Expected low priority request to be shed");
+        } catch (OverloadException e) {
+            // Expected
+        }
+        controller.admit(Priority.NORMAL);
+        controller.admit(Priority.HIGH);
+
+        acquire(controller, 8);
+        try {
+            controller.admit(Priority.NORMAL);
+            fail("Expected normal priority request to be shed");
+        } catch (OverloadException e) {
+            // Expected
+        }
+        controller.admit(Priority.HIGH);
+    }
+}
@@ -0,0 +1,157 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.appspot.mailmanager.MailException;
+
+/**
+ * Tests for {@link AttachmentManager}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class AttachmentManagerTest {
+
+    /**
+     * An {@code InputStream} which returns the specified number of zero bytes without holding them.
+     */
+    private static class ZeroInputStream extends InputStream {
+
+        private long remaining;
+
+        ZeroInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            return remaining-- > 0 ? 0 : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int count = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + count, (byte) 0);
+            remaining -= count;
+            return count;
+        }
+    }
+
+    @Test
+    public void testReadsAttachmentIntoMemory() throws IOException, MailException {
+        AttachmentManager manager = AttachmentManager.getInstance();
+        byte[] content = new byte[20000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        Attachment attachment = manager.read("attachment-read", "data.bin", null, new ByteArrayInputStream(content), content.length);
+        try {
+            assertEquals("application/octet-stream", attachment.getContentType());
+            assertEquals(content.length, attachment.getSize());
+            assertEquals(content.length, manager.getUsage("attachment-read"));
+
+            // An attachment can be read any number of times
+            for (int i = 0; i < 2; i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (InputStream in = attachment.getInputStream()) {
+                    byte[] buffer = new byte[4096];
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                }
+                assertArrayEquals(content, out.toByteArray());
+            }
+        } finally {
+            attachment.dispose();
+        }
+
+        assertEquals(0, manager.getUsage("attachment-read"));
+    }
+
+    @Test
+    public void testRejectsAttachmentOverMemoryLimit() throws IOException {
+        AttachmentManager manager = AttachmentManager.getInstance();
+
+        try {
+            manager.read("attachment-limit", "huge.bin", null, new ZeroInputStream(10 * 1024 * 1024L + 1), Long.MAX_VALUE);
+            fail("Expected the attachment to be rejected");
+        } catch (MailException e) {
+            assertEquals("Attachment too large", e.getMessage());
+        }
+
+        assertEquals(0, manager.getUsage("attachment-limit"));
+    }
+
+    @Test
+    public void testRejectsAttachmentOverRequestAllowance() throws IOException {
+        AttachmentManager manager = AttachmentManager.getInstance();
+
+        try {
+            manager.read("attachment-allowance", "file.bin", null, new ZeroInputStream(1000), 999);
+            fail("Expected the attachment to be rejected");
+        } catch (MailException e) {
+            assertEquals("Attachments too large", e.getMessage());
+        }
+
+        assertEquals(0, manager.getUsage("attachment-allowance"));
+    }
+
+    @Test
+    public void testRejectsAttachmentOverInstanceLimit() throws IOException, MailException {
+        AttachmentManager manager = new AttachmentManager(1000, 1500);
+
+        Attachment first = manager.read("attachment-instance-a", "first.bin", null, new ZeroInputStream(1000), Long.MAX_VALUE);
+        try {
+            manager.read("attachment-instance-b", "second.bin", null, new ZeroInputStream(1000), Long.MAX_VALUE);
+            fail("Expected the attachment to be rejected");
+        } catch (OverloadException e) {
+            assertEquals("Too many attachments in memory", e.getMessage());
+        }
+
+        assertEquals(0, manager.getUsage("attachment-instance-b"));
+        assertEquals(1000, manager.getTotalUsage());
+
+        // Disposing of an attachment, once its message has been sent, makes room for others
+        first.dispose();
+        assertEquals(0, manager.getTotalUsage());
+
+        Attachment second = manager.read("attachment-instance-b", "second.bin", null, new ZeroInputStream(1000), Long.MAX_VALUE);
+        second.dispose();
+        assertEquals(0, manager.getTotalUsage());
+    }
+}
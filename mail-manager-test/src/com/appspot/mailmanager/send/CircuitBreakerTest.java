@@ -0,0 +1,210 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CircuitBreaker}, each of which uses a window of 4 calls, opening once half of at least 2 have failed or 3 quarters have been slow,
+ * along with 2 trial calls.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class CircuitBreakerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(1);
+
+    private static CircuitBreaker breaker(long openDuration) {
+        return new CircuitBreaker("test", 4, 2, 0.5, 0.75, 100, openDuration, 2);
+    }
+
+    private static void call(CircuitBreaker breaker, long nanos, boolean failure) {
+        CircuitBreaker.Permit permit = breaker.tryAcquire();
+        assertNotNull(permit);
+        breaker.record(permit, nanos, failure);
+    }
+
+    @Test
+    public void testStaysClosedBelowMinimumCalls() {
+        CircuitBreaker breaker = breaker(60000);
+
+        call(breaker, FAST, true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testOpensOnFailureRate() {
+        CircuitBreaker breaker = breaker(60000);
+
+        call(breaker, FAST, false);
+        call(breaker, FAST, false);
+        call(breaker, FAST, true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        call(breaker, FAST, true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testOpensOnSlowRate() {
+        CircuitBreaker breaker = breaker(60000);
+
+        call(breaker, FAST, false);
+        call(breaker, SLOW, false);
+        call(breaker, SLOW, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        call(breaker, SLOW, false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testWindowSlides() {
+        CircuitBreaker breaker = breaker(60000);
+
+        call(breaker, FAST, false);
+        call(breaker, FAST, false);
+        call(breaker, FAST, true);
+        for (int i = 0; i < 4; i++) {
+            call(breaker, FAST, false);
+        }
+
+        // The first failure has left the window, so only the next one counts among the last 4 calls
+        call(breaker, FAST, true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        call(breaker, FAST, true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenLimitsTrialCalls() {
+        CircuitBreaker breaker = breaker(0);
+        call(breaker, FAST, true);
+        call(breaker, FAST, true);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertNotNull(breaker.tryAcquire());
+        assertNotNull(breaker.tryAcquire());
+        assertNull(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testClosesAfterTrialCallsSucceed() {
+        CircuitBreaker breaker = breaker(0);
+        call(breaker, FAST, true);
+        call(breaker, FAST, true);
+
+        call(breaker, FAST, false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        call(breaker, FAST, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // The window is cleared on closing
+        call(breaker, FAST, true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testReopensWhenTrialCallFails() {
+        CircuitBreaker reopened = breaker(0);
+        call(reopened, FAST, true);
+        call(reopened, FAST, true);
+        CircuitBreaker.Permit trial = reopened.tryAcquire();
+        reopened.record(trial, SLOW, false);
+
+        assertEquals(Long.valueOf(2), reopened.getTransitions().get("open"));
+        assertEquals(Long.valueOf(1), reopened.getTransitions().get("half_open"));
+    }
+
+    @Test
+    public void testIgnoresCallsPermittedBeforeHalfOpen() {
+        CircuitBreaker breaker = breaker(0);
+        CircuitBreaker.Permit early = breaker.tryAcquire();
+        call(breaker, FAST, true);
+        call(breaker, FAST, true);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // A slow call which was permitted while closed is not a trial call, so it neither reopens nor closes the breaker
+        breaker.record(early, SLOW, true);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        call(breaker, FAST, false);
+        call(breaker, FAST, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testIgnoresTrialCallsAfterReopening() {
+        CircuitBreaker breaker = breaker(0);
+        call(breaker, FAST, true);
+        call(breaker, FAST, true);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        CircuitBreaker.Permit first = breaker.tryAcquire();
+        CircuitBreaker.Permit second = breaker.tryAcquire();
+        breaker.record(first, FAST, true);
+        assertEquals(Long.valueOf(2), breaker.getTransitions().get("open"));
+
+        // The second trial belongs to the previous half-open period, so it cannot count towards closing the next one
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        call(breaker, FAST, false);
+        breaker.record(second, FAST, false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testReleaseGivesBackTrialCall() {
+        CircuitBreaker breaker = breaker(0);
+        call(breaker, FAST, true);
+        call(breaker, FAST, true);
+
+        CircuitBreaker.Permit first = breaker.tryAcquire();
+        CircuitBreaker.Permit second = breaker.tryAcquire();
+        assertNull(breaker.tryAcquire());
+
+        breaker.release(first);
+        assertNotNull(breaker.tryAcquire());
+        breaker.release(second);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testCountsTransitions() {
+        CircuitBreaker breaker = breaker(0);
+        call(breaker, FAST, true);
+        call(breaker, FAST, true);
+        call(breaker, FAST, false);
+        call(breaker, FAST, false);
+
+        assertEquals(Long.valueOf(1), breaker.getTransitions().get("open"));
+        assertEquals(Long.valueOf(1), breaker.getTransitions().get("half_open"));
+        assertEquals(Long.valueOf(1), breaker.getTransitions().get("closed"));
+    }
+}
@@ -0,0 +1,55 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.appspot.mailmanager.MailException;
+
+/**
+ * Tests for {@link FailureReason}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class FailureReasonTest {
+
+    @Test
+    public void testMapsKnownMessages() {
+        assertEquals(FailureReason.INVALID_DATA, FailureReason.forException(new MailException("Invalid data")));
+        assertEquals(FailureReason.UNRECOGNIZED_API_KEY, FailureReason.forException(new MailException("Unrecognized API key")));
+        assertEquals(FailureReason.TOO_LARGE, FailureReason.forException(new MailException("Too many messages")));
+    }
+
+    @Test
+    public void testMapsByType() {
+        assertEquals(FailureReason.OVERLOADED, FailureReason.forException(new OverloadException("Too many concurrent requests", 1000)));
+        assertEquals(FailureReason.RATE_LIMITED, FailureReason.forException(new RateLimitException("Rate limit exceeded", 1000)));
+    }
+
+    @Test
+    public void testUnknownMessagesAreBounded() {
+        assertEquals(FailureReason.OTHER, FailureReason.forException(new MailException("3 of 10 recipients could not be sent")));
+        assertEquals(FailureReason.OTHER, FailureReason.forException(new MailException((String) null)));
+        assertEquals("other", FailureReason.OTHER.getName());
+    }
+}
@@ -0,0 +1,144 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FairExecutor}, each of which runs on a single worker that is held by a blocking task while the queue is filled.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class FairExecutorTest {
+
+    private static final long COST = 1000;
+
+    private static Runnable blocker(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable recorder(final List<String> order, final String name, final CountDownLatch done) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                order.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testRunsIdleApplicationAheadOfBacklog() throws InterruptedException {
+        FairExecutor executor = new FairExecutor("test-order", 1, 10, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute("busy", 1, COST, blocker(started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        executor.execute("busy", 1, COST, recorder(order, "busy-1", done));
+        executor.execute("busy", 1, COST, recorder(order, "busy-2", done));
+        executor.execute("busy", 1, COST, recorder(order, "busy-3", done));
+        executor.execute("idle", 1, COST, recorder(order, "idle", done));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("idle", "busy-1", "busy-2", "busy-3"), order);
+    }
+
+    @Test
+    public void testRunsInProportionToWeight() throws InterruptedException {
+        FairExecutor executor = new FairExecutor("test-weight", 1, 10, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute("blocker", 1, COST, blocker(started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 1; i <= 2; i++) {
+            executor.execute("light", 1, COST, recorder(order, "light-" + i, done));
+        }
+        for (int i = 1; i <= 4; i++) {
+            executor.execute("heavy", 2, COST, recorder(order, "heavy-" + i, done));
+        }
+        release.countDown();
+
+        // Each message from the heavier application costs half as much, so two of its messages are run for every one from the lighter
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("light-1", "heavy-1", "heavy-2", "light-2", "heavy-3", "heavy-4"), order);
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws InterruptedException {
+        FairExecutor executor = new FairExecutor("test-full", 1, 2, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute("app", 1, COST, blocker(started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        executor.execute("app", 1, COST, recorder(order, "first", done));
+        executor.execute("app", 1, COST, recorder(order, "second", done));
+        try {
+            executor.execute("app", 1, COST, recorder(order, "third", done));
+            fail("Expected queue to be full");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        assertEquals(2.0, executor.getDepths().get("app"), 0);
+
+        // The places held by messages which have started are given back
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        executor.execute("app", 1, COST, recorder(order, "fourth", new CountDownLatch(1)));
+    }
+}
@@ -0,0 +1,375 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.appspot.mailmanager.Contact;
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.MailException;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * Tests for {@link IdempotencyCache}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class IdempotencyCacheTest {
+
+    private static final String API_KEY = "idempotency-test";
+
+    /**
+     * A sender which counts how many times it is called and returns a new {@link SendStatus} each time.
+     */
+    private static class CountingSender implements Callable<SendStatus> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public SendStatus call() {
+            return new SendStatus("status-" + calls.incrementAndGet(), API_KEY);
+        }
+    }
+
+    private static SendRequest request(String idempotencyKey, String subject) {
+        return request(idempotencyKey, subject, "");
+    }
+
+    private static SendRequest request(String idempotencyKey, String subject, String variables) {
+        String json = "{\"apiKey\":\"" + API_KEY + "\"," + (idempotencyKey == null ? "" : "\"idempotencyKey\":\"" + idempotencyKey + "\",")
+                + "\"sender\":{\"email\":\"sender@example.com\"},\"recipients\":[{\"email\":\"recipient@example.com\"}],\"subject\":\""
+                + subject + "\",\"text\":\"Hello\",\"variables\":{" + variables + "}}";
+
+        try {
+            return SendRequest.fromJSON(new JSONReader(new StringReader(json), json.length(), json.length()));
+        } catch (IOException | JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Attachment attachment(String content) throws Exception {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return AttachmentManager.getInstance().read(API_KEY, "file.txt", "text/plain", new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    @Test
+    public void testReplaysCompletedOutcome() throws MailException {
+        IdempotencyCache cache = new IdempotencyCache(10, 60000, 1000);
+        CountingSender sender = new CountingSender();
+
+        SendStatus first = cache.send(request("key", "Subject"), sender);
+        SendStatus second = cache.send(request("key", "Subject"), sender);
+
+        assertSame(first, second);
+        assertEquals(1, sender.calls.get());
+        assertEquals(1, cache.getReplayedCount());
+    }
+
+    @Test
+    public void testIgnoresOrderOfVariables() throws MailException {
+        IdempotencyCache cache = new IdempotencyCache(10, 60000, 1000);
+        CountingSender sender = new CountingSender();
+
+        SendRequest first = request("key", "Subject", "\"a\":\"1\",\"b\":\"2\"");
+        SendRequest second = request("key", "Subject", "\"b\":\"2\",\"a\":\"1\"");
+
+        assertSame(cache.send(first, sender), cache.send(second, sender));
+        assertEquals(1, sender.calls.get());
+    }
+
+    @Test
+    public void testWithoutKeyAlwaysSends() throws MailException {
+        IdempotencyCache cache = new IdempotencyCache(10, 60000, 1000);
+        CountingSender sender = new CountingSender();
+
+        assertNotSame(cache.send(request(null, "Subject"), sender), cache.send(request(null, "Subject"), sender));
+        assertEquals(2, sender.calls.get());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testRejectsReusedKeyForDifferentRequest() throws MailException {
+        IdempotencyCache cache = new IdempotencyCache(10, 60000, 1000);
+        CountingSender sender = new CountingSender();
+
+        cache.send(request("key", "Subject"), sender);
+        try {
+            cache.send(request("key", "Other subject"), sender);
+            fail("Expected the reused key to be rejected");
+        } catch (MailException e) {
+            assertEquals("Idempotency key already used", e.getMessage());
+        }
+        assertEquals(1, sender.calls.get());
+    }
+
+    @Test
+    public void testRejectsReusedKeyForDifferentAttachmentContent() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10, 60000, 1000);
+        CountingSender sender = new CountingSender();
+
+        SendRequest first = request("key", "Subject");
+        first.addAttachment(attachment("first"));
+        SendRequest second = request("key", "Subject");
+        second.addAttachment(attachment("other"));
+
+        try {
+            cache.send(first, sender);
+            cache.send(second, sender);
+            fail("Expected the reused key to be rejected");
+        } catch (MailException e) {
+            assertEquals("Idempotency key already used", e.getMessage());
+        } finally {
+            first.disposeAttachments();
+            second.disposeAttachments();
+        }
+    }
+
+    @Test
+    public void testDoesNotCacheFailures() throws MailException {
+        IdempotencyCache cache = new IdempotencyCache(10, 60000, 1000);
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<SendStatus> sender = new Callable<SendStatus>() {
+
+            @Override
+            public SendStatus call() throws MailException {
+                if (calls.incrementAndGet() == 1) {
+                    throw new MailException("Transport unavailable");
+                }
+                return new SendStatus("status", API_KEY);
+            }
+        };
+
+        try {
+            cache.send(request("key", "Subject"), sender);
+            fail("Expected the first attempt to fail");
+        } catch (MailException e) {
+            assertEquals(0, cache.getSize());
+        }
+
+        assertEquals("status", cache.send(request("key", "Subject"), sender).getId());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10, 0, 1000);
+        CountingSender sender = new CountingSender();
+
+        cache.send(request("key", "Subject"), sender);
+        Thread.sleep(5);
+        cache.send(request("key", "Subject"), sender);
+
+        assertEquals(2, sender.calls.get());
+    }
+
+    @Test
+    public void testEvictsOldestCompletedEntry() throws MailException {
+        IdempotencyCache cache = new IdempotencyCache(2, 60000, 1000);
+        CountingSender sender = new CountingSender();
+
+        cache.send(request("first", "Subject"), sender);
+        cache.send(request("second", "Subject"), sender);
+        cache.send(request("third", "Subject"), sender);
+        assertEquals(2, cache.getSize());
+
+        cache.send(request("second", "Subject"), sender);
+        assertEquals(3, sender.calls.get());
+        cache.send(request("first", "Subject"), sender);
+        assertEquals(4, sender.calls.get());
+    }
+
+    @Test
+    public void testNeverEvictsEntryInFlight() throws Exception {
+        final IdempotencyCache cache = new IdempotencyCache(1, 60000, 5000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<SendStatus> blocking = new Callable<SendStatus>() {
+
+            @Override
+            public SendStatus call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return new SendStatus("slow", API_KEY);
+            }
+        };
+
+        Thread original = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    cache.send(request("slow", "Subject"), blocking);
+                } catch (MailException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        original.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // Filling the cache while the original request is in flight must not evict it
+        cache.send(request("fast", "Subject"), new CountingSender());
+        assertEquals(2, cache.getSize());
+
+        release.countDown();
+        original.join();
+
+        assertEquals("slow", cache.send(request("slow", "Subject"), blocking).getId());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testReplaysOutcomeFromAnotherInstance() throws MailException {
+        SharedIdempotencyStore shared = new LocalIdempotencyStore();
+        IdempotencyCache first = new IdempotencyCache(10, 60000, 1000, shared);
+        IdempotencyCache second = new IdempotencyCache(10, 60000, 1000, shared);
+        CountingSender sender = new CountingSender();
+
+        SendStatus original = first.send(request("key", "Subject"), sender);
+        SendStatus repeat = second.send(request("key", "Subject"), sender);
+
+        assertEquals(original.getId(), repeat.getId());
+        assertEquals(original.getState(), repeat.getState());
+        assertEquals(1, sender.calls.get());
+        assertEquals(1, second.getReplayedCount());
+    }
+
+    @Test
+    public void testRejectsReusedKeyOnAnotherInstance() throws MailException {
+        SharedIdempotencyStore shared = new LocalIdempotencyStore();
+        CountingSender sender = new CountingSender();
+
+        new IdempotencyCache(10, 60000, 1000, shared).send(request("key", "Subject"), sender);
+        try {
+            new IdempotencyCache(10, 60000, 1000, shared).send(request("key", "Other subject"), sender);
+            fail("Expected the reused key to be rejected");
+        } catch (MailException e) {
+            assertEquals("Idempotency key already used", e.getMessage());
+        }
+        assertEquals(1, sender.calls.get());
+    }
+
+    @Test
+    public void testReleasesClaimOnFailure() throws MailException {
+        SharedIdempotencyStore shared = new LocalIdempotencyStore();
+        Callable<SendStatus> failing = new Callable<SendStatus>() {
+
+            @Override
+            public SendStatus call() throws MailException {
+                throw new MailException("Transport unavailable");
+            }
+        };
+
+        try {
+            new IdempotencyCache(10, 60000, 1000, shared).send(request("key", "Subject"), failing);
+            fail("Expected the first attempt to fail");
+        } catch (MailException e) {
+            assertNull(shared.get(API_KEY + '\n' + "key"));
+        }
+
+        CountingSender sender = new CountingSender();
+        new IdempotencyCache(10, 60000, 1000, shared).send(request("key", "Subject"), sender);
+        assertEquals(1, sender.calls.get());
+    }
+
+    @Test
+    public void testWaitsForOriginalOnAnotherInstance() throws Exception {
+        SharedIdempotencyStore shared = new LocalIdempotencyStore();
+        final IdempotencyCache first = new IdempotencyCache(10, 60000, 5000, shared);
+        IdempotencyCache second = new IdempotencyCache(10, 60000, 5000, shared);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<SendStatus> blocking = new Callable<SendStatus>() {
+
+            @Override
+            public SendStatus call() throws Exception {
+                started.countDown();
+                release.await();
+                return new SendStatus("slow", API_KEY);
+            }
+        };
+
+        Thread original = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    first.send(request("slow", "Subject"), blocking);
+                } catch (MailException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        original.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }
+        }).start();
+
+        CountingSender sender = new CountingSender();
+        assertEquals("slow", second.send(request("slow", "Subject"), sender).getId());
+        assertEquals(0, sender.calls.get());
+        assertEquals(1, second.getCoalescedCount());
+        original.join();
+    }
+
+    @Test
+    public void testRestoresStatusFromJSON() throws JSONException {
+        SendStatus status = new SendStatus("merged", API_KEY);
+        status.setRecipientCount(2);
+        status.recipientSent();
+        status.recipientFailed(new Contact("failed@example.com"));
+        status.setState(SendStatus.State.SENT);
+
+        SendStatus restored = SendStatus.fromJSON(status.toJSON(), API_KEY);
+
+        assertEquals(status.toJSON().toString(), restored.toJSON().toString());
+        assertEquals(API_KEY, restored.getApiKey());
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import com.appspot.mailmanager.Contact;
+import com.appspot.mailmanager.JSONReader;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * Tests for {@link SendRequest}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class SendRequestTest {
+
+    private static SendRequest read(String json) throws IOException, JSONException {
+        return SendRequest.fromJSON(new JSONReader(new StringReader(json), json.length(), json.length()));
+    }
+
+    @Test
+    public void testRecipientVariablesAreKeyedByNormalizedEmail() throws IOException, JSONException {
+        SendRequest request = read("{\"apiKey\":\"key\",\"sender\":{\"email\":\"sender@example.com\"},\"recipients\":[{\"email\":\"Jo@Example.COM\"}],"
+                + "\"subject\":\"Subject\",\"text\":\"Hello\",\"recipientVariables\":{\" Jo@EXAMPLE.com \":{\"first\":\"Jo\"}}}");
+
+        Contact recipient = request.getRecipients().iterator().next();
+
+        assertEquals("Jo", request.getRecipientVariables().get(recipient.getNormalizedEmail()).get("first"));
+        assertNull(request.getRecipientVariables().get(" Jo@EXAMPLE.com "));
+    }
+
+    @Test
+    public void testRecipientVariablesMergeAcrossCase() throws IOException, JSONException {
+        SendRequest request = read("{\"apiKey\":\"key\",\"sender\":{\"email\":\"sender@example.com\"},\"recipients\":[{\"email\":\"jo@example.com\"}],"
+                + "\"subject\":\"Subject\",\"text\":\"Hello\"}");
+
+        request.putRecipientVariable("jo@example.com", "first", "Jo");
+        request.putRecipientVariable("jo@EXAMPLE.com", "last", "Bloggs");
+
+        assertEquals(1, request.getRecipientVariables().size());
+        assertEquals(2, request.getRecipientVariables().get("jo@example.com").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsBlankRecipientEmail() throws IOException, JSONException {
+        SendRequest request = read("{\"apiKey\":\"key\",\"sender\":{\"email\":\"sender@example.com\"},\"recipients\":[{\"email\":\"jo@example.com\"}],"
+                + "\"subject\":\"Subject\",\"text\":\"Hello\"}");
+
+        request.putRecipientVariable(" ", "first", "Jo");
+    }
+}
@@ -0,0 +1,112 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TokenBucket}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class TokenBucketTest {
+
+    /** A rate so slow that no tokens are added while a test runs. */
+    private static final double SLOW_RATE = 0.001;
+
+    @Test
+    public void testStartsFull() {
+        TokenBucket bucket = new TokenBucket(SLOW_RATE, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(1));
+        }
+        assertTrue(bucket.tryAcquire(1) > 0);
+    }
+
+    @Test
+    public void testAcquiresMultiplePermits() {
+        TokenBucket bucket = new TokenBucket(SLOW_RATE, 10);
+
+        assertEquals(0, bucket.tryAcquire(4));
+        assertEquals(0, bucket.tryAcquire(4));
+        assertTrue(bucket.tryAcquire(4) > 0);
+        assertEquals(0, bucket.tryAcquire(2));
+        assertTrue(bucket.tryAcquire(1) > 0);
+    }
+
+    @Test
+    public void testReturnsTimeUntilPermitsAvailable() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+
+        assertEquals(0, bucket.tryAcquire(1));
+
+        long retryAfter = bucket.tryAcquire(1);
+        assertTrue(retryAfter > 0 && retryAfter <= 1000);
+    }
+
+    @Test
+    public void testRefills() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000, 1);
+
+        assertEquals(0, bucket.tryAcquire(1));
+        Thread.sleep(20);
+        assertEquals(0, bucket.tryAcquire(1));
+    }
+
+    @Test
+    public void testAdmitsOversizedRequestWhenFull() {
+        TokenBucket bucket = new TokenBucket(1, 10);
+
+        assertEquals(0, bucket.tryAcquire(30));
+
+        // The 20 tokens of debt must be repaid, followed by another token, before anything else is admitted
+        long retryAfter = bucket.tryAcquire(1);
+        assertTrue(retryAfter > 20000 && retryAfter <= 21000);
+    }
+
+    @Test
+    public void testRejectsOversizedRequestUnlessFull() {
+        TokenBucket bucket = new TokenBucket(SLOW_RATE, 10);
+
+        assertEquals(0, bucket.tryAcquire(1));
+        assertTrue(bucket.tryAcquire(30) > 0);
+        assertEquals(0, bucket.tryAcquire(9));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidRate() {
+        new TokenBucket(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidCapacity() {
+        new TokenBucket(1, TokenBucket.MAX_CAPACITY + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidPermits() {
+        new TokenBucket(1, 1).tryAcquire(0);
+    }
+}
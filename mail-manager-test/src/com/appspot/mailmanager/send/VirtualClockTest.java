@@ -0,0 +1,109 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link VirtualClock}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class VirtualClockTest {
+
+    @Test
+    public void testTagsBacklogBehindItself() {
+        VirtualClock clock = new VirtualClock(0);
+
+        assertEquals(0, clock.tag("app", 1, 1000));
+        assertEquals(1000, clock.tag("app", 1, 1000));
+        assertEquals(2000, clock.tag("app", 1, 1000));
+    }
+
+    @Test
+    public void testTagsIdleApplicationAtVirtualTime() {
+        VirtualClock clock = new VirtualClock(0);
+        for (int i = 0; i < 10; i++) {
+            clock.tag("busy", 1, 1000);
+        }
+
+        // An application with nothing waiting goes ahead of the backlog of another
+        assertEquals(0, clock.tag("idle", 1, 1000));
+
+        clock.advance(5000);
+        assertEquals(5000, clock.tag("other", 1, 1000));
+    }
+
+    @Test
+    public void testTagsInProportionToWeight() {
+        VirtualClock clock = new VirtualClock(0);
+
+        long heavy = 0;
+        long light = 0;
+        for (int i = 0; i < 4; i++) {
+            heavy = clock.tag("heavy", 4, 1000);
+            light = clock.tag("light", 1, 1000);
+        }
+
+        assertEquals(750, heavy);
+        assertEquals(3000, light);
+    }
+
+    @Test
+    public void testChargesAtLeastOneUnit() {
+        VirtualClock clock = new VirtualClock(0);
+
+        clock.tag("app", 1000, 1);
+        assertEquals(1, clock.tag("app", 1000, 1));
+    }
+
+    @Test
+    public void testAdvanceNeverMovesBackwards() {
+        VirtualClock clock = new VirtualClock(100);
+
+        clock.advance(50);
+        assertEquals(100, clock.getTime());
+
+        clock.advance(200);
+        assertEquals(200, clock.getTime());
+    }
+
+    @Test
+    public void testLagsForgetApplicationsWithoutBacklog() {
+        VirtualClock clock = new VirtualClock(0);
+        clock.tag("busy", 1, 1000);
+        clock.tag("busy", 1, 1000);
+        clock.tag("idle", 1, 1000);
+
+        clock.advance(1000);
+        Map<String, Long> lags = clock.getLags();
+
+        assertEquals(Long.valueOf(1000), lags.get("busy"));
+        assertFalse(lags.containsKey("idle"));
+        assertTrue(clock.getLags().size() == 1);
+    }
+}
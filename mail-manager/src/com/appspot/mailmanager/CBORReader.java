@@ -0,0 +1,692 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * A pull-based reader which tokenizes CBOR (RFC 7049) directly from a byte stream so that objects can be populated without first building a tree or
+ * buffering the entire input.
+ * <p>
+ * Only the subset of CBOR which maps onto JSON is supported; maps must be keyed by text strings, tags are ignored, {@code undefined} is read as
+ * {@code null}, and byte strings are rejected. Both definite and indefinite lengths are supported. Limits are enforced on the total number of bytes read,
+ * the length of any individual string, and the nesting depth, so that oversized input is rejected as soon as it is detected. The read buffer is reused
+ * by each thread, so a thread must not use more than one open {@link CBORReader} at a time.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class CBORReader implements DocumentReader {
+
+    private static final int BREAK = 0xFF;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INDEFINITE = 31;
+    private static final int MAX_DEPTH = 32;
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int SIMPLE_FALSE = 20;
+    private static final int SIMPLE_TRUE = 21;
+    private static final int SIMPLE_NULL = 22;
+    private static final int SIMPLE_UNDEFINED = 23;
+    private static final int SIMPLE_HALF = 25;
+    private static final int SIMPLE_FLOAT = 26;
+    private static final int SIMPLE_DOUBLE = 27;
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private long argument;
+    private final byte[] buffer = buffers.get();
+    private long consumed;
+    private int depth;
+    private boolean done;
+    private final InputStream in;
+    private boolean indefinite;
+    private int info;
+    private int limit;
+    private int major;
+    private final long maxLength;
+    private final int maxStringLength;
+    private final boolean[] names = new boolean[MAX_DEPTH];
+    private final boolean[] objects = new boolean[MAX_DEPTH];
+    private Token peeked;
+    private int pos;
+    private final long[] remaining = new long[MAX_DEPTH];
+
+    /**
+     * Creates a new instance of {@link CBORReader} for the {@code in} provided.
+     * 
+     * @param in
+     *            the {@code InputStream} from which the CBOR is to be read
+     * @param maxLength
+     *            the maximum number of bytes that can be read
+     * @param maxStringLength
+     *            the maximum number of characters within any individual string
+     * @throws NullPointerException
+     *             If {@code in} is {@code null}.
+     */
+    public CBORReader(InputStream in, long maxLength, int maxStringLength) {
+        if (in == null) {
+            throw new NullPointerException("in");
+        }
+
+        this.in = in;
+        this.maxLength = maxLength;
+        this.maxStringLength = maxStringLength;
+    }
+
+    /*
+     * @see DocumentReader#beginArray()
+     */
+    @Override
+    public void beginArray() throws IOException, JSONException {
+        expect(Token.BEGIN_ARRAY);
+        push(false);
+    }
+
+    /*
+     * @see DocumentReader#beginObject()
+     */
+    @Override
+    public void beginObject() throws IOException, JSONException {
+        expect(Token.BEGIN_OBJECT);
+        push(true);
+    }
+
+    /**
+     * Closes the underlying {@code InputStream}.
+     * 
+     * @throws IOException
+     *             If an error occurs while closing the underlying {@code InputStream}.
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Marks the value which has just been read as consumed within the current array or object.
+     */
+    private void consume() {
+        peeked = null;
+
+        if (depth == 0) {
+            done = true;
+            return;
+        }
+
+        int top = depth - 1;
+        if (remaining[top] > 0) {
+            remaining[top]--;
+        }
+        if (objects[top]) {
+            names[top] = !names[top];
+        }
+    }
+
+    /*
+     * @see DocumentReader#endArray()
+     */
+    @Override
+    public void endArray() throws IOException, JSONException {
+        expect(Token.END_ARRAY);
+        pop();
+    }
+
+    /*
+     * @see DocumentReader#endObject()
+     */
+    @Override
+    public void endObject() throws IOException, JSONException {
+        expect(Token.END_OBJECT);
+        pop();
+    }
+
+    /**
+     * Ensures that the next token is of the {@code expected} type.
+     * 
+     * @param expected
+     *            the expected {@link Token}
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not of the {@code expected} type.
+     */
+    private void expect(Token expected) throws IOException, JSONException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+    }
+
+    /**
+     * Attempts to ensure that the buffer contains at least one more byte.
+     * 
+     * @return {@code true} if a byte is available; otherwise {@code false} if the end of the input has been reached.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the maximum length has been exceeded.
+     */
+    private boolean fill() throws IOException, JSONException {
+        if (pos < limit) {
+            return true;
+        }
+
+        int count = in.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+
+        consumed += count;
+        if (consumed > maxLength) {
+            throw new JSONException("Input exceeds maximum length of " + maxLength);
+        }
+
+        pos = 0;
+        limit = count;
+        return true;
+    }
+
+    /*
+     * @see DocumentReader#hasNext()
+     */
+    @Override
+    public boolean hasNext() throws IOException, JSONException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    /*
+     * @see DocumentReader#nextBoolean()
+     */
+    @Override
+    public boolean nextBoolean() throws IOException, JSONException {
+        expect(Token.BOOLEAN);
+
+        boolean value = info == SIMPLE_TRUE;
+        consume();
+        return value;
+    }
+
+    /*
+     * @see DocumentReader#nextLong()
+     */
+    @Override
+    public long nextLong() throws IOException, JSONException {
+        expect(Token.NUMBER);
+
+        long value;
+        if (major != MAJOR_SIMPLE) {
+            if (argument < 0) {
+                throw syntaxError("Expected a long but was " + readNumber());
+            }
+            value = major == MAJOR_UNSIGNED ? argument : -1 - argument;
+        } else {
+            double number = readFloat();
+            if (number != Math.rint(number) || number < Long.MIN_VALUE || number >= 0x1p63) {
+                throw syntaxError("Expected a long but was " + readNumber());
+            }
+            value = (long) number;
+        }
+
+        consume();
+        return value;
+    }
+
+    /*
+     * @see DocumentReader#nextName()
+     */
+    @Override
+    public String nextName() throws IOException, JSONException {
+        expect(Token.NAME);
+
+        String name = readString();
+        consume();
+        return name;
+    }
+
+    /*
+     * @see DocumentReader#nextNull()
+     */
+    @Override
+    public void nextNull() throws IOException, JSONException {
+        expect(Token.NULL);
+        consume();
+    }
+
+    /*
+     * @see DocumentReader#nextString()
+     */
+    @Override
+    public String nextString() throws IOException, JSONException {
+        String value;
+        if (peek() == Token.NUMBER) {
+            value = readNumber();
+        } else {
+            expect(Token.STRING);
+            value = readString();
+        }
+
+        consume();
+        return value;
+    }
+
+    /*
+     * @see DocumentReader#nextStringOrNull()
+     */
+    @Override
+    public String nextStringOrNull() throws IOException, JSONException {
+        if (peek() == Token.NULL) {
+            nextNull();
+            return null;
+        }
+        return nextString();
+    }
+
+    /*
+     * @see DocumentReader#peek()
+     */
+    @Override
+    public Token peek() throws IOException, JSONException {
+        if (peeked != null) {
+            return peeked;
+        }
+
+        if (depth == 0) {
+            if (done) {
+                if (fill()) {
+                    throw syntaxError("Unexpected content after document");
+                }
+                return peeked = Token.END_DOCUMENT;
+            }
+        } else {
+            int top = depth - 1;
+            if (remaining[top] == 0 || remaining[top] < 0 && peekByte() == BREAK) {
+                if (objects[top] && !names[top]) {
+                    throw syntaxError("Expected value");
+                }
+                return peeked = objects[top] ? Token.END_OBJECT : Token.END_ARRAY;
+            }
+        }
+
+        do {
+            readHead(readByte());
+        } while (major == MAJOR_TAG);
+
+        if (depth > 0 && objects[depth - 1] && names[depth - 1]) {
+            if (major != MAJOR_TEXT) {
+                throw syntaxError("Expected name");
+            }
+            return peeked = Token.NAME;
+        }
+
+        switch (major) {
+        case MAJOR_UNSIGNED:
+        case MAJOR_NEGATIVE:
+            return peeked = Token.NUMBER;
+        case MAJOR_TEXT:
+            return peeked = Token.STRING;
+        case MAJOR_ARRAY:
+            return peeked = Token.BEGIN_ARRAY;
+        case MAJOR_MAP:
+            return peeked = Token.BEGIN_OBJECT;
+        case MAJOR_SIMPLE:
+            switch (info) {
+            case SIMPLE_FALSE:
+            case SIMPLE_TRUE:
+                return peeked = Token.BOOLEAN;
+            case SIMPLE_NULL:
+            case SIMPLE_UNDEFINED:
+                return peeked = Token.NULL;
+            case SIMPLE_HALF:
+            case SIMPLE_FLOAT:
+            case SIMPLE_DOUBLE:
+                return peeked = Token.NUMBER;
+            default:
+                throw syntaxError("Unsupported simple value: " + info);
+            }
+        default:
+            throw syntaxError("Unsupported major type: " + major);
+        }
+    }
+
+    /**
+     * Returns the next byte without consuming it.
+     * 
+     * @return The next byte.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the end of the input has been reached or the maximum length has been exceeded.
+     */
+    private int peekByte() throws IOException, JSONException {
+        if (!fill()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return buffer[pos] & 0xFF;
+    }
+
+    /**
+     * Pops the current array or object from the stack, consuming the break which terminates it if its length is indefinite.
+     */
+    private void pop() {
+        if (remaining[--depth] < 0) {
+            pos++;
+        }
+        consume();
+    }
+
+    /**
+     * Pushes the array or object whose head has just been read onto the stack.
+     * 
+     * @param object
+     *            {@code true} if an object is being pushed; otherwise {@code false} if it is an array
+     * @throws JSONException
+     *             If the maximum depth has been exceeded or the length of the array or object is invalid.
+     */
+    private void push(boolean object) throws JSONException {
+        if (depth == MAX_DEPTH) {
+            throw new JSONException("Input exceeds maximum depth of " + MAX_DEPTH);
+        }
+
+        long count = -1;
+        if (!indefinite) {
+            // Every element takes at least one byte so any length that exceeds the remaining input can be rejected early
+            if (argument < 0 || argument > maxLength - position() || argument > Integer.MAX_VALUE) {
+                throw syntaxError("Invalid length: " + argument);
+            }
+            count = object ? argument * 2 : argument;
+        }
+
+        objects[depth] = object;
+        names[depth] = object;
+        remaining[depth++] = count;
+        peeked = null;
+    }
+
+    /**
+     * Returns the number of bytes consumed so far.
+     * 
+     * @return The current position.
+     */
+    private long position() {
+        return consumed - limit + pos;
+    }
+
+    /**
+     * Reads the next byte.
+     * 
+     * @return The next byte.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the end of the input has been reached or the maximum length has been exceeded.
+     */
+    private int readByte() throws IOException, JSONException {
+        int b = peekByte();
+        pos++;
+        return b;
+    }
+
+    /**
+     * Reads the current floating-point number.
+     * 
+     * @return The floating-point value.
+     * @throws JSONException
+     *             If the value is not finite.
+     */
+    private double readFloat() throws JSONException {
+        double value;
+        switch (info) {
+        case SIMPLE_HALF:
+            int exponent = (int) (argument >> 10) & 0x1F;
+            int mantissa = (int) argument & 0x3FF;
+            if (exponent == 0) {
+                value = mantissa * 0x1p-24;
+            } else if (exponent != 0x1F) {
+                value = (mantissa + 0x400) * Math.pow(2, exponent - 25);
+            } else {
+                value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            }
+            if ((argument & 0x8000) != 0) {
+                value = -value;
+            }
+            break;
+        case SIMPLE_FLOAT:
+            value = Float.intBitsToFloat((int) argument);
+            break;
+        default:
+            value = Double.longBitsToDouble(argument);
+        }
+
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw syntaxError("Invalid number: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the head of the next data item, the initial byte of which has already been consumed.
+     * 
+     * @param initial
+     *            the initial byte of the data item
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the head is malformed.
+     */
+    private void readHead(int initial) throws IOException, JSONException {
+        major = initial >>> 5;
+        info = initial & 0x1F;
+        indefinite = false;
+
+        if (info < 24) {
+            argument = info;
+        } else if (info <= 27) {
+            int size = 1 << (info - 24);
+            argument = 0;
+            for (int i = 0; i < size; i++) {
+                argument = (argument << 8) | readByte();
+            }
+        } else if (info == INDEFINITE && major >= MAJOR_BYTES && major <= MAJOR_MAP) {
+            indefinite = true;
+            argument = -1;
+        } else {
+            throw syntaxError("Unexpected initial byte: 0x" + Integer.toHexString(initial));
+        }
+    }
+
+    /**
+     * Reads the current number as a string.
+     * 
+     * @return The numeric value as a string.
+     * @throws JSONException
+     *             If the value is not finite.
+     */
+    private String readNumber() throws JSONException {
+        switch (major) {
+        case MAJOR_UNSIGNED:
+            return argument >= 0 ? Long.toString(argument) : unsigned(argument).toString();
+        case MAJOR_NEGATIVE:
+            return argument >= 0 ? Long.toString(-1 - argument) : unsigned(argument).not().toString();
+        default:
+            return Double.toString(readFloat());
+        }
+    }
+
+    /**
+     * Reads the current string, joining its chunks together if its length is indefinite.
+     * 
+     * @return The string value.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the string is malformed or exceeds the maximum length.
+     */
+    private String readString() throws IOException, JSONException {
+        if (!indefinite) {
+            return readText(argument);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        int initial;
+        while ((initial = readByte()) != BREAK) {
+            if (initial >>> 5 != MAJOR_TEXT || (initial & 0x1F) == INDEFINITE) {
+                throw syntaxError("Invalid string chunk");
+            }
+
+            readHead(initial);
+            builder.append(readText(argument));
+            if (builder.length() > maxStringLength) {
+                throw syntaxError("String exceeds maximum length of " + maxStringLength);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a UTF-8 encoded string of the specified {@code length}.
+     * 
+     * @param length
+     *            the number of bytes to be read
+     * @return The string value.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the string is truncated or exceeds the maximum length.
+     */
+    private String readText(long length) throws IOException, JSONException {
+        // A character takes no more than three bytes in UTF-8, with supplementary characters taking four bytes for two chars
+        if (length < 0 || length > maxStringLength * 3L || length > maxLength - position()) {
+            throw syntaxError("String exceeds maximum length of " + maxStringLength);
+        }
+
+        int count = (int) length;
+        String value;
+        if (limit - pos >= count) {
+            value = new String(buffer, pos, count, StandardCharsets.UTF_8);
+            pos += count;
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(count, BUFFER_SIZE));
+            while (count > 0) {
+                if (!fill()) {
+                    throw syntaxError("Unterminated string");
+                }
+
+                int chunk = Math.min(limit - pos, count);
+                bytes.write(buffer, pos, chunk);
+                pos += chunk;
+                count -= chunk;
+            }
+            value = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        if (value.length() > maxStringLength) {
+            throw syntaxError("String exceeds maximum length of " + maxStringLength);
+        }
+        return value;
+    }
+
+    /*
+     * @see DocumentReader#skipValue()
+     */
+    @Override
+    public void skipValue() throws IOException, JSONException {
+        int count = 0;
+
+        do {
+            switch (peek()) {
+            case BEGIN_ARRAY:
+                beginArray();
+                count++;
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                count++;
+                break;
+            case END_ARRAY:
+                endArray();
+                count--;
+                break;
+            case END_OBJECT:
+                endObject();
+                count--;
+                break;
+            case NAME:
+                nextName();
+                break;
+            case STRING:
+            case NUMBER:
+                nextString();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw syntaxError("Unexpected end of input");
+            }
+        } while (count != 0);
+    }
+
+    /**
+     * Creates a {@code JSONException} for a syntax error.
+     * 
+     * @param message
+     *            the detail message to be used
+     * @return The {@code JSONException}.
+     */
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at byte " + position());
+    }
+
+    /**
+     * Returns the specified {@code value} as an unsigned 64-bit integer.
+     * 
+     * @param value
+     *            the value to be converted
+     * @return The unsigned value.
+     */
+    private static BigInteger unsigned(long value) {
+        return BigInteger.valueOf(value & Long.MAX_VALUE).setBit(63);
+    }
+}
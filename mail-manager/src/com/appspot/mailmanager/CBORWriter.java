@@ -0,0 +1,233 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import com.google.appengine.labs.repackaged.org.json.JSONArray;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * A writer which encodes JSON values as CBOR (RFC 7049) onto a byte stream.
+ * <p>
+ * Arrays, objects, and strings are always written with definite lengths, integers are written in their shortest form, and all other numbers are written
+ * as double-precision floats.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class CBORWriter {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int DOUBLE = 0xFB;
+
+    private final byte[] head = new byte[9];
+    private final OutputStream out;
+
+    /**
+     * Creates a new instance of {@link CBORWriter} for the {@code out} provided.
+     * 
+     * @param out
+     *            the {@code OutputStream} to which the CBOR is to be written
+     * @throws NullPointerException
+     *             If {@code out} is {@code null}.
+     */
+    public CBORWriter(OutputStream out) {
+        if (out == null) {
+            throw new NullPointerException("out");
+        }
+
+        this.out = out;
+    }
+
+    /**
+     * Writes the specified {@code value}, which may be a {@code JSONObject}, {@code JSONArray}, {@code String}, {@code Number}, {@code Boolean}, or
+     * {@code null}.
+     * <p>
+     * Any other type of value is written as a string, just as it would be by {@code JSONObject}.
+     * 
+     * @param value
+     *            the value to be written
+     * @throws IOException
+     *             If an error occurs while writing.
+     * @throws JSONException
+     *             If {@code value} contains an invalid number.
+     */
+    public void write(Object value) throws IOException, JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof JSONObject) {
+            writeObject((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            writeArray((JSONArray) value);
+        } else {
+            writeText(value.toString());
+        }
+    }
+
+    /**
+     * Writes the specified {@code array} along with all of its elements.
+     * 
+     * @param array
+     *            the {@code JSONArray} to be written
+     * @throws IOException
+     *             If an error occurs while writing.
+     * @throws JSONException
+     *             If {@code array} contains an invalid number.
+     */
+    private void writeArray(JSONArray array) throws IOException, JSONException {
+        int length = array.length();
+        writeHead(MAJOR_ARRAY, length);
+        for (int i = 0; i < length; i++) {
+            write(array.get(i));
+        }
+    }
+
+    /**
+     * Writes the specified {@code value} as a double-precision float.
+     * 
+     * @param value
+     *            the value to be written
+     * @throws IOException
+     *             If an error occurs while writing.
+     * @throws JSONException
+     *             If {@code value} is not finite.
+     */
+    private void writeDouble(double value) throws IOException, JSONException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("Invalid number: " + value);
+        }
+
+        long bits = Double.doubleToLongBits(value);
+        head[0] = (byte) DOUBLE;
+        for (int i = 8; i > 0; i--) {
+            head[i] = (byte) bits;
+            bits >>>= 8;
+        }
+        out.write(head, 0, 9);
+    }
+
+    /**
+     * Writes the head of a data item with the specified {@code major} type and {@code argument}, using the shortest encoding possible.
+     * 
+     * @param major
+     *            the major type of the data item
+     * @param argument
+     *            the argument of the data item, which is treated as unsigned
+     * @throws IOException
+     *             If an error occurs while writing.
+     */
+    private void writeHead(int major, long argument) throws IOException {
+        int size;
+        int info;
+        if (argument >= 0 && argument < 24) {
+            out.write(major << 5 | (int) argument);
+            return;
+        } else if (argument >= 0 && argument <= 0xFF) {
+            size = 1;
+            info = 24;
+        } else if (argument >= 0 && argument <= 0xFFFF) {
+            size = 2;
+            info = 25;
+        } else if (argument >= 0 && argument <= 0xFFFFFFFFL) {
+            size = 4;
+            info = 26;
+        } else {
+            size = 8;
+            info = 27;
+        }
+
+        head[0] = (byte) (major << 5 | info);
+        for (int i = size; i > 0; i--) {
+            head[i] = (byte) argument;
+            argument >>>= 8;
+        }
+        out.write(head, 0, size + 1);
+    }
+
+    /**
+     * Writes the specified {@code value} as an integer.
+     * 
+     * @param value
+     *            the value to be written
+     * @throws IOException
+     *             If an error occurs while writing.
+     */
+    private void writeLong(long value) throws IOException {
+        if (value >= 0) {
+            writeHead(MAJOR_UNSIGNED, value);
+        } else {
+            writeHead(MAJOR_NEGATIVE, -1 - value);
+        }
+    }
+
+    /**
+     * Writes the specified {@code object} along with all of its properties.
+     * 
+     * @param object
+     *            the {@code JSONObject} to be written
+     * @throws IOException
+     *             If an error occurs while writing.
+     * @throws JSONException
+     *             If {@code object} contains an invalid number.
+     */
+    private void writeObject(JSONObject object) throws IOException, JSONException {
+        writeHead(MAJOR_MAP, object.length());
+
+        Iterator<?> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next().toString();
+            writeText(key);
+            write(object.get(key));
+        }
+    }
+
+    /**
+     * Writes the specified {@code value} as a UTF-8 encoded text string.
+     * 
+     * @param value
+     *            the string to be written
+     * @throws IOException
+     *             If an error occurs while writing.
+     */
+    private void writeText(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeHead(MAJOR_TEXT, bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,160 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@code OutputStream} which holds the data written to it in memory as a list of small chunks rather than a single array, so that it never needs to
+ * be copied as it grows.
+ * <p>
+ * Nothing is ever written to disk since App Engine does not allow files to be written, so callers must limit how much they write. Once it has been
+ * closed, the data can be read any number of times, and it should be deleted when it is no longer needed so that its chunks can be reclaimed.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class ChunkBuffer extends OutputStream {
+
+    /**
+     * An {@code InputStream} which reads the chunks held in memory.
+     */
+    private class ChunkInputStream extends InputStream {
+
+        private int chunk;
+        private int offset;
+        private long remaining = size;
+
+        /*
+         * @see InputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        /*
+         * @see InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+
+            if (offset == CHUNK_SIZE) {
+                chunk++;
+                offset = 0;
+            }
+
+            int count = (int) Math.min(Math.min(len, CHUNK_SIZE - offset), remaining);
+            System.arraycopy(chunks.get(chunk), offset, b, off, count);
+            offset += count;
+            remaining -= count;
+            return count;
+        }
+    }
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private boolean closed;
+    private long size;
+
+    /**
+     * Closes this {@link ChunkBuffer} so that no more data can be written to it and it can be read instead.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Discards the data held by this {@link ChunkBuffer}.
+     * <p>
+     * This {@link ChunkBuffer} can no longer be used once it has been deleted.
+     */
+    public void delete() {
+        close();
+
+        chunks.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of bytes which have been written to this {@link ChunkBuffer}.
+     * 
+     * @return The size.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Opens a new {@code InputStream} from which the data held by this {@link ChunkBuffer} can be read.
+     * 
+     * @return The {@code InputStream}.
+     * @throws IllegalStateException
+     *             If this {@link ChunkBuffer} has not been closed.
+     */
+    public InputStream openStream() {
+        if (!closed) {
+            throw new IllegalStateException("Buffer has not been closed");
+        }
+
+        return new ChunkInputStream();
+    }
+
+    /*
+     * @see OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Buffer has been closed");
+        }
+
+        while (len > 0) {
+            int offset = (int) (size % CHUNK_SIZE);
+            if (offset == 0) {
+                chunks.add(new byte[CHUNK_SIZE]);
+            }
+
+            int count = Math.min(len, CHUNK_SIZE - offset);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), offset, count);
+            off += count;
+            len -= count;
+            size += count;
+        }
+    }
+
+    /*
+     * @see OutputStream#write(int)
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+}
@@ -20,7 +20,9 @@
  */
 package com.appspot.mailmanager;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Locale;
 
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
@@ -30,6 +32,9 @@ import com.google.appengine.labs.repackaged.org.json.JSONObject;
 
 /**
  * Contains basic information for a mail contact.
+ * <p>
+ * Since the domain of an email address is case-insensitive, each contact also has a normalized email address, in which the domain is lower case, which is
+ * used to identify the same recipient regardless of how their address was written.
  * 
  * @author Alasdair Mercer <mercer.alasdair@gmail.com>
  */
@@ -67,8 +72,77 @@ public class Contact {
         return new Contact(json.getString("email"), json.optString("name", null));
     }
 
+    /**
+     * Creates a new instance of {@link Contact} based on the values read from the next object within the specified {@code reader}.
+     * 
+     * @param reader
+     *            the {@link DocumentReader} from which the details are to be read
+     * @return The {@link Contact} read from {@code reader}.
+     * @throws IllegalArgumentException
+     *             If the object does not contain an email address or the email address read is empty, in which case the entire object will have been
+     *             consumed.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the object is malformed.
+     * @throws NullPointerException
+     *             If {@code reader} is {@code null}.
+     */
+    public static Contact fromJSON(DocumentReader reader) throws IOException, JSONException {
+        String email = null;
+        String name = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "email":
+                email = reader.nextString();
+                break;
+            case "name":
+                name = reader.nextStringOrNull();
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (email == null) {
+            throw new IllegalArgumentException("Contact email not found");
+        }
+
+        return new Contact(email, name);
+    }
+
+    /**
+     * Normalizes the specified {@code email} address by trimming any surrounding whitespace and converting its domain to lower case.
+     * <p>
+     * The local part is left as is since it may be case-sensitive.
+     * 
+     * @param email
+     *            the email address to be normalized
+     * @return The normalized email address, which is {@code email} itself if it is already normalized.
+     * @throws NullPointerException
+     *             If {@code email} is {@code null}.
+     */
+    public static String normalize(String email) {
+        String trimmed = email.trim();
+        int index = trimmed.lastIndexOf('@');
+        if (index < 0) {
+            return trimmed;
+        }
+
+        String domain = trimmed.substring(index + 1);
+        String lowerDomain = domain.toLowerCase(Locale.ROOT);
+        if (domain.equals(lowerDomain)) {
+            return trimmed;
+        }
+        return trimmed.substring(0, index + 1) + lowerDomain;
+    }
+
     private String email;
     private String name;
+    private String normalizedEmail;
 
     /**
      * Creates a new instance of {@link Contact} with no name and the {@code email} address provided.
@@ -115,10 +189,21 @@ public class Contact {
      *             If {@code email} is either {@code null} or empty.
      */
     public void setEmail(String email) {
-        if (email == null || email.isEmpty()) {
+        if (email == null || email.trim().isEmpty()) {
             throw new IllegalArgumentException("Invalid contact email: " + email);
         }
         this.email = email;
+        this.normalizedEmail = normalize(email);
+    }
+
+    /**
+     * Returns the normalized email address of this {@link Contact}.
+     * 
+     * @return The normalized email address.
+     * @see #normalize(String)
+     */
+    public String getNormalizedEmail() {
+        return normalizedEmail;
     }
 
     /**
@@ -141,7 +226,8 @@ public class Contact {
     }
 
     /**
-     * Creates an {@code InternetAddress} using the details provided by this {@link Contact}.
+     * Creates an {@code InternetAddress} using the normalized email address and name of this {@link Contact}, without consulting the
+     * {@link ContactCache}.
      * 
      * @return The derived {@code InternetAddress}.
      * @throws AddressException
@@ -149,14 +235,29 @@ public class Contact {
      * @throws UnsupportedEncodingException
      *             If this contact's name is invalid.
      */
-    public InternetAddress toInternetAddress() throws AddressException, UnsupportedEncodingException {
-        InternetAddress address = new InternetAddress(email);
+    InternetAddress createInternetAddress() throws AddressException, UnsupportedEncodingException {
+        InternetAddress address = new InternetAddress(normalizedEmail);
         if (name != null) {
             address.setPersonal(name);
         }
         return address;
     }
 
+    /**
+     * Returns an {@code InternetAddress} using the normalized email address and name of this {@link Contact}.
+     * <p>
+     * The address is served from the {@link ContactCache} where possible so that it is not parsed and encoded again.
+     * 
+     * @return The derived {@code InternetAddress}.
+     * @throws AddressException
+     *             If this contact's email address is invalid.
+     * @throws UnsupportedEncodingException
+     *             If this contact's name is invalid.
+     */
+    public InternetAddress toInternetAddress() throws AddressException, UnsupportedEncodingException {
+        return ContactCache.getInstance().get(this);
+    }
+
     /**
      * Creates a {@code JSONObject} based on this {@link Contact}.
      * 
@@ -0,0 +1,168 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * A bounded cache of the {@code InternetAddresses} derived from {@link Contact Contacts}, so that addresses which are sent to repeatedly are only parsed,
+ * and have their names encoded, once.
+ * <p>
+ * Addresses are cached against the normalized email address and name of each {@link Contact}, so contacts which differ only in the case of their domain
+ * share the same entry. The cache is split into segments, each of which is a small LRU cache with its own lock, so that concurrent senders rarely contend
+ * with each other. Callers are given their own copy of each cached {@code InternetAddress}, which is cheap as the parsed and encoded values are copied
+ * rather than derived again.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class ContactCache {
+
+    /** The maximum number of {@code InternetAddresses} to be held in the cache. */
+    private static final int MAX_SIZE = Integer.getInteger("mailmanager.contact.cache.maxSize", 10000);
+    /** The number of independently locked segments into which the cache is split. */
+    private static final int SEGMENTS = 16;
+    /** The separator used to combine the email address and name of a {@link Contact} into a key. */
+    private static final char SEPARATOR = '\u0000';
+
+    private static ContactCache instance;
+
+    /**
+     * Retrieves the singleton instance of {@link ContactCache}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized ContactCache getInstance() {
+        if (instance == null) {
+            instance = new ContactCache(MAX_SIZE);
+        }
+        return instance;
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final List<Map<String, InternetAddress>> segments;
+
+    /**
+     * Creates a new instance of {@link ContactCache} which holds up to {@code maxSize} addresses.
+     * 
+     * @param maxSize
+     *            the maximum number of {@code InternetAddresses} to be cached
+     * @throws IllegalArgumentException
+     *             If {@code maxSize} is negative.
+     */
+    public ContactCache(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maxSize);
+        }
+
+        final int segmentSize = (maxSize + SEGMENTS - 1) / SEGMENTS;
+
+        segments = new ArrayList<>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new LinkedHashMap<String, InternetAddress>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, InternetAddress> eldest) {
+                    return size() > segmentSize;
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a copy of the {@code InternetAddress} derived from the specified {@code contact}, deriving and caching it if it is not already cached.
+     * 
+     * @param contact
+     *            the {@link Contact} whose {@code InternetAddress} is to be returned
+     * @return The {@code InternetAddress} for {@code contact}.
+     * @throws AddressException
+     *             If the email address of {@code contact} is invalid.
+     * @throws NullPointerException
+     *             If {@code contact} is {@code null}.
+     * @throws UnsupportedEncodingException
+     *             If the name of {@code contact} is invalid.
+     */
+    public InternetAddress get(Contact contact) throws AddressException, UnsupportedEncodingException {
+        String key = contact.getName() == null ? contact.getNormalizedEmail() : contact.getNormalizedEmail() + SEPARATOR + contact.getName();
+        Map<String, InternetAddress> segment = segments.get((key.hashCode() & Integer.MAX_VALUE) % SEGMENTS);
+
+        InternetAddress address;
+        synchronized (segment) {
+            address = segment.get(key);
+        }
+
+        if (address == null) {
+            misses.incrementAndGet();
+            address = contact.createInternetAddress();
+
+            synchronized (segment) {
+                segment.put(key, address);
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+
+        return (InternetAddress) address.clone();
+    }
+
+    /**
+     * Returns the number of lookups that have been served by this cache.
+     * 
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that could not be served by this cache.
+     * 
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of {@code InternetAddresses} currently held by this cache.
+     * 
+     * @return The size.
+     */
+    public int getSize() {
+        int size = 0;
+        for (Map<String, InternetAddress> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,199 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * A pull-based reader which tokenizes a document modelled on JSON so that objects can be populated directly from the input, regardless of how it has been
+ * encoded.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public interface DocumentReader extends Closeable {
+
+    /**
+     * The types of tokens that can be read.
+     */
+    public static enum Token {
+
+        /** The start of an array. */
+        BEGIN_ARRAY,
+        /** The end of an array. */
+        END_ARRAY,
+        /** The start of an object. */
+        BEGIN_OBJECT,
+        /** The end of an object. */
+        END_OBJECT,
+        /** The name of a property within an object. */
+        NAME,
+        /** A string value. */
+        STRING,
+        /** A numeric value. */
+        NUMBER,
+        /** A {@code true} or {@code false} value. */
+        BOOLEAN,
+        /** A {@code null} value. */
+        NULL,
+        /** The end of the input. */
+        END_DOCUMENT
+    }
+
+    /**
+     * Consumes the start of an array.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not the start of an array or the maximum depth has been exceeded.
+     */
+    void beginArray() throws IOException, JSONException;
+
+    /**
+     * Consumes the start of an object.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not the start of an object or the maximum depth has been exceeded.
+     */
+    void beginObject() throws IOException, JSONException;
+
+    /**
+     * Consumes the end of an array.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not the end of an array.
+     */
+    void endArray() throws IOException, JSONException;
+
+    /**
+     * Consumes the end of an object.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not the end of an object.
+     */
+    void endObject() throws IOException, JSONException;
+
+    /**
+     * Indicates whether the current array or object has another element.
+     * 
+     * @return {@code true} if there is another element; otherwise {@code false}.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the input is malformed.
+     */
+    boolean hasNext() throws IOException, JSONException;
+
+    /**
+     * Consumes the next boolean value.
+     * 
+     * @return The boolean value.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not a boolean.
+     */
+    boolean nextBoolean() throws IOException, JSONException;
+
+    /**
+     * Consumes the next numeric value as a {@code long}.
+     * 
+     * @return The numeric value.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not a number or it cannot be represented as a {@code long}.
+     */
+    long nextLong() throws IOException, JSONException;
+
+    /**
+     * Consumes the next property name.
+     * 
+     * @return The property name.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not a property name.
+     */
+    String nextName() throws IOException, JSONException;
+
+    /**
+     * Consumes the next {@code null} value.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not {@code null}.
+     */
+    void nextNull() throws IOException, JSONException;
+
+    /**
+     * Consumes the next string or numeric value as a string.
+     * 
+     * @return The string value.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is neither a string nor a number.
+     */
+    String nextString() throws IOException, JSONException;
+
+    /**
+     * Consumes the next string or numeric value as a string or, if the next value is {@code null}, consumes that instead.
+     * 
+     * @return The string value or {@code null}.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is neither a string, a number, nor {@code null}.
+     */
+    String nextStringOrNull() throws IOException, JSONException;
+
+    /**
+     * Returns the type of the next token without consuming it.
+     * 
+     * @return The next {@link Token}.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the input is malformed.
+     */
+    Token peek() throws IOException, JSONException;
+
+    /**
+     * Skips the next value, including any nested arrays or objects.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the input is malformed.
+     */
+    void skipValue() throws IOException, JSONException;
+}
@@ -0,0 +1,690 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * A pull-based reader which tokenizes JSON directly from a character stream so that objects can be populated without first building a tree or buffering
+ * the entire input.
+ * <p>
+ * Limits are enforced on the total number of characters read, the length of any individual string, and the nesting depth, so that oversized input is
+ * rejected as soon as it is detected. The read buffer and the buffer used to build strings are reused by each thread, so a thread must not use more than
+ * one open {@link JSONReader} at a time.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class JSONReader implements DocumentReader {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_DEPTH = 32;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+
+        @Override
+        protected char[] initialValue() {
+            return new char[BUFFER_SIZE];
+        }
+    };
+    private static final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>() {
+
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    private final char[] buffer = buffers.get();
+    private final StringBuilder builder = builders.get();
+    private long consumed;
+    private int limit;
+    private final long maxLength;
+    private final int maxStringLength;
+    private Token peeked;
+    private int pos;
+    private final Reader reader;
+    private final int[] stack = new int[MAX_DEPTH + 1];
+    private int stackSize = 1;
+
+    /**
+     * Creates a new instance of {@link JSONReader} for the {@code reader} provided.
+     * 
+     * @param reader
+     *            the {@code Reader} from which the JSON is to be read
+     * @param maxLength
+     *            the maximum number of characters that can be read
+     * @param maxStringLength
+     *            the maximum number of characters within any individual string
+     * @throws NullPointerException
+     *             If {@code reader} is {@code null}.
+     */
+    public JSONReader(Reader reader, long maxLength, int maxStringLength) {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+
+        this.reader = reader;
+        this.maxLength = maxLength;
+        this.maxStringLength = maxStringLength;
+        this.stack[0] = EMPTY_DOCUMENT;
+        this.builder.setLength(0);
+    }
+
+    /**
+     * Consumes the start of an array.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not the start of an array or the maximum depth has been exceeded.
+     */
+    @Override
+    public void beginArray() throws IOException, JSONException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+        peeked = null;
+    }
+
+    /**
+     * Consumes the start of an object.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not the start of an object or the maximum depth has been exceeded.
+     */
+    @Override
+    public void beginObject() throws IOException, JSONException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+        peeked = null;
+    }
+
+    /**
+     * Closes the underlying {@code Reader} and releases any oversized buffers held by the current thread.
+     * 
+     * @throws IOException
+     *             If an error occurs while closing the underlying {@code Reader}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+            builders.remove();
+        } else {
+            builder.setLength(0);
+        }
+        reader.close();
+    }
+
+    /**
+     * Consumes the end of an array.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not the end of an array.
+     */
+    @Override
+    public void endArray() throws IOException, JSONException {
+        expect(Token.END_ARRAY);
+        stackSize--;
+        peeked = null;
+    }
+
+    /**
+     * Consumes the end of an object.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not the end of an object.
+     */
+    @Override
+    public void endObject() throws IOException, JSONException {
+        expect(Token.END_OBJECT);
+        stackSize--;
+        peeked = null;
+    }
+
+    /**
+     * Ensures that the next token is of the {@code expected} type.
+     * 
+     * @param expected
+     *            the expected {@link Token}
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not of the {@code expected} type.
+     */
+    private void expect(Token expected) throws IOException, JSONException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+    }
+
+    /**
+     * Attempts to ensure that the buffer contains at least one more character.
+     * 
+     * @return {@code true} if a character is available; otherwise {@code false} if the end of the input has been reached.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the maximum length has been exceeded.
+     */
+    private boolean fill() throws IOException, JSONException {
+        if (pos < limit) {
+            return true;
+        }
+
+        int count = reader.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+
+        consumed += count;
+        if (consumed > maxLength) {
+            throw new JSONException("Input exceeds maximum length of " + maxLength);
+        }
+
+        pos = 0;
+        limit = count;
+        return true;
+    }
+
+    /**
+     * Indicates whether the current array or object has another element.
+     * 
+     * @return {@code true} if there is another element; otherwise {@code false}.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the input is malformed.
+     */
+    @Override
+    public boolean hasNext() throws IOException, JSONException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    /**
+     * Consumes the remaining characters of the literal {@code word}, the first character of which has already been consumed.
+     * 
+     * @param word
+     *            the literal expected
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the literal does not match {@code word}.
+     */
+    private void literal(String word) throws IOException, JSONException {
+        for (int i = 1; i < word.length(); i++) {
+            if (!fill() || buffer[pos++] != word.charAt(i)) {
+                throw syntaxError("Expected " + word);
+            }
+        }
+        peeked = null;
+    }
+
+    /**
+     * Consumes the next boolean value.
+     * 
+     * @return The boolean value.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not a boolean.
+     */
+    @Override
+    public boolean nextBoolean() throws IOException, JSONException {
+        expect(Token.BOOLEAN);
+
+        char c = buffer[pos++];
+        literal(c == 't' ? "true" : "false");
+        return c == 't';
+    }
+
+    /**
+     * Consumes the next numeric value as a {@code long}.
+     * 
+     * @return The numeric value.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not a number or it cannot be represented as a {@code long}.
+     */
+    @Override
+    public long nextLong() throws IOException, JSONException {
+        expect(Token.NUMBER);
+
+        String value = readNumber();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a long but was " + value);
+        }
+    }
+
+    /**
+     * Consumes the next property name.
+     * 
+     * @return The property name.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not a property name.
+     */
+    @Override
+    public String nextName() throws IOException, JSONException {
+        expect(Token.NAME);
+
+        String name = readString();
+        stack[stackSize - 1] = DANGLING_NAME;
+        return name;
+    }
+
+    /**
+     * Consumes the next {@code null} value.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is not {@code null}.
+     */
+    @Override
+    public void nextNull() throws IOException, JSONException {
+        expect(Token.NULL);
+
+        pos++;
+        literal("null");
+    }
+
+    /**
+     * Consumes the next string or numeric value as a string.
+     * 
+     * @return The string value.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is neither a string nor a number.
+     */
+    @Override
+    public String nextString() throws IOException, JSONException {
+        Token token = peek();
+        if (token == Token.NUMBER) {
+            return readNumber();
+        }
+
+        expect(Token.STRING);
+        return readString();
+    }
+
+    /**
+     * Consumes the next string or numeric value as a string or, if the next value is {@code null}, consumes that instead.
+     * 
+     * @return The string value or {@code null}.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the next token is neither a string, a number, nor {@code null}.
+     */
+    @Override
+    public String nextStringOrNull() throws IOException, JSONException {
+        if (peek() == Token.NULL) {
+            nextNull();
+            return null;
+        }
+        return nextString();
+    }
+
+    /**
+     * Reads the next non-whitespace character.
+     * 
+     * @return The next non-whitespace character or {@code -1} if the end of the input has been reached.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the maximum length has been exceeded.
+     */
+    private int nextNonWhitespace() throws IOException, JSONException {
+        while (fill()) {
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the type of the next token without consuming it.
+     * 
+     * @return The next {@link Token}.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the input is malformed.
+     */
+    @Override
+    public Token peek() throws IOException, JSONException {
+        if (peeked != null) {
+            return peeked;
+        }
+
+        int c;
+        switch (stack[stackSize - 1]) {
+        case EMPTY_DOCUMENT:
+            stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+            break;
+        case NONEMPTY_DOCUMENT:
+            if (nextNonWhitespace() != -1) {
+                throw syntaxError("Unexpected content after document");
+            }
+            return peeked = Token.END_DOCUMENT;
+        case EMPTY_ARRAY:
+            stack[stackSize - 1] = NONEMPTY_ARRAY;
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return peeked = Token.END_ARRAY;
+            } else if (c == -1) {
+                throw syntaxError("Unterminated array");
+            }
+            pos--;
+            break;
+        case NONEMPTY_ARRAY:
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return peeked = Token.END_ARRAY;
+            } else if (c != ',') {
+                throw syntaxError("Unterminated array");
+            }
+            break;
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            if (stack[stackSize - 1] == NONEMPTY_OBJECT) {
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return peeked = Token.END_OBJECT;
+                } else if (c != ',') {
+                    throw syntaxError("Unterminated object");
+                }
+            }
+
+            c = nextNonWhitespace();
+            if (c == '}' && stack[stackSize - 1] == EMPTY_OBJECT) {
+                return peeked = Token.END_OBJECT;
+            } else if (c != '"') {
+                throw syntaxError("Expected name");
+            }
+            return peeked = Token.NAME;
+        case DANGLING_NAME:
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("Expected ':'");
+            }
+            stack[stackSize - 1] = NONEMPTY_OBJECT;
+            break;
+        default:
+            throw new IllegalStateException();
+        }
+
+        c = nextNonWhitespace();
+        switch (c) {
+        case '{':
+            return peeked = Token.BEGIN_OBJECT;
+        case '[':
+            return peeked = Token.BEGIN_ARRAY;
+        case '"':
+            return peeked = Token.STRING;
+        case 't':
+        case 'f':
+            pos--;
+            return peeked = Token.BOOLEAN;
+        case 'n':
+            pos--;
+            return peeked = Token.NULL;
+        case -1:
+            throw syntaxError("Unexpected end of input");
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                pos--;
+                return peeked = Token.NUMBER;
+            }
+            throw syntaxError("Unexpected character: " + (char) c);
+        }
+    }
+
+    /**
+     * Pushes the specified {@code context} onto the stack.
+     * 
+     * @param context
+     *            the context to be pushed
+     * @throws JSONException
+     *             If the maximum depth has been exceeded.
+     */
+    private void push(int context) throws JSONException {
+        if (stackSize == stack.length) {
+            throw new JSONException("Input exceeds maximum depth of " + MAX_DEPTH);
+        }
+        stack[stackSize++] = context;
+    }
+
+    /**
+     * Reads the characters of a numeric literal.
+     * 
+     * @return The numeric literal.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the maximum length has been exceeded.
+     */
+    private String readNumber() throws IOException, JSONException {
+        builder.setLength(0);
+
+        while (fill()) {
+            char c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                builder.append(c);
+                pos++;
+            } else {
+                break;
+            }
+        }
+
+        peeked = null;
+        return takeString();
+    }
+
+    /**
+     * Reads the remaining characters of a quoted string, the opening quote of which has already been consumed, unescaping them as it goes.
+     * 
+     * @return The unescaped string.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the string is malformed or the maximum string length has been exceeded.
+     */
+    private String readString() throws IOException, JSONException {
+        builder.setLength(0);
+
+        while (true) {
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            builder.append(buffer, start, pos - start);
+
+            if (builder.length() > maxStringLength) {
+                throw new JSONException("String exceeds maximum length of " + maxStringLength);
+            }
+            if (pos == limit) {
+                continue;
+            }
+
+            if (buffer[pos++] == '"') {
+                break;
+            }
+            builder.append(readEscape());
+        }
+
+        peeked = null;
+        return takeString();
+    }
+
+    /**
+     * Reads an escape sequence, the backslash of which has already been consumed.
+     * 
+     * @return The escaped character.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the escape sequence is malformed.
+     */
+    private char readEscape() throws IOException, JSONException {
+        if (!fill()) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+
+        char c = buffer[pos++];
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                if (!fill()) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+
+                int digit = Character.digit(buffer[pos++], 16);
+                if (digit == -1) {
+                    throw syntaxError("Invalid escape sequence");
+                }
+                value = (value << 4) | digit;
+            }
+            return (char) value;
+        case '"':
+        case '\\':
+        case '/':
+            return c;
+        default:
+            throw syntaxError("Invalid escape sequence: \\" + c);
+        }
+    }
+
+    /**
+     * Skips the next value, including any nested arrays or objects.
+     * 
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the input is malformed.
+     */
+    @Override
+    public void skipValue() throws IOException, JSONException {
+        int count = 0;
+
+        do {
+            switch (peek()) {
+            case BEGIN_ARRAY:
+                beginArray();
+                count++;
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                count++;
+                break;
+            case END_ARRAY:
+                endArray();
+                count--;
+                break;
+            case END_OBJECT:
+                endObject();
+                count--;
+                break;
+            case NAME:
+                nextName();
+                break;
+            case STRING:
+            case NUMBER:
+                nextString();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw syntaxError("Unexpected end of input");
+            }
+        } while (count != 0);
+    }
+
+    /**
+     * Creates a {@code JSONException} for a syntax error.
+     * 
+     * @param message
+     *            the detail message to be used
+     * @return The {@code JSONException}.
+     */
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + (consumed - limit + pos));
+    }
+
+    /**
+     * Returns the contents of the string buffer and then clears it.
+     * 
+     * @return The contents of the string buffer.
+     */
+    private String takeString() {
+        String value = builder.toString();
+        builder.setLength(0);
+        return value;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,426 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A streaming reader for {@code multipart/form-data} bodies (RFC 2388) which exposes each part as an {@code InputStream} that ends at the next boundary.
+ * <p>
+ * Only a small, fixed-size buffer is used regardless of the size of the parts so that large file uploads can be passed on as they are received. Each part
+ * must be read, or skipped by moving on to the next part, before the part which follows it can be read.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class MultipartReader implements Closeable {
+
+    /**
+     * A single part of a {@code multipart/form-data} body.
+     */
+    public static class Part {
+
+        private final String contentType;
+        private final String fileName;
+        private final InputStream in;
+        private final String name;
+
+        /**
+         * Creates a new instance of {@link Part}.
+         * 
+         * @param name
+         *            the name of the form field
+         * @param fileName
+         *            the name of the uploaded file
+         * @param contentType
+         *            the content type of the part
+         * @param in
+         *            the {@code InputStream} for the body of the part
+         */
+        Part(String name, String fileName, String contentType, InputStream in) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.in = in;
+        }
+
+        /**
+         * Returns the content type of this {@link Part}.
+         * 
+         * @return The content type or {@code null} if none was specified.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Returns the name of the file uploaded in this {@link Part}.
+         * 
+         * @return The file name or {@code null} if this {@link Part} is not a file.
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Returns the {@code InputStream} from which the body of this {@link Part} can be read, which ends at the next boundary.
+         * 
+         * @return The {@code InputStream}.
+         */
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        /**
+         * Returns the name of the form field for this {@link Part}.
+         * 
+         * @return The name or {@code null} if none was specified.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * An {@code InputStream} which reads the body of the current part up to, but not including, the next delimiter.
+     */
+    private class PartInputStream extends InputStream {
+
+        private boolean done;
+
+        /**
+         * Returns the number of bytes which can be read from the buffer before the delimiter, or a possible start of the delimiter, is reached.
+         * 
+         * @return The number of bytes which can be read or {@code -1} if the delimiter has been reached.
+         * @throws IOException
+         *             If an error occurs while reading or the delimiter is never reached.
+         */
+        private int available0() throws IOException {
+            if (done) {
+                return -1;
+            }
+
+            boolean more = ensure(delimiter.length);
+            int index = indexOfDelimiter();
+            if (index == pos) {
+                done = true;
+                return -1;
+            }
+            if (index >= 0) {
+                return index - pos;
+            }
+            if (!more) {
+                throw new IOException("Unexpected end of multipart body");
+            }
+
+            // Keep back enough bytes that a delimiter split across reads is still found
+            return limit - pos - (delimiter.length - 1);
+        }
+
+        /*
+         * @see InputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            return available0() < 0 ? -1 : buffer[pos++] & 0xFF;
+        }
+
+        /*
+         * @see InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            int count = available0();
+            if (count < 0) {
+                return -1;
+            }
+
+            count = Math.min(count, len);
+            System.arraycopy(buffer, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_BOUNDARY_LENGTH = 70;
+    private static final int MAX_HEADERS_LENGTH = 8192;
+
+    /**
+     * Returns the boundary specified within the {@code contentType} provided.
+     * 
+     * @param contentType
+     *            the content type of a multipart body
+     * @return The boundary or {@code null} if none was specified.
+     */
+    public static String getBoundary(String contentType) {
+        return getParameter(contentType, "boundary");
+    }
+
+    /**
+     * Returns the value of the parameter with the specified {@code name} within the {@code header} provided, removing any quotes.
+     * 
+     * @param header
+     *            the header value containing the parameter (may be {@code null})
+     * @param name
+     *            the name of the parameter
+     * @return The parameter value or {@code null} if it is not present.
+     */
+    public static String getParameter(String header, String name) {
+        if (header == null) {
+            return null;
+        }
+
+        int index = header.indexOf(';');
+        while (index >= 0 && index < header.length()) {
+            int start = index + 1;
+            int equals = header.indexOf('=', start);
+            int semicolon = header.indexOf(';', start);
+            if (equals < 0 || semicolon >= 0 && semicolon < equals) {
+                index = semicolon;
+                continue;
+            }
+
+            String key = header.substring(start, equals).trim();
+            StringBuilder value = new StringBuilder();
+            int i = equals + 1;
+            while (i < header.length() && header.charAt(i) == ' ') {
+                i++;
+            }
+
+            if (i < header.length() && header.charAt(i) == '"') {
+                for (i++; i < header.length() && header.charAt(i) != '"'; i++) {
+                    char c = header.charAt(i);
+                    if (c == '\\' && i + 1 < header.length()) {
+                        c = header.charAt(++i);
+                    }
+                    value.append(c);
+                }
+                index = header.indexOf(';', i);
+            } else {
+                int end = header.indexOf(';', i);
+                value.append(header.substring(i, end < 0 ? header.length() : end).trim());
+                index = end;
+            }
+
+            if (key.equalsIgnoreCase(name)) {
+                return value.toString();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns whether the specified {@code contentType} is {@code multipart/form-data}.
+     * 
+     * @param contentType
+     *            the content type to be checked (may be {@code null})
+     * @return {@code true} if {@code contentType} is {@code multipart/form-data}; otherwise {@code false}.
+     */
+    public static boolean isMultipart(String contentType) {
+        return contentType != null && contentType.trim().toLowerCase(Locale.ROOT).startsWith("multipart/form-data");
+    }
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private PartInputStream current;
+    private final byte[] delimiter;
+    private boolean finished;
+    private final InputStream in;
+    private int limit;
+    private int pos;
+
+    /**
+     * Creates a new instance of {@link MultipartReader} for the {@code in} provided.
+     * 
+     * @param in
+     *            the {@code InputStream} from which the multipart body is to be read
+     * @param boundary
+     *            the boundary which separates each part
+     * @throws IllegalArgumentException
+     *             If {@code boundary} is {@code null}, empty, or too long.
+     * @throws NullPointerException
+     *             If {@code in} is {@code null}.
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        if (in == null) {
+            throw new NullPointerException("in");
+        }
+        if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+            throw new IllegalArgumentException("Invalid boundary: " + boundary);
+        }
+
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+
+        // The first boundary may not be preceded by a line break so one is assumed in order that it matches the delimiter
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+    }
+
+    /*
+     * @see Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Attempts to ensure that the buffer contains at least {@code count} bytes, compacting it if necessary.
+     * 
+     * @param count
+     *            the number of bytes required
+     * @return {@code true} if {@code count} bytes are available; otherwise {@code false} if the end of the input was reached first.
+     * @throws IOException
+     *             If an error occurs while reading.
+     */
+    private boolean ensure(int count) throws IOException {
+        if (limit - pos >= count) {
+            return true;
+        }
+
+        System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+
+        while (limit < count) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first delimiter within the buffer.
+     * 
+     * @return The index of the delimiter or {@code -1} if the buffer does not contain one.
+     */
+    private int indexOfDelimiter() {
+        int last = limit - delimiter.length;
+
+        search: for (int i = pos; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue search;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Skips the remainder of the current part, if any, and returns the next part.
+     * 
+     * @return The next {@link Part} or {@code null} if there are no more parts.
+     * @throws IOException
+     *             If an error occurs while reading or the body is malformed.
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        // The preamble is treated as a part which is always skipped
+        if (current == null) {
+            current = new PartInputStream();
+        }
+        while (current.skip(BUFFER_SIZE) > 0) {
+            // Skip the remainder of the current part
+        }
+
+        pos += delimiter.length;
+        if (!ensure(2)) {
+            throw new IOException("Unexpected end of multipart body");
+        }
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+
+        String contentDisposition = null;
+        String contentType = null;
+        String line = readLine(MAX_HEADERS_LENGTH);
+        if (!line.trim().isEmpty()) {
+            throw new IOException("Malformed multipart boundary");
+        }
+
+        int remaining = MAX_HEADERS_LENGTH;
+        while (!(line = readLine(remaining)).isEmpty()) {
+            remaining -= line.length() + 2;
+
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                throw new IOException("Malformed multipart header");
+            }
+
+            String name = line.substring(0, colon).trim();
+            if (name.equalsIgnoreCase("Content-Disposition")) {
+                contentDisposition = line.substring(colon + 1).trim();
+            } else if (name.equalsIgnoreCase("Content-Type")) {
+                contentType = line.substring(colon + 1).trim();
+            }
+        }
+
+        current = new PartInputStream();
+        return new Part(getParameter(contentDisposition, "name"), getParameter(contentDisposition, "filename"), contentType, current);
+    }
+
+    /**
+     * Reads the next line, which must be terminated by a line break, decoding it as UTF-8.
+     * 
+     * @param maxLength
+     *            the maximum number of bytes that the line can contain
+     * @return The line without its line break.
+     * @throws IOException
+     *             If an error occurs while reading, the end of the input is reached, or the line is too long.
+     */
+    private String readLine(int maxLength) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        while (true) {
+            if (!ensure(2)) {
+                throw new IOException("Unexpected end of multipart body");
+            }
+            if (buffer[pos] == '\r' && buffer[pos + 1] == '\n') {
+                pos += 2;
+                return new String(line.toByteArray(), StandardCharsets.UTF_8);
+            }
+            if (line.size() >= maxLength) {
+                throw new IOException("Multipart headers too large");
+            }
+            line.write(buffer[pos++]);
+        }
+    }
+}
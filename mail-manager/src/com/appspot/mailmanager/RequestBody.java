@@ -0,0 +1,239 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Provides access to the body of a request, transparently decompressing it if it was sent with a {@code Content-Encoding} of {@code gzip} or
+ * {@code deflate}.
+ * <p>
+ * Compressed bodies are decompressed as they are read so that they never need to be held in memory in their entirety. To protect against decompression
+ * bombs, reading fails once more than {@code mailmanager.request.maxInflatedLength} bytes have been decompressed or, after the first megabyte, once the
+ * body has been decompressed to more than {@code mailmanager.request.maxInflateRatio} times its compressed size.
+ * <p>
+ * Callers which need to know how many bytes of the body were actually read, whatever its {@code Content-Length} claimed, can wrap the stream in a
+ * {@link CountingInputStream} and then {@link #openReader(HttpServletRequest, InputStream) decode} it themselves.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public final class RequestBody {
+
+    /**
+     * An {@code InputStream} which fails once too many bytes have been decompressed from it, either in total or relative to the number of compressed
+     * bytes that have been read.
+     */
+    private static class InflationLimitInputStream extends FilterInputStream {
+
+        final CountingInputStream compressed;
+        long inflated;
+
+        InflationLimitInputStream(InputStream in, CountingInputStream compressed) {
+            super(in);
+            this.compressed = compressed;
+        }
+
+        void check() throws IOException {
+            if (inflated > MAX_INFLATED_LENGTH) {
+                throw new IOException("Decompressed body exceeds maximum length of " + MAX_INFLATED_LENGTH);
+            }
+            if (inflated > RATIO_THRESHOLD && inflated > compressed.getCount() * MAX_INFLATE_RATIO) {
+                throw new IOException("Decompressed body exceeds maximum ratio of " + MAX_INFLATE_RATIO);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                inflated++;
+                check();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                inflated += n;
+                check();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            inflated += skipped;
+            check();
+            return skipped;
+        }
+    }
+
+    /** The maximum number of bytes into which a compressed body can be decompressed. */
+    private static final long MAX_INFLATED_LENGTH = Long.getLong("mailmanager.request.maxInflatedLength", 32 * 1024 * 1024L);
+    /** The maximum ratio of decompressed to compressed bytes, once {@link #RATIO_THRESHOLD} bytes have been decompressed. */
+    private static final int MAX_INFLATE_RATIO = Integer.getInteger("mailmanager.request.maxInflateRatio", 100);
+    /** The number of decompressed bytes after which {@link #MAX_INFLATE_RATIO} is enforced, so that small, highly compressible bodies are accepted. */
+    private static final long RATIO_THRESHOLD = 1024 * 1024L;
+
+    /**
+     * Returns whether the specified header values indicate that the stream is wrapped in the zlib format, as opposed to being raw deflate data.
+     * <p>
+     * Although {@code deflate} is defined to use the zlib format, some clients send raw deflate data, so both are accepted.
+     * 
+     * @param cmf
+     *            the first byte of the stream
+     * @param flg
+     *            the second byte of the stream
+     * @return {@code true} if the stream has a valid zlib header; otherwise {@code false}.
+     */
+    private static boolean isZlibHeader(int cmf, int flg) {
+        return (cmf & 0x0F) == 8 && (cmf >>> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /**
+     * Opens the body of the specified {@code req} as a stream of bytes, decompressing it if necessary.
+     * 
+     * @param req
+     *            the {@code HttpServletRequest} whose body is to be opened
+     * @return The {@code InputStream} for the (decompressed) body.
+     * @throws IOException
+     *             If the body could not be opened.
+     * @throws MailException
+     *             If the {@code Content-Encoding} of {@code req} is not supported.
+     */
+    public static InputStream openStream(HttpServletRequest req) throws IOException, MailException {
+        String encoding = getContentEncoding(req);
+        if (encoding == null) {
+            return req.getInputStream();
+        }
+
+        CountingInputStream compressed = new CountingInputStream(req.getInputStream());
+        InputStream inflated;
+
+        switch (encoding) {
+        case "gzip":
+        case "x-gzip":
+            inflated = new GZIPInputStream(compressed, 8192);
+            break;
+        case "deflate":
+            PushbackInputStream pushback = new PushbackInputStream(compressed, 2);
+            int cmf = pushback.read();
+            int flg = cmf == -1 ? -1 : pushback.read();
+            if (flg != -1) {
+                pushback.unread(flg);
+            }
+            if (cmf != -1) {
+                pushback.unread(cmf);
+            }
+            inflated = new InflaterInputStream(pushback, new Inflater(!isZlibHeader(cmf, flg)), 8192);
+            break;
+        default:
+            throw new MailException("Unsupported content encoding");
+        }
+
+        return new InflationLimitInputStream(inflated, compressed);
+    }
+
+    /**
+     * Decodes the specified {@code in}, which was opened from the body of {@code req} by {@link #openStream(HttpServletRequest)}, as a stream of
+     * characters.
+     * <p>
+     * The body is decoded using the character encoding of {@code req}, if any, or UTF-8 otherwise.
+     * 
+     * @param req
+     *            the {@code HttpServletRequest} whose body was opened
+     * @param in
+     *            the {@code InputStream} for the (decompressed) body
+     * @return The {@code Reader} for the body.
+     * @throws IOException
+     *             If the character encoding of {@code req} is not supported.
+     */
+    public static Reader openReader(HttpServletRequest req, InputStream in) throws IOException {
+        String charset = req.getCharacterEncoding();
+        try {
+            return new InputStreamReader(in, charset == null ? StandardCharsets.UTF_8 : Charset.forName(charset));
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(charset);
+        }
+    }
+
+    /**
+     * Opens the body of the specified {@code req} as a stream of characters, decompressing it if necessary.
+     * <p>
+     * Uncompressed bodies are read exactly as before, using the reader provided by the container. Compressed bodies are decoded using the character
+     * encoding of {@code req}, if any, or UTF-8 otherwise.
+     * 
+     * @param req
+     *            the {@code HttpServletRequest} whose body is to be opened
+     * @return The {@code Reader} for the (decompressed) body.
+     * @throws IOException
+     *             If the body could not be opened or its character encoding is not supported.
+     * @throws MailException
+     *             If the {@code Content-Encoding} of {@code req} is not supported.
+     */
+    public static Reader openReader(HttpServletRequest req) throws IOException, MailException {
+        if (getContentEncoding(req) == null) {
+            return req.getReader();
+        }
+
+        return openReader(req, openStream(req));
+    }
+
+    /**
+     * Returns the normalized {@code Content-Encoding} of the specified {@code req}.
+     * 
+     * @param req
+     *            the {@code HttpServletRequest}
+     * @return The lower case content encoding or {@code null} if the body is not encoded.
+     */
+    private static String getContentEncoding(HttpServletRequest req) {
+        String encoding = req.getHeader("Content-Encoding");
+        if (encoding == null) {
+            return null;
+        }
+
+        encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        return encoding.isEmpty() || encoding.equals("identity") ? null : encoding;
+    }
+
+    /**
+     * Creates a new instance of {@link RequestBody}.
+     */
+    private RequestBody() {
+    }
+}
\ No newline at end of file
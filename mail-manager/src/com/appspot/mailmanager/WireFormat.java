@@ -0,0 +1,154 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * The formats in which documents can be exchanged with clients.
+ * <p>
+ * JSON is the default and CBOR, a compact binary encoding of the same data model, is only used when a client explicitly asks for it.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public enum WireFormat {
+
+    /** Concise Binary Object Representation (RFC 7049). */
+    CBOR("application/cbor"),
+    /** JavaScript Object Notation. */
+    JSON("application/json");
+
+    /**
+     * Returns the {@link WireFormat} explicitly asked for by the specified {@code accept} header.
+     * <p>
+     * The first supported media type listed is used, ignoring any quality values. Wildcards are not considered to name a format.
+     * 
+     * @param accept
+     *            the value of the {@code Accept} header (may be {@code null})
+     * @return The {@link WireFormat} named by {@code accept} or {@code null} if neither is listed.
+     */
+    public static WireFormat findAccepted(String accept) {
+        if (accept != null) {
+            for (String range : accept.split(",")) {
+                WireFormat format = forMediaType(range);
+                if (format != null) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the {@link WireFormat} in which a response should be written based on the specified {@code accept} header.
+     * <p>
+     * The first supported media type listed is used, ignoring any quality values, and JSON is used if neither is listed.
+     * 
+     * @param accept
+     *            the value of the {@code Accept} header (may be {@code null})
+     * @return The {@link WireFormat} to be used for the response.
+     */
+    public static WireFormat forAccept(String accept) {
+        WireFormat format = findAccepted(accept);
+        return format != null ? format : JSON;
+    }
+
+    /**
+     * Returns the {@link WireFormat} in which a request body has been written based on the specified {@code contentType}.
+     * 
+     * @param contentType
+     *            the value of the {@code Content-Type} header (may be {@code null})
+     * @return The {@link WireFormat} of the request body, which is JSON unless {@code contentType} is CBOR.
+     */
+    public static WireFormat forContentType(String contentType) {
+        return contentType != null && forMediaType(contentType) == CBOR ? CBOR : JSON;
+    }
+
+    /**
+     * Returns the {@link WireFormat} whose content type matches the specified {@code mediaType}, ignoring any parameters.
+     * 
+     * @param mediaType
+     *            the media type to be matched
+     * @return The matching {@link WireFormat} or {@code null} if there is none.
+     */
+    private static WireFormat forMediaType(String mediaType) {
+        int index = mediaType.indexOf(';');
+        String type = (index < 0 ? mediaType : mediaType.substring(0, index)).trim();
+
+        for (WireFormat format : values()) {
+            if (format.contentType.equalsIgnoreCase(type)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private final String contentType;
+
+    /**
+     * Creates a new instance of {@link WireFormat} with the {@code contentType} provided.
+     * 
+     * @param contentType
+     *            the content type to be used
+     */
+    private WireFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Returns the content type of this {@link WireFormat}.
+     * 
+     * @return The content type.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Writes the specified {@code json} to the {@code resp} provided in this {@link WireFormat}, setting its content type accordingly.
+     * 
+     * @param resp
+     *            the {@code HttpServletResponse} to which {@code json} is to be written
+     * @param json
+     *            the {@code JSONObject} to be written
+     * @throws IOException
+     *             If an error occurs while writing.
+     * @throws JSONException
+     *             If {@code json} cannot be written.
+     */
+    public void write(HttpServletResponse resp, JSONObject json) throws IOException, JSONException {
+        resp.setContentType(contentType);
+
+        if (this == CBOR) {
+            OutputStream out = resp.getOutputStream();
+            new CBORWriter(out).write(json);
+            out.flush();
+        } else {
+            resp.getWriter().println(json.toString());
+        }
+    }
+}
@@ -20,7 +20,11 @@
  */
 package com.appspot.mailmanager.application;
 
+import java.io.Serializable;
+
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.labs.repackaged.org.json.JSONException;
 import com.google.appengine.labs.repackaged.org.json.JSONObject;
 
@@ -29,13 +33,51 @@ import com.google.appengine.labs.repackaged.org.json.JSONObject;
  * 
  * @author Alasdair Mercer <mercer.alasdair@gmail.com>
  */
-public class Application {
+public class Application implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     /** The kind name used to represent this object in the datastore. */
     public static final String KIND = Application.class.getSimpleName();
+    /** The kind name used to reserve the name of this object in the datastore. */
+    public static final String NAME_KIND = KIND + "Name";
+
+    /**
+     * Creates a {@code Key} for the {@code Entity} representing the {@link Application} with the specified {@code apiKey}.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application}
+     * @return The derived {@code Key}.
+     * @throws IllegalArgumentException
+     *             If {@code apiKey} is {@code null} or empty.
+     */
+    public static Key createKey(String apiKey) {
+        if (apiKey == null || apiKey.isEmpty()) {
+            throw new IllegalArgumentException("Invalid application API key: " + apiKey);
+        }
+        return KeyFactory.createKey(KIND, apiKey);
+    }
+
+    /**
+     * Creates a {@code Key} for the {@code Entity} reserving the specified {@code name} for an {@link Application}.
+     * 
+     * @param name
+     *            the name of the {@link Application}
+     * @return The derived {@code Key}.
+     * @throws IllegalArgumentException
+     *             If {@code name} is {@code null} or empty.
+     */
+    public static Key createNameKey(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Invalid application name: " + name);
+        }
+        return KeyFactory.createKey(NAME_KIND, name);
+    }
 
     /**
      * Creates a new instance of {@link Application} based on the values derived from the specified {@code entity}.
+     * <p>
+     * Both entities keyed by API key and legacy entities with auto-allocated IDs are supported.
      * 
      * @param entity
      *            the {@code Entity} from which the details are to be derived
@@ -44,7 +86,26 @@ public class Application {
      *             If {@code entity} is {@code null}.
      */
     public static Application fromEntity(Entity entity) {
-        return new Application((String) entity.getProperty("apiKey"), (String) entity.getProperty("name"));
+        String apiKey = entity.getKey().getName();
+        if (apiKey == null) {
+            apiKey = (String) entity.getProperty("apiKey");
+        }
+        Application application = new Application(apiKey, (String) entity.getProperty("name"));
+
+        Number rateLimit = (Number) entity.getProperty("rateLimit");
+        if (rateLimit != null) {
+            application.setRateLimit(rateLimit.doubleValue());
+        }
+        Number rateBurst = (Number) entity.getProperty("rateBurst");
+        if (rateBurst != null) {
+            application.setRateBurst(rateBurst.intValue());
+        }
+        Number weight = (Number) entity.getProperty("weight");
+        if (weight != null) {
+            application.setWeight(weight.intValue());
+        }
+
+        return application;
     }
 
     /**
@@ -61,11 +122,19 @@ public class Application {
      *             If {@code json} is {@code null}.
      */
     public static Application fromJSON(JSONObject json) throws JSONException {
-        return new Application(json.getString("apiKey"), json.getString("name"));
+        Application application = new Application(json.getString("apiKey"), json.getString("name"));
+        application.setRateBurst(json.optInt("rateBurst", 0));
+        application.setRateLimit(json.optDouble("rateLimit", 0));
+        application.setWeight(json.optInt("weight", 0));
+
+        return application;
     }
 
     private String apiKey;
     private String name;
+    private int rateBurst;
+    private double rateLimit;
+    private int weight;
 
     /**
      * Creates a new instance of {@link Application} with the {@code apiKey} and {@code name} provided.
@@ -130,15 +199,112 @@ public class Application {
         this.name = name;
     }
 
+    /**
+     * Returns the maximum number of recipients that this {@link Application} can send to in a single burst.
+     * 
+     * @return The burst size or zero if the default is to be used.
+     */
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * Sets the maximum number of recipients that this {@link Application} can send to in a single burst to {@code rateBurst}.
+     * 
+     * @param rateBurst
+     *            the burst size to be set, where zero uses the default
+     * @throws IllegalArgumentException
+     *             If {@code rateBurst} is negative.
+     */
+    public void setRateBurst(int rateBurst) {
+        if (rateBurst < 0) {
+            throw new IllegalArgumentException("Invalid application rate burst: " + rateBurst);
+        }
+        this.rateBurst = rateBurst;
+    }
+
+    /**
+     * Returns the number of recipients per second that this {@link Application} can send to once its burst has been used.
+     * 
+     * @return The rate limit or zero if the default is to be used.
+     */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets the number of recipients per second that this {@link Application} can send to once its burst has been used to {@code rateLimit}.
+     * 
+     * @param rateLimit
+     *            the rate limit to be set, where zero uses the default
+     * @throws IllegalArgumentException
+     *             If {@code rateLimit} is negative or not a number.
+     */
+    public void setRateLimit(double rateLimit) {
+        if (!(rateLimit >= 0) || Double.isInfinite(rateLimit)) {
+            throw new IllegalArgumentException("Invalid application rate limit: " + rateLimit);
+        }
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Returns the weight of this {@link Application} when sharing the send pipeline with other {@link Application Applications}.
+     * <p>
+     * While the pipeline is busy, each {@link Application} with messages waiting is given a share of it in proportion to its weight.
+     * 
+     * @return The weight or zero if the default is to be used.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Sets the weight of this {@link Application} when sharing the send pipeline with other {@link Application Applications} to {@code weight}.
+     * 
+     * @param weight
+     *            the weight to be set, where zero uses the default
+     * @throws IllegalArgumentException
+     *             If {@code weight} is negative.
+     */
+    public void setWeight(int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Invalid application weight: " + weight);
+        }
+        this.weight = weight;
+    }
+
     /**
      * Creates an {@code Entity} based on this {@link Application}.
+     * <p>
+     * The {@code Entity} is keyed by the API key so that it can be retrieved without a query. As a result, none of its properties need to be indexed.
      * 
      * @return The derived {@code Entity}.
      */
     public Entity toEntity() {
-        Entity entity = new Entity(KIND);
-        entity.setProperty("apiKey", apiKey);
-        entity.setProperty("name", name);
+        Entity entity = new Entity(createKey(apiKey));
+        entity.setUnindexedProperty("apiKey", apiKey);
+        entity.setUnindexedProperty("name", name);
+        if (rateBurst > 0) {
+            entity.setUnindexedProperty("rateBurst", rateBurst);
+        }
+        if (rateLimit > 0) {
+            entity.setUnindexedProperty("rateLimit", rateLimit);
+        }
+        if (weight > 0) {
+            entity.setUnindexedProperty("weight", weight);
+        }
+
+        return entity;
+    }
+
+    /**
+     * Creates an {@code Entity} which reserves the name of this {@link Application} and maps it to the API key.
+     * 
+     * @return The derived {@code Entity}.
+     */
+    public Entity toNameEntity() {
+        Entity entity = new Entity(createNameKey(name));
+        entity.setUnindexedProperty("apiKey", apiKey);
 
         return entity;
     }
@@ -154,6 +320,15 @@ public class Application {
         JSONObject json = new JSONObject();
         json.put("apiKey", apiKey);
         json.put("name", name);
+        if (rateBurst > 0) {
+            json.put("rateBurst", rateBurst);
+        }
+        if (rateLimit > 0) {
+            json.put("rateLimit", rateLimit);
+        }
+        if (weight > 0) {
+            json.put("weight", weight);
+        }
 
         return json;
     }
@@ -167,6 +342,10 @@ public class Application {
         int result = 1;
         result = prime * result + ((apiKey == null) ? 0 : apiKey.hashCode());
         result = prime * result + ((name == null) ? 0 : name.hashCode());
+        result = prime * result + rateBurst;
+        long temp = Double.doubleToLongBits(rateLimit);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        result = prime * result + weight;
         return result;
     }
 
@@ -192,6 +371,12 @@ public class Application {
                 return false;
         } else if (!name.equals(other.name))
             return false;
+        if (rateBurst != other.rateBurst)
+            return false;
+        if (Double.doubleToLongBits(rateLimit) != Double.doubleToLongBits(other.rateLimit))
+            return false;
+        if (weight != other.weight)
+            return false;
         return true;
     }
 }
\ No newline at end of file
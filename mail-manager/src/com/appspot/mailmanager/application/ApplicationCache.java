@@ -0,0 +1,421 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.application;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-memory cache of {@link Application Applications} which can be looked up by either their API key or name.
+ * <p>
+ * Entries expire once they have been cached for longer than the configured time-to-live and, when the cache is full, the least recently used entry is
+ * evicted to make room for the new one. Hit and miss counts are recorded so that the cache can be sized appropriately.
+ * <p>
+ * Since every request looks up its {@link Application}, lookups never take a lock; they read from concurrent maps and only note when each entry was last
+ * used. Changes to the cache are serialized, and the least recently used entry is found by a scan when one needs to be evicted, which only happens when
+ * an {@link Application} has been loaded from elsewhere anyway.
+ * <p>
+ * API keys which could not be found are remembered for a shorter time-to-live, so that a stream of invalid API keys does not read from the datastore
+ * for every request. At most as many of them are remembered as {@link Application Applications} can be cached.
+ * <p>
+ * Since an {@link Application} may be removed while another thread is loading it, every removal advances a {@link #getStamp() stamp} and an
+ * {@link Application} which was loaded before the stamp advanced is not cached by {@link #put(Application, long)}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class ApplicationCache {
+
+    /**
+     * A cached {@link Application} along with the time at which it expires.
+     */
+    private static class CachedApplication {
+
+        final Application application;
+        final long expires;
+        volatile long used;
+
+        CachedApplication(Application application, long expires) {
+            this.application = application;
+            this.expires = expires;
+            this.used = System.nanoTime();
+        }
+    }
+
+    private final ConcurrentMap<String, CachedApplication> entries = new ConcurrentHashMap<>();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final int maxSize;
+    private final AtomicLong misses = new AtomicLong();
+    private final ConcurrentMap<String, Long> missing = new ConcurrentHashMap<>();
+    private final long missingTtl;
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+    private volatile long stamp;
+    private final long ttl;
+
+    /**
+     * Creates a new instance of {@link ApplicationCache} with the {@code maxSize} and {@code ttl} provided which does not remember missing API keys.
+     * 
+     * @param maxSize
+     *            the maximum number of {@link Application Applications} to be cached
+     * @param ttl
+     *            the number of milliseconds for which an {@link Application} is to remain cached
+     * @throws IllegalArgumentException
+     *             If either {@code maxSize} or {@code ttl} are negative.
+     */
+    public ApplicationCache(int maxSize, long ttl) {
+        this(maxSize, ttl, 0);
+    }
+
+    /**
+     * Creates a new instance of {@link ApplicationCache} with the {@code maxSize}, {@code ttl}, and {@code missingTtl} provided.
+     * 
+     * @param maxSize
+     *            the maximum number of {@link Application Applications} to be cached
+     * @param ttl
+     *            the number of milliseconds for which an {@link Application} is to remain cached
+     * @param missingTtl
+     *            the number of milliseconds for which an API key which could not be found is remembered or zero to not remember them
+     * @throws IllegalArgumentException
+     *             If {@code maxSize}, {@code ttl}, or {@code missingTtl} are negative.
+     */
+    public ApplicationCache(int maxSize, long ttl, long missingTtl) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maxSize);
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Invalid TTL: " + ttl);
+        }
+        if (missingTtl < 0) {
+            throw new IllegalArgumentException("Invalid missing TTL: " + missingTtl);
+        }
+
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.missingTtl = missingTtl;
+    }
+
+    /**
+     * Removes all {@link Application Applications} from this cache.
+     * <p>
+     * The hit, miss, and eviction counts are not reset.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        missing.clear();
+        names.clear();
+        stamp++;
+    }
+
+    /**
+     * Returns the cached {@link Application} associated with the specified {@code apiKey}.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to be retrieved
+     * @return The cached {@link Application} with the {@code apiKey} provided or {@code null} if it is not cached or has expired.
+     */
+    public Application getByApiKey(String apiKey) {
+        CachedApplication entry = entries.get(apiKey);
+
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            removeExpired(apiKey, entry);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        entry.used = System.nanoTime();
+        hits.incrementAndGet();
+        return entry.application;
+    }
+
+    /**
+     * Returns the cached {@link Application} associated with the specified {@code name}.
+     * 
+     * @param name
+     *            the name of the {@link Application} to be retrieved
+     * @return The cached {@link Application} with the {@code name} provided or {@code null} if it is not cached or has expired.
+     */
+    public Application getByName(String name) {
+        String apiKey = names.get(name);
+        if (apiKey == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        return getByApiKey(apiKey);
+    }
+
+    /**
+     * Returns the number of {@link Application Applications} that have been evicted from this cache to make room for others.
+     * 
+     * @return The eviction count.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of lookups that have been served by this cache.
+     * 
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the maximum number of {@link Application Applications} that can be held by this cache.
+     * 
+     * @return The maximum size.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of lookups that could not be served by this cache.
+     * 
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of {@link Application Applications} currently held by this cache, including any which have expired but not yet been removed.
+     * 
+     * @return The size.
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the stamp which is advanced each time that an {@link Application} is removed from this cache.
+     * <p>
+     * This should be taken before an {@link Application} is loaded so that it can be passed to {@link #put(Application, long)} afterwards.
+     * 
+     * @return The removal stamp.
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Returns the number of milliseconds for which an {@link Application} remains cached.
+     * 
+     * @return The TTL.
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Removes the cached {@link Application} associated with the specified {@code apiKey}, if any.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to be removed
+     */
+    public synchronized void invalidateApiKey(String apiKey) {
+        remove(apiKey);
+        missing.remove(apiKey);
+        stamp++;
+    }
+
+    /**
+     * Removes the cached {@link Application} associated with the specified {@code name}, if any.
+     * 
+     * @param name
+     *            the name of the {@link Application} to be removed
+     */
+    public synchronized void invalidateName(String name) {
+        removeName(name);
+        stamp++;
+    }
+
+    /**
+     * Returns whether the specified {@code apiKey} was recently found not to belong to any {@link Application}.
+     * 
+     * @param apiKey
+     *            the API key to be checked
+     * @return {@code true} if {@code apiKey} is remembered as missing; otherwise {@code false}.
+     * @see #putMissing(String)
+     */
+    public boolean isMissing(String apiKey) {
+        Long expires = missing.get(apiKey);
+        if (expires == null) {
+            return false;
+        }
+        if (expires <= System.currentTimeMillis()) {
+            missing.remove(apiKey, expires);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Caches the specified {@code application} so that it can be looked up by either its API key or name.
+     * <p>
+     * Any {@link Application} already cached with the same API key or name is replaced.
+     * 
+     * @param application
+     *            the {@link Application} to be cached
+     * @throws NullPointerException
+     *             If {@code application} is {@code null}.
+     */
+    public synchronized void put(Application application) {
+        if (maxSize == 0) {
+            return;
+        }
+
+        removeName(application.getName());
+        remove(application.getApiKey());
+        missing.remove(application.getApiKey());
+
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+
+        entries.put(application.getApiKey(), new CachedApplication(application, System.currentTimeMillis() + ttl));
+        names.put(application.getName(), application.getApiKey());
+    }
+
+    /**
+     * Caches the specified {@code application}, which was loaded after the {@code stamp} provided was taken, unless any {@link Application} has been
+     * removed from this cache since then.
+     * <p>
+     * This prevents an {@link Application} which was removed while it was being loaded from being cached again.
+     * 
+     * @param application
+     *            the {@link Application} to be cached
+     * @param stamp
+     *            the {@link #getStamp() stamp} taken before {@code application} was loaded
+     * @return {@code true} if {@code application} was cached; otherwise {@code false}.
+     * @throws NullPointerException
+     *             If {@code application} is {@code null}.
+     */
+    public synchronized boolean put(Application application, long stamp) {
+        if (stamp != this.stamp) {
+            return false;
+        }
+
+        put(application);
+        return true;
+    }
+
+    /**
+     * Remembers that the specified {@code apiKey} does not belong to any {@link Application} so that it need not be looked up again for a while.
+     * <p>
+     * Expired API keys are discarded when too many are remembered and, if every one is still live, they are all forgotten rather than letting a flood of
+     * invalid API keys grow without bound.
+     * 
+     * @param apiKey
+     *            the API key which could not be found
+     * @see #isMissing(String)
+     */
+    public synchronized void putMissing(String apiKey) {
+        if (missingTtl == 0 || maxSize == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (missing.size() >= maxSize) {
+            for (Iterator<Long> it = missing.values().iterator(); it.hasNext();) {
+                if (it.next() <= now) {
+                    it.remove();
+                }
+            }
+            if (missing.size() >= maxSize) {
+                missing.clear();
+            }
+        }
+
+        missing.put(apiKey, now + missingTtl);
+    }
+
+    /**
+     * Removes the least recently used entry to make room for another.
+     * <p>
+     * The caller must hold the lock on this {@link ApplicationCache}.
+     */
+    private void evict() {
+        Map.Entry<String, CachedApplication> eldest = null;
+        for (Map.Entry<String, CachedApplication> entry : entries.entrySet()) {
+            if (eldest == null || entry.getValue().used - eldest.getValue().used < 0) {
+                eldest = entry;
+            }
+        }
+
+        if (eldest != null) {
+            remove(eldest.getKey());
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes the entry associated with the specified {@code apiKey} along with its name mapping.
+     * <p>
+     * The caller must hold the lock on this {@link ApplicationCache}.
+     * 
+     * @param apiKey
+     *            the API key of the entry to be removed
+     */
+    private void remove(String apiKey) {
+        CachedApplication entry = entries.remove(apiKey);
+        if (entry != null) {
+            names.remove(entry.application.getName());
+        }
+    }
+
+    /**
+     * Removes the specified expired {@code entry} associated with the {@code apiKey} provided, unless it has already been replaced.
+     * 
+     * @param apiKey
+     *            the API key of the entry to be removed
+     * @param entry
+     *            the expired entry
+     */
+    private synchronized void removeExpired(String apiKey, CachedApplication entry) {
+        if (entries.get(apiKey) == entry) {
+            remove(apiKey);
+        }
+    }
+
+    /**
+     * Removes the entry associated with the specified {@code name} along with its name mapping.
+     * <p>
+     * The caller must hold the lock on this {@link ApplicationCache}.
+     * 
+     * @param name
+     *            the name of the entry to be removed
+     */
+    private void removeName(String name) {
+        String apiKey = names.remove(name);
+        if (apiKey != null) {
+            entries.remove(apiKey);
+        }
+    }
+}
\ No newline at end of file
@@ -20,20 +20,37 @@
  */
 package com.appspot.mailmanager.application;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Logger;
 
+import com.appspot.mailmanager.metrics.CounterSource;
+import com.appspot.mailmanager.metrics.Metrics;
 import com.appspot.mailmanager.send.SendServlet;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 
 /**
  * The class responsible for managing {@code Application Applications}.
+ * <p>
+ * Lookups are served by an in-process {@link ApplicationCache} and then by a {@link SharedApplicationCache} before falling back to the datastore, with
+ * changes being written through to, or deleted from, both caches. An {@link Application} which is removed while it is being looked up is not cached
+ * again by that lookup. The hit, miss, and eviction counts of the in-process cache are published through the {@link Metrics}.
+ * <p>
+ * Each {@link Application} is stored as an entity keyed by its API key, alongside a separate entity keyed by its name which reserves that name and maps it
+ * back to the API key. This allows all lookups to be strongly consistent gets rather than queries. Entities persisted before this layout was introduced
+ * (i.e. those with auto-allocated IDs) are still found using queries while {@code mailmanager.application.legacyLookup} is enabled and are migrated to
+ * the new layout as they are found or when {@link #migrate()} is called.
  * 
  * @author Alasdair Mercer <mercer.alasdair@gmail.com>
  */
@@ -42,6 +59,21 @@ public class ApplicationManager {
     private static final String CLASS_NAME = SendServlet.class.getName();
     private static final Logger log = Logger.getLogger(CLASS_NAME);
 
+    /** The maximum number of {@link Application Applications} to be held in the cache. */
+    private static final int CACHE_MAX_SIZE = Integer.getInteger("mailmanager.application.cache.maxSize", 1000);
+    /** The number of milliseconds for which an API key which could not be found is remembered by the cache. */
+    private static final long CACHE_MISSING_TTL = Long.getLong("mailmanager.application.cache.missingTtl", 30 * 1000L);
+    /** The number of milliseconds for which an {@link Application} is to be held in the cache. */
+    private static final long CACHE_TTL = Long.getLong("mailmanager.application.cache.ttl", 5 * 60 * 1000L);
+    /** The type of {@link SharedApplicationCache} to be used; either {@code "memcache"} or {@code "local"}. */
+    private static final String SHARED_CACHE = System.getProperty("mailmanager.application.sharedCache", "memcache");
+    /** The number of seconds for which an {@link Application} is to be held in the shared cache. */
+    private static final int SHARED_CACHE_TTL = Integer.getInteger("mailmanager.application.sharedCache.ttl", 10 * 60);
+    /** The number of seconds for which a removed {@link Application} cannot be cached again by a lookup using the shared cache. */
+    private static final int SHARED_CACHE_TOMBSTONE_TTL = Integer.getInteger("mailmanager.application.sharedCache.tombstoneTtl", 60);
+    /** Whether entities with auto-allocated IDs should be queried when an {@link Application} cannot be found by its key. */
+    private static final boolean LEGACY_LOOKUP = Boolean.parseBoolean(System.getProperty("mailmanager.application.legacyLookup", "true"));
+
     private static ApplicationManager instance;
 
     /**
@@ -49,27 +81,60 @@ public class ApplicationManager {
      * 
      * @return The singleton instance.
      */
-    public static ApplicationManager getInstance() {
+    public static synchronized ApplicationManager getInstance() {
         if (instance == null) {
             instance = new ApplicationManager();
         }
         return instance;
     }
 
+    /**
+     * Creates the {@link SharedApplicationCache} configured by {@code mailmanager.application.sharedCache}.
+     * 
+     * @return The {@link SharedApplicationCache} to be used.
+     * @throws IllegalStateException
+     *             If the configured type is not recognized.
+     */
+    private static SharedApplicationCache createSharedCache() {
+        switch (SHARED_CACHE) {
+        case "memcache":
+            return new MemcacheApplicationCache(SHARED_CACHE_TTL, SHARED_CACHE_TOMBSTONE_TTL);
+        case "local":
+            return new LocalApplicationCache(SHARED_CACHE_TOMBSTONE_TTL);
+        default:
+            throw new IllegalStateException("Invalid shared cache: " + SHARED_CACHE);
+        }
+    }
+
+    private final ApplicationCache cache = new ApplicationCache(CACHE_MAX_SIZE, CACHE_TTL, CACHE_MISSING_TTL);
+    private final SharedApplicationCache sharedCache = createSharedCache();
+
     /**
      * Creates a new instance of {@link ApplicationManager}.
      */
     private ApplicationManager() {
+        Metrics.getInstance().registerCounter("application_cache", "event", new CounterSource() {
+
+            @Override
+            public Map<String, Long> sample() {
+                Map<String, Long> counts = new HashMap<>();
+                counts.put("eviction", cache.getEvictionCount());
+                counts.put("hit", cache.getHitCount());
+                counts.put("miss", cache.getMissCount());
+                return counts;
+            }
+        });
     }
 
     /**
      * Creates and persists a new application with the specified {@code name}.
      * <p>
-     * A unique API key is automatically generated and assigned to the new application.
+     * A unique API key is automatically generated and assigned to the new application. The name is reserved within the same transaction so that two
+     * applications can never share a name.
      * 
      * @param name
      *            the name for the new application
-     * @return The newly persisted {@link Application}.
+     * @return The newly persisted {@link Application} or {@code null} if {@code name} has already been reserved.
      * @throws IllegalArgumentException
      *             If {@code name} is {@code null} or empty.
      */
@@ -79,12 +144,45 @@ public class ApplicationManager {
         Application application = new Application(generateApiKey(), name);
 
         DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-        datastore.put(application.toEntity());
+        Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+
+        try {
+            if (exists(datastore, txn, Application.createNameKey(name))) {
+                application = null;
+            } else {
+                datastore.put(txn, Arrays.asList(application.toEntity(), application.toNameEntity()));
+                txn.commit();
+            }
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+
+        if (application != null) {
+            sharedCache.put(application);
+            cache.put(application);
+        }
 
         log.exiting(CLASS_NAME, "add", application);
         return application;
     }
 
+    /**
+     * Indicates whether an entity with the specified {@code key} exists within the datastore as part of the transaction provided.
+     * 
+     * @param datastore
+     *            the {@code DatastoreService} to be used
+     * @param txn
+     *            the {@code Transaction} to be used
+     * @param key
+     *            the {@code Key} to be checked
+     * @return {@code true} if the entity exists; otherwise {@code false}.
+     */
+    private boolean exists(DatastoreService datastore, Transaction txn, Key key) {
+        return get(datastore, txn, key) != null;
+    }
+
     /**
      * Indicates whether the specified {@code apiKey} is valid.
      * 
@@ -127,8 +225,40 @@ public class ApplicationManager {
         return apiKey;
     }
 
+    /**
+     * Returns the in-process cache used to reduce the number of datastore reads made when looking up {@link Application Applications}.
+     * 
+     * @return The {@link ApplicationCache}.
+     */
+    public ApplicationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the entity with the specified {@code key} from the datastore.
+     * 
+     * @param datastore
+     *            the {@code DatastoreService} to be used
+     * @param txn
+     *            the {@code Transaction} to be used or {@code null} if no transaction is required
+     * @param key
+     *            the {@code Key} of the entity to be retrieved
+     * @return The {@code Entity} with the {@code key} provided or {@code null} if none could be found.
+     */
+    private Entity get(DatastoreService datastore, Transaction txn, Key key) {
+        try {
+            return txn == null ? datastore.get(key) : datastore.get(txn, key);
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
     /**
      * Returns the {@link Application} associated with the specified {@code apiKey}.
+     * <p>
+     * The in-process cache is checked first, followed by the shared cache, and the datastore is only read when the {@link Application} is not cached.
+     * An API key which could not be found is remembered by the in-process cache for a short while, so that repeated lookups of an invalid API key do not
+     * read from the datastore each time.
      * 
      * @param apiKey
      *            the API key of the {@link Application} to be retrieved
@@ -143,7 +273,26 @@ public class ApplicationManager {
             throw new IllegalArgumentException("Invalid application API key: " + apiKey);
         }
 
-        Application application = getWithProperty("apiKey", apiKey);
+        Application application = cache.getByApiKey(apiKey);
+        if (application == null && !cache.isMissing(apiKey)) {
+            long stamp = cache.getStamp();
+
+            application = sharedCache.getByApiKey(apiKey);
+            if (application == null) {
+                application = load(apiKey);
+                if (application == null && LEGACY_LOOKUP) {
+                    application = getWithProperty("apiKey", apiKey);
+                }
+                if (application != null) {
+                    sharedCache.add(application);
+                }
+            }
+            if (application != null) {
+                cache.put(application, stamp);
+            } else {
+                cache.putMissing(apiKey);
+            }
+        }
 
         log.exiting(CLASS_NAME, "getByApiKey", application);
         return application;
@@ -151,6 +300,8 @@ public class ApplicationManager {
 
     /**
      * Returns the {@link Application} associated with the specified {@code name}.
+     * <p>
+     * The in-process cache is checked first, followed by the shared cache, and the datastore is only read when the {@link Application} is not cached.
      * 
      * @param name
      *            the name of the {@link Application} to be retrieved
@@ -165,14 +316,39 @@ public class ApplicationManager {
             throw new IllegalArgumentException("Invalid application name: " + name);
         }
 
-        Application application = getWithProperty("name", name);
+        Application application = cache.getByName(name);
+        if (application == null) {
+            long stamp = cache.getStamp();
+
+            application = sharedCache.getByName(name);
+            if (application == null) {
+                DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+                Entity entity = get(datastore, null, Application.createNameKey(name));
+
+                if (entity != null) {
+                    application = load((String) entity.getProperty("apiKey"));
+                }
+                if (application == null && LEGACY_LOOKUP) {
+                    application = getWithProperty("name", name);
+                }
+                if (application != null) {
+                    sharedCache.add(application);
+                }
+            }
+            if (application != null) {
+                cache.put(application, stamp);
+            }
+        }
 
         log.exiting(CLASS_NAME, "getByName", application);
         return application;
     }
 
     /**
-     * Returns the {@link Application} whose {@code property} has the specified {@code value}.
+     * Returns the legacy {@link Application} whose {@code property} has the specified {@code value}.
+     * <p>
+     * Only entities with auto-allocated IDs have indexed properties and can therefore be matched. Any {@link Application} that is found is migrated to the
+     * current layout.
      * 
      * @param property
      *            the property to be queried
@@ -193,12 +369,95 @@ public class ApplicationManager {
         Query query = new Query(Application.KIND).setFilter(new Query.FilterPredicate(property, Query.FilterOperator.EQUAL, value));
         Entity entity = datastore.prepare(query).asSingleEntity();
 
-        Application application = entity == null ? null : Application.fromEntity(entity);
+        Application application = null;
+        if (entity != null) {
+            application = Application.fromEntity(entity);
+            migrate(datastore, entity);
+        }
 
         log.exiting(CLASS_NAME, "getWithProperty", application);
         return application;
     }
 
+    /**
+     * Reads the {@link Application} with the specified {@code apiKey} directly from the datastore using its key.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to be read
+     * @return The {@link Application} with the {@code apiKey} provided or {@code null} if none could be found.
+     */
+    private Application load(String apiKey) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = get(datastore, null, Application.createKey(apiKey));
+
+        return entity == null ? null : Application.fromEntity(entity);
+    }
+
+    /**
+     * Migrates all legacy {@link Application} entities with auto-allocated IDs so that they are keyed by their API key and have their name reserved.
+     * <p>
+     * Once this has been called, {@code mailmanager.application.legacyLookup} can safely be disabled.
+     * 
+     * @return The number of {@link Application Applications} that were migrated.
+     */
+    public int migrate() {
+        log.entering(CLASS_NAME, "migrate");
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Query query = new Query(Application.KIND);
+
+        int count = 0;
+        for (Entity entity : datastore.prepare(query).asIterable()) {
+            if (entity.getKey().getName() == null && migrate(datastore, entity)) {
+                count++;
+            }
+        }
+
+        log.exiting(CLASS_NAME, "migrate", count);
+        return count;
+    }
+
+    /**
+     * Migrates the specified legacy {@code entity} so that it is keyed by its API key and has its name reserved.
+     * <p>
+     * If the name has already been reserved by another {@link Application}, the legacy entity is left untouched.
+     * 
+     * @param datastore
+     *            the {@code DatastoreService} to be used
+     * @param entity
+     *            the legacy {@code Entity} to be migrated
+     * @return {@code true} if {@code entity} was migrated; otherwise {@code false}.
+     */
+    private boolean migrate(DatastoreService datastore, Entity entity) {
+        log.entering(CLASS_NAME, "migrate", entity);
+
+        Application application = Application.fromEntity(entity);
+        boolean migrated = false;
+
+        Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+
+        try {
+            Entity reservation = get(datastore, txn, Application.createNameKey(application.getName()));
+
+            if (reservation == null || application.getApiKey().equals(reservation.getProperty("apiKey"))) {
+                datastore.put(txn, Arrays.asList(application.toEntity(), application.toNameEntity()));
+                datastore.delete(txn, entity.getKey());
+                txn.commit();
+
+                migrated = true;
+            } else {
+                log.warning("Unable to migrate application as its name is reserved: " + application.getName());
+            }
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+
+        log.exiting(CLASS_NAME, "migrate", migrated);
+        return migrated;
+    }
+
     /**
      * Removes the persisted {@code application} provided.
      * 
@@ -226,7 +485,26 @@ public class ApplicationManager {
             throw new IllegalArgumentException("Invalid application API key: " + apiKey);
         }
 
-        removeWithProperty("apiKey", apiKey);
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+
+        try {
+            Entity entity = get(datastore, txn, Application.createKey(apiKey));
+
+            if (entity != null) {
+                removeWithKeys(datastore, txn, apiKey, (String) entity.getProperty("name"));
+            }
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+
+        if (LEGACY_LOOKUP) {
+            removeWithProperty("apiKey", apiKey);
+        }
+        sharedCache.invalidateApiKey(apiKey);
+        cache.invalidateApiKey(apiKey);
 
         log.exiting(CLASS_NAME, "removeByApiKey");
     }
@@ -246,13 +524,59 @@ public class ApplicationManager {
             throw new IllegalArgumentException("Invalid application name: " + name);
         }
 
-        removeWithProperty("name", name);
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+
+        try {
+            Entity reservation = get(datastore, txn, Application.createNameKey(name));
+
+            if (reservation != null) {
+                removeWithKeys(datastore, txn, (String) reservation.getProperty("apiKey"), name);
+            }
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+
+        if (LEGACY_LOOKUP) {
+            removeWithProperty("name", name);
+        }
+        sharedCache.invalidateName(name);
+        cache.invalidateName(name);
 
         log.exiting(CLASS_NAME, "removeByName");
     }
 
     /**
-     * Removes the persisted {@link Application} with a {@code property} matching the specified {@code value}.
+     * Removes the {@link Application} entity keyed by the specified {@code apiKey} and the entity reserving {@code name} as part of the transaction
+     * provided, before committing it.
+     * 
+     * @param datastore
+     *            the {@code DatastoreService} to be used
+     * @param txn
+     *            the {@code Transaction} to be used
+     * @param apiKey
+     *            the API key of the {@link Application} to be deleted
+     * @param name
+     *            the name of the {@link Application} to be deleted
+     */
+    private void removeWithKeys(DatastoreService datastore, Transaction txn, String apiKey, String name) {
+        log.entering(CLASS_NAME, "removeWithKeys", new Object[] { apiKey, name });
+
+        datastore.delete(txn, Application.createKey(apiKey), Application.createNameKey(name));
+        txn.commit();
+
+        sharedCache.invalidateApiKey(apiKey);
+        sharedCache.invalidateName(name);
+        cache.invalidateApiKey(apiKey);
+        cache.invalidateName(name);
+
+        log.exiting(CLASS_NAME, "removeWithKeys");
+    }
+
+    /**
+     * Removes any legacy {@link Application} with a {@code property} matching the specified {@code value}.
      * 
      * @param property
      *            the property to be queried
@@ -279,4 +603,111 @@ public class ApplicationManager {
 
         log.exiting(CLASS_NAME, "removeWithProperty");
     }
+
+    /**
+     * Updates the rate limit of the persisted {@link Application} with the specified {@code apiKey}.
+     * <p>
+     * The {@link Application} is resolved in the same way as {@link #getByApiKey(String)}, so legacy entities are found and migrated before being
+     * updated. Other instances may continue to apply the previous limits until their cached copy of the {@link Application} expires.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to be updated
+     * @param rateLimit
+     *            the number of recipients per second that can be sent to, where zero uses the default
+     * @param rateBurst
+     *            the maximum number of recipients that can be sent to in a single burst, where zero uses the default
+     * @return The updated {@link Application} or {@code null} if none could be found.
+     * @throws IllegalArgumentException
+     *             If {@code apiKey} is {@code null} or empty or either {@code rateLimit} or {@code rateBurst} are invalid.
+     */
+    public Application setRateLimit(String apiKey, double rateLimit, int rateBurst) {
+        log.entering(CLASS_NAME, "setRateLimit", new Object[] { apiKey, rateLimit, rateBurst });
+
+        // Resolve the application as a lookup would so that any legacy entity is migrated to be keyed by its API key first
+        if (getByApiKey(apiKey) == null) {
+            log.exiting(CLASS_NAME, "setRateLimit", null);
+            return null;
+        }
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction txn = datastore.beginTransaction();
+        Application application = null;
+
+        try {
+            Entity entity = get(datastore, txn, Application.createKey(apiKey));
+
+            if (entity != null) {
+                application = Application.fromEntity(entity);
+                application.setRateLimit(rateLimit);
+                application.setRateBurst(rateBurst);
+
+                datastore.put(txn, application.toEntity());
+                txn.commit();
+            }
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+
+        if (application != null) {
+            sharedCache.put(application);
+            cache.put(application);
+        }
+
+        log.exiting(CLASS_NAME, "setRateLimit", application);
+        return application;
+    }
+
+    /**
+     * Updates the weight of the persisted {@link Application} with the specified {@code apiKey}.
+     * <p>
+     * The {@link Application} is resolved in the same way as {@link #getByApiKey(String)}, so legacy entities are found and migrated before being
+     * updated. Other instances may continue to apply the previous weight until their cached copy of the {@link Application} expires.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to be updated
+     * @param weight
+     *            the weight of the {@link Application} when sharing the send pipeline, where zero uses the default
+     * @return The updated {@link Application} or {@code null} if none could be found.
+     * @throws IllegalArgumentException
+     *             If {@code apiKey} is {@code null} or empty or {@code weight} is invalid.
+     */
+    public Application setWeight(String apiKey, int weight) {
+        log.entering(CLASS_NAME, "setWeight", new Object[] { apiKey, weight });
+
+        // Resolve the application as a lookup would so that any legacy entity is migrated to be keyed by its API key first
+        if (getByApiKey(apiKey) == null) {
+            log.exiting(CLASS_NAME, "setWeight", null);
+            return null;
+        }
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction txn = datastore.beginTransaction();
+        Application application = null;
+
+        try {
+            Entity entity = get(datastore, txn, Application.createKey(apiKey));
+
+            if (entity != null) {
+                application = Application.fromEntity(entity);
+                application.setWeight(weight);
+
+                datastore.put(txn, application.toEntity());
+                txn.commit();
+            }
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+
+        if (application != null) {
+            sharedCache.put(application);
+            cache.put(application);
+        }
+
+        log.exiting(CLASS_NAME, "setWeight", application);
+        return application;
+    }
 }
\ No newline at end of file
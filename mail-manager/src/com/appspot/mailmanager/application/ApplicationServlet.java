@@ -29,13 +29,18 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.appspot.mailmanager.WireFormat;
 import com.appspot.mailmanager.send.SendServlet;
 import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
 
 /**
  * The servlet responsible for managing registered {@link Application Applications}. The responses are very simple JSON strings or errors.
  * <p>
- * Possible management functions include adding, retrieving, and removing {@link Application Applications}. Only administrators should be able to access this servlet.
+ * Responses are written as CBOR instead when the {@code Accept} header of the request asks for it.
+ * <p>
+ * Possible management functions include adding, retrieving, removing, rate limiting, weighting, and migrating {@link Application Applications}. Only
+ * administrators should be able to access this servlet.
  * 
  * @author Alasdair Mercer <mercer.alasdair@gmail.com>
  */
@@ -91,8 +96,7 @@ public class ApplicationServlet extends HttpServlet {
             resp.sendError(404, "Application not found");
         } else {
             try {
-                resp.setContentType("application/json");
-                resp.getWriter().println(application.toJSON().toString());
+                WireFormat.forAccept(req.getHeader("Accept")).write(resp, application.toJSON());
             } catch (JSONException e) {
                 log.log(Level.FINER, "Caught exception", e);
                 resp.sendError(500, "Failed to write response");
@@ -102,6 +106,84 @@ public class ApplicationServlet extends HttpServlet {
         log.exiting(CLASS_NAME, "doGet");
     }
 
+    /**
+     * Updates the rate limit of the {@link Application} with the API key contained within {@code req}.
+     * <p>
+     * The {@code rateLimit} and {@code rateBurst} inputs are optional and will reset to the defaults if omitted.
+     * 
+     * @param req
+     *            the {@code HttpServletRequest} being processed
+     * @param resp
+     *            the {@code HttpServletResponse} to be written
+     * @throws IOException
+     *             If an error occurs while writing the response.
+     */
+    private void doLimit(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doLimit", new Object[] { req, resp });
+
+        String apiKey = getInput("apiKey", req);
+        String rateLimit = getInput("rateLimit", req);
+        String rateBurst = getInput("rateBurst", req);
+
+        if (apiKey == null || apiKey.isEmpty()) {
+            resp.sendError(500, "API key not specified");
+            return;
+        }
+
+        Application application = null;
+
+        try {
+            application = ApplicationManager.getInstance().setRateLimit(apiKey, rateLimit == null ? 0 : Double.parseDouble(rateLimit),
+                    rateBurst == null ? 0 : Integer.parseInt(rateBurst));
+        } catch (IllegalArgumentException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            resp.sendError(500, "Invalid rate limit");
+            return;
+        }
+
+        if (application == null) {
+            resp.sendError(404, "Application not found");
+        } else {
+            try {
+                WireFormat.forAccept(req.getHeader("Accept")).write(resp, application.toJSON());
+            } catch (JSONException e) {
+                log.log(Level.FINER, "Caught exception", e);
+                resp.sendError(500, "Failed to write response");
+            }
+        }
+
+        log.exiting(CLASS_NAME, "doLimit");
+    }
+
+    /*
+     * @see HttpServlet#doPost(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doPost", new Object[] { req, resp });
+
+        String action = getInput("action", req);
+
+        if ("limit".equals(action)) {
+            doLimit(req, resp);
+        } else if ("weight".equals(action)) {
+            doWeight(req, resp);
+        } else if ("migrate".equals(action)) {
+            int count = ApplicationManager.getInstance().migrate();
+
+            try {
+                WireFormat.forAccept(req.getHeader("Accept")).write(resp, new JSONObject().put("migrated", count));
+            } catch (JSONException e) {
+                log.log(Level.FINER, "Caught exception", e);
+                resp.sendError(500, "Failed to write response");
+            }
+        } else {
+            resp.sendError(500, "Action not supported");
+        }
+
+        log.exiting(CLASS_NAME, "doPost");
+    }
+
     /*
      * @see HttpServlet#doPut(HttpServletRequest, HttpServletResponse)
      */
@@ -129,8 +211,7 @@ public class ApplicationServlet extends HttpServlet {
             resp.sendError(500, "Application not created");
         } else {
             try {
-                resp.setContentType("application/json");
-                resp.getWriter().println(application.toJSON().toString());
+                WireFormat.forAccept(req.getHeader("Accept")).write(resp, application.toJSON());
             } catch (JSONException e) {
                 log.log(Level.FINER, "Caught exception", e);
                 resp.sendError(500, "Failed to write response");
@@ -140,6 +221,53 @@ public class ApplicationServlet extends HttpServlet {
         log.exiting(CLASS_NAME, "doPut");
     }
 
+    /**
+     * Updates the weight of the {@link Application} with the API key contained within {@code req}.
+     * <p>
+     * The {@code weight} input is optional and will reset to the default if omitted.
+     * 
+     * @param req
+     *            the {@code HttpServletRequest} being processed
+     * @param resp
+     *            the {@code HttpServletResponse} to be written
+     * @throws IOException
+     *             If an error occurs while writing the response.
+     */
+    private void doWeight(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doWeight", new Object[] { req, resp });
+
+        String apiKey = getInput("apiKey", req);
+        String weight = getInput("weight", req);
+
+        if (apiKey == null || apiKey.isEmpty()) {
+            resp.sendError(500, "API key not specified");
+            return;
+        }
+
+        Application application = null;
+
+        try {
+            application = ApplicationManager.getInstance().setWeight(apiKey, weight == null ? 0 : Integer.parseInt(weight));
+        } catch (IllegalArgumentException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            resp.sendError(500, "Invalid weight");
+            return;
+        }
+
+        if (application == null) {
+            resp.sendError(404, "Application not found");
+        } else {
+            try {
+                WireFormat.forAccept(req.getHeader("Accept")).write(resp, application.toJSON());
+            } catch (JSONException e) {
+                log.log(Level.FINER, "Caught exception", e);
+                resp.sendError(500, "Failed to write response");
+            }
+        }
+
+        log.exiting(CLASS_NAME, "doWeight");
+    }
+
     /**
      * Attempts to extract the named input value from the specified {@code req}.
      * <p>
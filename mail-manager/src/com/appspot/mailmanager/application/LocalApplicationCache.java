@@ -0,0 +1,153 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.application;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link SharedApplicationCache} which is held entirely in memory and is therefore only shared within the current instance.
+ * <p>
+ * This is intended to stand in for {@link MemcacheApplicationCache} where memcache is not available, such as when testing. Entries never expire, although
+ * tombstones do.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class LocalApplicationCache implements SharedApplicationCache {
+
+    private final ConcurrentMap<String, Application> applications = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> removedApiKeys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> removedNames = new ConcurrentHashMap<>();
+    private final long tombstoneTtl;
+
+    /**
+     * Creates a new instance of {@link LocalApplicationCache} with the {@code tombstoneTtl} provided.
+     * 
+     * @param tombstoneTtl
+     *            the number of seconds for which an {@link Application} cannot be cached again by a lookup after it has been removed
+     * @throws IllegalArgumentException
+     *             If {@code tombstoneTtl} is negative.
+     */
+    public LocalApplicationCache(int tombstoneTtl) {
+        if (tombstoneTtl < 0) {
+            throw new IllegalArgumentException("Invalid tombstone TTL: " + tombstoneTtl);
+        }
+
+        this.tombstoneTtl = tombstoneTtl * 1000L;
+    }
+
+    /*
+     * @see SharedApplicationCache#add(Application)
+     */
+    @Override
+    public synchronized void add(Application application) {
+        if (isRemoved(removedApiKeys, application.getApiKey()) || isRemoved(removedNames, application.getName())) {
+            return;
+        }
+
+        if (applications.putIfAbsent(application.getApiKey(), application) == null) {
+            names.putIfAbsent(application.getName(), application.getApiKey());
+        }
+    }
+
+    /*
+     * @see SharedApplicationCache#getByApiKey(String)
+     */
+    @Override
+    public Application getByApiKey(String apiKey) {
+        return applications.get(apiKey);
+    }
+
+    /*
+     * @see SharedApplicationCache#getByName(String)
+     */
+    @Override
+    public Application getByName(String name) {
+        String apiKey = names.get(name);
+        if (apiKey == null) {
+            return null;
+        }
+
+        Application application = applications.get(apiKey);
+        return application != null && name.equals(application.getName()) ? application : null;
+    }
+
+    /*
+     * @see SharedApplicationCache#invalidateApiKey(String)
+     */
+    @Override
+    public synchronized void invalidateApiKey(String apiKey) {
+        long expires = System.currentTimeMillis() + tombstoneTtl;
+
+        Application application = applications.remove(apiKey);
+        if (application != null) {
+            names.remove(application.getName(), apiKey);
+            removedNames.put(application.getName(), expires);
+        }
+        removedApiKeys.put(apiKey, expires);
+    }
+
+    /*
+     * @see SharedApplicationCache#invalidateName(String)
+     */
+    @Override
+    public synchronized void invalidateName(String name) {
+        long expires = System.currentTimeMillis() + tombstoneTtl;
+
+        String apiKey = names.remove(name);
+        if (apiKey != null) {
+            applications.remove(apiKey);
+            removedApiKeys.put(apiKey, expires);
+        }
+        removedNames.put(name, expires);
+    }
+
+    /**
+     * Indicates whether the specified {@code key} has a tombstone within {@code removed} which has not yet expired, forgetting it if it has.
+     * 
+     * @param removed
+     *            the tombstones mapped to the times at which they expire
+     * @param key
+     *            the key to be checked
+     * @return {@code true} if {@code key} was removed recently; otherwise {@code false}.
+     */
+    private boolean isRemoved(ConcurrentMap<String, Long> removed, String key) {
+        Long expires = removed.get(key);
+        if (expires != null && expires <= System.currentTimeMillis()) {
+            removed.remove(key, expires);
+            expires = null;
+        }
+        return expires != null;
+    }
+
+    /*
+     * @see SharedApplicationCache#put(Application)
+     */
+    @Override
+    public synchronized void put(Application application) {
+        removedApiKeys.remove(application.getApiKey());
+        removedNames.remove(application.getName());
+
+        applications.put(application.getApiKey(), application);
+        names.put(application.getName(), application.getApiKey());
+    }
+}
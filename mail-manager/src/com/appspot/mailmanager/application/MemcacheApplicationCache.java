@@ -0,0 +1,157 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.application;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * A {@link SharedApplicationCache} backed by memcache.
+ * <p>
+ * Each {@link Application} is stored against its API key while its name is stored as a pointer to that API key. All entries are held within the
+ * {@link Application#KIND} namespace and errors raised by memcache, including values which can no longer be read, such as those written by an
+ * incompatible version of {@link Application}, are logged by the error handler and treated as misses.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class MemcacheApplicationCache implements SharedApplicationCache {
+
+    private static final String CLASS_NAME = MemcacheApplicationCache.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    private static final String API_KEY_PREFIX = "apiKey:";
+    private static final String NAME_PREFIX = "name:";
+    /** The value stored in place of an entry which has been removed. */
+    private static final Boolean TOMBSTONE = Boolean.FALSE;
+
+    private final MemcacheService memcache;
+    private final int tombstoneTtl;
+    private final int ttl;
+
+    /**
+     * Creates a new instance of {@link MemcacheApplicationCache} with the {@code ttl} and {@code tombstoneTtl} provided.
+     * 
+     * @param ttl
+     *            the number of seconds for which an {@link Application} is to remain cached
+     * @param tombstoneTtl
+     *            the number of seconds for which an {@link Application} cannot be cached again by a lookup after it has been removed
+     * @throws IllegalArgumentException
+     *             If either {@code ttl} or {@code tombstoneTtl} are negative.
+     */
+    public MemcacheApplicationCache(int ttl, int tombstoneTtl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Invalid TTL: " + ttl);
+        }
+        if (tombstoneTtl < 0) {
+            throw new IllegalArgumentException("Invalid tombstone TTL: " + tombstoneTtl);
+        }
+
+        this.memcache = MemcacheServiceFactory.getMemcacheService(Application.KIND);
+        this.memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.WARNING));
+        this.ttl = ttl;
+        this.tombstoneTtl = tombstoneTtl;
+    }
+
+    /*
+     * @see SharedApplicationCache#add(Application)
+     */
+    @Override
+    public void add(Application application) {
+        Expiration expiration = Expiration.byDeltaSeconds(ttl);
+
+        if (memcache.put(API_KEY_PREFIX + application.getApiKey(), application, expiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            memcache.put(NAME_PREFIX + application.getName(), application.getApiKey(), expiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+    }
+
+    /*
+     * @see SharedApplicationCache#getByApiKey(String)
+     */
+    @Override
+    public Application getByApiKey(String apiKey) {
+        Object value = memcache.get(API_KEY_PREFIX + apiKey);
+        return value instanceof Application ? (Application) value : null;
+    }
+
+    /*
+     * @see SharedApplicationCache#getByName(String)
+     */
+    @Override
+    public Application getByName(String name) {
+        Object apiKey = memcache.get(NAME_PREFIX + name);
+        if (!(apiKey instanceof String)) {
+            return null;
+        }
+
+        Application application = getByApiKey((String) apiKey);
+        return application != null && name.equals(application.getName()) ? application : null;
+    }
+
+    /*
+     * @see SharedApplicationCache#invalidateApiKey(String)
+     */
+    @Override
+    public void invalidateApiKey(String apiKey) {
+        Map<String, Object> tombstones = new HashMap<>();
+        tombstones.put(API_KEY_PREFIX + apiKey, TOMBSTONE);
+
+        Application application = getByApiKey(apiKey);
+        if (application != null) {
+            tombstones.put(NAME_PREFIX + application.getName(), TOMBSTONE);
+        }
+
+        memcache.putAll(tombstones, Expiration.byDeltaSeconds(tombstoneTtl));
+    }
+
+    /*
+     * @see SharedApplicationCache#invalidateName(String)
+     */
+    @Override
+    public void invalidateName(String name) {
+        Map<String, Object> tombstones = new HashMap<>();
+        tombstones.put(NAME_PREFIX + name, TOMBSTONE);
+
+        Object apiKey = memcache.get(NAME_PREFIX + name);
+        if (apiKey instanceof String) {
+            tombstones.put(API_KEY_PREFIX + apiKey, TOMBSTONE);
+        }
+
+        memcache.putAll(tombstones, Expiration.byDeltaSeconds(tombstoneTtl));
+    }
+
+    /*
+     * @see SharedApplicationCache#put(Application)
+     */
+    @Override
+    public void put(Application application) {
+        Expiration expiration = Expiration.byDeltaSeconds(ttl);
+
+        memcache.put(API_KEY_PREFIX + application.getApiKey(), application, expiration);
+        memcache.put(NAME_PREFIX + application.getName(), application.getApiKey(), expiration);
+    }
+}
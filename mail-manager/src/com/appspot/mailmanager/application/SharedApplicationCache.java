@@ -0,0 +1,92 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.application;
+
+/**
+ * A cache of {@link Application Applications} which is shared by every instance so that newly started instances do not all need to read from the datastore.
+ * <p>
+ * Since an {@link Application} may be removed while another instance is loading it, removals leave a short-lived tombstone behind and {@link Application
+ * Applications} which have been loaded are cached using {@link #add(Application)}, which never replaces an entry or a tombstone. This prevents a removed
+ * {@link Application} from being cached again by a lookup which started before it was removed.
+ * <p>
+ * Implementations must never throw when the underlying service is unavailable and should instead behave as if nothing was cached.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public interface SharedApplicationCache {
+
+    /**
+     * Caches the specified {@code application}, which has been loaded from the datastore, unless an entry or tombstone already exists for its API key or
+     * name.
+     * 
+     * @param application
+     *            the {@link Application} to be cached
+     * @throws NullPointerException
+     *             If {@code application} is {@code null}.
+     */
+    void add(Application application);
+
+    /**
+     * Returns the cached {@link Application} associated with the specified {@code apiKey}.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to be retrieved
+     * @return The cached {@link Application} with the {@code apiKey} provided or {@code null} if it is not cached.
+     */
+    Application getByApiKey(String apiKey);
+
+    /**
+     * Returns the cached {@link Application} associated with the specified {@code name}.
+     * 
+     * @param name
+     *            the name of the {@link Application} to be retrieved
+     * @return The cached {@link Application} with the {@code name} provided or {@code null} if it is not cached.
+     */
+    Application getByName(String name);
+
+    /**
+     * Removes the cached {@link Application} associated with the specified {@code apiKey}, if any, leaving a tombstone in its place.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to be removed
+     */
+    void invalidateApiKey(String apiKey);
+
+    /**
+     * Removes the cached {@link Application} associated with the specified {@code name}, if any, leaving a tombstone in its place.
+     * 
+     * @param name
+     *            the name of the {@link Application} to be removed
+     */
+    void invalidateName(String name);
+
+    /**
+     * Caches the specified {@code application}, which has just been written to the datastore, so that it can be looked up by either its API key or name.
+     * <p>
+     * Any existing entry or tombstone for the same API key or name is replaced.
+     * 
+     * @param application
+     *            the {@link Application} to be cached
+     * @throws NullPointerException
+     *             If {@code application} is {@code null}.
+     */
+    void put(Application application);
+}
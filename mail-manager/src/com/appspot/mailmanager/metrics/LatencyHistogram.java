@@ -0,0 +1,158 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies which can be recorded concurrently without locking.
+ * <p>
+ * Values are recorded in microseconds into log-linear buckets, in the same manner as an HDR histogram; each power of two is split into
+ * {@link #SUB_BUCKETS} linear sub-buckets, so every value is recorded to within roughly 6% of its actual value while a fixed, small array covers latencies
+ * from a microsecond up to several days. Recording is a single atomic increment, plus updates to the total and maximum.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class LatencyHistogram {
+
+    /** The number of bits used to index the sub-buckets within each power of two. */
+    private static final int SUB_BUCKET_BITS = 4;
+    /** The number of linear sub-buckets within each power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** The largest value, in microseconds, that can be recorded accurately. Larger values are recorded as this value. */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    /** The total number of buckets required to cover all values up to {@link #MAX_VALUE}. */
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    /**
+     * Returns the index of the bucket into which the specified {@code value} is recorded.
+     * 
+     * @param value
+     *            the value, which must not be negative or greater than {@link #MAX_VALUE}
+     * @return The bucket index.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Returns the highest value which is recorded into the bucket at the specified {@code index}.
+     * 
+     * @param index
+     *            the bucket index
+     * @return The highest value of the bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /**
+     * Returns the number of values that have been recorded.
+     * 
+     * @return The count.
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Returns the largest value that has been recorded.
+     * 
+     * @return The maximum value in microseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the sum of all values that have been recorded.
+     * 
+     * @return The total in microseconds.
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Returns the value below which the specified {@code percentile} of recorded values fall.
+     * <p>
+     * Since values are recorded concurrently, the result is only an approximation while values are still being recorded.
+     * 
+     * @param percentile
+     *            the percentile to be calculated (e.g. {@code 99.9})
+     * @return The value at {@code percentile} in microseconds, which is never greater than the maximum, or zero if no values have been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Records the specified latency.
+     * 
+     * @param nanos
+     *            the latency in nanoseconds, where negative values are recorded as zero
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), MAX_VALUE);
+
+        counts.incrementAndGet(index(value));
+        total.addAndGet(value);
+        totalCount.incrementAndGet();
+
+        long current;
+        while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+            // Retry until either updated or superseded
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,307 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.appspot.mailmanager.application.Application;
+import com.appspot.mailmanager.application.ApplicationManager;
+
+/**
+ * The class responsible for collecting the latencies and outcomes of requests to send messages, broken down by {@link Application}.
+ * <p>
+ * Everything is recorded against the API key of the {@link Application}, or {@link #UNKNOWN} when it is not yet known or is invalid, so that recording
+ * never needs to look anything up. The API keys are only resolved to names when the metrics are written, so that API keys are never exposed. All
+ * metrics are held in memory and are therefore specific to each instance.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class Metrics {
+
+    /** The counter of messages that have been delivered, by their final state. */
+    public static final String DELIVERIES = "deliveries";
+    /** The counter of requests that have been handled, by their outcome. */
+    public static final String REQUESTS = "requests";
+    /** The outcome recorded for requests which were handled successfully. */
+    public static final String SUCCESS = "success";
+    /** The key used to record metrics which cannot be attributed to a valid {@link Application}. */
+    public static final String UNKNOWN = "";
+
+    /** The prefix given to the name of every metric. */
+    private static final String PREFIX = "mailmanager_";
+    /** The percentiles written for each {@link LatencyHistogram}. */
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    /** The separator used to combine the parts of a key. */
+    private static final char SEPARATOR = '\u0000';
+
+    private static Metrics instance;
+
+    /**
+     * Escapes the specified label {@code value} so that it can be written within quotes.
+     * 
+     * @param value
+     *            the value to be escaped
+     * @return The escaped value.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Retrieves the singleton instance of {@link Metrics}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    private final ConcurrentMap<String, CounterSource> counterSources = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, GaugeSource> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new instance of {@link Metrics}.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Increments the specified {@code counter} for the {@code outcome} of the {@link Application} with the {@code apiKey} provided.
+     * <p>
+     * Since a separate count is kept for each distinct {@code outcome}, it must come from a small, fixed set of values, such as the names of
+     * enum constants, and never from free text like the messages of exceptions.
+     * 
+     * @param counter
+     *            the name of the counter to be incremented
+     * @param apiKey
+     *            the API key of the {@link Application} or {@code null} if it is unknown
+     * @param outcome
+     *            the outcome being counted
+     */
+    public void count(String counter, String apiKey, String outcome) {
+        String key = counter + SEPARATOR + (apiKey == null ? UNKNOWN : apiKey) + SEPARATOR + outcome;
+
+        AtomicLong count = counters.get(key);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = counters.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+
+        count.incrementAndGet();
+    }
+
+    /**
+     * Records the latency of the specified {@code phase} for the {@link Application} with the {@code apiKey} provided.
+     * 
+     * @param phase
+     *            the {@link Phase} whose latency is to be recorded
+     * @param apiKey
+     *            the API key of the {@link Application} or {@code null} if it is unknown
+     * @param nanos
+     *            the latency in nanoseconds
+     */
+    public void record(Phase phase, String apiKey, long nanos) {
+        String key = phase.getLabel() + SEPARATOR + (apiKey == null ? UNKNOWN : apiKey);
+
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+
+        histogram.record(nanos);
+    }
+
+    /**
+     * Registers the specified {@code source} to be sampled as the {@code gauge} for the {@code lane} provided each time the metrics are written.
+     * <p>
+     * Any source already registered for the same {@code gauge} and {@code lane} is replaced.
+     * 
+     * @param gauge
+     *            the name of the gauge
+     * @param lane
+     *            the lane to which the values of {@code source} relate
+     * @param source
+     *            the {@link GaugeSource} to be sampled
+     */
+    public void register(String gauge, String lane, GaugeSource source) {
+        gauges.put(gauge + SEPARATOR + lane, source);
+    }
+
+    /**
+     * Registers the specified {@code source} to be sampled as the {@code counter}, broken down by the {@code label} provided, each time the metrics are
+     * written.
+     * <p>
+     * This is intended for counts which are not attributed to an {@link Application}. Any source already registered for the same {@code counter} is
+     * replaced.
+     * 
+     * @param counter
+     *            the name of the counter
+     * @param label
+     *            the name of the label whose values are the keys sampled from {@code source}
+     * @param source
+     *            the {@link CounterSource} to be sampled
+     */
+    public void registerCounter(String counter, String label, CounterSource source) {
+        counterSources.put(counter + SEPARATOR + label, source);
+    }
+
+    /**
+     * Returns the name of the {@link Application} with the specified {@code apiKey} to be used as a label, caching it within {@code names}.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application}
+     * @param names
+     *            the names which have already been resolved mapped to their API keys
+     * @return The name of the {@link Application}, {@code "unknown"} if it is unknown, or {@code null} if it no longer exists.
+     */
+    private String resolveName(String apiKey, Map<String, String> names) {
+        if (names.containsKey(apiKey)) {
+            return names.get(apiKey);
+        }
+
+        String name = "unknown";
+        if (!apiKey.isEmpty()) {
+            Application application = ApplicationManager.getInstance().getByApiKey(apiKey);
+            name = application == null ? null : application.getName();
+        }
+        names.put(apiKey, name);
+
+        return name;
+    }
+
+    /**
+     * Writes all of the metrics to the specified {@code writer} in the Prometheus text exposition format.
+     * <p>
+     * Latencies are written as summaries, in seconds, containing a fixed set of quantiles, and gauges, along with any counters which are kept elsewhere,
+     * are sampled from their sources as they are written.
+     * Metrics recorded for {@link Application Applications} which no longer exist are omitted.
+     * 
+     * @param writer
+     *            the {@code Writer} to which the metrics are to be written
+     * @throws IOException
+     *             If an error occurs while writing.
+     */
+    public void write(Writer writer) throws IOException {
+        Map<String, String> names = new HashMap<>();
+
+        String latency = PREFIX + "phase_latency_seconds";
+        writer.write("# HELP " + latency + " The latency of each phase of sending a message.\n");
+        writer.write("# TYPE " + latency + " summary\n");
+
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String[] parts = entry.getKey().split(String.valueOf(SEPARATOR), -1);
+            String name = resolveName(parts[1], names);
+            if (name == null) {
+                continue;
+            }
+
+            LatencyHistogram histogram = entry.getValue();
+            String labels = "phase=\"" + parts[0] + "\",application=\"" + escape(name) + "\"";
+
+            for (double percentile : PERCENTILES) {
+                writer.write(latency + "{" + labels + ",quantile=\"" + (percentile / 100) + "\"} " + toSeconds(histogram.getValueAtPercentile(percentile))
+                        + "\n");
+            }
+            writer.write(latency + "_sum{" + labels + "} " + toSeconds(histogram.getTotal()) + "\n");
+            writer.write(latency + "_count{" + labels + "} " + histogram.getCount() + "\n");
+        }
+
+        String lastCounter = null;
+
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            String[] parts = entry.getKey().split(String.valueOf(SEPARATOR), -1);
+            String name = resolveName(parts[1], names);
+            if (name == null) {
+                continue;
+            }
+
+            String counter = PREFIX + parts[0] + "_total";
+
+            if (!counter.equals(lastCounter)) {
+                writer.write("# TYPE " + counter + " counter\n");
+                lastCounter = counter;
+            }
+
+            writer.write(counter + "{application=\"" + escape(name) + "\",outcome=\"" + escape(parts[2]) + "\"} "
+                    + entry.getValue().get() + "\n");
+        }
+
+        for (Map.Entry<String, CounterSource> entry : new TreeMap<>(counterSources).entrySet()) {
+            String[] parts = entry.getKey().split(String.valueOf(SEPARATOR), -1);
+            String counter = PREFIX + parts[0] + "_total";
+
+            writer.write("# TYPE " + counter + " counter\n");
+
+            for (Map.Entry<String, Long> value : new TreeMap<>(entry.getValue().sample()).entrySet()) {
+                writer.write(counter + "{" + parts[1] + "=\"" + escape(value.getKey()) + "\"} " + value.getValue() + "\n");
+            }
+        }
+
+        String lastGauge = null;
+
+        for (Map.Entry<String, GaugeSource> entry : new TreeMap<>(gauges).entrySet()) {
+            String[] parts = entry.getKey().split(String.valueOf(SEPARATOR), -1);
+            String gauge = PREFIX + parts[0];
+
+            if (!gauge.equals(lastGauge)) {
+                writer.write("# TYPE " + gauge + " gauge\n");
+                lastGauge = gauge;
+            }
+
+            for (Map.Entry<String, Double> value : new TreeMap<>(entry.getValue().sample()).entrySet()) {
+                String name = resolveName(value.getKey(), names);
+                if (name != null) {
+                    writer.write(gauge + "{application=\"" + escape(name) + "\",lane=\"" + escape(parts[1]) + "\"} " + value.getValue() + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts the specified number of microseconds into seconds.
+     * 
+     * @param micros
+     *            the number of microseconds
+     * @return The number of seconds.
+     */
+    private String toSeconds(long micros) {
+        return String.valueOf(micros / 1000000.0);
+    }
+}
\ No newline at end of file
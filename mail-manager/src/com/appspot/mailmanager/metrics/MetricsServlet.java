@@ -0,0 +1,75 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The servlet responsible for exposing the {@link Metrics} collected by this instance in the Prometheus text exposition format so that they can be
+ * scraped.
+ * <p>
+ * Since the metrics name every {@link com.appspot.mailmanager.application.Application Application}, they are only served to requests containing a
+ * {@code token} parameter which matches the {@code mailmanager.metrics.token} system property, and not at all while it is not set. Tokens are compared in
+ * constant time so that they cannot be guessed from how long each request takes to be refused.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+
+    private static final String CLASS_NAME = MetricsServlet.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The token which must be provided in order to read the metrics or an empty string if they are not to be served. */
+    private static final String TOKEN = System.getProperty("mailmanager.metrics.token", "");
+
+    /*
+     * @see HttpServlet#doGet(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doGet", new Object[] { req, resp });
+
+        if (TOKEN.isEmpty()) {
+            resp.sendError(403, "Metrics are disabled");
+            return;
+        }
+
+        String token = req.getParameter("token");
+        if (token == null || !MessageDigest.isEqual(TOKEN.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            resp.sendError(403, "Invalid token");
+            return;
+        }
+
+        resp.setContentType("text/plain; version=0.0.4");
+        resp.setCharacterEncoding("UTF-8");
+        Metrics.getInstance().write(resp.getWriter());
+
+        log.exiting(CLASS_NAME, "doGet");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,51 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.metrics;
+
+/**
+ * The phases of handling a request to send a message whose latencies are recorded.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public enum Phase {
+
+    /** Reading the body of the request from the client. */
+    READ,
+    /** Parsing the body of the request into a send request. */
+    PARSE,
+    /** Looking up the application using its API key. */
+    LOOKUP,
+    /** Waiting in a queue for a worker to start sending the message. */
+    QUEUE,
+    /** Constructing the MIME message. */
+    BUILD,
+    /** Sending the MIME message using a transport. */
+    TRANSPORT;
+
+    /**
+     * Returns the name of this {@link Phase} as it appears in metric labels.
+     * 
+     * @return The label.
+     */
+    public String getLabel() {
+        return name().toLowerCase();
+    }
+}
\ No newline at end of file
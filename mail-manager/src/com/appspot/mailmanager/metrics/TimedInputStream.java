@@ -0,0 +1,90 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@code InputStream} which records how long has been spent reading from the {@code InputStream} it wraps.
+ * <p>
+ * This is the byte-oriented counterpart of {@link TimedReader} and is used when a request body is parsed from bytes rather than characters.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class TimedInputStream extends FilterInputStream implements Timed {
+
+    private long elapsed;
+
+    /**
+     * Creates a new instance of {@link TimedInputStream} for the specified {@code in}.
+     * 
+     * @param in
+     *            the {@code InputStream} to be timed
+     * @throws NullPointerException
+     *             If {@code in} is {@code null}.
+     */
+    public TimedInputStream(InputStream in) {
+        super(in);
+        if (in == null) {
+            throw new NullPointerException("in");
+        }
+    }
+
+    /**
+     * Returns the total number of nanoseconds spent reading from the underlying {@code InputStream}.
+     * 
+     * @return The elapsed time.
+     */
+    @Override
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /*
+     * @see FilterInputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return super.read();
+        } finally {
+            elapsed += System.nanoTime() - start;
+        }
+    }
+
+    /*
+     * @see FilterInputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return super.read(b, off, len);
+        } finally {
+            elapsed += System.nanoTime() - start;
+        }
+    }
+}
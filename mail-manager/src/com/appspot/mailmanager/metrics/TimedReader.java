@@ -0,0 +1,88 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.metrics;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A {@code Reader} which records how long has been spent reading from the {@code Reader} it wraps.
+ * <p>
+ * This allows the time spent waiting on a stream to be separated from the time spent processing it when both are interleaved, as they are when a request
+ * body is parsed as it is streamed.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class TimedReader extends FilterReader implements Timed {
+
+    private long elapsed;
+
+    /**
+     * Creates a new instance of {@link TimedReader} for the specified {@code reader}.
+     * 
+     * @param reader
+     *            the {@code Reader} to be timed
+     * @throws NullPointerException
+     *             If {@code reader} is {@code null}.
+     */
+    public TimedReader(Reader reader) {
+        super(reader);
+    }
+
+    /**
+     * Returns the total number of nanoseconds spent reading from the underlying {@code Reader}.
+     * 
+     * @return The elapsed time.
+     */
+    @Override
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /*
+     * @see FilterReader#read()
+     */
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return super.read();
+        } finally {
+            elapsed += System.nanoTime() - start;
+        }
+    }
+
+    /*
+     * @see FilterReader#read(char[], int, int)
+     */
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return super.read(cbuf, off, len);
+        } finally {
+            elapsed += System.nanoTime() - start;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,311 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.outbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.appspot.mailmanager.send.Priority;
+import com.google.appengine.api.datastore.ConcurrentModificationException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+
+/**
+ * An {@link Outbox} which stores each message as its own entity in the datastore so that it survives the instance which accepted it and can be sent by
+ * any instance.
+ * <p>
+ * Messages which are available to be leased are found by a query on their availability and, for ready messages, their tag, which relies on the composite
+ * indexes within {@code datastore-indexes.xml}. Since such queries are only eventually consistent, every lease is taken within a transaction which re-reads
+ * the message and checks that it is still available; if two workers race for the same message, only one of them can commit. Completing, retrying, and
+ * dead-lettering a message are also transactional and check that the lease ID is unchanged.
+ * <p>
+ * Messages of each {@link Priority} are stored as a {@link OutboxMessage#getKind(Priority) kind} of their own, so that each lane can query for its own
+ * available messages without filtering on priority. Each kind therefore needs its own composite index on availability and tag.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class DatastoreOutbox implements Outbox {
+
+    private static final String CLASS_NAME = DatastoreOutbox.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /*
+     * @see Outbox#add(OutboxMessage)
+     */
+    @Override
+    public void add(OutboxMessage message) {
+        DatastoreServiceFactory.getDatastoreService().put(message.toEntity(message.getKind()));
+    }
+
+    /*
+     * @see Outbox#complete(OutboxMessage)
+     */
+    @Override
+    public boolean complete(OutboxMessage message) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction txn = datastore.beginTransaction();
+
+        try {
+            if (getLeased(datastore, txn, message) == null) {
+                return false;
+            }
+
+            datastore.delete(txn, OutboxMessage.createKey(message.getKind(), message.getId()));
+            txn.commit();
+            return true;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /*
+     * @see Outbox#deadLetter(OutboxMessage, String)
+     */
+    @Override
+    public boolean deadLetter(OutboxMessage message, String error) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+
+        try {
+            OutboxMessage stored = getLeased(datastore, txn, message);
+            if (stored == null) {
+                return false;
+            }
+
+            stored.setAttempts(stored.getAttempts() + 1);
+            stored.setError(error);
+            stored.setLeaseId(null);
+
+            datastore.put(txn, stored.toEntity(OutboxMessage.DEAD_LETTER_KIND));
+            datastore.delete(txn, OutboxMessage.createKey(message.getKind(), message.getId()));
+            txn.commit();
+            return true;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /*
+     * @see Outbox#get(String)
+     */
+    @Override
+    public OutboxMessage get(String id) {
+        List<Key> keys = new ArrayList<>();
+        for (Priority priority : Priority.values()) {
+            keys.add(OutboxMessage.createKey(OutboxMessage.getKind(priority), id));
+        }
+
+        for (Entity entity : DatastoreServiceFactory.getDatastoreService().get(keys).values()) {
+            return OutboxMessage.fromEntity(entity);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the message with the specified {@code key} from the datastore.
+     * 
+     * @param datastore
+     *            the {@code DatastoreService} to be used
+     * @param txn
+     *            the {@code Transaction} to be used or {@code null} if no transaction is required
+     * @param key
+     *            the {@code Key} of the message
+     * @return The {@link OutboxMessage} or {@code null} if none could be found.
+     */
+    private OutboxMessage get(DatastoreService datastore, Transaction txn, Key key) {
+        try {
+            Entity entity = txn == null ? datastore.get(key) : datastore.get(txn, key);
+            return OutboxMessage.fromEntity(entity);
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    /*
+     * @see Outbox#getDeadLetter(String)
+     */
+    @Override
+    public OutboxMessage getDeadLetter(String id) {
+        return get(DatastoreServiceFactory.getDatastoreService(), null, OutboxMessage.createKey(OutboxMessage.DEAD_LETTER_KIND, id));
+    }
+
+    /**
+     * Returns the stored version of the specified {@code message} if the lease on it is still held.
+     * 
+     * @param datastore
+     *            the {@code DatastoreService} to be used
+     * @param txn
+     *            the {@code Transaction} to be used
+     * @param message
+     *            the leased {@link OutboxMessage}
+     * @return The stored {@link OutboxMessage} or {@code null} if it no longer exists or has been leased by another worker.
+     */
+    private OutboxMessage getLeased(DatastoreService datastore, Transaction txn, OutboxMessage message) {
+        OutboxMessage stored = get(datastore, txn, OutboxMessage.createKey(message.getKind(), message.getId()));
+        if (stored == null || stored.getLeaseId() == null || !Objects.equals(stored.getLeaseId(), message.getLeaseId())) {
+            return null;
+        }
+        return stored;
+    }
+
+    /*
+     * @see Outbox#lease(Priority, int, long)
+     */
+    @Override
+    public List<OutboxMessage> lease(Priority priority, int max, long duration) {
+        log.entering(CLASS_NAME, "lease", new Object[] { priority, max, duration });
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        long now = System.currentTimeMillis();
+
+        // Delayed messages which are due have already waited, so they are leased before those which are ready
+        Query due = new Query(OutboxMessage.getKind(priority)).setFilter(
+                Query.CompositeFilterOperator.and(new Query.FilterPredicate("availableAt", Query.FilterOperator.GREATER_THAN, 0L),
+                        new Query.FilterPredicate("availableAt", Query.FilterOperator.LESS_THAN_OR_EQUAL, now))).addSort("availableAt")
+                .setKeysOnly();
+        Query ready = new Query(OutboxMessage.getKind(priority)).setFilter(
+                new Query.FilterPredicate("availableAt", Query.FilterOperator.EQUAL, 0L)).addSort("tag").setKeysOnly();
+
+        List<OutboxMessage> leased = new ArrayList<>();
+        lease(datastore, due, max, now, duration, leased);
+        if (leased.size() < max) {
+            lease(datastore, ready, max, now, duration, leased);
+        }
+
+        log.exiting(CLASS_NAME, "lease", leased);
+        return leased;
+    }
+
+    /**
+     * Leases the messages found by the specified {@code query}, in order, until {@code leased} contains {@code max} messages.
+     * <p>
+     * More candidates are fetched than are needed as some may be taken by other workers before they can be leased.
+     * 
+     * @param datastore
+     *            the {@code DatastoreService} to be used
+     * @param query
+     *            the keys-only {@code Query} which finds the candidates
+     * @param max
+     *            the maximum number of messages to be leased in total
+     * @param now
+     *            the current time in milliseconds
+     * @param duration
+     *            the number of milliseconds for which the lease is held
+     * @param leased
+     *            the {@code List} to which the leased messages are to be added
+     */
+    private void lease(DatastoreService datastore, Query query, int max, long now, long duration, List<OutboxMessage> leased) {
+        List<Entity> candidates = datastore.prepare(query).asList(FetchOptions.Builder.withLimit((max - leased.size()) * 2));
+
+        for (Entity candidate : candidates) {
+            if (leased.size() >= max) {
+                break;
+            }
+
+            OutboxMessage message = lease(datastore, candidate.getKey(), now, duration);
+            if (message != null) {
+                leased.add(message);
+            }
+        }
+    }
+
+    /**
+     * Attempts to lease the message with the specified {@code key} within its own transaction.
+     * 
+     * @param datastore
+     *            the {@code DatastoreService} to be used
+     * @param key
+     *            the {@code Key} of the message
+     * @param now
+     *            the current time in milliseconds
+     * @param duration
+     *            the number of milliseconds for which the lease is held
+     * @return The leased {@link OutboxMessage} or {@code null} if it is no longer available or was leased by another worker first.
+     */
+    private OutboxMessage lease(DatastoreService datastore, Key key, long now, long duration) {
+        Transaction txn = datastore.beginTransaction();
+
+        try {
+            OutboxMessage message = get(datastore, txn, key);
+            if (message == null || message.getAvailableAt() > now) {
+                return null;
+            }
+
+            message.setAvailableAt(now + duration);
+            message.setLeaseId(UUID.randomUUID().toString());
+
+            datastore.put(txn, message.toEntity(message.getKind()));
+            txn.commit();
+            return message;
+        } catch (ConcurrentModificationException e) {
+            log.log(Level.FINER, "Message leased by another worker: " + key, e);
+            return null;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /*
+     * @see Outbox#retry(OutboxMessage, long, String)
+     */
+    @Override
+    public boolean retry(OutboxMessage message, long availableAt, String error) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction txn = datastore.beginTransaction();
+
+        try {
+            OutboxMessage stored = getLeased(datastore, txn, message);
+            if (stored == null) {
+                return false;
+            }
+
+            stored.setAttempts(stored.getAttempts() + 1);
+            stored.setAvailableAt(availableAt);
+            stored.setError(error);
+            stored.setLeaseId(null);
+
+            datastore.put(txn, stored.toEntity(stored.getKind()));
+            txn.commit();
+            return true;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+}
\ No newline at end of file
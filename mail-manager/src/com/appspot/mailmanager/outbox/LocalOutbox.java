@@ -0,0 +1,178 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.outbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+import com.appspot.mailmanager.send.Priority;
+
+/**
+ * An {@link Outbox} which is held entirely in memory and is therefore neither durable nor shared between instances.
+ * <p>
+ * This is intended to stand in for {@link DatastoreOutbox} where the datastore is not available, such as when testing. Messages are copied on the way in
+ * and out so that callers observe the same behaviour as they would with a real store.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class LocalOutbox implements Outbox {
+
+    private final Map<String, OutboxMessage> deadLetters = new HashMap<>();
+    private final Map<String, OutboxMessage> messages = new LinkedHashMap<>();
+
+    /*
+     * @see Outbox#add(OutboxMessage)
+     */
+    @Override
+    public synchronized void add(OutboxMessage message) {
+        messages.put(message.getId(), message.copy());
+    }
+
+    /*
+     * @see Outbox#complete(OutboxMessage)
+     */
+    @Override
+    public synchronized boolean complete(OutboxMessage message) {
+        if (getLeased(message) == null) {
+            return false;
+        }
+
+        messages.remove(message.getId());
+        return true;
+    }
+
+    /*
+     * @see Outbox#deadLetter(OutboxMessage, String)
+     */
+    @Override
+    public synchronized boolean deadLetter(OutboxMessage message, String error) {
+        OutboxMessage stored = getLeased(message);
+        if (stored == null) {
+            return false;
+        }
+
+        stored.setAttempts(stored.getAttempts() + 1);
+        stored.setError(error);
+        stored.setLeaseId(null);
+
+        messages.remove(message.getId());
+        deadLetters.put(message.getId(), stored);
+        return true;
+    }
+
+    /*
+     * @see Outbox#get(String)
+     */
+    @Override
+    public synchronized OutboxMessage get(String id) {
+        OutboxMessage message = messages.get(id);
+        return message == null ? null : message.copy();
+    }
+
+    /*
+     * @see Outbox#getDeadLetter(String)
+     */
+    @Override
+    public synchronized OutboxMessage getDeadLetter(String id) {
+        OutboxMessage message = deadLetters.get(id);
+        return message == null ? null : message.copy();
+    }
+
+    /**
+     * Returns the stored copy of the specified {@code message} if the lease on it is still held.
+     * <p>
+     * The caller must hold the lock on this {@link LocalOutbox}.
+     * 
+     * @param message
+     *            the leased {@link OutboxMessage}
+     * @return The stored {@link OutboxMessage} or {@code null} if it no longer exists or has been leased by another worker.
+     */
+    private OutboxMessage getLeased(OutboxMessage message) {
+        OutboxMessage stored = messages.get(message.getId());
+        if (stored == null || stored.getLeaseId() == null || !Objects.equals(stored.getLeaseId(), message.getLeaseId())) {
+            return null;
+        }
+        return stored;
+    }
+
+    /*
+     * @see Outbox#lease(Priority, int, long)
+     */
+    @Override
+    public synchronized List<OutboxMessage> lease(Priority priority, int max, long duration) {
+        List<OutboxMessage> available = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for (OutboxMessage message : messages.values()) {
+            if (message.getPriority() == priority && message.getAvailableAt() <= now) {
+                available.add(message);
+            }
+        }
+
+        // Lease delayed messages which are due in order of availability and then ready messages in order of their tag, as the datastore does
+        Collections.sort(available, new Comparator<OutboxMessage>() {
+
+            @Override
+            public int compare(OutboxMessage message1, OutboxMessage message2) {
+                if (message1.isReady() != message2.isReady()) {
+                    return message1.isReady() ? 1 : -1;
+                }
+                if (message1.isReady()) {
+                    return Long.compare(message1.getTag(), message2.getTag());
+                }
+                return Long.compare(message1.getAvailableAt(), message2.getAvailableAt());
+            }
+        });
+
+        List<OutboxMessage> leased = new ArrayList<>();
+        for (OutboxMessage message : available.subList(0, Math.min(max, available.size()))) {
+            message.setAvailableAt(now + duration);
+            message.setLeaseId(UUID.randomUUID().toString());
+            leased.add(message.copy());
+        }
+
+        return leased;
+    }
+
+    /*
+     * @see Outbox#retry(OutboxMessage, long, String)
+     */
+    @Override
+    public synchronized boolean retry(OutboxMessage message, long availableAt, String error) {
+        OutboxMessage stored = getLeased(message);
+        if (stored == null) {
+            return false;
+        }
+
+        stored.setAttempts(stored.getAttempts() + 1);
+        stored.setAvailableAt(availableAt);
+        stored.setError(error);
+        stored.setLeaseId(null);
+        return true;
+    }
+}
\ No newline at end of file
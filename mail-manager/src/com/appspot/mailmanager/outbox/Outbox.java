@@ -0,0 +1,120 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.outbox;
+
+import java.util.List;
+
+import com.appspot.mailmanager.send.Priority;
+
+/**
+ * A durable store of {@link OutboxMessage OutboxMessages} waiting to be sent which can be drained by workers on any number of instances in parallel.
+ * <p>
+ * Workers {@link #lease(Priority, int, long) lease} messages before sending them and, while the lease is held, no other worker can lease the same message.
+ * Once a message has been sent, or has failed, the worker must {@link #complete(OutboxMessage) complete},
+ * {@link #retry(OutboxMessage, long, String) retry}, or {@link #deadLetter(OutboxMessage, String) dead-letter} it before its lease expires; otherwise the
+ * message becomes available to be leased again. Each of those operations only takes effect if the lease is still held, so a worker whose lease has been
+ * taken over cannot interfere with the new holder.
+ * <p>
+ * Each worker only leases messages with the {@link Priority} of the lane that it serves, so that a backlog within one lane does not delay the others.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public interface Outbox {
+
+    /**
+     * Adds the specified {@code message} to this outbox.
+     * 
+     * @param message
+     *            the {@link OutboxMessage} to be added
+     * @throws NullPointerException
+     *             If {@code message} is {@code null}.
+     */
+    void add(OutboxMessage message);
+
+    /**
+     * Removes the specified {@code message}, which has been sent, from this outbox.
+     * 
+     * @param message
+     *            the leased {@link OutboxMessage} to be removed
+     * @return {@code true} if the lease on {@code message} was still held; otherwise {@code false}.
+     */
+    boolean complete(OutboxMessage message);
+
+    /**
+     * Moves the specified {@code message}, which cannot be sent, from this outbox to the dead letters so that it is never attempted again.
+     * 
+     * @param message
+     *            the leased {@link OutboxMessage} to be moved
+     * @param error
+     *            the error which caused the last attempt to fail
+     * @return {@code true} if the lease on {@code message} was still held; otherwise {@code false}.
+     */
+    boolean deadLetter(OutboxMessage message, String error);
+
+    /**
+     * Returns the message with the specified {@code id} which is waiting to be sent.
+     * 
+     * @param id
+     *            the ID of the message
+     * @return The {@link OutboxMessage} or {@code null} if none could be found.
+     */
+    OutboxMessage get(String id);
+
+    /**
+     * Returns the message with the specified {@code id} which has been moved to the dead letters.
+     * 
+     * @param id
+     *            the ID of the message
+     * @return The {@link OutboxMessage} or {@code null} if none could be found.
+     */
+    OutboxMessage getDeadLetter(String id);
+
+    /**
+     * Leases up to {@code max} messages with the specified {@code priority} which are available to be sent, making them unavailable to other workers for
+     * {@code duration} milliseconds.
+     * <p>
+     * Delayed messages whose availability has passed, such as retries and expired leases, have already waited and are leased first, in order of their
+     * availability. The remainder are filled with {@link OutboxMessage#isReady() ready} messages in order of their tag, so that every ready message can be
+     * leased as soon as a worker is free while applications are still served in proportion to their weight.
+     * 
+     * @param priority
+     *            the {@link Priority} of the messages to be leased
+     * @param max
+     *            the maximum number of messages to be leased
+     * @param duration
+     *            the number of milliseconds for which the lease is held
+     * @return The leased {@link OutboxMessage OutboxMessages}, which may be empty.
+     */
+    List<OutboxMessage> lease(Priority priority, int max, long duration);
+
+    /**
+     * Releases the lease on the specified {@code message}, which could not be sent, so that it can be attempted again at {@code availableAt}.
+     * 
+     * @param message
+     *            the leased {@link OutboxMessage} to be retried
+     * @param availableAt
+     *            the time in milliseconds at which the message is to be attempted again
+     * @param error
+     *            the error which caused the attempt to fail
+     * @return {@code true} if the lease on {@code message} was still held; otherwise {@code false}.
+     */
+    boolean retry(OutboxMessage message, long availableAt, String error);
+}
\ No newline at end of file
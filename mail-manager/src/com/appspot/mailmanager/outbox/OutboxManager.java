@@ -0,0 +1,428 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.outbox;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.appspot.mailmanager.MailException;
+import com.appspot.mailmanager.metrics.GaugeSource;
+import com.appspot.mailmanager.metrics.Metrics;
+import com.appspot.mailmanager.metrics.Phase;
+import com.appspot.mailmanager.send.BackgroundThreadFactory;
+import com.appspot.mailmanager.send.CircuitBreaker;
+import com.appspot.mailmanager.send.Priority;
+import com.appspot.mailmanager.send.SendManager;
+import com.appspot.mailmanager.send.SendRequest;
+import com.appspot.mailmanager.send.TransportException;
+import com.appspot.mailmanager.send.VirtualClock;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * The class responsible for writing accepted messages to the {@link Outbox} and for the workers which drain it.
+ * <p>
+ * Each instance runs a small number of background workers for each {@link Priority}, as configured for its lane, which repeatedly lease a batch of
+ * available messages with that priority and send them. Messages which fail because the transport is unavailable are retried with an exponential backoff,
+ * with jitter so that messages which failed together are not all retried together, and are moved to the dead letters once they have been attempted
+ * {@code mailmanager.outbox.maxAttempts} times. Messages which can never be sent, such as those with invalid recipients, are dead-lettered straight away.
+ * <p>
+ * Workers which find nothing to lease poll the outbox less and less often, up to {@code mailmanager.outbox.pollInterval.max}, so that idle instances do
+ * not keep reading from the datastore. Adding a message wakes the workers for its lane on the same instance straight away, while messages added by other
+ * instances are picked up by the next poll. A worker which stops unexpectedly is replaced by the next call to {@link #start()}.
+ * <p>
+ * New messages are ready to be leased immediately and are tagged by a {@link VirtualClock} for their lane, so that leasing ready messages in order of
+ * their tags serves each application in proportion to its weight without ever leaving a worker idle while a message is waiting. The clocks are specific to
+ * each instance and advance as messages are leased from the outbox by any instance, so a newly started instance briefly favours its own messages until its
+ * clocks catch up. How far each application has fallen behind within each lane is recorded in the {@link Metrics}.
+ * <p>
+ * Workers stop leasing messages while the {@link CircuitBreaker} around the transport is open, so that messages do not use up their attempts while
+ * the transport is known to be unavailable.
+ * <p>
+ * Leases allow workers on any number of instances to drain the outbox in parallel without sending the same message twice, provided that each message is
+ * sent within its lease. Workers therefore skip any leased message whose lease is more than half spent by the time they reach it.
+ * <p>
+ * Since background threads are used, the workers require an instance that uses either basic or manual scaling, along with
+ * {@code mailmanager.background.enabled}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class OutboxManager {
+
+    private static final String CLASS_NAME = OutboxManager.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The number of milliseconds to wait before the first retry of a message. */
+    private static final long BACKOFF_INITIAL = Long.getLong("mailmanager.outbox.backoff.initial", 1000L);
+    /** The maximum number of milliseconds to wait before retrying a message. */
+    private static final long BACKOFF_MAX = Long.getLong("mailmanager.outbox.backoff.max", 60 * 60 * 1000L);
+    /** The maximum number of messages leased by a worker at a time. */
+    private static final int BATCH_SIZE = Integer.getInteger("mailmanager.outbox.batchSize", 10);
+    /** Whether accepted messages are written to the outbox rather than being held in memory. */
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mailmanager.outbox.enabled", "true"));
+    /** The number of milliseconds for which a worker holds the lease on a batch of messages. */
+    private static final long LEASE = Long.getLong("mailmanager.outbox.lease", 60 * 1000L);
+    /** The number of attempts after which a message is moved to the dead letters. */
+    private static final int MAX_ATTEMPTS = Integer.getInteger("mailmanager.outbox.maxAttempts", 8);
+    /** The number of milliseconds for which an idle worker waits before polling the outbox again. */
+    private static final long POLL_INTERVAL = Long.getLong("mailmanager.outbox.pollInterval", 1000L);
+    /** The maximum number of milliseconds to which the poll interval of a worker grows while it finds nothing to lease. */
+    private static final long POLL_INTERVAL_MAX = Long.getLong("mailmanager.outbox.pollInterval.max", 10 * 1000L);
+    /** The type of {@link Outbox} to be used; either {@code "datastore"} or {@code "local"}. */
+    private static final String STORE = System.getProperty("mailmanager.outbox.store", "datastore");
+
+    private static OutboxManager instance;
+
+    /**
+     * Creates the {@link Outbox} configured by {@code mailmanager.outbox.store}.
+     * 
+     * @return The {@link Outbox} to be used.
+     * @throws IllegalStateException
+     *             If the configured type is not recognized.
+     */
+    private static Outbox createOutbox() {
+        switch (STORE) {
+        case "datastore":
+            return new DatastoreOutbox();
+        case "local":
+            return new LocalOutbox();
+        default:
+            throw new IllegalStateException("Invalid outbox store: " + STORE);
+        }
+    }
+
+    /**
+     * Returns the number of milliseconds to wait before retrying a message which has failed the specified number of {@code attempts}.
+     * <p>
+     * The delay doubles with each attempt, up to a maximum, and a random amount of up to half of it is taken off so that messages which failed at the same
+     * time are spread out when they are retried.
+     * 
+     * @param attempts
+     *            the number of failed attempts
+     * @return The backoff delay in milliseconds.
+     */
+    static long getBackoff(int attempts) {
+        long delay = Math.min(BACKOFF_INITIAL << Math.min(Math.max(attempts - 1, 0), 30), BACKOFF_MAX);
+
+        long half = delay / 2;
+        return delay - (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+    }
+
+    /**
+     * Retrieves the singleton instance of {@link OutboxManager}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized OutboxManager getInstance() {
+        if (instance == null) {
+            instance = new OutboxManager();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns whether accepted messages are written to the outbox, as configured by {@code mailmanager.outbox.enabled}.
+     * 
+     * @return {@code true} if the outbox is enabled; otherwise {@code false}.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    private final Map<Priority, VirtualClock> clocks = new EnumMap<>(Priority.class);
+    private final Outbox outbox = createOutbox();
+    private final Map<Priority, Object> signals = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> workers = new EnumMap<>(Priority.class);
+
+    /**
+     * Creates a new instance of {@link OutboxManager}.
+     */
+    private OutboxManager() {
+        for (Priority priority : Priority.values()) {
+            final VirtualClock clock = new VirtualClock(0);
+            clocks.put(priority, clock);
+            signals.put(priority, new Object());
+
+            // Lags are in virtual time rather than seconds now that tags are never compared with the wall clock
+            Metrics.getInstance().register("outbox_lag", priority.getName(), new GaugeSource() {
+
+                @Override
+                public Map<String, Double> sample() {
+                    Map<String, Double> lags = new HashMap<>();
+                    for (Map.Entry<String, Long> entry : clock.getLags().entrySet()) {
+                        lags.put(entry.getKey(), entry.getValue().doubleValue());
+                    }
+                    return lags;
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the specified {@code request} to the outbox so that it is sent by a worker as soon as it is the turn of its application.
+     * 
+     * @param id
+     *            the ID of the message, which is shared with its {@code SendStatus}
+     * @param request
+     *            the {@link SendRequest} to be sent
+     * @throws MailException
+     *             If the workers could not be started or the message could not be written to the outbox.
+     */
+    public void add(String id, SendRequest request) throws MailException {
+        add(id, request, null);
+    }
+
+    /**
+     * Writes the specified {@code request}, which has already failed to be sent with the {@code error} provided, to the outbox so that it is retried by a
+     * worker after backing off.
+     * 
+     * @param id
+     *            the ID of the message, which is shared with its {@code SendStatus}
+     * @param request
+     *            the {@link SendRequest} to be sent
+     * @param error
+     *            the error which caused the first attempt to fail or {@code null} if it has not been attempted
+     * @throws MailException
+     *             If the message is too large to be queued, the workers could not be started, or the message could not be written to the outbox.
+     */
+    public void add(String id, SendRequest request, String error) throws MailException {
+        log.entering(CLASS_NAME, "add", new Object[] { id, request, error });
+
+        OutboxMessage message;
+        try {
+            message = new OutboxMessage(id, request);
+        } catch (JSONException e) {
+            throw new MailException("Message could not be queued", e);
+        }
+
+        // The serialized request is held by a single property, so it must fit within the size limit of an entity along with the rest of the message
+        if (message.getRequestSize() > OutboxMessage.MAX_REQUEST_SIZE) {
+            throw new MailException("Message too large to be queued");
+        }
+
+        // Start the workers first so that a message is never written to the outbox by an instance which cannot then report whether it was accepted
+        try {
+            start();
+        } catch (IllegalStateException e) {
+            throw new MailException("Unable to start background worker", e);
+        }
+
+        try {
+            message.setTag(clocks.get(request.getPriority()).tag(request));
+            if (error != null) {
+                message.setAttempts(1);
+                message.setAvailableAt(System.currentTimeMillis() + getBackoff(1));
+                message.setError(error);
+            }
+
+            outbox.add(message);
+        } catch (RuntimeException e) {
+            throw new MailException("Message could not be queued", e);
+        }
+
+        // Only a message which is ready can be leased straight away, so there is no point waking the workers for one which has been delayed
+        if (message.isReady()) {
+            Object signal = signals.get(request.getPriority());
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+
+        log.exiting(CLASS_NAME, "add");
+    }
+
+    /**
+     * Drains the messages with the specified {@code priority} from the outbox until the current thread is interrupted.
+     * <p>
+     * Failures to reach the outbox are logged and the worker waits before polling again. The wait doubles each time that nothing is leased, up to
+     * {@link #POLL_INTERVAL_MAX}, until either a message is leased or one is added to the lane on this instance.
+     * 
+     * @param priority
+     *            the {@link Priority} of the lane served by the worker
+     */
+    private void drain(Priority priority) {
+        log.entering(CLASS_NAME, "drain", priority);
+
+        Object signal = signals.get(priority);
+        long pollInterval = POLL_INTERVAL;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Leave messages where they are while the transport is known to be down rather than using up their attempts
+                if (SendManager.getInstance().getCircuitBreaker().getState() == CircuitBreaker.State.OPEN) {
+                    TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+                    continue;
+                }
+
+                List<OutboxMessage> messages;
+                try {
+                    messages = outbox.lease(priority, BATCH_SIZE, LEASE);
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Failed to lease messages", e);
+                    messages = Collections.emptyList();
+                }
+
+                if (messages.isEmpty()) {
+                    synchronized (signal) {
+                        signal.wait(pollInterval);
+                    }
+                    pollInterval = Math.min(pollInterval * 2, Math.max(POLL_INTERVAL_MAX, POLL_INTERVAL));
+                    continue;
+                }
+
+                pollInterval = POLL_INTERVAL;
+
+                for (OutboxMessage message : messages) {
+                    try {
+                        process(message);
+                    } catch (RuntimeException e) {
+                        log.log(Level.WARNING, "Failed to process message: " + message.getId(), e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            log.log(Level.FINER, "Worker interrupted", e);
+        }
+
+        log.exiting(CLASS_NAME, "drain");
+    }
+
+    /**
+     * Returns the {@link Outbox} used to store messages.
+     * 
+     * @return The {@link Outbox}.
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Sends the specified {@code message}, which has been leased, and then completes, retries, or dead-letters it depending on the outcome.
+     * 
+     * @param message
+     *            the leased {@link OutboxMessage} to be sent
+     */
+    private void process(OutboxMessage message) {
+        log.entering(CLASS_NAME, "process", message);
+
+        if (message.getAvailableAt() - System.currentTimeMillis() < LEASE / 2) {
+            log.fine("Skipping message as too little of its lease remains: " + message.getId());
+            return;
+        }
+
+        if (message.getAttempts() == 0) {
+            clocks.get(message.getPriority()).advance(message.getTag());
+            Metrics.getInstance().record(Phase.QUEUE, message.getApiKey(),
+                    TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - message.getCreated()));
+        }
+
+        SendRequest request;
+        try {
+            request = message.getRequest();
+        } catch (IllegalArgumentException | JSONException e) {
+            log.log(Level.WARNING, "Failed to parse message: " + message.getId(), e);
+            outbox.deadLetter(message, "Invalid data");
+            return;
+        }
+
+        boolean lastAttempt = message.getAttempts() + 1 >= MAX_ATTEMPTS;
+
+        try {
+            SendManager.getInstance().sendQueued(message.getId(), request, lastAttempt);
+
+            if (!outbox.complete(message)) {
+                log.warning("Lease lost before message could be completed: " + message.getId());
+            }
+        } catch (TransportException e) {
+            log.log(Level.FINER, "Caught exception", e);
+
+            if (lastAttempt) {
+                log.warning("Dead-lettering message after " + (message.getAttempts() + 1) + " attempts: " + message.getId());
+                outbox.deadLetter(message, e.getMessage());
+            } else {
+                outbox.retry(message, System.currentTimeMillis() + getBackoff(message.getAttempts() + 1), e.getMessage());
+            }
+        } catch (MailException e) {
+            log.log(Level.WARNING, "Dead-lettering message which cannot be sent: " + message.getId(), e);
+            outbox.deadLetter(message, e.getMessage());
+        }
+
+        log.exiting(CLASS_NAME, "process");
+    }
+
+    /**
+     * Starts the workers which drain each lane of the outbox on this instance, if they have not already been started.
+     * <p>
+     * This must be called from within a request as the workers are background threads. If only some of the workers could be started, the rest are
+     * started by the next call.
+     * 
+     * @throws IllegalStateException
+     *             If background threads are unavailable on this instance.
+     */
+    public synchronized void start() {
+        for (final Priority priority : Priority.values()) {
+            Integer running = workers.get(priority);
+            if (running == null) {
+                running = 0;
+            }
+            if (running >= priority.getThreads()) {
+                continue;
+            }
+
+            log.info("Starting " + (priority.getThreads() - running) + " outbox workers for the " + priority.getName() + " lane");
+
+            for (int i = running; i < priority.getThreads(); i++) {
+                BackgroundThreadFactory.getInstance().newThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            drain(priority);
+                        } finally {
+                            stopped(priority);
+                        }
+                    }
+                }).start();
+
+                workers.put(priority, i + 1);
+            }
+        }
+    }
+
+    /**
+     * Records that a worker which drains the lane with the specified {@code priority} has stopped, for whatever reason, so that it is replaced by the next
+     * call to {@link #start()}.
+     * 
+     * @param priority
+     *            the {@link Priority} of the lane served by the worker
+     */
+    private synchronized void stopped(Priority priority) {
+        log.info("Outbox worker for the " + priority.getName() + " lane has stopped");
+
+        workers.put(priority, workers.get(priority) - 1);
+    }
+}
@@ -0,0 +1,392 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.outbox;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.send.Priority;
+import com.appspot.mailmanager.send.SendRequest;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * A {@link SendRequest} which has been accepted and is waiting in the {@link Outbox} to be sent.
+ * <p>
+ * The request is held in its serialized form so that it only needs to be parsed when it is about to be sent. A new message is ready to be sent
+ * straight away, in the order given by its {@link #getTag() tag}, and only has an {@link #getAvailableAt() availability} once it has been delayed; while it
+ * is leased, its availability is pushed back to the time at which the lease expires, so that it is picked up again if the worker holding the lease dies,
+ * and when it is retried, it is the time at which it can next be attempted.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class OutboxMessage {
+
+    /** The kind name used to represent pending messages with {@link Priority#NORMAL normal} priority in the datastore. */
+    public static final String KIND = OutboxMessage.class.getSimpleName();
+    /** The kind name used to represent messages in the datastore which could not be sent after too many attempts. */
+    public static final String DEAD_LETTER_KIND = "DeadLetter";
+
+    /**
+     * The maximum number of bytes of a serialized request which can be held by a message, which leaves room for its other properties within the 1 MB limit
+     * on the size of an entity.
+     */
+    public static final int MAX_REQUEST_SIZE = 1000 * 1000;
+
+    /** The maximum number of characters of an error which are retained. */
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    /**
+     * Creates a {@code Key} for the {@code Entity} of the specified {@code kind} representing the {@link OutboxMessage} with the {@code id} provided.
+     * 
+     * @param kind
+     *            the kind of the {@code Entity}; either that of a {@link #getKind(Priority) priority} or {@link #DEAD_LETTER_KIND}
+     * @param id
+     *            the ID of the {@link OutboxMessage}
+     * @return The derived {@code Key}.
+     * @throws IllegalArgumentException
+     *             If {@code id} is {@code null} or empty.
+     */
+    public static Key createKey(String kind, String id) {
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("Invalid message ID: " + id);
+        }
+        return KeyFactory.createKey(kind, id);
+    }
+
+    /**
+     * Returns the kind name used to represent pending messages with the specified {@code priority} in the datastore.
+     * <p>
+     * Each priority has its own kind so that the workers for each lane can find the messages available to them with a simple query. Messages with
+     * {@link Priority#NORMAL normal} priority use {@link #KIND}, so that messages written before priorities were introduced are still sent.
+     * 
+     * @param priority
+     *            the {@link Priority} of the messages
+     * @return The kind name.
+     */
+    public static String getKind(Priority priority) {
+        if (priority == Priority.NORMAL) {
+            return KIND;
+        }
+        return KIND + priority.name().charAt(0) + priority.getName().substring(1);
+    }
+
+    /**
+     * Creates a new instance of {@link OutboxMessage} based on the values derived from the specified {@code entity}.
+     * 
+     * @param entity
+     *            the {@code Entity} from which the details are to be derived
+     * @return The {@link OutboxMessage} derived from {@code entity}.
+     * @throws NullPointerException
+     *             If {@code entity} is {@code null}.
+     */
+    public static OutboxMessage fromEntity(Entity entity) {
+        String priority = (String) entity.getProperty("priority");
+
+        OutboxMessage message = new OutboxMessage(entity.getKey().getName(), (String) entity.getProperty("apiKey"), priority == null ? Priority.NORMAL
+                : Priority.forName(priority), ((Text) entity.getProperty("request")).getValue(), (Long) entity.getProperty("created"));
+        message.attempts = ((Long) entity.getProperty("attempts")).intValue();
+        message.availableAt = (Long) entity.getProperty("availableAt");
+        message.error = (String) entity.getProperty("error");
+        message.leaseId = (String) entity.getProperty("leaseId");
+
+        // Messages written before tags were introduced are only found by their availability, so they have no tag
+        Long tag = (Long) entity.getProperty("tag");
+        message.tag = tag == null ? 0 : tag;
+
+        return message;
+    }
+
+    private final String apiKey;
+    private int attempts;
+    private long availableAt;
+    private final long created;
+    private String error;
+    private final String id;
+    private String leaseId;
+    private final Priority priority;
+    private final String request;
+    private long tag;
+
+    /**
+     * Creates a new instance of {@link OutboxMessage} for the specified {@code request}, which is available to be sent immediately.
+     * 
+     * @param id
+     *            the ID of the message
+     * @param request
+     *            the {@link SendRequest} to be sent
+     * @throws JSONException
+     *             If {@code request} could not be serialized.
+     */
+    public OutboxMessage(String id, SendRequest request) throws JSONException {
+        this(id, request.getApiKey(), request.getPriority(), request.toJSON().toString(), System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a new instance of {@link OutboxMessage} with the values provided.
+     * 
+     * @param id
+     *            the ID of the message
+     * @param apiKey
+     *            the API key of the application which sent the message
+     * @param priority
+     *            the {@link Priority} of the message
+     * @param request
+     *            the serialized {@link SendRequest}
+     * @param created
+     *            the time at which the message was accepted
+     */
+    private OutboxMessage(String id, String apiKey, Priority priority, String request, long created) {
+        this.id = id;
+        this.apiKey = apiKey;
+        this.priority = priority;
+        this.request = request;
+        this.created = created;
+    }
+
+    /**
+     * Creates a copy of this {@link OutboxMessage}.
+     * 
+     * @return The copy.
+     */
+    OutboxMessage copy() {
+        OutboxMessage copy = new OutboxMessage(id, apiKey, priority, request, created);
+        copy.attempts = attempts;
+        copy.availableAt = availableAt;
+        copy.error = error;
+        copy.leaseId = leaseId;
+        copy.tag = tag;
+
+        return copy;
+    }
+
+    /**
+     * Returns the API key of the application which sent this message.
+     * 
+     * @return The API key.
+     */
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Returns the number of attempts which have been made to send this message and failed.
+     * 
+     * @return The number of failed attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Sets the number of attempts which have been made to send this message and failed to {@code attempts}.
+     * 
+     * @param attempts
+     *            the number of failed attempts to be set
+     */
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * Returns the time at which this message is next available to be leased, having been delayed.
+     * 
+     * @return The time in milliseconds or zero if this message is ready to be leased in the order of its tag.
+     * @see #isReady()
+     */
+    public long getAvailableAt() {
+        return availableAt;
+    }
+
+    /**
+     * Sets the time at which this message is next available to be leased to {@code availableAt}.
+     * 
+     * @param availableAt
+     *            the time in milliseconds to be set or zero if the message is ready to be leased in the order of its tag
+     */
+    void setAvailableAt(long availableAt) {
+        this.availableAt = availableAt;
+    }
+
+    /**
+     * Returns the time at which this message was accepted.
+     * 
+     * @return The time in milliseconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns the error which caused the last attempt to send this message to fail.
+     * 
+     * @return The error or {@code null} if no attempts have failed.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Sets the error which caused the last attempt to send this message to fail to {@code error}.
+     * <p>
+     * Long errors are truncated.
+     * 
+     * @param error
+     *            the error to be set
+     */
+    void setError(String error) {
+        this.error = error != null && error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+    }
+
+    /**
+     * Returns the ID of this message, which is shared with its {@code SendStatus}.
+     * 
+     * @return The ID.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the ID of the lease currently held on this message.
+     * <p>
+     * Each lease is given a unique ID so that a worker whose lease has expired, and been taken by another worker, cannot complete or reschedule the message.
+     * 
+     * @return The lease ID or {@code null} if this message has never been leased.
+     */
+    public String getLeaseId() {
+        return leaseId;
+    }
+
+    /**
+     * Sets the ID of the lease currently held on this message to {@code leaseId}.
+     * 
+     * @param leaseId
+     *            the lease ID to be set
+     */
+    void setLeaseId(String leaseId) {
+        this.leaseId = leaseId;
+    }
+
+    /**
+     * Returns the kind name used to represent this message in the datastore while it is pending.
+     * 
+     * @return The kind name.
+     * @see #getKind(Priority)
+     */
+    public String getKind() {
+        return getKind(priority);
+    }
+
+    /**
+     * Returns the priority of this message, which determines the lane through which it is sent.
+     * 
+     * @return The {@link Priority}.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Parses the {@link SendRequest} which is to be sent.
+     * 
+     * @return The {@link SendRequest}.
+     * @throws IllegalArgumentException
+     *             If the request contains invalid values.
+     * @throws JSONException
+     *             If the request is malformed.
+     */
+    public SendRequest getRequest() throws JSONException {
+        try (JSONReader reader = new JSONReader(new StringReader(request), Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            return SendRequest.fromJSON(reader);
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes taken up by the serialized {@link SendRequest} when it is stored.
+     * 
+     * @return The size of the request in bytes.
+     * @see #MAX_REQUEST_SIZE
+     */
+    public int getRequestSize() {
+        return request.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Returns the tag given to this message by the {@code VirtualClock} of its lane when it was accepted, by which ready messages are leased so that each
+     * application is served in proportion to its weight.
+     * 
+     * @return The virtual tag.
+     */
+    public long getTag() {
+        return tag;
+    }
+
+    /**
+     * Sets the tag given to this message by the {@code VirtualClock} of its lane to {@code tag}.
+     * 
+     * @param tag
+     *            the virtual tag to be set
+     */
+    void setTag(long tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * Returns whether this message is ready to be leased in the order of its tag, rather than having been delayed until its availability.
+     * 
+     * @return {@code true} if this message is ready; otherwise {@code false}.
+     */
+    public boolean isReady() {
+        return availableAt == 0;
+    }
+
+    /**
+     * Creates an {@code Entity} of the specified {@code kind} based on this {@link OutboxMessage}.
+     * <p>
+     * Only the time at which the message is available and its tag are indexed, since that is all that is needed to find messages to be leased.
+     * 
+     * @param kind
+     *            the kind of the {@code Entity}; either {@link #getKind()} or {@link #DEAD_LETTER_KIND}
+     * @return The derived {@code Entity}.
+     */
+    public Entity toEntity(String kind) {
+        Entity entity = new Entity(createKey(kind, id));
+        entity.setUnindexedProperty("apiKey", apiKey);
+        entity.setUnindexedProperty("attempts", attempts);
+        entity.setProperty("availableAt", availableAt);
+        entity.setUnindexedProperty("created", created);
+        entity.setUnindexedProperty("error", error);
+        entity.setUnindexedProperty("leaseId", leaseId);
+        entity.setUnindexedProperty("priority", priority.getName());
+        entity.setUnindexedProperty("request", new Text(request));
+        entity.setProperty("tag", tag);
+
+        return entity;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,71 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.outbox;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.appspot.mailmanager.schedule.ScheduleManager;
+
+/**
+ * The servlet responsible for starting the workers of the {@link OutboxManager} when an instance is started, so that every instance helps to drain the
+ * outbox whether or not it has accepted any messages itself. The {@link ScheduleManager} is started at the same time so that scheduled messages are
+ * released even when no instance has scheduled a message since it started.
+ * <p>
+ * This is mapped to the start request which is sent to instances that use either basic or manual scaling.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@SuppressWarnings("serial")
+public class OutboxStartServlet extends HttpServlet {
+
+    private static final String CLASS_NAME = OutboxStartServlet.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /*
+     * @see HttpServlet#doGet(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doGet", new Object[] { req, resp });
+
+        try {
+            if (OutboxManager.isEnabled()) {
+                OutboxManager.getInstance().start();
+            }
+            if (ScheduleManager.isEnabled()) {
+                ScheduleManager.getInstance().start();
+            }
+
+            resp.setStatus(200);
+        } catch (IllegalStateException e) {
+            log.log(Level.SEVERE, "Failed to start background workers", e);
+            resp.sendError(500, "Unable to start background worker");
+        }
+
+        log.exiting(CLASS_NAME, "doGet");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.ConcurrentModificationException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * A {@link Schedule} which stores each message as its own entity in the datastore so that it survives restarts and can be released by any instance.
+ * <p>
+ * Messages coming due are found by a query on their fire time. Since such queries are only eventually consistent, a message may still be returned shortly
+ * after it has been claimed, so every claim is taken within a transaction which re-reads the message before deleting it; if two instances race for the
+ * same message, only one of them can commit.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class DatastoreSchedule implements Schedule {
+
+    private static final String CLASS_NAME = DatastoreSchedule.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /*
+     * @see Schedule#add(ScheduledMessage)
+     */
+    @Override
+    public void add(ScheduledMessage message) {
+        DatastoreServiceFactory.getDatastoreService().put(message.toEntity());
+    }
+
+    /*
+     * @see Schedule#claim(String)
+     */
+    @Override
+    public ScheduledMessage claim(String id) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Key key = ScheduledMessage.createKey(id);
+        Transaction txn = datastore.beginTransaction();
+
+        try {
+            ScheduledMessage message = ScheduledMessage.fromEntity(datastore.get(txn, key));
+
+            datastore.delete(txn, key);
+            txn.commit();
+            return message;
+        } catch (EntityNotFoundException e) {
+            return null;
+        } catch (ConcurrentModificationException e) {
+            log.log(Level.FINER, "Message claimed by another instance: " + id, e);
+            return null;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /*
+     * @see Schedule#find(long, long, int)
+     */
+    @Override
+    public List<ScheduledMessage> find(long from, long until, int max) {
+        log.entering(CLASS_NAME, "find", new Object[] { from, until, max });
+
+        Query query = new Query(ScheduledMessage.KIND).setFilter(
+                Query.CompositeFilterOperator.and(new Query.FilterPredicate("fireAt", Query.FilterOperator.GREATER_THAN_OR_EQUAL, from),
+                        new Query.FilterPredicate("fireAt", Query.FilterOperator.LESS_THAN_OR_EQUAL, until))).addSort("fireAt");
+
+        List<ScheduledMessage> messages = new ArrayList<>();
+        for (Entity entity : DatastoreServiceFactory.getDatastoreService().prepare(query).asIterable(FetchOptions.Builder.withLimit(max))) {
+            messages.add(ScheduledMessage.fromEntity(entity));
+        }
+
+        log.exiting(CLASS_NAME, "find", messages.size());
+        return messages;
+    }
+
+    /*
+     * @see Schedule#get(String)
+     */
+    @Override
+    public ScheduledMessage get(String id) {
+        try {
+            return ScheduledMessage.fromEntity(DatastoreServiceFactory.getDatastoreService().get(ScheduledMessage.createKey(id)));
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.schedule;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A {@link Schedule} which is held entirely in memory and is therefore neither durable nor shared between instances.
+ * <p>
+ * This is intended to stand in for {@link DatastoreSchedule} where the datastore is not available, such as when testing. Messages are copied on the way
+ * in and out so that callers observe the same behaviour as they would with a real store.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class LocalSchedule implements Schedule {
+
+    /**
+     * Orders messages by their fire time and then by their ID so that messages due at the same time remain distinct.
+     */
+    private static final Comparator<ScheduledMessage> FIRE_ORDER = new Comparator<ScheduledMessage>() {
+
+        @Override
+        public int compare(ScheduledMessage message1, ScheduledMessage message2) {
+            int result = Long.compare(message1.getFireAt(), message2.getFireAt());
+            return result != 0 ? result : message1.getId().compareTo(message2.getId());
+        }
+    };
+
+    private final Map<String, ScheduledMessage> messages = new HashMap<>();
+    private final TreeSet<ScheduledMessage> ordered = new TreeSet<>(FIRE_ORDER);
+
+    /*
+     * @see Schedule#add(ScheduledMessage)
+     */
+    @Override
+    public synchronized void add(ScheduledMessage message) {
+        ScheduledMessage copy = message.copy();
+
+        ScheduledMessage previous = messages.put(copy.getId(), copy);
+        if (previous != null) {
+            ordered.remove(previous);
+        }
+        ordered.add(copy);
+    }
+
+    /*
+     * @see Schedule#claim(String)
+     */
+    @Override
+    public synchronized ScheduledMessage claim(String id) {
+        ScheduledMessage message = messages.remove(id);
+        if (message == null) {
+            return null;
+        }
+
+        ordered.remove(message);
+        return message;
+    }
+
+    /*
+     * @see Schedule#find(long, long, int)
+     */
+    @Override
+    public synchronized List<ScheduledMessage> find(long from, long until, int max) {
+        List<ScheduledMessage> found = new ArrayList<>();
+
+        for (ScheduledMessage message : ordered) {
+            if (found.size() >= max || message.getFireAt() > until) {
+                break;
+            }
+            if (message.getFireAt() >= from) {
+                found.add(message.copy());
+            }
+        }
+
+        return found;
+    }
+
+    /*
+     * @see Schedule#get(String)
+     */
+    @Override
+    public synchronized ScheduledMessage get(String id) {
+        ScheduledMessage message = messages.get(id);
+        return message == null ? null : message.copy();
+    }
+}
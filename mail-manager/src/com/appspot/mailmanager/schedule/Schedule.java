@@ -0,0 +1,75 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.schedule;
+
+import java.util.List;
+
+/**
+ * A durable store of {@link ScheduledMessage ScheduledMessages} waiting until they are due to be sent, which can be shared by any number of instances.
+ * <p>
+ * Every instance may hold the same messages in memory as they come due, so a message must be {@link #claim(String) claimed} before it is released;
+ * claiming removes the message from the schedule and only one caller can succeed in doing so.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public interface Schedule {
+
+    /**
+     * Adds the specified {@code message} to this schedule, replacing any message with the same ID.
+     * 
+     * @param message
+     *            the {@link ScheduledMessage} to be added
+     * @throws NullPointerException
+     *             If {@code message} is {@code null}.
+     */
+    void add(ScheduledMessage message);
+
+    /**
+     * Removes the message with the specified {@code id} from this schedule so that it can be released.
+     * 
+     * @param id
+     *            the ID of the message
+     * @return The claimed {@link ScheduledMessage} or {@code null} if it could not be found or was claimed by another caller first.
+     */
+    ScheduledMessage claim(String id);
+
+    /**
+     * Returns up to {@code max} messages which are to be released between {@code from} and {@code until}, inclusive, in order of their fire time.
+     * 
+     * @param from
+     *            the earliest fire time in milliseconds
+     * @param until
+     *            the latest fire time in milliseconds
+     * @param max
+     *            the maximum number of messages to be returned
+     * @return The {@link ScheduledMessage ScheduledMessages}, which may be empty.
+     */
+    List<ScheduledMessage> find(long from, long until, int max);
+
+    /**
+     * Returns the message with the specified {@code id} which is waiting to be sent.
+     * 
+     * @param id
+     *            the ID of the message
+     * @return The {@link ScheduledMessage} or {@code null} if none could be found.
+     */
+    ScheduledMessage get(String id);
+}
@@ -0,0 +1,425 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.schedule;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.appspot.mailmanager.MailException;
+import com.appspot.mailmanager.send.BackgroundThreadFactory;
+import com.appspot.mailmanager.send.SendManager;
+import com.appspot.mailmanager.send.SendRequest;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * The class responsible for holding messages in the {@link Schedule} until they are due to be sent and then releasing them to the {@link SendManager}.
+ * <p>
+ * Every message is stored durably as soon as it is scheduled, but only those coming due within the next {@code mailmanager.schedule.lookahead}
+ * milliseconds are held in memory, on a {@link TimingWheel} which releases them as each tick passes. The schedule is polled periodically to load the next
+ * window onto the wheel, so the cost of scheduling a message far in the future is a single stored entity and the cost of each tick does not grow with the
+ * number of messages waiting.
+ * <p>
+ * To avoid bursts when many messages are requested for the same moment, such as on the hour, each message fires at its requested time plus an offset of
+ * up to {@code mailmanager.schedule.spread} milliseconds derived from its ID. Since the offset is derived from a hash, messages are spread evenly across
+ * the window and every instance agrees on when each message fires.
+ * <p>
+ * Each instance loads the same messages onto its own wheel and a message must be claimed from the schedule before it is released, so it is only released
+ * once however many instances are running. Messages which are still in the schedule well after they were due, because the instance holding them died, are
+ * swept up and released by whichever instance finds them first. A message which is claimed but cannot be handed over is put back to be released again
+ * once the poll interval has passed.
+ * <p>
+ * Since a background thread is used, the schedule requires an instance that uses either basic or manual scaling, along with
+ * {@code mailmanager.background.enabled}. The thread is started before a message is first written to the schedule, so a message is never scheduled by an
+ * instance which cannot release it.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class ScheduleManager {
+
+    private static final String CLASS_NAME = ScheduleManager.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The maximum number of messages loaded from the schedule by each query. */
+    private static final int BATCH_SIZE = Integer.getInteger("mailmanager.schedule.batchSize", 1000);
+    /** Whether messages can be scheduled to be sent at a later time. */
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mailmanager.schedule.enabled", "true"));
+    /** The number of milliseconds after which a message which is overdue is released by whichever instance finds it. */
+    private static final long GRACE = Long.getLong("mailmanager.schedule.grace", 5 * 60 * 1000L);
+    /** The number of milliseconds ahead for which messages are loaded onto the wheel. */
+    private static final long LOOKAHEAD = Long.getLong("mailmanager.schedule.lookahead", 10 * 60 * 1000L);
+    /** The maximum number of milliseconds in the future for which a message can be scheduled. */
+    private static final long MAX_DELAY = Long.getLong("mailmanager.schedule.maxDelay", 30 * 24 * 60 * 60 * 1000L);
+    /** The number of milliseconds between each poll of the schedule for messages coming due. */
+    private static final long POLL_INTERVAL = Long.getLong("mailmanager.schedule.pollInterval", 60 * 1000L);
+    /** The maximum number of milliseconds by which a message is delayed so that messages scheduled for the same time are spread out. */
+    private static final long SPREAD = Long.getLong("mailmanager.schedule.spread", 60 * 1000L);
+    /** The type of {@link Schedule} to be used; either {@code "datastore"} or {@code "local"}. */
+    private static final String STORE = System.getProperty("mailmanager.schedule.store", "datastore");
+    /** The number of milliseconds covered by each tick of the wheel. */
+    private static final long TICK = Long.getLong("mailmanager.schedule.tick", 1000L);
+    /** The number of ticks within each level of the wheel. */
+    private static final int WHEEL_SIZE = Integer.getInteger("mailmanager.schedule.wheelSize", 64);
+
+    private static ScheduleManager instance;
+
+    /**
+     * Creates the {@link Schedule} configured by {@code mailmanager.schedule.store}.
+     * 
+     * @return The {@link Schedule} to be used.
+     * @throws IllegalStateException
+     *             If the configured type is not recognized.
+     */
+    private static Schedule createSchedule() {
+        switch (STORE) {
+        case "datastore":
+            return new DatastoreSchedule();
+        case "local":
+            return new LocalSchedule();
+        default:
+            throw new IllegalStateException("Invalid schedule store: " + STORE);
+        }
+    }
+
+    /**
+     * Returns the time at which the message with the specified {@code id} is to fire when it was requested to be sent at {@code sendAt}.
+     * <p>
+     * The offset is derived from the hash of {@code id} so that it is the same wherever it is calculated and so that a large number of messages scheduled for
+     * the same time are spread evenly across {@code mailmanager.schedule.spread} milliseconds.
+     * 
+     * @param id
+     *            the ID of the message
+     * @param sendAt
+     *            the time in milliseconds at which the message was requested to be sent
+     * @return The fire time in milliseconds.
+     */
+    static long getFireTime(String id, long sendAt) {
+        if (SPREAD <= 0) {
+            return sendAt;
+        }
+
+        // Spread the bits of the hash as UUIDs which differ only slightly can otherwise have similar hashes
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+
+        return sendAt + ((hash & Integer.MAX_VALUE) % SPREAD);
+    }
+
+    /**
+     * Retrieves the singleton instance of {@link ScheduleManager}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized ScheduleManager getInstance() {
+        if (instance == null) {
+            instance = new ScheduleManager();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns whether messages can be scheduled to be sent at a later time, as configured by {@code mailmanager.schedule.enabled}.
+     * 
+     * @return {@code true} if the schedule is enabled; otherwise {@code false}.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    private long loadedUntil;
+    private long loadingUntil;
+    private final Set<String> pending = new HashSet<>();
+    private final Schedule schedule = createSchedule();
+    private boolean started;
+    private final TimingWheel<String> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, System.currentTimeMillis());
+
+    /**
+     * Creates a new instance of {@link ScheduleManager}.
+     */
+    private ScheduleManager() {
+    }
+
+    /**
+     * Writes the specified {@code request} to the schedule so that it is released to be sent once its send time has passed.
+     * <p>
+     * A request whose send time has already passed is still scheduled and is released on the next tick.
+     * 
+     * @param id
+     *            the ID of the message, which is shared with its {@code SendStatus}
+     * @param request
+     *            the {@link SendRequest} to be sent
+     * @throws MailException
+     *             If scheduling is disabled, the send time is too far in the future, the message is too large to be scheduled, the thread which releases
+     *             scheduled messages could not be started, or the message could not be written to the schedule.
+     */
+    public void add(String id, SendRequest request) throws MailException {
+        log.entering(CLASS_NAME, "add", new Object[] { id, request });
+
+        if (!ENABLED) {
+            throw new MailException("Scheduling is disabled");
+        }
+        if (request.getSendAt() > System.currentTimeMillis() + MAX_DELAY) {
+            throw new MailException("Send time too far ahead");
+        }
+
+        long fireAt = getFireTime(id, request.getSendAt());
+
+        ScheduledMessage message;
+        try {
+            message = new ScheduledMessage(id, request, fireAt);
+        } catch (JSONException e) {
+            throw new MailException("Message could not be scheduled", e);
+        }
+
+        // The serialized request is held by a single property, so it must fit within the size limit of an entity along with the rest of the message
+        if (message.getRequestSize() > ScheduledMessage.MAX_REQUEST_SIZE) {
+            throw new MailException("Message too large to be scheduled");
+        }
+
+        // Start the thread first so that a message is never written to the schedule by an instance which cannot then report whether it was accepted
+        try {
+            start();
+        } catch (IllegalStateException e) {
+            throw new MailException("Unable to start background worker", e);
+        }
+
+        try {
+            schedule.add(message);
+        } catch (RuntimeException e) {
+            throw new MailException("Message could not be scheduled", e);
+        }
+
+        // Messages within the window already loaded, or being loaded, would otherwise be missed until they are swept up as overdue
+        synchronized (this) {
+            if (fireAt <= loadingUntil) {
+                hold(id, fireAt);
+            }
+        }
+
+        log.exiting(CLASS_NAME, "add");
+    }
+
+    /**
+     * Returns the {@link Schedule} used to store messages.
+     * 
+     * @return The {@link Schedule}.
+     */
+    public Schedule getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * Places the message with the specified {@code id} on the wheel to fire at {@code fireAt}, unless it is already held.
+     * <p>
+     * A message which is already due is placed on the wheel to fire on the next tick. The caller must hold the lock on this {@link ScheduleManager}.
+     * 
+     * @param id
+     *            the ID of the message
+     * @param fireAt
+     *            the time in milliseconds at which the message is to fire
+     */
+    private void hold(String id, long fireAt) {
+        if (pending.add(id) && !wheel.add(id, fireAt)) {
+            wheel.add(id, System.currentTimeMillis() + TICK);
+        }
+    }
+
+    /**
+     * Loads the messages which are to fire before {@code now} plus the lookahead onto the wheel, continuing from where the previous load stopped.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     */
+    private void load(long now) {
+        long from;
+        long until = now + LOOKAHEAD;
+        synchronized (this) {
+            from = loadedUntil;
+            loadingUntil = until;
+        }
+
+        while (from <= until) {
+            List<ScheduledMessage> messages = schedule.find(from, until, BATCH_SIZE);
+
+            synchronized (this) {
+                for (ScheduledMessage message : messages) {
+                    hold(message.getId(), message.getFireAt());
+                }
+            }
+
+            if (messages.size() < BATCH_SIZE) {
+                from = until + 1;
+                break;
+            }
+
+            long last = messages.get(messages.size() - 1).getFireAt();
+            if (last == from) {
+                // The whole batch fires at the same time so skip past it; any remainder will be swept up as overdue
+                log.warning("More than " + BATCH_SIZE + " messages firing at " + last);
+                from = last + 1;
+            } else {
+                from = last;
+            }
+        }
+
+        synchronized (this) {
+            loadedUntil = from;
+        }
+    }
+
+    /**
+     * Claims the message with the specified {@code id} from the schedule and hands it to the {@link SendManager} to be sent.
+     * <p>
+     * Nothing happens if the message has already been claimed. A message which cannot be parsed is discarded, while one which cannot be handed over is put
+     * back to be released again once the poll interval has passed.
+     * 
+     * @param id
+     *            the ID of the message
+     */
+    private void release(String id) {
+        log.entering(CLASS_NAME, "release", id);
+
+        ScheduledMessage message = schedule.claim(id);
+        if (message == null) {
+            log.exiting(CLASS_NAME, "release");
+            return;
+        }
+
+        try {
+            SendManager.getInstance().acceptScheduled(id, message.getRequest());
+        } catch (IllegalArgumentException | JSONException e) {
+            log.log(Level.WARNING, "Discarding scheduled message which cannot be parsed: " + id, e);
+        } catch (MailException e) {
+            log.log(Level.WARNING, "Failed to release scheduled message: " + id, e);
+
+            message.setFireAt(System.currentTimeMillis() + POLL_INTERVAL);
+            schedule.add(message);
+
+            synchronized (this) {
+                hold(id, message.getFireAt());
+            }
+        }
+
+        log.exiting(CLASS_NAME, "release");
+    }
+
+    /**
+     * Advances the wheel and releases due messages until the current thread is interrupted, polling the schedule for messages coming due and sweeping up
+     * overdue messages as it goes.
+     * <p>
+     * Failures to reach the schedule are logged and the work is attempted again on the next poll.
+     */
+    private void run() {
+        log.entering(CLASS_NAME, "run");
+
+        long nextPoll = 0;
+        List<String> due = new ArrayList<>();
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+
+                if (now >= nextPoll) {
+                    nextPoll = now + POLL_INTERVAL;
+
+                    try {
+                        load(now);
+                        sweep(now);
+                    } catch (RuntimeException e) {
+                        log.log(Level.WARNING, "Failed to poll schedule", e);
+                    }
+                }
+
+                synchronized (this) {
+                    wheel.advance(now, due);
+                    pending.removeAll(due);
+                }
+
+                for (String id : due) {
+                    try {
+                        release(id);
+                    } catch (RuntimeException e) {
+                        log.log(Level.WARNING, "Failed to release scheduled message: " + id, e);
+                    }
+                }
+                due.clear();
+
+                TimeUnit.MILLISECONDS.sleep(TICK - (System.currentTimeMillis() % TICK));
+            }
+        } catch (InterruptedException e) {
+            log.log(Level.FINER, "Schedule interrupted", e);
+        }
+
+        log.exiting(CLASS_NAME, "run");
+    }
+
+    /**
+     * Releases any messages which should have fired more than {@code mailmanager.schedule.grace} milliseconds before {@code now} but are still in the
+     * schedule, such as those which were held by an instance which has since died.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     */
+    private void sweep(long now) {
+        List<ScheduledMessage> overdue = schedule.find(0, now - GRACE, BATCH_SIZE);
+        if (overdue.isEmpty()) {
+            return;
+        }
+
+        log.info("Releasing " + overdue.size() + " overdue scheduled messages");
+
+        for (ScheduledMessage message : overdue) {
+            release(message.getId());
+        }
+    }
+
+    /**
+     * Starts the thread which releases scheduled messages on this instance, if it has not already been started.
+     * <p>
+     * This must be called from within a request as the thread is a background thread.
+     * 
+     * @throws IllegalStateException
+     *             If background threads are unavailable on this instance.
+     */
+    public synchronized void start() {
+        if (started || !ENABLED) {
+            return;
+        }
+
+        log.info("Starting schedule");
+
+        BackgroundThreadFactory.getInstance().newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                ScheduleManager.this.run();
+            }
+        }).start();
+
+        started = true;
+    }
+}
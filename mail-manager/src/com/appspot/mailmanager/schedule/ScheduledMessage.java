@@ -0,0 +1,230 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.schedule;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.send.SendRequest;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * A {@link SendRequest} which has been accepted and is waiting in the {@link Schedule} until it is due to be sent.
+ * <p>
+ * The request is held in its serialized form so that it only needs to be parsed when it is released. A message is released at its
+ * {@link #getFireAt() fire time}, which is its requested send time plus a small offset so that messages requested for the same moment are released
+ * gradually rather than all at once.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class ScheduledMessage {
+
+    /** The kind name used to represent scheduled messages in the datastore. */
+    public static final String KIND = ScheduledMessage.class.getSimpleName();
+    /**
+     * The maximum number of bytes of a serialized request which can be held by a message, which leaves room for its other properties within the 1 MB limit
+     * on the size of an entity.
+     */
+    public static final int MAX_REQUEST_SIZE = 1000 * 1000;
+
+    /**
+     * Creates a {@code Key} for the {@code Entity} representing the {@link ScheduledMessage} with the {@code id} provided.
+     * 
+     * @param id
+     *            the ID of the {@link ScheduledMessage}
+     * @return The derived {@code Key}.
+     * @throws IllegalArgumentException
+     *             If {@code id} is {@code null} or empty.
+     */
+    public static Key createKey(String id) {
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("Invalid message ID: " + id);
+        }
+        return KeyFactory.createKey(KIND, id);
+    }
+
+    /**
+     * Creates a new instance of {@link ScheduledMessage} based on the values derived from the specified {@code entity}.
+     * 
+     * @param entity
+     *            the {@code Entity} from which the details are to be derived
+     * @return The {@link ScheduledMessage} derived from {@code entity}.
+     * @throws NullPointerException
+     *             If {@code entity} is {@code null}.
+     */
+    public static ScheduledMessage fromEntity(Entity entity) {
+        ScheduledMessage message = new ScheduledMessage(entity.getKey().getName(), (String) entity.getProperty("apiKey"),
+                ((Text) entity.getProperty("request")).getValue(), (Long) entity.getProperty("created"));
+        message.fireAt = (Long) entity.getProperty("fireAt");
+
+        return message;
+    }
+
+    private final String apiKey;
+    private final long created;
+    private long fireAt;
+    private final String id;
+    private final String request;
+
+    /**
+     * Creates a new instance of {@link ScheduledMessage} for the specified {@code request}, which is to be released at {@code fireAt}.
+     * 
+     * @param id
+     *            the ID of the message
+     * @param request
+     *            the {@link SendRequest} to be sent
+     * @param fireAt
+     *            the time in milliseconds at which the message is to be released
+     * @throws JSONException
+     *             If {@code request} could not be serialized.
+     */
+    public ScheduledMessage(String id, SendRequest request, long fireAt) throws JSONException {
+        this(id, request.getApiKey(), request.toJSON().toString(), System.currentTimeMillis());
+        this.fireAt = fireAt;
+    }
+
+    /**
+     * Creates a new instance of {@link ScheduledMessage} with the values provided.
+     * 
+     * @param id
+     *            the ID of the message
+     * @param apiKey
+     *            the API key of the application which sent the message
+     * @param request
+     *            the serialized {@link SendRequest}
+     * @param created
+     *            the time at which the message was accepted
+     */
+    private ScheduledMessage(String id, String apiKey, String request, long created) {
+        this.id = id;
+        this.apiKey = apiKey;
+        this.request = request;
+        this.created = created;
+    }
+
+    /**
+     * Creates a copy of this {@link ScheduledMessage}.
+     * 
+     * @return The copy.
+     */
+    ScheduledMessage copy() {
+        ScheduledMessage copy = new ScheduledMessage(id, apiKey, request, created);
+        copy.fireAt = fireAt;
+
+        return copy;
+    }
+
+    /**
+     * Returns the API key of the application which sent this message.
+     * 
+     * @return The API key.
+     */
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Returns the time at which this message was accepted.
+     * 
+     * @return The time in milliseconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns the time at which this message is to be released.
+     * 
+     * @return The time in milliseconds.
+     */
+    public long getFireAt() {
+        return fireAt;
+    }
+
+    /**
+     * Sets the time at which this message is to be released to {@code fireAt}.
+     * 
+     * @param fireAt
+     *            the time in milliseconds to be set
+     */
+    void setFireAt(long fireAt) {
+        this.fireAt = fireAt;
+    }
+
+    /**
+     * Returns the ID of this message, which is shared with its {@code SendStatus}.
+     * 
+     * @return The ID.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Parses the {@link SendRequest} which is to be sent.
+     * 
+     * @return The {@link SendRequest}.
+     * @throws IllegalArgumentException
+     *             If the request contains invalid values.
+     * @throws JSONException
+     *             If the request is malformed.
+     */
+    public SendRequest getRequest() throws JSONException {
+        try (JSONReader reader = new JSONReader(new StringReader(request), Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            return SendRequest.fromJSON(reader);
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes taken up by the serialized {@link SendRequest} when it is stored.
+     * 
+     * @return The size of the request in bytes.
+     * @see #MAX_REQUEST_SIZE
+     */
+    public int getRequestSize() {
+        return request.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Creates an {@code Entity} based on this {@link ScheduledMessage}.
+     * <p>
+     * Only the fire time is indexed, since that is all that is needed to find messages which are coming due.
+     * 
+     * @return The derived {@code Entity}.
+     */
+    public Entity toEntity() {
+        Entity entity = new Entity(createKey(id));
+        entity.setUnindexedProperty("apiKey", apiKey);
+        entity.setUnindexedProperty("created", created);
+        entity.setProperty("fireAt", fireAt);
+        entity.setUnindexedProperty("request", new Text(request));
+
+        return entity;
+    }
+}
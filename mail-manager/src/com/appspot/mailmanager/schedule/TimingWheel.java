@@ -0,0 +1,207 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.schedule;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * A hierarchical timing wheel which holds items until the time at which they are due and then releases them in order of their due tick.
+ * <p>
+ * The wheel is divided into a fixed number of buckets, each covering a single tick, so adding an item and releasing a due one both take constant time
+ * regardless of how many items are held. Items which are due beyond the span of the wheel are held by an overflow wheel whose ticks each span the whole of
+ * this wheel, and so on, with each level being created only when it is needed. As time advances, the buckets of an overflow wheel are cascaded down into
+ * the finer wheel beneath it.
+ * <p>
+ * Items are released during the tick in which they are due, so they are never released early by more than the duration of a tick. This class is not
+ * thread-safe.
+ * 
+ * @param <T>
+ *            the type of the items held
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class TimingWheel<T> {
+
+    /**
+     * An item held by the wheel along with the time at which it is due.
+     * 
+     * @param <T>
+     *            the type of the item
+     */
+    private static class Entry<T> {
+
+        final T item;
+        final long time;
+
+        Entry(T item, long time) {
+            this.item = item;
+            this.time = time;
+        }
+    }
+
+    private final ArrayDeque<Entry<T>>[] buckets;
+    private int count;
+    private long currentTime;
+    private final long interval;
+    private TimingWheel<T> overflow;
+    private final long tick;
+
+    /**
+     * Creates a new instance of {@link TimingWheel} with {@code size} buckets, each covering {@code tick} milliseconds, starting at {@code startTime}.
+     * 
+     * @param tick
+     *            the number of milliseconds covered by each bucket
+     * @param size
+     *            the number of buckets
+     * @param startTime
+     *            the time in milliseconds from which the wheel starts
+     * @throws IllegalArgumentException
+     *             If either {@code tick} or {@code size} is not positive.
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tick, int size, long startTime) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Invalid tick: " + tick);
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+
+        this.tick = tick;
+        this.interval = tick * size;
+        this.currentTime = startTime - (startTime % tick);
+        this.buckets = new ArrayDeque[size];
+    }
+
+    /**
+     * Adds the specified {@code item} to be released at {@code time}.
+     * 
+     * @param item
+     *            the item to be added
+     * @param time
+     *            the time in milliseconds at which {@code item} is due
+     * @return {@code true} if {@code item} was added; otherwise {@code false} if it is already due, in which case it should be released straight away.
+     */
+    public boolean add(T item, long time) {
+        return add(new Entry<>(item, time));
+    }
+
+    /**
+     * Adds the specified {@code entry} to the appropriate bucket of this wheel or to its overflow wheel.
+     * 
+     * @param entry
+     *            the {@link Entry} to be added
+     * @return {@code true} if {@code entry} was added; otherwise {@code false} if it is already due.
+     */
+    private boolean add(Entry<T> entry) {
+        if (entry.time < currentTime + tick) {
+            return false;
+        }
+
+        if (entry.time < currentTime + interval) {
+            int index = (int) ((entry.time / tick) % buckets.length);
+            if (buckets[index] == null) {
+                buckets[index] = new ArrayDeque<>();
+            }
+            buckets[index].add(entry);
+        } else {
+            if (overflow == null) {
+                overflow = new TimingWheel<>(interval, buckets.length, currentTime);
+            }
+            overflow.add(entry);
+        }
+
+        count++;
+        return true;
+    }
+
+    /**
+     * Advances this wheel to the specified time, adding every item which has become due to {@code expired}.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     * @param expired
+     *            the {@code Collection} to which the due items are to be added
+     */
+    public void advance(long now, Collection<? super T> expired) {
+        ArrayDeque<Entry<T>> due = new ArrayDeque<>();
+        advance(now, due);
+
+        for (Entry<T> entry : due) {
+            expired.add(entry.item);
+        }
+    }
+
+    /**
+     * Advances this wheel, one tick at a time, to the specified time, cascading entries from the overflow wheel and adding every entry which has become
+     * due to {@code expired}.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     * @param expired
+     *            the {@code ArrayDeque} to which the due entries are to be added
+     */
+    private void advance(long now, ArrayDeque<Entry<T>> expired) {
+        while (now >= currentTime + tick) {
+            currentTime += tick;
+
+            if (count == 0) {
+                // Nothing can become due so the wheel can jump straight to the current tick
+                currentTime = now - (now % tick);
+                if (overflow != null) {
+                    overflow.currentTime = currentTime - (currentTime % overflow.tick);
+                }
+                return;
+            }
+
+            if (overflow != null && overflow.count > 0) {
+                ArrayDeque<Entry<T>> cascaded = new ArrayDeque<>();
+                overflow.advance(currentTime, cascaded);
+
+                for (Entry<T> entry : cascaded) {
+                    count--;
+                    if (!add(entry)) {
+                        expired.add(entry);
+                    }
+                }
+            } else if (overflow != null) {
+                overflow.currentTime = currentTime - (currentTime % overflow.tick);
+            }
+
+            int index = (int) ((currentTime / tick) % buckets.length);
+            ArrayDeque<Entry<T>> bucket = buckets[index];
+            if (bucket != null && !bucket.isEmpty()) {
+                count -= bucket.size();
+                expired.addAll(bucket);
+                bucket.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of items held by this wheel, including those held by its overflow wheels.
+     * 
+     * @return The number of items.
+     */
+    public int size() {
+        return count;
+    }
+}
@@ -0,0 +1,225 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The class responsible for limiting the number of send requests which are in flight on this instance, along with the number of bytes in their bodies, so
+ * that excess requests can be shed straight away rather than piling up until the instance runs out of threads or memory.
+ * <p>
+ * The limit on the number of requests in flight adapts to the latency of the {@code Transport} using additive increase and multiplicative decrease. It
+ * grows by one each time that a limit's worth of messages are sent quickly while the requests in flight are approaching it, and shrinks by a fixed ratio
+ * whenever a message is sent slowly or the {@code Transport} fails, although no more than once for each latency threshold so that a single slow period is
+ * not punished repeatedly. The limit on the number of bytes is fixed.
+ * <p>
+ * Requests are admitted before their body has been read, so their {@link Priority} is not yet known. Once it is, each request is checked against the
+ * {@link Priority#getAdmission() share} of the limit given to its lane, so that lower lanes are shed first as the instance approaches its limit. The
+ * number of bytes with which a request was admitted is also topped up to the number that were actually read, since the {@code Content-Length} is missing
+ * for chunked bodies and only gives the compressed size of compressed ones.
+ * <p>
+ * Since the counts are held in memory, the limits apply to each instance separately.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class AdmissionController {
+
+    private static final String CLASS_NAME = AdmissionController.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The ratio by which the limit on requests in flight is multiplied when the {@code Transport} is slow or failing. */
+    private static final double BACKOFF = Double.parseDouble(System.getProperty("mailmanager.send.admission.backoff", "0.9"));
+    /** Whether requests are shed once the limits have been reached. */
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mailmanager.send.admission.enabled", "true"));
+    /** The number of requests which can be in flight before any latency has been observed. */
+    private static final int INITIAL_LIMIT = Integer.getInteger("mailmanager.send.admission.initialLimit", 20);
+    /** The number of milliseconds above which sending a message through the {@code Transport} is considered slow. */
+    private static final long LATENCY = Long.getLong("mailmanager.send.admission.latency", 2000L);
+    /** The maximum number of bytes within the bodies of the requests in flight. */
+    private static final long MAX_BYTES = Long.getLong("mailmanager.send.admission.maxBytes", 64 * 1024 * 1024L);
+    /** The number of requests which can be in flight however much the limit grows. */
+    private static final int MAX_LIMIT = Integer.getInteger("mailmanager.send.admission.maxLimit", 200);
+    /** The number of requests which can be in flight however much the limit shrinks. */
+    private static final int MIN_LIMIT = Integer.getInteger("mailmanager.send.admission.minLimit", 2);
+    /** The number of milliseconds after which shed requests are told that they can be retried. */
+    private static final long RETRY_AFTER = Long.getLong("mailmanager.send.admission.retryAfter", 1000L);
+
+    private static AdmissionController instance;
+
+    /**
+     * Retrieves the singleton instance of {@link AdmissionController}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized AdmissionController getInstance() {
+        if (instance == null) {
+            instance = new AdmissionController();
+        }
+        return instance;
+    }
+
+    private long bytes;
+    private int inFlight;
+    private long lastBackoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(LATENCY);
+    private double limit = Math.max(MIN_LIMIT, Math.min(INITIAL_LIMIT, MAX_LIMIT));
+
+    /**
+     * Creates a new instance of {@link AdmissionController}.
+     */
+    AdmissionController() {
+    }
+
+    /**
+     * Admits a request whose body contains the specified number of {@code bytes}, which must be released once it has been handled.
+     * <p>
+     * A request which is larger than the limit on bytes by itself is only admitted when no others are in flight.
+     * 
+     * @param bytes
+     *            the number of bytes in the body of the request or zero if it is not known
+     * @throws OverloadException
+     *             If either the number of requests or the number of bytes in flight has reached its limit.
+     * @see #release(long)
+     */
+    public void acquire(long bytes) throws OverloadException {
+        acquire(1, bytes);
+    }
+
+    /**
+     * Admits a request which counts as the specified number of {@code requests} and whose body contains the number of {@code bytes} provided, which must
+     * be released once it has been handled.
+     * <p>
+     * This allows a batch to be weighted by the number of messages that it sends concurrently. A request which is larger than either limit by itself is only
+     * admitted when no others are in flight. Either {@code requests} or {@code bytes} may be zero so that an admitted request can claim more once its size is
+     * known.
+     * 
+     * @param requests
+     *            the number of requests that the request counts as
+     * @param bytes
+     *            the number of bytes in the body of the request or zero if it is not known
+     * @throws OverloadException
+     *             If either the number of requests or the number of bytes in flight would exceed its limit.
+     * @see #release(int, long)
+     */
+    public synchronized void acquire(int requests, long bytes) throws OverloadException {
+        if (ENABLED && inFlight > 0) {
+            if (inFlight + requests > (int) limit) {
+                log.fine("Request limit reached: " + inFlight);
+
+                throw new OverloadException("Too many concurrent requests", RETRY_AFTER);
+            }
+            if (this.bytes + bytes > MAX_BYTES) {
+                log.fine("Byte limit reached: " + this.bytes);
+
+                throw new OverloadException("Too much pending data", RETRY_AFTER);
+            }
+        }
+
+        inFlight += requests;
+        this.bytes += bytes;
+    }
+
+    /**
+     * Checks that the requests in flight, including one which has already been admitted with the specified {@code priority}, are within the share of the
+     * limit given to its lane.
+     * <p>
+     * The request should be released as usual if it is shed.
+     * 
+     * @param priority
+     *            the {@link Priority} of the request
+     * @throws OverloadException
+     *             If the requests in flight exceed the share of the limit given to the lane of {@code priority}.
+     */
+    public synchronized void admit(Priority priority) throws OverloadException {
+        if (ENABLED && inFlight > Math.max(1, (int) (limit * priority.getAdmission() / 100))) {
+            log.fine("Request limit reached for " + priority.getName() + " lane: " + inFlight);
+
+            throw new OverloadException("Too many concurrent requests", RETRY_AFTER);
+        }
+    }
+
+    /**
+     * Returns the current limit on the number of requests in flight.
+     * 
+     * @return The request limit.
+     */
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the number of milliseconds after which requests which have been shed can be retried.
+     * 
+     * @return The retry delay.
+     */
+    public long getRetryAfter() {
+        return RETRY_AFTER;
+    }
+
+    /**
+     * Releases a request which was admitted with the specified number of {@code bytes}.
+     * 
+     * @param bytes
+     *            the number of bytes with which the request was admitted
+     * @see #acquire(long)
+     */
+    public void release(long bytes) {
+        release(1, bytes);
+    }
+
+    /**
+     * Releases a request which was admitted as the specified number of {@code requests} with the number of {@code bytes} provided.
+     * 
+     * @param requests
+     *            the number of requests that the request was admitted as
+     * @param bytes
+     *            the number of bytes with which the request was admitted
+     * @see #acquire(int, long)
+     */
+    public synchronized void release(int requests, long bytes) {
+        inFlight -= requests;
+        this.bytes -= bytes;
+    }
+
+    /**
+     * Adjusts the limit on requests in flight based on a message having been sent through the {@code Transport} in the specified number of {@code nanos}.
+     * 
+     * @param nanos
+     *            the number of nanoseconds taken to send the message
+     * @param failed
+     *            {@code true} if the {@code Transport} failed; otherwise {@code false}
+     */
+    public synchronized void sample(long nanos, boolean failed) {
+        long now = System.nanoTime();
+
+        if (failed || nanos > TimeUnit.MILLISECONDS.toNanos(LATENCY)) {
+            if (now - lastBackoff >= TimeUnit.MILLISECONDS.toNanos(LATENCY)) {
+                lastBackoff = now;
+                limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+
+                log.fine("Request limit decreased: " + (int) limit);
+            }
+        } else if (inFlight * 2 >= (int) limit) {
+            // Only grow while the limit is being approached so that it cannot creep up while the instance is idle
+            limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+        }
+    }
+}
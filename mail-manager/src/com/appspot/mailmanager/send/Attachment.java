@@ -0,0 +1,179 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.activation.DataSource;
+
+import com.appspot.mailmanager.ChunkBuffer;
+
+/**
+ * A file which is to be attached to an email message, whose contents are held in a {@link ChunkBuffer} rather than a single array.
+ * <p>
+ * An {@link Attachment} can be read any number of times, so the same one can be used to construct a message for each chunk or recipient, but it must be
+ * disposed of once the message has been sent so that its storage, and the space it takes within the quotas of its application and the instance, is
+ * released.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ * @see AttachmentManager
+ */
+public class Attachment implements DataSource {
+
+    private final String apiKey;
+    private final ChunkBuffer buffer;
+    private final String contentType;
+    private final AtomicBoolean disposed = new AtomicBoolean();
+    private final String fileName;
+    private final AttachmentManager manager;
+    private final long size;
+
+    /**
+     * Creates a new instance of {@link Attachment} whose contents have already been written to the {@code buffer} provided.
+     * 
+     * @param manager
+     *            the {@link AttachmentManager} which holds the quota to which the {@link Attachment} counts
+     * @param apiKey
+     *            the API key of the application to whose quota the {@link Attachment} counts
+     * @param fileName
+     *            the name of the file
+     * @param contentType
+     *            the content type of the file
+     * @param buffer
+     *            the closed {@link ChunkBuffer} containing the contents of the file
+     */
+    Attachment(AttachmentManager manager, String apiKey, String fileName, String contentType, ChunkBuffer buffer) {
+        this.manager = manager;
+        this.apiKey = apiKey;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.buffer = buffer;
+        this.size = buffer.getSize();
+    }
+
+    /**
+     * Releases the storage held by this {@link Attachment} along with its space within the quota of its application.
+     * <p>
+     * Nothing happens if this {@link Attachment} has already been disposed of.
+     */
+    public void dispose() {
+        if (disposed.compareAndSet(false, true)) {
+            buffer.delete();
+            manager.release(apiKey, size);
+        }
+    }
+
+    /*
+     * @see DataSource#getContentType()
+     */
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the name of the file.
+     * 
+     * @return The file name.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /*
+     * @see DataSource#getInputStream()
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (disposed.get()) {
+            throw new IOException("Attachment has been disposed");
+        }
+        return buffer.openStream();
+    }
+
+    /*
+     * @see DataSource#getName()
+     */
+    @Override
+    public String getName() {
+        return fileName;
+    }
+
+    /*
+     * @see DataSource#getOutputStream()
+     */
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Attachment is read-only");
+    }
+
+    /**
+     * Returns the size of the file in bytes.
+     * 
+     * @return The size.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /*
+     * @see Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((contentType == null) ? 0 : contentType.hashCode());
+        result = prime * result + ((fileName == null) ? 0 : fileName.hashCode());
+        result = prime * result + (int) (size ^ (size >>> 32));
+        return result;
+    }
+
+    /*
+     * @see Object#equals(Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        Attachment other = (Attachment) obj;
+        if (contentType == null) {
+            if (other.contentType != null)
+                return false;
+        } else if (!contentType.equals(other.contentType))
+            return false;
+        if (fileName == null) {
+            if (other.fileName != null)
+                return false;
+        } else if (!fileName.equals(other.fileName))
+            return false;
+        if (size != other.size)
+            return false;
+        return true;
+    }
+}
@@ -0,0 +1,264 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.appspot.mailmanager.ChunkBuffer;
+import com.appspot.mailmanager.MailException;
+
+/**
+ * The class responsible for reading {@link Attachment Attachments} as they are streamed and enforcing the limits on their size.
+ * <p>
+ * Attachments are held entirely in memory, since App Engine does not allow files to be written. The size of each attachment, the total size of the
+ * attachments within a single request, the total size of the attachments held on behalf of each application at any one time, and the total size of all
+ * attachments held by the instance are all limited, and each is checked as the data arrives so that an oversized upload is rejected without being read in
+ * its entirety. Since the usage is held in memory, the application limit applies to each instance separately.
+ * <p>
+ * Attachments count towards the limits until they are disposed of, which only happens once their message has been sent, so those of messages which are
+ * still waiting to be sent by a background worker are counted as well. Once the instance limit is reached, further attachments are rejected with an
+ * {@link OverloadException} so that the client retries later, possibly on another instance, rather than the instance running out of memory.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class AttachmentManager {
+
+    private static final String CLASS_NAME = AttachmentManager.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The maximum number of bytes of attachments that can be held in memory on behalf of a single application at any one time. */
+    private static final long MAX_APPLICATION_SIZE = Long.getLong("mailmanager.attachment.maxApplicationSize", 64 * 1024 * 1024L);
+    /** The maximum number of bytes of attachments that can be held in memory by this instance at any one time, across all applications. */
+    private static final long MAX_INSTANCE_SIZE = Long.getLong("mailmanager.attachment.maxInstanceSize", 96 * 1024 * 1024L);
+    /** The maximum number of attachments within a single request. */
+    private static final int MAX_COUNT = Integer.getInteger("mailmanager.attachment.maxCount", 20);
+    /** The maximum number of bytes of attachments within a single request. */
+    private static final long MAX_REQUEST_SIZE = Long.getLong("mailmanager.attachment.maxRequestSize", 25 * 1024 * 1024L);
+    /** The maximum number of bytes of a single attachment. */
+    private static final long MAX_SIZE = Long.getLong("mailmanager.attachment.maxSize", 10 * 1024 * 1024L);
+
+    private static AttachmentManager instance;
+
+    /**
+     * Retrieves the singleton instance of {@link AttachmentManager}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized AttachmentManager getInstance() {
+        if (instance == null) {
+            instance = new AttachmentManager(MAX_APPLICATION_SIZE, MAX_INSTANCE_SIZE);
+        }
+        return instance;
+    }
+
+    /**
+     * Attempts to add the specified number of bytes to the {@code used} counter without it exceeding {@code max}.
+     * 
+     * @param used
+     *            the counter to be added to
+     * @param size
+     *            the number of bytes to be reserved
+     * @param max
+     *            the maximum value of {@code used}
+     * @return {@code true} if the bytes were reserved; otherwise {@code false}.
+     */
+    private static boolean reserve(AtomicLong used, long size, long max) {
+        while (true) {
+            long current = used.get();
+            if (current + size > max) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+
+    private final long maxApplicationSize;
+    private final long maxInstanceSize;
+    private final AtomicLong total = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> usage = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new instance of {@link AttachmentManager} with the limits provided.
+     * 
+     * @param maxApplicationSize
+     *            the maximum number of bytes of attachments that can be held on behalf of a single application
+     * @param maxInstanceSize
+     *            the maximum number of bytes of attachments that can be held across all applications
+     */
+    AttachmentManager(long maxApplicationSize, long maxInstanceSize) {
+        this.maxApplicationSize = maxApplicationSize;
+        this.maxInstanceSize = maxInstanceSize;
+    }
+
+    /**
+     * Returns the maximum number of attachments within a single request.
+     * 
+     * @return The maximum count.
+     */
+    public int getMaxCount() {
+        return MAX_COUNT;
+    }
+
+    /**
+     * Returns the maximum number of bytes of attachments within a single request.
+     * 
+     * @return The maximum request size.
+     */
+    public long getMaxRequestSize() {
+        return MAX_REQUEST_SIZE;
+    }
+
+    /**
+     * Returns the number of bytes of attachments currently held by this instance across all applications.
+     * 
+     * @return The number of bytes held.
+     */
+    public long getTotalUsage() {
+        return total.get();
+    }
+
+    /**
+     * Returns the number of bytes of attachments currently held on behalf of the application with the specified {@code apiKey}.
+     * 
+     * @param apiKey
+     *            the API key of the application
+     * @return The number of bytes held.
+     */
+    public long getUsage(String apiKey) {
+        AtomicLong used = usage.get(apiKey);
+        return used == null ? 0 : used.get();
+    }
+
+    /**
+     * Reads an {@link Attachment} from the specified {@code in} until it ends on behalf of the application with the {@code apiKey} provided.
+     * <p>
+     * The data is written to a {@link ChunkBuffer} as it is read and counted towards the quota of the application straight away, so reading stops as soon
+     * as any limit is exceeded.
+     * 
+     * @param apiKey
+     *            the API key of the application sending the attachment
+     * @param fileName
+     *            the name of the file
+     * @param contentType
+     *            the content type of the file or {@code null} to use {@code application/octet-stream}
+     * @param in
+     *            the {@code InputStream} from which the contents of the file are to be read
+     * @param maxSize
+     *            the maximum number of bytes that can be read, being what remains of the allowance of the request
+     * @return The {@link Attachment}.
+     * @throws IOException
+     *             If an error occurs while reading from {@code in}.
+     * @throws MailException
+     *             If the attachment, request, or application limit is exceeded.
+     * @throws OverloadException
+     *             If the instance limit is exceeded.
+     */
+    public Attachment read(String apiKey, String fileName, String contentType, InputStream in, long maxSize) throws IOException, MailException {
+        log.entering(CLASS_NAME, "read", new Object[] { apiKey, fileName, contentType, maxSize });
+
+        ChunkBuffer buffer = new ChunkBuffer();
+        byte[] chunk = new byte[8192];
+        long reserved = 0;
+        boolean complete = false;
+
+        try {
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                if (reserved + count > MAX_SIZE) {
+                    throw new MailException("Attachment too large");
+                }
+                if (reserved + count > maxSize) {
+                    throw new MailException("Attachments too large");
+                }
+                reserve(apiKey, count);
+
+                reserved += count;
+                buffer.write(chunk, 0, count);
+            }
+            buffer.close();
+            complete = true;
+        } finally {
+            if (!complete) {
+                buffer.delete();
+                release(apiKey, reserved);
+            }
+        }
+
+        Attachment attachment = new Attachment(this, apiKey, fileName, contentType == null ? "application/octet-stream" : contentType, buffer);
+
+        log.exiting(CLASS_NAME, "read", attachment);
+        return attachment;
+    }
+
+    /**
+     * Releases the specified number of bytes from the quota of the application with the {@code apiKey} provided.
+     * 
+     * @param apiKey
+     *            the API key of the application
+     * @param size
+     *            the number of bytes to be released
+     */
+    void release(String apiKey, long size) {
+        AtomicLong used = usage.get(apiKey);
+        if (used != null && size > 0) {
+            used.addAndGet(-size);
+            total.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Reserves the specified number of bytes from the quota of the application with the {@code apiKey} provided and from that of this instance.
+     * 
+     * @param apiKey
+     *            the API key of the application
+     * @param size
+     *            the number of bytes to be reserved
+     * @throws MailException
+     *             If the application does not have enough quota remaining.
+     * @throws OverloadException
+     *             If this instance does not have enough quota remaining.
+     */
+    private void reserve(String apiKey, long size) throws MailException {
+        AtomicLong used = usage.get(apiKey);
+        if (used == null) {
+            AtomicLong created = new AtomicLong();
+            used = usage.putIfAbsent(apiKey, created);
+            if (used == null) {
+                used = created;
+            }
+        }
+
+        if (!reserve(used, size, maxApplicationSize)) {
+            throw new MailException("Attachment quota exceeded");
+        }
+        if (!reserve(total, size, maxInstanceSize)) {
+            used.addAndGet(-size);
+            throw new OverloadException("Too many attachments in memory", AdmissionController.getInstance().getRetryAfter());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.concurrent.ThreadFactory;
+
+import com.google.appengine.api.ThreadManager;
+
+/**
+ * A {@code ThreadFactory} which creates App Engine background threads and fails loudly when they are unavailable.
+ * <p>
+ * Background threads can only be created by instances using basic or manual scaling. Rather than returning {@code null}, which would leave an executor
+ * with tasks queued but no workers to run them, an {@code IllegalStateException} is thrown so that the caller can report the failure.
+ * <p>
+ * Since the scaling of the application is left to whoever deploys it, background threads must be enabled explicitly using
+ * {@code mailmanager.background.enabled} once the instances serving requests use basic or manual scaling. Until then, asynchronous and scheduled sends
+ * are refused, while messages sent on the calling thread are unaffected.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class BackgroundThreadFactory implements ThreadFactory {
+
+    /** Whether background threads may be created, which requires basic or manual scaling. */
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mailmanager.background.enabled", "false"));
+
+    private static BackgroundThreadFactory instance;
+
+    /**
+     * Retrieves the singleton instance of {@link BackgroundThreadFactory}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized BackgroundThreadFactory getInstance() {
+        if (instance == null) {
+            instance = new BackgroundThreadFactory();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns whether background threads may be created, as configured by {@code mailmanager.background.enabled}.
+     * 
+     * @return {@code true} if background threads are enabled; otherwise {@code false}.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Creates a new instance of {@link BackgroundThreadFactory}.
+     */
+    private BackgroundThreadFactory() {
+    }
+
+    /*
+     * @see ThreadFactory#newThread(Runnable)
+     */
+    @Override
+    public Thread newThread(Runnable runnable) {
+        if (!ENABLED) {
+            throw new IllegalStateException("Background threads are disabled; set mailmanager.background.enabled once basic or manual scaling is used");
+        }
+
+        Thread thread;
+        try {
+            thread = ThreadManager.backgroundThreadFactory().newThread(runnable);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Background threads are unavailable; basic or manual scaling is required", e);
+        }
+
+        if (thread == null) {
+            throw new IllegalStateException("Background threads are unavailable; basic or manual scaling is required");
+        }
+        return thread;
+    }
+}
@@ -0,0 +1,305 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.appspot.mailmanager.metrics.Metrics;
+
+/**
+ * A circuit breaker which stops calls being made to a dependency, such as the {@code Transport}, while it is failing or too slow so that callers fail
+ * fast instead of each waiting for it to time out.
+ * <p>
+ * The outcomes of the most recent calls are kept in a sliding window. Once the window holds enough calls, the breaker opens when the proportion of them
+ * which failed, or which took longer than the slow call threshold, reaches its configured rate. While open, every call is rejected until the open
+ * duration has elapsed, after which the breaker is half-open and lets a limited number of trial calls through. It closes again if all of the trial calls
+ * succeed quickly and opens once more as soon as any of them do not.
+ * <p>
+ * Each {@link Permit} belongs to the generation of the breaker in which it was taken, which moves on with every change of state, and the outcome of a
+ * call is ignored if the breaker has changed state since it was permitted. This means a slow call which was permitted while closed cannot be counted as a
+ * trial call once the breaker is half-open.
+ * <p>
+ * Every change of state is logged and counted so that the owner of the breaker can expose the {@link #getTransitions() transitions} within the
+ * {@link Metrics}. Since the window is held in memory, each instance has its own breaker.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class CircuitBreaker {
+
+    /**
+     * The permission to make a single call, which belongs to the generation of the {@link CircuitBreaker} in which it was taken.
+     */
+    public static final class Permit {
+
+        final long generation;
+
+        Permit(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The states of a {@link CircuitBreaker}.
+     */
+    public enum State {
+
+        /** Calls are permitted and their outcomes are recorded in the sliding window. */
+        CLOSED,
+        /** A limited number of trial calls are permitted to test whether the dependency has recovered. */
+        HALF_OPEN,
+        /** All calls are rejected. */
+        OPEN;
+
+        /**
+         * Returns the name of this {@link State} as used in metrics.
+         * 
+         * @return The lower case name.
+         */
+        public String getName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private static final String CLASS_NAME = CircuitBreaker.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    private int count;
+    private final boolean[] failed;
+    private int failures;
+    private final double failureRate;
+    private long generation;
+    private final int halfOpenCalls;
+    private int index;
+    private final int minCalls;
+    private final String name;
+    private long openedAt;
+    private final long openDuration;
+    private final boolean[] slow;
+    private final long slowCall;
+    private int slowCalls;
+    private final double slowRate;
+    private State state = State.CLOSED;
+    private final Map<State, Long> transitions = new EnumMap<>(State.class);
+    private int trials;
+    private int trialSuccesses;
+
+    /**
+     * Creates a new instance of {@link CircuitBreaker} with the settings provided.
+     * 
+     * @param name
+     *            the name of the dependency protected by the breaker, as used in logs and metrics
+     * @param windowSize
+     *            the number of the most recent calls whose outcomes are kept
+     * @param minCalls
+     *            the number of calls which must be in the window before the breaker can open
+     * @param failureRate
+     *            the proportion of the calls in the window which must have failed for the breaker to open
+     * @param slowRate
+     *            the proportion of the calls in the window which must have been slow for the breaker to open
+     * @param slowCall
+     *            the number of milliseconds above which a call is considered slow
+     * @param openDuration
+     *            the number of milliseconds for which the breaker stays open before trial calls are permitted
+     * @param halfOpenCalls
+     *            the number of trial calls which must succeed while half-open for the breaker to close
+     * @throws IllegalArgumentException
+     *             If {@code windowSize} or {@code halfOpenCalls} are not positive or {@code slowCall} or {@code openDuration} are negative.
+     */
+    public CircuitBreaker(String name, int windowSize, int minCalls, double failureRate, double slowRate, long slowCall, long openDuration, int halfOpenCalls) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        if (halfOpenCalls <= 0) {
+            throw new IllegalArgumentException("Invalid half-open calls: " + halfOpenCalls);
+        }
+        if (slowCall < 0) {
+            throw new IllegalArgumentException("Invalid slow call threshold: " + slowCall);
+        }
+        if (openDuration < 0) {
+            throw new IllegalArgumentException("Invalid open duration: " + openDuration);
+        }
+
+        this.name = name;
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+        this.minCalls = Math.max(minCalls, 1);
+        this.failureRate = failureRate;
+        this.slowRate = slowRate;
+        this.slowCall = TimeUnit.MILLISECONDS.toNanos(slowCall);
+        this.openDuration = TimeUnit.MILLISECONDS.toNanos(openDuration);
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Returns the current state of this {@link CircuitBreaker}.
+     * <p>
+     * A breaker which has been open for long enough becomes half-open when its state is checked.
+     * 
+     * @return The {@link State}.
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openDuration) {
+            transition(State.HALF_OPEN);
+        }
+        return state;
+    }
+
+    /**
+     * Returns the number of times that this {@link CircuitBreaker} has changed to each state.
+     * 
+     * @return The number of transitions mapped to the name of the {@link State} which was entered.
+     */
+    public synchronized Map<String, Long> getTransitions() {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<State, Long> entry : transitions.entrySet()) {
+            result.put(entry.getKey().getName(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Records the outcome of a call which was permitted by {@link #tryAcquire()} with the specified {@code permit} and took the number of {@code nanos}
+     * provided.
+     * <p>
+     * The outcome is ignored if this {@link CircuitBreaker} has changed state since {@code permit} was taken.
+     * 
+     * @param permit
+     *            the {@link Permit} for the call
+     * @param nanos
+     *            the number of nanoseconds taken by the call
+     * @param failure
+     *            {@code true} if the call failed; otherwise {@code false}
+     */
+    public synchronized void record(Permit permit, long nanos, boolean failure) {
+        if (permit.generation != generation) {
+            return;
+        }
+
+        boolean slowCall = !failure && nanos > this.slowCall;
+
+        switch (state) {
+        case CLOSED:
+            if (count == failed.length) {
+                failures -= failed[index] ? 1 : 0;
+                slowCalls -= slow[index] ? 1 : 0;
+            } else {
+                count++;
+            }
+
+            failed[index] = failure;
+            slow[index] = slowCall;
+            failures += failure ? 1 : 0;
+            slowCalls += slowCall ? 1 : 0;
+            index = (index + 1) % failed.length;
+
+            if (count >= minCalls && ((double) failures / count >= failureRate || (double) slowCalls / count >= slowRate)) {
+                log.warning("Opening circuit breaker for " + name + " after " + failures + " failed and " + slowCalls + " slow of the last " + count
+                        + " calls");
+                transition(State.OPEN);
+            }
+            break;
+        case HALF_OPEN:
+            if (failure || slowCall) {
+                log.warning("Reopening circuit breaker for " + name + " after a trial call " + (failure ? "failed" : "was slow"));
+                transition(State.OPEN);
+            } else if (++trialSuccesses >= halfOpenCalls) {
+                transition(State.CLOSED);
+            }
+            break;
+        default:
+            // Permits are never given while open and any given beforehand belong to an earlier generation
+            break;
+        }
+    }
+
+    /**
+     * Gives back the specified {@code permit} for a call which was never made, so that it is neither recorded nor, while half-open, takes up one of the
+     * trial calls.
+     * 
+     * @param permit
+     *            the {@link Permit} which was taken by {@link #tryAcquire()}
+     */
+    public synchronized void release(Permit permit) {
+        if (permit.generation == generation && state == State.HALF_OPEN) {
+            trials--;
+        }
+    }
+
+    /**
+     * Changes the state of this {@link CircuitBreaker} to {@code state}, resetting whatever is relevant to the new state.
+     * <p>
+     * The caller must hold the lock on this {@link CircuitBreaker}.
+     * 
+     * @param state
+     *            the new {@link State}
+     */
+    private void transition(State state) {
+        switch (state) {
+        case CLOSED:
+            count = 0;
+            failures = 0;
+            index = 0;
+            slowCalls = 0;
+            break;
+        case HALF_OPEN:
+            trials = 0;
+            trialSuccesses = 0;
+            break;
+        case OPEN:
+            openedAt = System.nanoTime();
+            break;
+        }
+
+        log.info("Circuit breaker for " + name + " is now " + state.getName());
+
+        this.state = state;
+        generation++;
+
+        Long count = transitions.get(state);
+        transitions.put(state, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Attempts to take permission to make a call, which must then be either recorded using {@link #record(Permit, long, boolean)} or, if the call was
+     * never made, given back using {@link #release(Permit)}.
+     * 
+     * @return The {@link Permit} for the call or {@code null} if the breaker is open or all of the trial calls are already in progress.
+     */
+    public synchronized Permit tryAcquire() {
+        switch (getState()) {
+        case CLOSED:
+            return new Permit(generation);
+        case HALF_OPEN:
+            if (trials < halfOpenCalls) {
+                trials++;
+                return new Permit(generation);
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.appspot.mailmanager.MailException;
+
+/**
+ * The reasons for which requests can fail, as they are counted by the {@link com.appspot.mailmanager.metrics.Metrics Metrics}.
+ * <p>
+ * Messages of {@link MailException MailExceptions} can contain details which vary between requests, such as the error of a {@link SendStatus}, so they
+ * are mapped onto this fixed set of reasons instead of being counted directly, which would allow the number of counters to grow without bound.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public enum FailureReason {
+
+    /** The body of the request could not be read or is not in a supported format. */
+    BAD_REQUEST("Bad request", "Multipart boundary not specified", "Request part not found", "Unsupported charset", "Unsupported content encoding"),
+    /** The idempotency key of the request has already been used for another request, or its original request has not yet finished. */
+    CONFLICT("Idempotency key already used", "Original request still in progress"),
+    /** The request could not be handled because of a fault within the instance. */
+    INTERNAL("Failed to write response", "Interrupted", "Message could not be queued", "Message could not be scheduled",
+            "Unable to start background worker"),
+    /** The request is well-formed but contains data which cannot be sent. */
+    INVALID_DATA("Attachments cannot be scheduled", "Invalid address", "Invalid data", "Invalid template", "Missing content", "Scheduling is disabled",
+            "Send time too far ahead", "Unrecognized template"),
+    /** The request failed for a reason that is not otherwise recognized. */
+    OTHER,
+    /** The request was shed because the instance is already handling as much as it can. */
+    OVERLOADED,
+    /** The request exceeded the rate limit of its application. */
+    RATE_LIMITED,
+    /** The request contains more messages or attachments than can be accepted. */
+    TOO_LARGE("Attachment quota exceeded", "Attachment too large", "Attachments too large", "Too many attachments", "Too many messages"),
+    /** The message could not be handed to the transport. */
+    TRANSPORT("Message could not be sent", "Transport unavailable"),
+    /** The API key of the request does not belong to any application. */
+    UNRECOGNIZED_API_KEY("Unrecognized API key");
+
+    private static final Map<String, FailureReason> reasonsByMessage = new HashMap<>();
+
+    static {
+        for (FailureReason reason : values()) {
+            for (String message : reason.messages) {
+                reasonsByMessage.put(message, reason);
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link FailureReason} for the specified {@code e}.
+     * 
+     * @param e
+     *            the {@link MailException} which caused the request to fail
+     * @return The {@link FailureReason} for {@code e}, which is {@link #OTHER} if it is not recognized.
+     */
+    public static FailureReason forException(MailException e) {
+        if (e instanceof OverloadException) {
+            return OVERLOADED;
+        }
+        if (e instanceof RateLimitException) {
+            return RATE_LIMITED;
+        }
+        if (e instanceof TransportException) {
+            return TRANSPORT;
+        }
+
+        return forMessage(e.getMessage());
+    }
+
+    /**
+     * Returns the {@link FailureReason} for the specified error {@code message}.
+     * 
+     * @param message
+     *            the message describing why the request failed
+     * @return The {@link FailureReason} for {@code message}, which is {@link #OTHER} if it is not recognized.
+     */
+    public static FailureReason forMessage(String message) {
+        FailureReason reason = message == null ? null : reasonsByMessage.get(message);
+        return reason == null ? OTHER : reason;
+    }
+
+    private final String[] messages;
+
+    /**
+     * Creates a new instance of {@link FailureReason} for the exception messages provided.
+     * 
+     * @param messages
+     *            the messages of the {@link MailException MailExceptions} which are counted as this reason
+     */
+    private FailureReason(String... messages) {
+        this.messages = messages;
+    }
+
+    /**
+     * Returns the name of this reason as it is counted by the {@link com.appspot.mailmanager.metrics.Metrics Metrics}.
+     * 
+     * @return The name.
+     */
+    public String getName() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,196 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.appspot.mailmanager.metrics.GaugeSource;
+import com.appspot.mailmanager.metrics.Metrics;
+import com.appspot.mailmanager.metrics.Phase;
+
+/**
+ * An executor for a single lane which runs the waiting messages of each {@code Application} in weighted fair order, as determined by a
+ * {@link VirtualClock}, rather than in the order in which they were submitted.
+ * <p>
+ * The number of messages waiting is bounded and the number waiting for each {@code Application}, along with the time that each message waited, is
+ * recorded in the {@link Metrics}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class FairExecutor {
+
+    /**
+     * A message waiting to be sent, ordered by its tag and then by the order in which it was submitted.
+     */
+    private class Task implements Comparable<Task>, Runnable {
+
+        final String apiKey;
+        final Runnable delegate;
+        final long sequence;
+        final long submitted = System.nanoTime();
+        final long tag;
+
+        Task(String apiKey, long tag, Runnable delegate) {
+            this.apiKey = apiKey;
+            this.tag = tag;
+            this.delegate = delegate;
+            this.sequence = sequences.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int result = Long.compare(tag, other.tag);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public void run() {
+            clock.advance(tag);
+            dequeued(apiKey);
+            Metrics.getInstance().record(Phase.QUEUE, apiKey, System.nanoTime() - submitted);
+
+            delegate.run();
+        }
+    }
+
+    private final VirtualClock clock = new VirtualClock(0);
+    private final Map<String, Integer> depths = new HashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequences = new AtomicLong();
+    private final Semaphore slots;
+
+    /**
+     * Creates a new instance of {@link FairExecutor} for the specified {@code lane}.
+     * <p>
+     * The number of messages waiting within the lane for each {@code Application} is registered as a gauge with the {@link Metrics}.
+     * 
+     * @param lane
+     *            the name of the lane served by the executor
+     * @param threads
+     *            the number of workers
+     * @param queueSize
+     *            the maximum number of messages which can be waiting
+     * @param threadFactory
+     *            the {@code ThreadFactory} to be used to create the workers
+     */
+    public FairExecutor(String lane, int threads, int queueSize, ThreadFactory threadFactory) {
+        this.slots = new Semaphore(queueSize);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+
+        Metrics.getInstance().register("queue_depth", lane, new GaugeSource() {
+
+            @Override
+            public Map<String, Double> sample() {
+                return getDepths();
+            }
+        });
+    }
+
+    /**
+     * Records that a message for the {@code Application} with the specified {@code apiKey} is no longer waiting and releases its place in the queue.
+     * 
+     * @param apiKey
+     *            the API key of the {@code Application}
+     */
+    private synchronized void dequeued(String apiKey) {
+        slots.release();
+
+        Integer depth = depths.get(apiKey);
+        if (depth == null || depth <= 1) {
+            depths.remove(apiKey);
+        } else {
+            depths.put(apiKey, depth - 1);
+        }
+    }
+
+    /**
+     * Submits the specified {@code task}, which sends the {@code request} provided, to be run once it is the turn of its {@code Application}.
+     * 
+     * @param request
+     *            the {@link SendRequest} being sent
+     * @param task
+     *            the task which sends {@code request}
+     * @throws RejectedExecutionException
+     *             If too many messages are already waiting.
+     * @throws IllegalStateException
+     *             If a worker needed to run {@code task} could not be created.
+     */
+    public void execute(SendRequest request, Runnable task) {
+        execute(request.getApiKey(), VirtualClock.getWeight(request.getApiKey()), VirtualClock.getCost(request), task);
+    }
+
+    /**
+     * Submits the specified {@code task}, which sends a message with the {@code cost} provided for the {@code Application} with the {@code apiKey} and
+     * {@code weight} provided, to be run once it is the turn of that {@code Application}.
+     * 
+     * @param apiKey
+     *            the API key of the {@code Application}
+     * @param weight
+     *            the weight of the {@code Application}
+     * @param cost
+     *            the cost of the message at a weight of one
+     * @param task
+     *            the task which sends the message
+     * @throws RejectedExecutionException
+     *             If too many messages are already waiting.
+     * @throws IllegalStateException
+     *             If a worker needed to run {@code task} could not be created.
+     */
+    void execute(String apiKey, int weight, long cost, Runnable task) {
+        // Reserve a place in the queue before anything else so that concurrent submissions can never exceed its size
+        if (!slots.tryAcquire()) {
+            throw new RejectedExecutionException("Queue is full");
+        }
+
+        synchronized (this) {
+            Integer depth = depths.get(apiKey);
+            depths.put(apiKey, depth == null ? 1 : depth + 1);
+        }
+
+        try {
+            executor.execute(new Task(apiKey, clock.tag(apiKey, weight, cost), task));
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            dequeued(apiKey);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of messages which are waiting for each {@code Application}.
+     * 
+     * @return The number of messages waiting mapped to the API key of their {@code Application}.
+     */
+    public synchronized Map<String, Double> getDepths() {
+        Map<String, Double> result = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : depths.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().doubleValue());
+        }
+        return result;
+    }
+}
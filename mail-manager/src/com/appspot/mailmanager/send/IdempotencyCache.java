@@ -0,0 +1,402 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.appspot.mailmanager.MailException;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * A bounded, time-windowed cache of the outcomes of {@link SendRequest SendRequests} which makes it safe for applications to retry requests.
+ * <p>
+ * Requests are identified by their idempotency key, which is scoped to the application making the request. The first request with a key is sent and,
+ * for as long as its outcome remains cached, any repeats receive the same {@link SendStatus} rather than being sent again. Repeats which arrive while the
+ * original request is still being sent wait for, and share, its outcome. Requests which fail with an exception are not cached so that they can be
+ * retried.
+ * <p>
+ * A repeat must match the original request exactly, which is checked by comparing SHA-256 digests of the requests, including the contents of their
+ * attachments, so that a key which is reused for a different message is rejected rather than replaying an unrelated outcome.
+ * <p>
+ * Outcomes expire once they have been cached for longer than the configured time-to-live and, when the cache is full, the oldest completed entry is
+ * evicted to make room for the new one. Entries for requests which are still in flight are never evicted, so the cache can briefly exceed its maximum
+ * size while every entry is in flight.
+ * <p>
+ * Since each instance holds its own cache, the original request also claims its key in a {@link SharedIdempotencyStore}, when one is provided, so that
+ * a repeat which reaches another instance receives the same outcome rather than being sent again. The cache of each instance stays in front of the
+ * store so that repeats arriving at the same instance are coalesced without reading from it. A repeat which finds the key claimed by another instance
+ * polls the store until the outcome is recorded or the timeout elapses. Claims expire after the timeout if their outcome is never recorded, so that a
+ * request whose instance stopped while sending it can be retried.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class IdempotencyCache {
+
+    /** The number of milliseconds between reads of a claim which is held by another instance. */
+    private static final long SHARED_POLL_INTERVAL = 100L;
+
+    /**
+     * The outcome of a request which may still be in flight.
+     */
+    private static class Outcome {
+
+        final byte[] digest;
+        final CountDownLatch done = new CountDownLatch(1);
+        MailException error;
+        volatile long expires = Long.MAX_VALUE;
+        SendStatus status;
+
+        Outcome(byte[] digest) {
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Calls the specified {@code sender}, ensuring that any failure is reported as a {@link MailException}.
+     * 
+     * @param sender
+     *            the {@code Callable} to be called
+     * @return The {@link SendStatus} returned by {@code sender}.
+     * @throws MailException
+     *             If {@code sender} fails.
+     */
+    private static SendStatus call(Callable<SendStatus> sender) throws MailException {
+        try {
+            return sender.call();
+        } catch (MailException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MailException("Message could not be sent", e);
+        }
+    }
+
+    /**
+     * Calculates the digest of the specified {@code request}.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be digested
+     * @return The digest of {@code request}.
+     * @throws MailException
+     *             If the contents of an attachment of {@code request} cannot be read.
+     */
+    private static byte[] digest(SendRequest request) throws MailException {
+        try {
+            return request.digest();
+        } catch (IOException e) {
+            throw new MailException("Message could not be sent", e);
+        }
+    }
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final Map<String, Outcome> entries;
+    private final AtomicLong replayed = new AtomicLong();
+    private final SharedIdempotencyStore shared;
+    private final long timeout;
+    private final long ttl;
+
+    /**
+     * Creates a new instance of {@link IdempotencyCache} with the {@code maxSize}, {@code ttl}, and {@code timeout} provided.
+     * 
+     * @param maxSize
+     *            the maximum number of outcomes to be cached
+     * @param ttl
+     *            the number of milliseconds for which an outcome is to remain cached
+     * @param timeout
+     *            the number of milliseconds for which a repeated request waits for the original request to complete
+     * @throws IllegalArgumentException
+     *             If {@code maxSize}, {@code ttl}, or {@code timeout} are negative.
+     */
+    public IdempotencyCache(int maxSize, long ttl, long timeout) {
+        this(maxSize, ttl, timeout, null);
+    }
+
+    /**
+     * Creates a new instance of {@link IdempotencyCache} with the {@code maxSize}, {@code ttl}, and {@code timeout} provided which claims keys in the
+     * specified {@code shared} store.
+     * 
+     * @param maxSize
+     *            the maximum number of outcomes to be cached
+     * @param ttl
+     *            the number of milliseconds for which an outcome is to remain cached
+     * @param timeout
+     *            the number of milliseconds for which a repeated request waits for the original request to complete
+     * @param shared
+     *            the {@link SharedIdempotencyStore} in which keys are to be claimed (may be {@code null} to only deduplicate requests on this instance)
+     * @throws IllegalArgumentException
+     *             If {@code maxSize}, {@code ttl}, or {@code timeout} are negative.
+     */
+    public IdempotencyCache(final int maxSize, long ttl, long timeout, SharedIdempotencyStore shared) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maxSize);
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Invalid TTL: " + ttl);
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeout);
+        }
+
+        this.ttl = ttl;
+        this.timeout = timeout;
+        this.shared = shared;
+        this.entries = new LinkedHashMap<String, Outcome>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+                if (size() > maxSize) {
+                    // Evict the oldest completed outcome instead, since evicting one still in flight would allow its request to be sent again
+                    Iterator<Outcome> iterator = values().iterator();
+                    while (iterator.hasNext()) {
+                        if (iterator.next().done.getCount() == 0) {
+                            iterator.remove();
+                            break;
+                        }
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Waits for the request associated with the specified {@code entry} to complete and returns its outcome.
+     * 
+     * @param entry
+     *            the {@link Outcome} of the original request
+     * @return The {@link SendStatus} of the original request.
+     * @throws MailException
+     *             If the original request failed or did not complete in time.
+     */
+    private SendStatus await(Outcome entry) throws MailException {
+        if (entry.done.getCount() == 0) {
+            replayed.incrementAndGet();
+        } else {
+            coalesced.incrementAndGet();
+
+            try {
+                if (!entry.done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new MailException("Original request still in progress");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MailException("Interrupted", e);
+            }
+        }
+
+        if (entry.error != null) {
+            throw entry.error;
+        }
+        return entry.status;
+    }
+
+    /**
+     * Removes any expired outcomes from the head of the cache.
+     * <p>
+     * Since entries are held in the order in which they were added, this stops at the first entry which has not expired rather than checking them all. An
+     * entry may therefore outlive its TTL slightly while an older request is still in flight. The caller must hold the lock on {@link #entries}.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     */
+    private void expire(long now) {
+        Iterator<Outcome> iterator = entries.values().iterator();
+        while (iterator.hasNext() && iterator.next().expires <= now) {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the number of repeated requests which waited for the original request to complete.
+     * 
+     * @return The coalesced count.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of repeated requests which received the cached outcome of an original request which had already completed.
+     * 
+     * @return The replayed count.
+     */
+    public long getReplayedCount() {
+        return replayed.get();
+    }
+
+    /**
+     * Returns the number of outcomes currently held by this cache, including those of requests which are still in flight.
+     * 
+     * @return The size.
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Sends the specified {@code request} by calling {@code sender}, unless a request from the same application with the same idempotency key has already
+     * been sent, in which case the outcome of that request is returned instead.
+     * <p>
+     * If {@code request} has no idempotency key, {@code sender} is always called.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be sent
+     * @param sender
+     *            the {@code Callable} which sends {@code request}
+     * @return The {@link SendStatus} of {@code request} or that of the original request.
+     * @throws MailException
+     *             If {@code sender} fails, the original request failed while being waited for, the original request does not match {@code request}, or the
+     *             original request did not complete in time.
+     */
+    public SendStatus send(SendRequest request, Callable<SendStatus> sender) throws MailException {
+        if (request.getIdempotencyKey() == null) {
+            return call(sender);
+        }
+
+        String key = request.getApiKey() + '\n' + request.getIdempotencyKey();
+        byte[] digest = digest(request);
+        Outcome entry;
+        boolean original = false;
+
+        synchronized (entries) {
+            long now = System.currentTimeMillis();
+            expire(now);
+
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Outcome(digest);
+                entries.put(key, entry);
+                original = true;
+            }
+        }
+
+        if (!original) {
+            if (!MessageDigest.isEqual(entry.digest, digest)) {
+                throw new MailException("Idempotency key already used");
+            }
+            return await(entry);
+        }
+
+        try {
+            entry.status = shared != null ? sendShared(key, request, digest, sender) : call(sender);
+            entry.expires = System.currentTimeMillis() + ttl;
+            return entry.status;
+        } catch (MailException e) {
+            entry.error = e;
+            throw e;
+        } finally {
+            if (entry.status == null) {
+                if (entry.error == null) {
+                    entry.error = new MailException("Message could not be sent");
+                }
+
+                synchronized (entries) {
+                    if (entries.get(key) == entry) {
+                        entries.remove(key);
+                    }
+                }
+            }
+
+            entry.done.countDown();
+        }
+    }
+
+    /**
+     * Sends the specified {@code request} by calling {@code sender} once its {@code key} has been claimed in the shared store or, if the key has already
+     * been claimed by another instance, returns the outcome recorded by that instance instead.
+     * 
+     * @param key
+     *            the key of {@code request}
+     * @param request
+     *            the {@link SendRequest} to be sent
+     * @param digest
+     *            the digest of {@code request}
+     * @param sender
+     *            the {@code Callable} which sends {@code request}
+     * @return The {@link SendStatus} of {@code request} or that of the original request.
+     * @throws MailException
+     *             If {@code sender} fails, the original request does not match {@code request}, or the original request did not complete in time.
+     */
+    private SendStatus sendShared(String key, SendRequest request, byte[] digest, Callable<SendStatus> sender) throws MailException {
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean waited = false;
+
+        while (!shared.claim(key, digest, timeout)) {
+            SharedIdempotencyStore.Record record = shared.get(key);
+            if (record != null) {
+                if (!MessageDigest.isEqual(record.getDigest(), digest)) {
+                    throw new MailException("Idempotency key already used");
+                }
+
+                if (record.getStatus() != null) {
+                    (waited ? coalesced : replayed).incrementAndGet();
+
+                    try {
+                        return SendStatus.fromJSON(new JSONObject(record.getStatus()), request.getApiKey());
+                    } catch (JSONException e) {
+                        throw new MailException("Message could not be sent", e);
+                    }
+                }
+            }
+
+            if (System.currentTimeMillis() >= deadline) {
+                throw new MailException("Original request still in progress");
+            }
+
+            waited = true;
+
+            try {
+                Thread.sleep(SHARED_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MailException("Interrupted", e);
+            }
+        }
+
+        SendStatus status = null;
+        try {
+            status = call(sender);
+            shared.complete(key, new SharedIdempotencyStore.Record(digest, status.toJSON().toString()), ttl);
+        } catch (JSONException e) {
+            // The outcome cannot be replayed by other instances, so they are allowed to send the request again
+            shared.release(key);
+        } finally {
+            if (status == null) {
+                shared.release(key);
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,99 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link SharedIdempotencyStore} which is held in memory and is therefore only shared by the {@link IdempotencyCache IdempotencyCaches} of a single
+ * instance.
+ * <p>
+ * This is intended to stand in for {@link MemcacheIdempotencyStore} where memcache is not available, such as when testing.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class LocalIdempotencyStore implements SharedIdempotencyStore {
+
+    /**
+     * A {@link Record} along with the time at which it expires.
+     */
+    private static class Entry {
+
+        final long expires;
+        final Record record;
+
+        Entry(Record record, long ttl) {
+            this.record = record;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /*
+     * @see SharedIdempotencyStore#claim(String, byte[], long)
+     */
+    @Override
+    public synchronized boolean claim(String key, byte[] digest, long ttl) {
+        if (get(key) != null) {
+            return false;
+        }
+
+        entries.put(key, new Entry(new Record(digest, null), ttl));
+        return true;
+    }
+
+    /*
+     * @see SharedIdempotencyStore#complete(String, Record, long)
+     */
+    @Override
+    public void complete(String key, Record record, long ttl) {
+        entries.put(key, new Entry(record, ttl));
+    }
+
+    /*
+     * @see SharedIdempotencyStore#get(String)
+     */
+    @Override
+    public Record get(String key) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().expires <= now) {
+                iterator.remove();
+            }
+        }
+
+        Entry entry = entries.get(key);
+        return entry != null ? entry.record : null;
+    }
+
+    /*
+     * @see SharedIdempotencyStore#release(String)
+     */
+    @Override
+    public void release(String key) {
+        entries.remove(key);
+    }
+}
@@ -0,0 +1,92 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.logging.Level;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * A {@link SharedIdempotencyStore} backed by memcache.
+ * <p>
+ * Claims are added using {@link MemcacheService.SetPolicy#ADD_ONLY_IF_NOT_PRESENT}, so only one instance can claim a key, and are held within their own
+ * namespace. Errors raised by memcache are logged by the error handler and, when a claim cannot be added but no existing claim can be read back either, the
+ * claim is treated as successful so that requests are still sent while memcache is unavailable.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class MemcacheIdempotencyStore implements SharedIdempotencyStore {
+
+    /** The memcache namespace in which claims are held. */
+    public static final String NAMESPACE = "Idempotency";
+
+    private final MemcacheService memcache;
+
+    /**
+     * Creates a new instance of {@link MemcacheIdempotencyStore}.
+     */
+    public MemcacheIdempotencyStore() {
+        this.memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+        this.memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.WARNING));
+    }
+
+    /*
+     * @see SharedIdempotencyStore#claim(String, byte[], long)
+     */
+    @Override
+    public boolean claim(String key, byte[] digest, long ttl) {
+        if (memcache.put(key, new Record(digest, null), Expiration.byDeltaMillis((int) Math.min(ttl, Integer.MAX_VALUE)),
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return true;
+        }
+
+        // Nothing can be read back when memcache is unavailable, in which case the request is sent rather than rejected
+        return get(key) == null;
+    }
+
+    /*
+     * @see SharedIdempotencyStore#complete(String, Record, long)
+     */
+    @Override
+    public void complete(String key, Record record, long ttl) {
+        memcache.put(key, record, Expiration.byDeltaMillis((int) Math.min(ttl, Integer.MAX_VALUE)));
+    }
+
+    /*
+     * @see SharedIdempotencyStore#get(String)
+     */
+    @Override
+    public Record get(String key) {
+        Object value = memcache.get(key);
+        return value instanceof Record ? (Record) value : null;
+    }
+
+    /*
+     * @see SharedIdempotencyStore#release(String)
+     */
+    @Override
+    public void release(String key) {
+        memcache.delete(key);
+    }
+}
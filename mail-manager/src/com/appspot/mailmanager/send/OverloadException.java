@@ -0,0 +1,82 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import com.appspot.mailmanager.MailException;
+
+/**
+ * The {@link MailException} that is used to indicate that a request has been shed because the instance is already handling as much as it can.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@SuppressWarnings("serial")
+public class OverloadException extends MailException {
+
+    private final long retryAfter;
+
+    /**
+     * Creates a new {@link OverloadException} with the specified detail {@code message} which indicates that the request can be retried after the
+     * {@code retryAfter} provided.
+     * 
+     * @param message
+     *            the detail message to be used
+     * @param retryAfter
+     *            the number of milliseconds after which the request can be retried
+     */
+    public OverloadException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Creates a new {@link OverloadException} with the specified detail {@code message} and {@code cause} which indicates that the request can be retried
+     * after the {@code retryAfter} provided.
+     * 
+     * @param message
+     *            the detail message to be used
+     * @param retryAfter
+     *            the number of milliseconds after which the request can be retried
+     * @param cause
+     *            the cause to be used
+     */
+    public OverloadException(String message, long retryAfter, Throwable cause) {
+        super(message, cause);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns the number of milliseconds after which the request can be retried.
+     * 
+     * @return The retry delay.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Returns the number of whole seconds after which the request can be retried, rounded up, as used by the {@code Retry-After} header.
+     * 
+     * @return The retry delay in seconds.
+     */
+    public long getRetryAfterSeconds() {
+        return (retryAfter + 999) / 1000;
+    }
+}
@@ -0,0 +1,141 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.Locale;
+
+/**
+ * The priorities with which messages can be sent, each of which is served by its own lane.
+ * <p>
+ * Every lane has its own share of the connections within the {@link TransportPool}, so a lane which is saturated, such as by a bulk newsletter, cannot
+ * hold up messages within another lane. The share of each lower lane should be set so that, together, they leave some connections which only
+ * {@link #HIGH} messages can use. Likewise, each lane can only use a share of the requests which the {@link AdmissionController} allows to be in flight,
+ * so that lower lanes are shed first when the instance is overloaded.
+ * <p>
+ * Messages which are accepted to be sent asynchronously are also queued within their lane, which has its own bounded queue and its own workers. Messages
+ * sent on the calling thread are not queued and are isolated only by the shares of connections and admissions of their lane.
+ * <p>
+ * Each lane is configured by the {@code mailmanager.send.lane.<name>.admission}, {@code mailmanager.send.lane.<name>.connections},
+ * {@code mailmanager.send.lane.<name>.queueSize}, and {@code mailmanager.send.lane.<name>.threads} system properties, where {@code <name>} is the
+ * {@link #getName() name} of the priority.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public enum Priority {
+
+    /** Transactional messages, such as password resets, which a user is waiting on. */
+    HIGH(2, 1000, 10, 100),
+    /** Messages which are neither urgent nor sent in bulk; this is the default. */
+    NORMAL(4, 1000, 5, 90),
+    /** Bulk messages, such as newsletters, which can wait behind everything else. */
+    LOW(2, 1000, 3, 50);
+
+    /**
+     * Returns the {@link Priority} with the specified {@code name}.
+     * 
+     * @param name
+     *            the name of the priority, ignoring case
+     * @return The {@link Priority} with the {@code name} provided.
+     * @throws IllegalArgumentException
+     *             If {@code name} is {@code null} or does not match any priority.
+     */
+    public static Priority forName(String name) {
+        if (name != null) {
+            for (Priority priority : values()) {
+                if (priority.getName().equalsIgnoreCase(name)) {
+                    return priority;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Invalid priority: " + name);
+    }
+
+    private final int admission;
+    private final int connections;
+    private final int queueSize;
+    private final int threads;
+
+    /**
+     * Creates a new instance of {@link Priority} with the default budget provided, any part of which may be overridden by system properties.
+     * 
+     * @param threads
+     *            the default number of workers serving the lane
+     * @param queueSize
+     *            the default maximum number of messages waiting within the lane
+     * @param connections
+     *            the default maximum number of connections which can be used by the lane at the same time
+     * @param admission
+     *            the default percentage of the limit on requests in flight which can be used by the lane
+     */
+    private Priority(int threads, int queueSize, int connections, int admission) {
+        String prefix = "mailmanager.send.lane." + getName() + ".";
+
+        this.admission = Integer.getInteger(prefix + "admission", admission);
+        this.connections = Integer.getInteger(prefix + "connections", connections);
+        this.queueSize = Integer.getInteger(prefix + "queueSize", queueSize);
+        this.threads = Integer.getInteger(prefix + "threads", threads);
+    }
+
+    /**
+     * Returns the percentage of the limit on requests in flight within the {@link AdmissionController} up to which requests for this lane are admitted.
+     * 
+     * @return The admission share.
+     */
+    public int getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Returns the maximum number of connections which can be borrowed from the {@link TransportPool} by this lane at the same time.
+     * 
+     * @return The connection share.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Returns the name of this priority as it appears in requests.
+     * 
+     * @return The name.
+     */
+    public String getName() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the maximum number of messages which can be waiting within this lane on each instance before more are rejected.
+     * 
+     * @return The queue size.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Returns the number of workers serving this lane on each instance.
+     * 
+     * @return The number of threads.
+     */
+    public int getThreads() {
+        return threads;
+    }
+}
@@ -0,0 +1,129 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import com.appspot.mailmanager.application.Application;
+
+/**
+ * The class responsible for limiting the rate at which each {@link Application} can send messages so that a single application cannot starve the others.
+ * <p>
+ * Every recipient of a message costs a single permit, however the message is sent, so that a merge or a batch is charged for exactly what it sends. Each
+ * {@link Application} is given its own {@link TokenBucket}, which is configured using its own limits or the defaults when it has none. Rate limiting is
+ * opt-in; an {@link Application} is not limited at all when neither it nor the defaults specify a rate. Since the buckets are held in memory, the limits
+ * apply to each instance separately.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class RateLimiter {
+
+    private static final String CLASS_NAME = RateLimiter.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The default maximum number of recipients that an application can send to in a single burst. */
+    private static final int DEFAULT_BURST = Integer.getInteger("mailmanager.send.rateBurst", 1000);
+    /** The default number of recipients per second that an application can send to once its burst has been used, where zero is unlimited. */
+    private static final double DEFAULT_LIMIT = Double.parseDouble(System.getProperty("mailmanager.send.rateLimit", "0"));
+
+    private static RateLimiter instance;
+
+    /**
+     * Retrieves the singleton instance of {@link RateLimiter}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized RateLimiter getInstance() {
+        if (instance == null) {
+            instance = new RateLimiter();
+        }
+        return instance;
+    }
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new instance of {@link RateLimiter}.
+     */
+    private RateLimiter() {
+    }
+
+    /**
+     * Takes the permits needed to send the specified {@code request} on behalf of the {@code application} provided, which is one for each recipient.
+     * 
+     * @param application
+     *            the {@link Application} sending the message
+     * @param request
+     *            the {@link SendRequest} to be sent
+     * @throws NullPointerException
+     *             If either {@code application} or {@code request} is {@code null}.
+     * @throws RateLimitException
+     *             If {@code application} has exceeded its rate limit.
+     */
+    public void acquire(Application application, SendRequest request) throws RateLimitException {
+        TokenBucket bucket = getBucket(application);
+        if (bucket == null) {
+            return;
+        }
+
+        long retryAfter = bucket.tryAcquire(Math.max(1, request.getRecipients().size()));
+
+        if (retryAfter > 0) {
+            log.fine("Rate limit exceeded: " + application.getName());
+
+            throw new RateLimitException("Rate limit exceeded", retryAfter);
+        }
+    }
+
+    /**
+     * Returns the {@link TokenBucket} for the specified {@code application}, replacing any existing one if the limits of {@code application} have changed.
+     * 
+     * @param application
+     *            the {@link Application} whose {@link TokenBucket} is to be returned
+     * @return The {@link TokenBucket} or {@code null} if {@code application} is not rate limited.
+     */
+    private TokenBucket getBucket(Application application) {
+        double rate = application.getRateLimit() > 0 ? application.getRateLimit() : DEFAULT_LIMIT;
+        int maxTokens = Math.min(application.getRateBurst() > 0 ? application.getRateBurst() : DEFAULT_BURST, TokenBucket.MAX_CAPACITY);
+
+        String apiKey = application.getApiKey();
+        if (!(rate > 0)) {
+            buckets.remove(apiKey);
+            return null;
+        }
+
+        TokenBucket bucket = buckets.get(apiKey);
+
+        while (bucket == null || bucket.getRate() != rate || bucket.getMaxTokens() != maxTokens) {
+            TokenBucket created = new TokenBucket(rate, maxTokens);
+
+            if (bucket == null ? buckets.putIfAbsent(apiKey, created) == null : buckets.replace(apiKey, bucket, created)) {
+                return created;
+            }
+
+            bucket = buckets.get(apiKey);
+        }
+
+        return bucket;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,274 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.appspot.mailmanager.CountingInputStream;
+import com.appspot.mailmanager.DocumentReader;
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.MailException;
+import com.appspot.mailmanager.RequestBody;
+import com.appspot.mailmanager.application.Application;
+import com.appspot.mailmanager.application.ApplicationManager;
+import com.appspot.mailmanager.metrics.Metrics;
+import com.appspot.mailmanager.metrics.Phase;
+import com.appspot.mailmanager.metrics.TimedReader;
+import com.google.appengine.labs.repackaged.org.json.JSONArray;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * The servlet responsible for sending many emails on behalf of registered {@link Application Applications} in a single request. The responses are very
+ * simple JSON strings.
+ * <p>
+ * The body must be a JSON array of objects in the same format as those accepted by {@link SendServlet}. Each distinct API key is only checked once and the
+ * valid messages are sent concurrently. Each recipient of each message counts towards the rate limit of its {@link Application}, just as it would if the
+ * message were sent alone, and any messages which exceed it are rejected individually. The response is a JSON array containing the {@link SendStatus} of
+ * each message, in the same order as they were requested, so that failures can be identified individually.
+ * <p>
+ * Like {@link SendServlet}, requests are shed with a {@code 503} response containing a {@code Retry-After} header whenever the {@link AdmissionController}
+ * does not admit them. Once its body has been parsed, a batch is admitted as many requests as the number of messages that it sends concurrently and the
+ * bytes actually read from its body are claimed in place of its {@code Content-Length}. Messages whose {@link Priority lane} has used up its share of
+ * the limit are then shed individually.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@SuppressWarnings("serial")
+public class SendBatchServlet extends HttpServlet {
+
+    private static final String CLASS_NAME = SendBatchServlet.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The maximum number of messages which can be sent in a single request. */
+    private static final int BATCH_MAX_SIZE = Integer.getInteger("mailmanager.send.batch.maxSize", 100);
+
+    /**
+     * Parses each of the messages within the JSON array contained within the body of {@code req}.
+     * <p>
+     * The body is parsed as it is streamed so that it never needs to be held in memory in its entirety. Each element which is not a valid message is
+     * represented by {@code null} so that it can be rejected individually. Since a batch may contain messages for many applications, the time taken to read
+     * and parse the body is recorded against an unknown application.
+     * 
+     * @param req
+     *            the {@code HttpServletRequest} to be read
+     * @param counted
+     *            the {@link CountingInputStream} for the (decompressed) body of {@code req}
+     * @return The {@link SendRequest SendRequests} derived from the body of {@code req}, in the order in which they were read.
+     * @throws MailException
+     *             If an {@code IOException} occurs when reading the body of {@code req}, the body is not a well-formed JSON array, or the array contains
+     *             too many elements.
+     */
+    private List<SendRequest> deriveRequests(HttpServletRequest req, CountingInputStream counted) throws MailException {
+        log.entering(CLASS_NAME, "deriveRequests", new Object[] { req, counted });
+
+        List<SendRequest> requests = new ArrayList<>();
+        TimedReader body = null;
+        DocumentReader reader = null;
+        long start = System.nanoTime();
+
+        try {
+            body = new TimedReader(RequestBody.openReader(req, counted));
+            reader = new JSONReader(body, SendServlet.MAX_LENGTH, SendServlet.MAX_STRING_LENGTH);
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (requests.size() >= BATCH_MAX_SIZE) {
+                    throw new MailException("Too many messages");
+                }
+
+                if (reader.peek() != DocumentReader.Token.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    requests.add(null);
+                    continue;
+                }
+
+                try {
+                    requests.add(SendRequest.fromJSON(reader));
+                } catch (IllegalArgumentException e) {
+                    log.log(Level.FINER, "Caught exception", e);
+                    requests.add(null);
+                }
+            }
+            reader.endArray();
+        } catch (IOException e) {
+            throw new MailException("Bad request", e);
+        } catch (JSONException e) {
+            throw new MailException("Invalid data", e);
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                log.log(Level.FINER, "Swallowing exception", e);
+            }
+
+            // Bodies which could not be opened have nothing to record
+            if (body != null) {
+                long read = body.getElapsed();
+                Metrics.getInstance().record(Phase.READ, null, read);
+                Metrics.getInstance().record(Phase.PARSE, null, System.nanoTime() - start - read);
+            }
+        }
+
+        log.exiting(CLASS_NAME, "deriveRequests", requests);
+        return requests;
+    }
+
+    /*
+     * @see HttpServlet#doPost(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doPost", new Object[] { req, resp });
+
+        AdmissionController admissionController = AdmissionController.getInstance();
+        Metrics metrics = Metrics.getInstance();
+        long bytes = Math.max(req.getContentLength(), 0);
+        int admitted = 0;
+
+        try {
+            admissionController.acquire(bytes);
+            admitted = 1;
+
+            CountingInputStream counted;
+            try {
+                counted = new CountingInputStream(RequestBody.openStream(req));
+            } catch (IOException e) {
+                throw new MailException("Bad request", e);
+            }
+            List<SendRequest> items = deriveRequests(req, counted);
+
+            // Weight the batch by the number of messages that it will send at once, now that it is known, so that it is not admitted as a single request
+            int weight = SendManager.getInstance().getConcurrency(items.size());
+            if (weight > admitted) {
+                admissionController.acquire(weight - admitted, 0);
+                admitted = weight;
+            }
+            if (counted.getCount() > bytes) {
+                admissionController.acquire(0, counted.getCount() - bytes);
+                bytes = counted.getCount();
+            }
+
+            SendStatus[] results = new SendStatus[items.size()];
+            List<SendRequest> requests = new ArrayList<>(results.length);
+            List<Integer> indices = new ArrayList<>(results.length);
+            Map<String, Application> applications = new HashMap<>();
+
+            for (int i = 0; i < results.length; i++) {
+                SendRequest request = items.get(i);
+                if (request == null) {
+                    metrics.count(Metrics.REQUESTS, null, FailureReason.INVALID_DATA.getName());
+                    results[i] = failed(null, "Invalid data");
+                    continue;
+                }
+
+                Application application = applications.get(request.getApiKey());
+                if (application == null && !applications.containsKey(request.getApiKey())) {
+                    long start = System.nanoTime();
+                    application = ApplicationManager.getInstance().getByApiKey(request.getApiKey());
+                    applications.put(request.getApiKey(), application);
+
+                    metrics.record(Phase.LOOKUP, application == null ? null : application.getApiKey(), System.nanoTime() - start);
+                }
+
+                if (application == null) {
+                    metrics.count(Metrics.REQUESTS, null, FailureReason.UNRECOGNIZED_API_KEY.getName());
+                    results[i] = failed(request.getApiKey(), "Unrecognized API key");
+                    continue;
+                }
+
+                try {
+                    admissionController.admit(request.getPriority());
+                    RateLimiter.getInstance().acquire(application, request);
+                    SendServlet.prepareContent(request);
+                } catch (MailException e) {
+                    log.log(Level.FINER, "Caught exception", e);
+                    metrics.count(Metrics.REQUESTS, application.getApiKey(), FailureReason.forException(e).getName());
+                    results[i] = failed(request.getApiKey(), e.getMessage());
+                    continue;
+                }
+
+                metrics.count(Metrics.REQUESTS, application.getApiKey(), Metrics.SUCCESS);
+                requests.add(request);
+                indices.add(i);
+            }
+
+            List<SendStatus> statuses = SendManager.getInstance().sendAll(requests);
+            for (int i = 0; i < statuses.size(); i++) {
+                results[indices.get(i)] = statuses.get(i);
+            }
+
+            JSONArray json = new JSONArray();
+            for (SendStatus result : results) {
+                json.put(result.toJSON());
+            }
+
+            resp.setContentType("application/json");
+            resp.getWriter().println(json.toString());
+        } catch (OverloadException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            metrics.count(Metrics.REQUESTS, null, FailureReason.forException(e).getName());
+            resp.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            resp.sendError(503, e.getMessage());
+        } catch (MailException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            metrics.count(Metrics.REQUESTS, null, FailureReason.forException(e).getName());
+            resp.sendError(500, e.getMessage());
+        } catch (JSONException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            metrics.count(Metrics.REQUESTS, null, FailureReason.INTERNAL.getName());
+            resp.sendError(500, "Failed to write response");
+        } finally {
+            if (admitted > 0) {
+                admissionController.release(admitted, bytes);
+            }
+        }
+
+        log.exiting(CLASS_NAME, "doPost");
+    }
+
+    /**
+     * Creates a {@link SendStatus} for a message that was rejected for the specified reason before it could be sent.
+     * 
+     * @param apiKey
+     *            the API key of the application that requested the message
+     * @param error
+     *            the reason why the message was rejected
+     * @return The failed {@link SendStatus}.
+     */
+    private SendStatus failed(String apiKey, String error) {
+        SendStatus status = new SendStatus(UUID.randomUUID().toString(), apiKey);
+        status.failed(error);
+        return status;
+    }
+}
\ No newline at end of file
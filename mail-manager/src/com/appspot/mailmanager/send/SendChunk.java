@@ -0,0 +1,123 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.appspot.mailmanager.Contact;
+import com.google.appengine.labs.repackaged.org.json.JSONArray;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * Contains the outcome of sending a message to a subset of the recipients of a {@link SendRequest} whose recipients were fanned out.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class SendChunk {
+
+    private volatile String error;
+    private final List<Contact> recipients;
+    private volatile SendStatus.State state = SendStatus.State.ACCEPTED;
+
+    /**
+     * Creates a new instance of {@link SendChunk} for the {@code recipients} provided.
+     * 
+     * @param recipients
+     *            the {@link Contact Contacts} to receive the message
+     */
+    SendChunk(List<Contact> recipients) {
+        this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+    }
+
+    /**
+     * Returns the reason why the message could not be sent to the recipients within this {@link SendChunk}.
+     * 
+     * @return The error message or {@code null} if the message has not failed.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Returns the {@link Contact Contacts} that are to receive the message.
+     * 
+     * @return The {@code List} of recipients.
+     */
+    public List<Contact> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Returns the current state of the message sent to the recipients within this {@link SendChunk}.
+     * 
+     * @return The {@link SendStatus.State}.
+     */
+    public SendStatus.State getState() {
+        return state;
+    }
+
+    /**
+     * Marks the message as having failed for the specified reason.
+     * 
+     * @param error
+     *            the reason why the message could not be sent
+     */
+    void failed(String error) {
+        this.error = error;
+        this.state = SendStatus.State.FAILED;
+    }
+
+    /**
+     * Sets the current state of the message to {@code state}.
+     * 
+     * @param state
+     *            the {@link SendStatus.State} to be set
+     */
+    void setState(SendStatus.State state) {
+        this.state = state;
+    }
+
+    /**
+     * Creates a {@code JSONObject} based on this {@link SendChunk}.
+     * <p>
+     * Only the email addresses of the recipients are included.
+     * 
+     * @return The derived {@code JSONObject}.
+     * @throws JSONException
+     *             If this {@link SendChunk} is malformed.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Contact recipient : recipients) {
+            array.put(recipient.getEmail());
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("recipients", array);
+        json.put("status", state.name());
+        json.putOpt("error", error);
+
+        return json;
+    }
+}
\ No newline at end of file
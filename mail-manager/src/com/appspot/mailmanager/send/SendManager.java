@@ -0,0 +1,1305 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import com.appspot.mailmanager.Contact;
+import com.appspot.mailmanager.MailException;
+import com.appspot.mailmanager.metrics.CounterSource;
+import com.appspot.mailmanager.metrics.Metrics;
+import com.appspot.mailmanager.metrics.Phase;
+import com.appspot.mailmanager.outbox.OutboxManager;
+import com.appspot.mailmanager.outbox.OutboxMessage;
+import com.appspot.mailmanager.schedule.ScheduleManager;
+import com.appspot.mailmanager.schedule.ScheduledMessage;
+import com.appspot.mailmanager.template.Template;
+import com.appspot.mailmanager.template.TemplateManager;
+
+/**
+ * The class responsible for constructing and sending email messages based on {@link SendRequest SendRequests}.
+ * <p>
+ * Messages can either be sent on the calling thread or accepted to be sent asynchronously by background workers, in which case their {@link SendStatus} can
+ * be polled using the ID assigned to them. Since background threads are used, asynchronous sends require an instance that uses either basic or manual
+ * scaling, along with {@link BackgroundThreadFactory#isEnabled() background threads} being enabled.
+ * <p>
+ * When the outbox is enabled, accepted messages are written to the durable outbox, from which they are sent and retried by the workers of the
+ * {@link OutboxManager}, rather than being held in memory, and those which are too large to be stored in the outbox are rejected. Messages sent on the
+ * calling thread which fail because the transport is unavailable are also written to the outbox and reported as accepted instead of failing outright.
+ * <p>
+ * Messages with a send time are held by the {@link ScheduleManager} until they are due and are then accepted in the same way as any other asynchronous
+ * message, keeping the ID which was assigned to them when they were scheduled.
+ * <p>
+ * The recipients of a message can be fanned out into chunks which are sent as separate messages concurrently, with the outcome of each chunk being
+ * reported individually.
+ * <p>
+ * Merged messages are rendered for each recipient by a small group of workers and handed to another group of workers, which send them, through a bounded
+ * queue. This means that only a limited number of rendered messages are ever held in memory, regardless of how many recipients there are.
+ * <p>
+ * Messages are sent using connected {@code Transports} borrowed from a {@link TransportPool} rather than opening a new connection for each one. Every send
+ * passes through a {@link CircuitBreaker} so that, while the {@code Transport} is failing or too slow, messages fail fast with a
+ * {@link TransportException}, which writes them to the outbox to be retried, instead of each waiting for the {@code Transport} to time out.
+ * <p>
+ * Every message is sent within the share of the {@link TransportPool} and of the {@link AdmissionController} given to the lane for its {@link Priority},
+ * so that transactional messages are not held up behind bulk messages. Only messages which are accepted to be sent asynchronously are also queued within
+ * the lane, each of which has its own workers and queue, and sent in weighted fair order across applications by a {@link FairExecutor} so that no single
+ * application can monopolize it. Messages sent on the calling thread are sent straight away, since the request is already waiting on them.
+ * <p>
+ * {@link Attachment Attachments} are held in memory, each in its own {@code ChunkBuffer}, and are read from there each time a message is written. They
+ * are disposed of once the message has been sent, which releases their memory. Since they are not durable, messages with attachments are never written
+ * to the outbox.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class SendManager {
+
+    /**
+     * A message which has been rendered for a single recipient and is waiting to be sent.
+     */
+    private static class MergedMessage {
+
+        final Message message;
+        final Contact recipient;
+
+        MergedMessage(Contact recipient, Message message) {
+            this.recipient = recipient;
+            this.message = message;
+        }
+    }
+
+    private static final String CLASS_NAME = SendManager.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The maximum number of workers used to send the messages within a single batch concurrently. */
+    private static final int BATCH_THREADS = Integer.getInteger("mailmanager.send.batch.threads", 8);
+    /** The proportion of recent calls to the {@code Transport} which must have failed for the circuit breaker to open. */
+    private static final double BREAKER_FAILURE_RATE = Double.parseDouble(System.getProperty("mailmanager.transport.breaker.failureRate", "0.5"));
+    /** The number of trial calls which must succeed while the circuit breaker is half-open for it to close. */
+    private static final int BREAKER_HALF_OPEN_CALLS = Integer.getInteger("mailmanager.transport.breaker.halfOpenCalls", 3);
+    /** The number of recent calls to the {@code Transport} which must be known before the circuit breaker can open. */
+    private static final int BREAKER_MIN_CALLS = Integer.getInteger("mailmanager.transport.breaker.minCalls", 10);
+    /** The number of milliseconds for which the circuit breaker stays open before trial calls are permitted. */
+    private static final long BREAKER_OPEN_DURATION = Long.getLong("mailmanager.transport.breaker.openDuration", 30 * 1000L);
+    /** The number of milliseconds above which a call to the {@code Transport} is considered slow. */
+    private static final long BREAKER_SLOW_CALL = Long.getLong("mailmanager.transport.breaker.slowCall", 5 * 1000L);
+    /** The proportion of recent calls to the {@code Transport} which must have been slow for the circuit breaker to open. */
+    private static final double BREAKER_SLOW_RATE = Double.parseDouble(System.getProperty("mailmanager.transport.breaker.slowRate", "0.8"));
+    /** The number of recent calls to the {@code Transport} whose outcomes are used by the circuit breaker. */
+    private static final int BREAKER_WINDOW_SIZE = Integer.getInteger("mailmanager.transport.breaker.windowSize", 50);
+    /** The maximum number of workers used to send the chunks of a single message concurrently. */
+    private static final int FAN_OUT_THREADS = Integer.getInteger("mailmanager.send.fanOut.threads", 8);
+    /** The maximum number of outcomes retained to answer requests which are repeated with the same idempotency key. */
+    private static final int IDEMPOTENCY_MAX_SIZE = Integer.getInteger("mailmanager.send.idempotency.maxSize", 10000);
+    /** The type of {@link SharedIdempotencyStore} in which idempotency keys are claimed: either {@code "memcache"} or {@code "local"}. */
+    private static final String IDEMPOTENCY_SHARED_STORE = System.getProperty("mailmanager.send.idempotency.sharedStore", "memcache");
+    /** The number of milliseconds for which a repeated request waits for the original request with the same idempotency key to complete. */
+    private static final long IDEMPOTENCY_TIMEOUT = Long.getLong("mailmanager.send.idempotency.timeout", 30 * 1000L);
+    /** The number of milliseconds for which the outcome of a request with an idempotency key is retained. */
+    private static final long IDEMPOTENCY_TTL = Long.getLong("mailmanager.send.idempotency.ttl", 60 * 60 * 1000L);
+    /** The maximum number of merged messages which can be waiting to be sent for a single request. */
+    private static final int MERGE_QUEUE_SIZE = Integer.getInteger("mailmanager.send.merge.queueSize", 100);
+    /** The number of workers used to render merged messages for a single request. */
+    private static final int MERGE_RENDER_THREADS = Integer.getInteger("mailmanager.send.merge.renderThreads", 2);
+    /** The number of milliseconds for which a merged message waits for space on the queue before it is sent by the worker which rendered it. */
+    private static final long MERGE_OFFER_TIMEOUT = Long.getLong("mailmanager.send.merge.offerTimeout", 500L);
+    /** The number of workers used to send merged messages for a single request. */
+    private static final int MERGE_SEND_THREADS = Integer.getInteger("mailmanager.send.merge.sendThreads", 8);
+    /** The maximum number of {@link SendStatus SendStatuses} to be retained for polling. */
+    private static final int STATUS_MAX_SIZE = Integer.getInteger("mailmanager.send.status.maxSize", 10000);
+    /** The number of milliseconds after which an idle {@code Transport} is closed. */
+    private static final long TRANSPORT_MAX_IDLE = Long.getLong("mailmanager.transport.pool.maxIdle", 60 * 1000L);
+    /** The maximum number of {@code Transports} that can be connected at the same time. */
+    private static final int TRANSPORT_MAX_SIZE = Integer.getInteger("mailmanager.transport.pool.maxSize", 10);
+    /** The number of milliseconds to wait for a {@code Transport} to become available. */
+    private static final long TRANSPORT_TIMEOUT = Long.getLong("mailmanager.transport.pool.timeout", 10 * 1000L);
+    /** The maximum number of workers shared by all batches, fanned out messages, and merges on the instance to perform their work concurrently. */
+    private static final int WORKER_THREADS = Integer.getInteger("mailmanager.send.workerThreads", 32);
+
+    private static SendManager instance;
+
+    /**
+     * Creates the {@link SharedIdempotencyStore} configured by {@code mailmanager.send.idempotency.sharedStore}.
+     * 
+     * @return The {@link SharedIdempotencyStore} to be used.
+     * @throws IllegalStateException
+     *             If the configured type is not recognized.
+     */
+    private static SharedIdempotencyStore createSharedIdempotencyStore() {
+        switch (IDEMPOTENCY_SHARED_STORE) {
+        case "memcache":
+            return new MemcacheIdempotencyStore();
+        case "local":
+            return new LocalIdempotencyStore();
+        default:
+            throw new IllegalStateException("Invalid shared idempotency store: " + IDEMPOTENCY_SHARED_STORE);
+        }
+    }
+
+    /**
+     * Creates the {@code Session} used to construct and send all messages.
+     * <p>
+     * Any system properties beginning with {@code "mail."} are passed to the {@code Session}, allowing the transport to be configured (e.g. to use a
+     * specific SMTP server).
+     * 
+     * @return The {@code Session}.
+     */
+    private static Session createSession() {
+        Properties properties = new Properties();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("mail.")) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+        return Session.getInstance(properties);
+    }
+
+    /**
+     * Creates the bounded pool of workers which is shared by all batches, fanned out messages, and merges to perform their work concurrently.
+     * <p>
+     * The pool never queues work; when all of its workers are busy, or none can be started, the work is instead performed by the thread which needs it.
+     * 
+     * @return The {@code ThreadPoolExecutor}.
+     * @see #invokeAll(List, int)
+     */
+    private static ThreadPoolExecutor createWorkers() {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                BackgroundThreadFactory.getInstance());
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
+
+    /**
+     * Retrieves the singleton instance of {@link SendManager}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized SendManager getInstance() {
+        if (instance == null) {
+            instance = new SendManager();
+        }
+        return instance;
+    }
+
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker("transport", BREAKER_WINDOW_SIZE, BREAKER_MIN_CALLS, BREAKER_FAILURE_RATE,
+            BREAKER_SLOW_RATE, BREAKER_SLOW_CALL, BREAKER_OPEN_DURATION, BREAKER_HALF_OPEN_CALLS);
+    private final Map<Priority, FairExecutor> executors = new EnumMap<>(Priority.class);
+    private final IdempotencyCache idempotencyCache = new IdempotencyCache(IDEMPOTENCY_MAX_SIZE, IDEMPOTENCY_TTL, IDEMPOTENCY_TIMEOUT,
+            createSharedIdempotencyStore());
+    private final Session session = createSession();
+    private final TransportPool transportPool = new TransportPool(session, TRANSPORT_MAX_SIZE, TRANSPORT_MAX_IDLE, TRANSPORT_TIMEOUT);
+    private final Map<String, SendStatus> statuses = new LinkedHashMap<String, SendStatus>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SendStatus> eldest) {
+            return size() > STATUS_MAX_SIZE;
+        }
+    };
+    private final ThreadPoolExecutor workers = createWorkers();
+
+    /**
+     * Creates a new instance of {@link SendManager}.
+     */
+    private SendManager() {
+        Metrics.getInstance().registerCounter("transport_breaker_transitions", "state", new CounterSource() {
+
+            @Override
+            public Map<String, Long> sample() {
+                return circuitBreaker.getTransitions();
+            }
+        });
+    }
+
+    /**
+     * Accepts the specified {@code request} to be sent asynchronously by a background worker.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @return The {@link SendStatus} of the accepted message, which contains its ID.
+     * @throws MailException
+     *             If too many messages are already waiting to be sent or the message could not be written to the outbox.
+     */
+    private SendStatus accept(final SendRequest request) throws MailException {
+        log.entering(CLASS_NAME, "accept", request);
+
+        final SendStatus status = new SendStatus(UUID.randomUUID().toString(), request.getApiKey());
+
+        synchronized (statuses) {
+            statuses.put(status.getId(), status);
+        }
+
+        try {
+            if (request.getSendAt() > 0) {
+                if (!request.getAttachments().isEmpty()) {
+                    throw new MailException("Attachments cannot be scheduled");
+                }
+
+                status.setState(SendStatus.State.SCHEDULED);
+                ScheduleManager.getInstance().add(status.getId(), request);
+            } else {
+                enqueue(request, status);
+            }
+        } catch (MailException e) {
+            synchronized (statuses) {
+                statuses.remove(status.getId());
+            }
+            throw e;
+        }
+
+        log.exiting(CLASS_NAME, "accept", status);
+        return status;
+    }
+
+    /**
+     * Accepts the specified {@code request}, which has been released from the schedule, to be sent asynchronously by a background worker.
+     * <p>
+     * If this instance scheduled the message, it continues to use its existing {@link SendStatus} so that it can be polled.
+     * 
+     * @param id
+     *            the ID of the message, which was assigned to it when it was scheduled
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @return The {@link SendStatus} of the accepted message.
+     * @throws MailException
+     *             If too many messages are already waiting to be sent or the message could not be written to the outbox.
+     */
+    public SendStatus acceptScheduled(String id, SendRequest request) throws MailException {
+        log.entering(CLASS_NAME, "acceptScheduled", new Object[] { id, request });
+
+        SendStatus status;
+        synchronized (statuses) {
+            status = statuses.get(id);
+            if (status == null) {
+                status = new SendStatus(id, request.getApiKey());
+                statuses.put(id, status);
+            }
+        }
+
+        status.setState(SendStatus.State.ACCEPTED);
+
+        try {
+            enqueue(request, status);
+        } catch (MailException e) {
+            status.setState(SendStatus.State.SCHEDULED);
+            throw e;
+        }
+
+        log.exiting(CLASS_NAME, "acceptScheduled", status);
+        return status;
+    }
+
+    /**
+     * Writes the specified {@code request} to the outbox, if it is enabled, or otherwise hands it to a background worker to be sent, recording the outcome on
+     * the {@code status} provided.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @param status
+     *            the {@link SendStatus} of the accepted message
+     * @throws MailException
+     *             If too many messages are already waiting to be sent, no background worker could be started or the message could not be written to the
+     *             outbox.
+     */
+    private void enqueue(final SendRequest request, final SendStatus status) throws MailException {
+        try {
+            if (OutboxManager.isEnabled() && request.getAttachments().isEmpty()) {
+                OutboxManager.getInstance().add(status.getId(), request);
+            } else {
+                getExecutor(request.getPriority()).execute(request, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        status.setState(SendStatus.State.SENDING);
+
+                        try {
+                            deliver(request, status);
+                        } catch (TransportException e) {
+                            log.log(Level.WARNING, "Failed to send message: " + status.getId(), e);
+                            countFailure(request);
+                            status.failed(e.getMessage());
+                        } catch (MailException e) {
+                            log.log(Level.WARNING, "Failed to send message: " + status.getId(), e);
+                            status.failed(e.getMessage());
+                        } finally {
+                            request.disposeAttachments();
+                        }
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            throw new OverloadException("Too many pending messages", AdmissionController.getInstance().getRetryAfter(), e);
+        } catch (IllegalStateException e) {
+            throw new MailException("Unable to start background worker", e);
+        }
+    }
+
+    /**
+     * Adds the plain text or HTML contents, along with any {@code attachments}, to the {@code message} accordingly.
+     * <p>
+     * Either plain text or HTML contents may be added to the {@code message}, but never both. The {@code attachments} are always base64 encoded so that
+     * they do not need to be scanned to choose an encoding; they are only read when the {@code message} is written.
+     * 
+     * @param message
+     *            the {@code Message} to which the contents are to be added
+     * @param html
+     *            the HTML contents, which take precedence
+     * @param text
+     *            the plain text contents
+     * @param attachments
+     *            the {@link Attachment Attachments} to be added
+     * @throws MessagingException
+     *             If an error occurs while adding the contents.
+     */
+    void addContent(Message message, String html, String text, List<Attachment> attachments) throws MessagingException {
+        log.entering(CLASS_NAME, "addContent", new Object[] { message, html, text, attachments });
+
+        if (html != null || !attachments.isEmpty()) {
+            Multipart content = new MimeMultipart();
+
+            if (html != null) {
+                MimeBodyPart part = new MimeBodyPart();
+                part.setContent(html, "text/html");
+                content.addBodyPart(part);
+            } else if (text != null) {
+                MimeBodyPart part = new MimeBodyPart();
+                part.setText(text);
+                content.addBodyPart(part);
+            }
+
+            for (Attachment attachment : attachments) {
+                MimeBodyPart part = new MimeBodyPart();
+                part.setDataHandler(new DataHandler(attachment));
+                part.setFileName(attachment.getFileName());
+                part.setDisposition(Part.ATTACHMENT);
+                part.setHeader("Content-Transfer-Encoding", "base64");
+                content.addBodyPart(part);
+            }
+
+            message.setContent(content);
+        } else if (text != null) {
+            message.setText(text);
+        }
+
+        log.exiting(CLASS_NAME, "addContent");
+    }
+
+    /**
+     * Constructs a message based on the information contained within the specified {@code request} to be sent to the {@code recipients} provided.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @param recipients
+     *            the {@link Contact Contacts} to receive the message
+     * @param html
+     *            the HTML contents of the message
+     * @param text
+     *            the plain text contents of the message
+     * @return The constructed {@code Message}, whose headers have been updated.
+     * @throws MailException
+     *             If an error occurs while constructing the message.
+     */
+    Message createMessage(SendRequest request, Collection<Contact> recipients, String html, String text) throws MailException {
+        log.entering(CLASS_NAME, "createMessage", new Object[] { request, recipients });
+
+        long start = System.nanoTime();
+        Message message = new MimeMessage(session);
+
+        try {
+            message.setFrom(request.getSender().toInternetAddress());
+            for (Contact recipient : recipients) {
+                message.addRecipient(Message.RecipientType.TO, recipient.toInternetAddress());
+            }
+            message.setSubject(request.getSubject());
+
+            addContent(message, html, text, request.getAttachments());
+
+            message.saveChanges();
+        } catch (AddressException | UnsupportedEncodingException e) {
+            throw new MailException("Invalid address", e);
+        } catch (MessagingException e) {
+            throw new MailException("Message could not be sent", e);
+        } finally {
+            Metrics.getInstance().record(Phase.BUILD, request.getApiKey(), System.nanoTime() - start);
+        }
+
+        log.exiting(CLASS_NAME, "createMessage", message);
+        return message;
+    }
+
+    /**
+     * Returns the executor used to send messages with the specified {@code priority} asynchronously, creating it if necessary.
+     * <p>
+     * Each {@link Priority} has its own executor, with its own workers and bounded queue, so that a backlog within one lane does not delay the others.
+     * 
+     * @param priority
+     *            the {@link Priority} of the messages to be sent
+     * @return The {@link FairExecutor}.
+     */
+    private synchronized FairExecutor getExecutor(Priority priority) {
+        FairExecutor executor = executors.get(priority);
+        if (executor == null) {
+            executor = new FairExecutor(priority.getName(), priority.getThreads(), priority.getQueueSize(), BackgroundThreadFactory.getInstance());
+            executors.put(priority, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the circuit breaker which stops messages being sent while the {@code Transport} is failing or too slow.
+     * 
+     * @return The {@link CircuitBreaker}.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Returns the number of messages which are sent concurrently by {@link #sendAll(List)} for a batch containing the specified number of {@code messages}.
+     * 
+     * @param messages
+     *            the number of messages within the batch
+     * @return The number of messages sent concurrently, which is always at least one.
+     */
+    public int getConcurrency(int messages) {
+        return Math.max(1, Math.min(messages, BATCH_THREADS));
+    }
+
+    /**
+     * Returns the cache of outcomes used to answer requests which are repeated with the same idempotency key.
+     * 
+     * @return The {@link IdempotencyCache}.
+     */
+    public IdempotencyCache getIdempotencyCache() {
+        return idempotencyCache;
+    }
+
+    /**
+     * Returns the pool of connected {@code Transports} used to send messages.
+     * 
+     * @return The {@link TransportPool}.
+     */
+    public TransportPool getTransportPool() {
+        return transportPool;
+    }
+
+    /**
+     * Returns the {@link SendStatus} of the message with the specified {@code id} that was accepted to be sent asynchronously.
+     * <p>
+     * Only a limited number of statuses are retained, so the status of older messages may no longer be available.
+     * 
+     * @param id
+     *            the ID of the message
+     * @return The {@link SendStatus} of the message or {@code null} if none could be found.
+     */
+    public SendStatus getStatus(String id) {
+        SendStatus status;
+        synchronized (statuses) {
+            status = statuses.get(id);
+        }
+
+        if (status == null && OutboxManager.isEnabled()) {
+            status = getQueuedStatus(id);
+        }
+        if (status == null && ScheduleManager.isEnabled()) {
+            status = getScheduledStatus(id);
+        }
+        return status;
+    }
+
+    /**
+     * Derives the {@link SendStatus} of the message with the specified {@code id} from the outbox.
+     * <p>
+     * This allows the status of messages accepted by other instances to be polled, although messages which have been sent are removed from the outbox and
+     * so can only be found on the instance which accepted them.
+     * 
+     * @param id
+     *            the ID of the message
+     * @return The {@link SendStatus} of the message or {@code null} if it is neither waiting in the outbox nor a dead letter.
+     */
+    private SendStatus getQueuedStatus(String id) {
+        OutboxMessage message = OutboxManager.getInstance().getOutbox().get(id);
+        if (message != null) {
+            return new SendStatus(id, message.getApiKey());
+        }
+
+        message = OutboxManager.getInstance().getOutbox().getDeadLetter(id);
+        if (message != null) {
+            SendStatus status = new SendStatus(id, message.getApiKey());
+            status.failed(message.getError());
+            return status;
+        }
+        return null;
+    }
+
+    /**
+     * Derives the {@link SendStatus} of the message with the specified {@code id} from the schedule.
+     * <p>
+     * This allows the status of messages scheduled by other instances to be polled until they are released.
+     * 
+     * @param id
+     *            the ID of the message
+     * @return The {@link SendStatus} of the message or {@code null} if it is not waiting in the schedule.
+     */
+    private SendStatus getScheduledStatus(String id) {
+        ScheduledMessage message = ScheduleManager.getInstance().getSchedule().get(id);
+        if (message == null) {
+            return null;
+        }
+
+        SendStatus status = new SendStatus(id, message.getApiKey());
+        status.setState(SendStatus.State.SCHEDULED);
+        return status;
+    }
+
+    /**
+     * Counts a message sent on behalf of the specified {@code request} as having failed permanently in the {@link Metrics}.
+     * 
+     * @param request
+     *            the {@link SendRequest} whose message failed
+     */
+    private void countFailure(SendRequest request) {
+        Metrics.getInstance().count(Metrics.DELIVERIES, request.getApiKey(), SendStatus.State.FAILED.name());
+    }
+
+    /**
+     * Sends an email based on the information contained within the specified {@code request}, recording the outcome on the {@code status} provided.
+     * <p>
+     * If the recipients are to be fanned out, each chunk of recipients is sent as a separate message concurrently. In this case, the outcome of each chunk
+     * is recorded on {@code status} rather than an exception being thrown when any of them fail. Likewise, if the message is to be merged, the outcome for
+     * each recipient is recorded on {@code status}. The final outcome is also counted in the {@link Metrics}, except when a {@link TransportException} is
+     * thrown, which must be counted using {@link #countFailure(SendRequest)} by the caller if the message will not be retried.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @param status
+     *            the {@link SendStatus} on which the outcome is to be recorded
+     * @throws MailException
+     *             If an error occurs while constructing or sending an email whose recipients are not being fanned out.
+     */
+    private void deliver(SendRequest request, SendStatus status) throws MailException {
+        try {
+            dispatch(request, status);
+        } catch (TransportException e) {
+            // The message may yet be written to the outbox or retried, so the failure is only counted by the caller once it is permanent
+            throw e;
+        } catch (MailException e) {
+            countFailure(request);
+            throw e;
+        }
+
+        Metrics.getInstance().count(Metrics.DELIVERIES, request.getApiKey(), status.getState().name());
+    }
+
+    /**
+     * Sends an email based on the information contained within the specified {@code request}.
+     * <p>
+     * If the outbox is enabled and the message could not be sent because the transport is unavailable, the message is written to the outbox to be retried
+     * and the returned {@link SendStatus} reports that it has been accepted, unless it has {@link Attachment Attachments} or is too large to be queued.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @return The {@link SendStatus} of the message.
+     * @throws MailException
+     *             If an error occurs while constructing or sending an email whose recipients are not being fanned out and it was not written to the
+     *             outbox.
+     */
+    private SendStatus deliverOrQueue(SendRequest request) throws MailException {
+        SendStatus status = new SendStatus(UUID.randomUUID().toString(), request.getApiKey());
+        status.setState(SendStatus.State.SENDING);
+
+        try {
+            deliver(request, status);
+        } catch (TransportException e) {
+            // Without background threads, nothing could drain the outbox, so the message fails as it would without one
+            if (!OutboxManager.isEnabled() || !BackgroundThreadFactory.isEnabled() || !request.getAttachments().isEmpty()) {
+                countFailure(request);
+                throw e;
+            }
+
+            log.log(Level.FINER, "Caught exception", e);
+
+            // A message which cannot be queued, such as one which is too large, fails with the error from the transport
+            try {
+                OutboxManager.getInstance().add(status.getId(), request, e.getMessage());
+            } catch (MailException queueError) {
+                countFailure(request);
+                e.addSuppressed(queueError);
+                throw e;
+            }
+
+            status.setState(SendStatus.State.ACCEPTED);
+            synchronized (statuses) {
+                statuses.put(status.getId(), status);
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Sends an email based on the information contained within the specified {@code request} in the appropriate manner, recording the outcome on the
+     * {@code status} provided.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @param status
+     *            the {@link SendStatus} on which the outcome is to be recorded
+     * @throws MailException
+     *             If an error occurs while constructing or sending an email whose recipients are not being fanned out.
+     * @see #deliver(SendRequest, SendStatus)
+     */
+    private void dispatch(final SendRequest request, SendStatus status) throws MailException {
+        log.entering(CLASS_NAME, "dispatch", new Object[] { request, status });
+
+        if (request.isMerge()) {
+            merge(request, status);
+
+            log.exiting(CLASS_NAME, "dispatch");
+            return;
+        }
+
+        int chunkSize = request.getChunkSize();
+        if (chunkSize <= 0) {
+            sendMessage(request, request.getRecipients());
+            status.setState(SendStatus.State.SENT);
+
+            log.exiting(CLASS_NAME, "dispatch");
+            return;
+        }
+
+        List<Contact> recipients = new ArrayList<>(request.getRecipients());
+        List<SendChunk> chunks = new ArrayList<>();
+        List<Callable<SendChunk>> tasks = new ArrayList<>();
+
+        for (int i = 0; i < recipients.size(); i += chunkSize) {
+            final SendChunk chunk = new SendChunk(recipients.subList(i, Math.min(i + chunkSize, recipients.size())));
+            chunks.add(chunk);
+
+            tasks.add(new Callable<SendChunk>() {
+
+                @Override
+                public SendChunk call() {
+                    chunk.setState(SendStatus.State.SENDING);
+
+                    try {
+                        sendMessage(request, chunk.getRecipients());
+                        chunk.setState(SendStatus.State.SENT);
+                    } catch (MailException e) {
+                        log.log(Level.FINER, "Caught exception", e);
+                        chunk.failed(e.getMessage());
+                    }
+
+                    return chunk;
+                }
+            });
+        }
+
+        status.setChunks(chunks);
+        invokeAll(tasks, FAN_OUT_THREADS);
+
+        int failures = 0;
+        for (SendChunk chunk : chunks) {
+            if (chunk.getState() == SendStatus.State.FAILED) {
+                failures++;
+            }
+        }
+
+        if (failures == 0) {
+            status.setState(SendStatus.State.SENT);
+        } else {
+            status.failed(failures + " of " + chunks.size() + " chunks could not be sent");
+        }
+
+        log.exiting(CLASS_NAME, "dispatch");
+    }
+
+    /**
+     * Executes all of the specified {@code tasks} concurrently and waits for them all to complete.
+     * <p>
+     * The tasks are performed by the current thread along with as many of the shared workers as are available, up to {@code maxThreads} in total. Since
+     * the current thread always takes part, and the workers are never waited for, tasks which themselves execute further tasks cannot exhaust the workers
+     * or deadlock; they simply run with less concurrency when the instance is busy.
+     * 
+     * @param tasks
+     *            the tasks to be executed
+     * @param maxThreads
+     *            the maximum number of threads to be used, including the current thread
+     * @return The results of each task, in the same order as {@code tasks}.
+     * @throws MailException
+     *             If the current thread is interrupted while waiting or any of the tasks throws an exception.
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks, int maxThreads) throws MailException {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.isEmpty()) {
+            return results;
+        }
+
+        final List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new FutureTask<>(task));
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        Runnable runner = new Runnable() {
+
+            @Override
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < futures.size()) {
+                    futures.get(index).run();
+                }
+            }
+        };
+
+        for (int i = 1; i < Math.min(maxThreads, futures.size()); i++) {
+            try {
+                workers.execute(runner);
+            } catch (RejectedExecutionException | IllegalStateException e) {
+                log.log(Level.FINEST, "No more workers available", e);
+                break;
+            }
+        }
+        runner.run();
+
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new MailException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new MailException("Message could not be sent", e.getCause());
+        }
+
+        return results;
+    }
+
+    /**
+     * Renders and sends a separate message to each recipient of the specified {@code request}, recording the outcome on the {@code status} provided.
+     * <p>
+     * Messages are rendered by workers which pull recipients from a shared iterator and offer each rendered message to a bounded queue. Other workers take
+     * the messages from the queue and send them as soon as they are available. Since rendering is faster than sending, the queue caps the number of
+     * rendered messages held in memory for the request. A message which cannot be queued promptly, or while no workers are sending, is sent by the worker
+     * which rendered it so that the merge always completes, however few workers are available. Should any worker fail unexpectedly, the merge is cancelled
+     * and every recipient whose message was not sent is recorded as having failed.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be merged
+     * @param status
+     *            the {@link SendStatus} on which the outcome is to be recorded
+     * @throws MailException
+     *             If the template could not be found or compiled, the current thread is interrupted while waiting, or a worker failed unexpectedly.
+     */
+    private void merge(final SendRequest request, final SendStatus status) throws MailException {
+        log.entering(CLASS_NAME, "merge", new Object[] { request, status });
+
+        final Template template = getMergeTemplate(request, status.getId());
+        final Iterator<Contact> recipients = request.getRecipients().iterator();
+        final BlockingQueue<MergedMessage> queue = new ArrayBlockingQueue<>(MERGE_QUEUE_SIZE);
+        final AtomicInteger renderers = new AtomicInteger(MERGE_RENDER_THREADS);
+        final AtomicInteger senders = new AtomicInteger();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+
+        status.setRecipientCount(request.getRecipients().size());
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (int i = 0; i < MERGE_RENDER_THREADS; i++) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws InterruptedException {
+                    try {
+                        Contact recipient;
+
+                        while (!cancelled.get() && (recipient = nextRecipient(recipients)) != null) {
+                            MergedMessage merged;
+                            try {
+                                Map<String, String> variables = getMergeVariables(request, recipient);
+                                merged = new MergedMessage(recipient, createMessage(request, Collections.singleton(recipient),
+                                        template.renderHtml(variables), template.renderText(variables)));
+                            } catch (MailException | RuntimeException e) {
+                                log.log(Level.FINER, "Caught exception", e);
+                                status.recipientFailed(recipient);
+                                continue;
+                            }
+
+                            if (senders.get() == 0 || !queue.offer(merged, MERGE_OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                                sendMerged(request, status, merged);
+                            }
+                        }
+                    } catch (RuntimeException | Error e) {
+                        cancelled.set(true);
+                        throw e;
+                    } finally {
+                        renderers.decrementAndGet();
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        for (int i = 0; i < MERGE_SEND_THREADS; i++) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws InterruptedException {
+                    senders.incrementAndGet();
+
+                    try {
+                        while (!cancelled.get() && (renderers.get() > 0 || !queue.isEmpty())) {
+                            MergedMessage merged = queue.poll(MERGE_OFFER_TIMEOUT, TimeUnit.MILLISECONDS);
+                            if (merged != null) {
+                                sendMerged(request, status, merged);
+                            }
+                        }
+                    } catch (RuntimeException | Error e) {
+                        cancelled.set(true);
+                        throw e;
+                    } finally {
+                        senders.decrementAndGet();
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        try {
+            invokeAll(tasks, tasks.size());
+        } finally {
+            // Account for every recipient left behind if the merge was cancelled
+            MergedMessage merged;
+            while ((merged = queue.poll()) != null) {
+                status.recipientFailed(merged.recipient);
+            }
+
+            Contact recipient;
+            while ((recipient = nextRecipient(recipients)) != null) {
+                status.recipientFailed(recipient);
+            }
+        }
+
+        int failures = status.getFailureCount();
+        if (failures == 0) {
+            status.setState(SendStatus.State.SENT);
+        } else {
+            status.failed(failures + " of " + status.getRecipientCount() + " recipients could not be sent");
+        }
+
+        log.exiting(CLASS_NAME, "merge");
+    }
+
+    /**
+     * Returns the {@link Template} to be rendered for each recipient of the specified merge {@code request}.
+     * <p>
+     * If {@code request} does not specify a registered {@link Template}, its own content is compiled into one so that it is only parsed once.
+     * 
+     * @param request
+     *            the {@link SendRequest} being merged
+     * @param id
+     *            the ID to be given to a {@link Template} compiled from the content of {@code request}
+     * @return The {@link Template}.
+     * @throws MailException
+     *             If the {@link Template} could not be found or the content of {@code request} could not be compiled.
+     */
+    private Template getMergeTemplate(SendRequest request, String id) throws MailException {
+        if (request.getTemplate() != null) {
+            Template template = TemplateManager.getInstance().get(request.getApiKey(), request.getTemplate());
+            if (template == null) {
+                throw new MailException("Unrecognized template");
+            }
+            return template;
+        }
+
+        try {
+            return new Template(request.getApiKey(), id, request.getHtml(), request.getText());
+        } catch (IllegalArgumentException e) {
+            throw new MailException("Invalid template", e);
+        }
+    }
+
+    /**
+     * Returns the variables to be used to render the merged message for the specified {@code recipient} of the {@code request} provided.
+     * 
+     * @param request
+     *            the {@link SendRequest} being merged
+     * @param recipient
+     *            the {@link Contact} for whom the message is being rendered
+     * @return The variable values mapped to their names.
+     */
+    private Map<String, String> getMergeVariables(SendRequest request, Contact recipient) {
+        Map<String, String> recipientVariables = request.getRecipientVariables().get(recipient.getNormalizedEmail());
+
+        Map<String, String> variables = new HashMap<>();
+        variables.put("email", recipient.getEmail());
+        variables.put("name", recipient.getName());
+        variables.putAll(request.getVariables());
+        if (recipientVariables != null) {
+            variables.putAll(recipientVariables);
+        }
+
+        return variables;
+    }
+
+    /**
+     * Returns the next recipient from the specified {@code recipients}, which are shared between the workers rendering a merged message.
+     * 
+     * @param recipients
+     *            the {@code Iterator} of recipients
+     * @return The next {@link Contact} or {@code null} if there are no more.
+     */
+    private Contact nextRecipient(Iterator<Contact> recipients) {
+        synchronized (recipients) {
+            return recipients.hasNext() ? recipients.next() : null;
+        }
+    }
+
+    /**
+     * Sends an email based on the information contained within the specified {@code request}.
+     * <p>
+     * If the recipients are to be fanned out, each chunk is sent concurrently and the outcome of each chunk is recorded on the returned
+     * {@link SendStatus}.
+     * <p>
+     * If {@code request} repeats an earlier request with the same idempotency key, the {@link SendStatus} of the earlier request is returned instead.
+     * <p>
+     * Any {@link Attachment Attachments} of {@code request} are disposed of before this method returns.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @return The {@link SendStatus} of the message.
+     * @throws MailException
+     *             If an error occurs while constructing or sending an email whose recipients are not being fanned out.
+     */
+    public SendStatus send(final SendRequest request) throws MailException {
+        log.entering(CLASS_NAME, "send", request);
+
+        SendStatus status;
+        try {
+            status = idempotencyCache.send(request, new Callable<SendStatus>() {
+
+                @Override
+                public SendStatus call() throws MailException {
+                    return deliverOrQueue(request);
+                }
+            });
+        } finally {
+            request.disposeAttachments();
+        }
+
+        log.exiting(CLASS_NAME, "send", status);
+        return status;
+    }
+
+    /**
+     * Sends the message with the specified {@code id} which has been leased from the outbox.
+     * <p>
+     * If this instance accepted the message, the outcome is recorded on its existing {@link SendStatus} so that it can be polled.
+     * 
+     * @param id
+     *            the ID of the message
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @param lastAttempt
+     *            {@code true} if the message will not be retried should this attempt fail; otherwise {@code false}
+     * @return The {@link SendStatus} of the message.
+     * @throws TransportException
+     *             If the message could not be sent but may succeed if it is retried.
+     * @throws MailException
+     *             If the message can never be sent.
+     */
+    public SendStatus sendQueued(String id, SendRequest request, boolean lastAttempt) throws MailException {
+        log.entering(CLASS_NAME, "sendQueued", new Object[] { id, request, lastAttempt });
+
+        SendStatus status;
+        synchronized (statuses) {
+            status = statuses.get(id);
+        }
+        if (status == null) {
+            status = new SendStatus(id, request.getApiKey());
+        }
+
+        status.setState(SendStatus.State.SENDING);
+
+        try {
+            deliver(request, status);
+        } catch (TransportException e) {
+            if (lastAttempt) {
+                countFailure(request);
+                status.failed(e.getMessage());
+            } else {
+                status.setState(SendStatus.State.ACCEPTED);
+            }
+            throw e;
+        } catch (MailException e) {
+            status.failed(e.getMessage());
+            throw e;
+        }
+
+        log.exiting(CLASS_NAME, "sendQueued", status);
+        return status;
+    }
+
+    /**
+     * Sends the specified {@code merged} message, which was rendered for the {@code request} provided, recording the outcome for its recipient on
+     * {@code status}.
+     * <p>
+     * Any failure to send the message is only recorded so that it cannot stop the other recipients from being sent their messages.
+     * 
+     * @param request
+     *            the {@link SendRequest} being merged
+     * @param status
+     *            the {@link SendStatus} on which the outcome is to be recorded
+     * @param merged
+     *            the {@link MergedMessage} to be sent
+     */
+    private void sendMerged(SendRequest request, SendStatus status, MergedMessage merged) {
+        try {
+            transmit(request, merged.message);
+            status.recipientSent();
+        } catch (MailException | RuntimeException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            status.recipientFailed(merged.recipient);
+        }
+    }
+
+    /**
+     * Sends a single email based on the information contained within the specified {@code request} to the {@code recipients} provided.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @param recipients
+     *            the {@link Contact Contacts} to receive the email
+     * @throws MailException
+     *             If an error occurs while constructing or sending the email.
+     */
+    private void sendMessage(SendRequest request, Collection<Contact> recipients) throws MailException {
+        log.entering(CLASS_NAME, "sendMessage", new Object[] { request, recipients });
+
+        transmit(request, createMessage(request, recipients, request.getHtml(), request.getText()));
+
+        log.exiting(CLASS_NAME, "sendMessage");
+    }
+
+    /**
+     * Sends the specified {@code message}, which has already been constructed, using a {@code Transport} borrowed from the pool within the share of the
+     * priority of {@code request}.
+     * <p>
+     * The outcome is recorded by the {@link CircuitBreaker}, with failures to connect a {@code Transport} counting as failed calls, and nothing is sent
+     * while it is open. Timing out while waiting to borrow a {@code Transport} is not recorded, since it only shows that this instance is busy.
+     * 
+     * @param request
+     *            the {@link SendRequest} from which {@code message} was constructed
+     * @param message
+     *            the {@code Message} to be sent
+     * @throws MailException
+     *             If an error occurs while sending the message.
+     * @throws TransportException
+     *             If the {@link CircuitBreaker} is open or the {@code Transport} failed.
+     */
+    private void transmit(SendRequest request, Message message) throws MailException {
+        log.entering(CLASS_NAME, "transmit", new Object[] { request, message });
+
+        CircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        if (permit == null) {
+            throw new TransportException("Transport unavailable");
+        }
+
+        boolean healthy = false;
+        boolean timedOut = false;
+        long elapsed = 0;
+
+        try {
+            Transport transport = transportPool.borrow(request.getPriority());
+            long start = System.nanoTime();
+
+            try {
+                transport.sendMessage(message, message.getAllRecipients());
+                healthy = true;
+            } catch (SendFailedException e) {
+                healthy = true;
+                throw e;
+            } finally {
+                elapsed = System.nanoTime() - start;
+
+                Metrics.getInstance().record(Phase.TRANSPORT, request.getApiKey(), elapsed);
+                AdmissionController.getInstance().sample(elapsed, !healthy);
+                transportPool.release(transport, request.getPriority(), healthy);
+            }
+        } catch (SendFailedException e) {
+            throw new MailException("Message could not be sent", e);
+        } catch (PoolTimeoutException e) {
+            timedOut = true;
+            throw new TransportException("Message could not be sent", e);
+        } catch (MessagingException e) {
+            throw new TransportException("Message could not be sent", e);
+        } finally {
+            if (timedOut) {
+                circuitBreaker.release(permit);
+            } else {
+                circuitBreaker.record(permit, elapsed, !healthy);
+            }
+        }
+
+        log.exiting(CLASS_NAME, "transmit");
+    }
+
+    /**
+     * Sends emails based on each of the specified {@code requests} concurrently, using the current thread along with any available shared workers, and
+     * waits for them all to complete.
+     * <p>
+     * Any request which asks to be sent asynchronously, or at a later time, is instead accepted to be sent by a background worker.
+     * 
+     * @param requests
+     *            the {@link SendRequest SendRequests} to be used
+     * @return The {@link SendStatus} of each message, in the same order as {@code requests}.
+     * @throws MailException
+     *             If the current thread is interrupted while waiting for the messages to be sent.
+     */
+    public List<SendStatus> sendAll(List<SendRequest> requests) throws MailException {
+        log.entering(CLASS_NAME, "sendAll", requests);
+
+        List<Callable<SendStatus>> tasks = new ArrayList<>(requests.size());
+        for (final SendRequest request : requests) {
+            tasks.add(new Callable<SendStatus>() {
+
+                @Override
+                public SendStatus call() {
+                    if (request.isAsync() || request.getSendAt() > 0) {
+                        try {
+                            return sendAsync(request);
+                        } catch (MailException e) {
+                            SendStatus status = new SendStatus(UUID.randomUUID().toString(), request.getApiKey());
+                            status.failed(e.getMessage());
+                            return status;
+                        }
+                    }
+
+                    try {
+                        return idempotencyCache.send(request, new Callable<SendStatus>() {
+
+                            @Override
+                            public SendStatus call() throws MailException {
+                                return deliverOrQueue(request);
+                            }
+                        });
+                    } catch (MailException e) {
+                        log.log(Level.FINER, "Caught exception", e);
+                        SendStatus status = new SendStatus(UUID.randomUUID().toString(), request.getApiKey());
+                        status.failed(e.getMessage());
+                        return status;
+                    }
+                }
+            });
+        }
+
+        List<SendStatus> results = invokeAll(tasks, BATCH_THREADS);
+
+        log.exiting(CLASS_NAME, "sendAll", results);
+        return results;
+    }
+
+    /**
+     * Accepts the specified {@code request} to be sent asynchronously by a background worker.
+     * <p>
+     * If {@code request} has a send time, it is held in the schedule until it is due before being accepted.
+     * <p>
+     * If {@code request} repeats an earlier request with the same idempotency key, it is not accepted again and the {@link SendStatus} of the earlier request
+     * is returned instead.
+     * <p>
+     * Any {@link Attachment Attachments} of {@code request} are disposed of once the message has been sent or immediately if it is not accepted.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be used
+     * @return The {@link SendStatus} of the accepted message, which contains its ID.
+     * @throws MailException
+     *             If too many messages are already waiting to be sent.
+     */
+    public SendStatus sendAsync(final SendRequest request) throws MailException {
+        log.entering(CLASS_NAME, "sendAsync", request);
+
+        final AtomicBoolean accepted = new AtomicBoolean();
+
+        SendStatus status;
+        try {
+            status = idempotencyCache.send(request, new Callable<SendStatus>() {
+
+                @Override
+                public SendStatus call() throws MailException {
+                    SendStatus status = accept(request);
+                    accepted.set(true);
+                    return status;
+                }
+            });
+        } finally {
+            if (!accepted.get()) {
+                request.disposeAttachments();
+            }
+        }
+
+        log.exiting(CLASS_NAME, "sendAsync", status);
+        return status;
+    }
+}
\ No newline at end of file
@@ -20,10 +20,24 @@
  */
 package com.appspot.mailmanager.send;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import com.appspot.mailmanager.Contact;
+import com.appspot.mailmanager.DocumentReader;
 import com.google.appengine.labs.repackaged.org.json.JSONArray;
 import com.google.appengine.labs.repackaged.org.json.JSONException;
 import com.google.appengine.labs.repackaged.org.json.JSONObject;
@@ -35,6 +49,9 @@ import com.google.appengine.labs.repackaged.org.json.JSONObject;
  */
 public class SendRequest {
 
+    /** The maximum number of characters within an idempotency key. */
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
     /**
      * Creates a new instance of {@link SendRequest} based on the values derived from the specified {@code json}.
      * 
@@ -51,11 +68,42 @@ public class SendRequest {
     public static SendRequest fromJSON(JSONObject json) throws JSONException {
         SendRequest request = new SendRequest();
         request.setApiKey(json.getString("apiKey"));
+        request.setAsync(json.optBoolean("async", false));
+        request.setChunkSize(toChunkSize(json.optLong("chunkSize", 0L)));
         request.setHtml(json.optString("html", null));
+        request.setIdempotencyKey(json.optString("idempotencyKey", null));
+        request.setMerge(json.optBoolean("merge", false));
+        request.setPriority(Priority.forName(json.optString("priority", Priority.NORMAL.getName())));
+        request.setSendAt(json.optLong("sendAt", 0L));
         request.setSender(Contact.fromJSON(json.getJSONObject("sender")));
         request.setSubject(json.getString("subject"));
+        request.setTemplate(json.optString("template", null));
         request.setText(json.optString("text", null));
 
+        JSONObject variables = json.optJSONObject("variables");
+        if (variables != null) {
+            Iterator<?> names = variables.keys();
+            while (names.hasNext()) {
+                String name = (String) names.next();
+                request.putVariable(name, variables.isNull(name) ? null : variables.getString(name));
+            }
+        }
+
+        JSONObject recipientVariables = json.optJSONObject("recipientVariables");
+        if (recipientVariables != null) {
+            Iterator<?> emails = recipientVariables.keys();
+            while (emails.hasNext()) {
+                String email = (String) emails.next();
+                JSONObject values = recipientVariables.getJSONObject(email);
+
+                Iterator<?> names = values.keys();
+                while (names.hasNext()) {
+                    String name = (String) names.next();
+                    request.putRecipientVariable(email, name, values.isNull(name) ? null : values.getString(name));
+                }
+            }
+        }
+
         JSONArray recipients = json.getJSONArray("recipients");
         for (int i = 0; i < recipients.length(); i++) {
             request.addRecipient(Contact.fromJSON(recipients.getJSONObject(i)));
@@ -64,12 +112,252 @@ public class SendRequest {
         return request;
     }
 
+    /**
+     * Creates a new instance of {@link SendRequest} based on the values read from the next object within the specified {@code reader}.
+     * <p>
+     * Unlike {@link #fromJSON(JSONObject)}, the values are read directly from the stream without building an intermediate tree. Any invalid or missing
+     * values are only reported once the entire object has been consumed so that the next value within {@code reader} can still be read, which allows each
+     * message within a batch to be rejected individually.
+     * 
+     * @param reader
+     *            the {@link DocumentReader} from which the details are to be read
+     * @return The {@link SendRequest} read from {@code reader}.
+     * @throws IllegalArgumentException
+     *             If any of the values read are invalid or any of the required values are missing.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the object is malformed.
+     * @throws NullPointerException
+     *             If {@code reader} is {@code null}.
+     */
+    public static SendRequest fromJSON(DocumentReader reader) throws IOException, JSONException {
+        SendRequest request = new SendRequest();
+        boolean hasRecipients = false;
+        IllegalArgumentException invalid = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            try {
+                readProperty(reader, request, name);
+                hasRecipients |= "recipients".equals(name);
+            } catch (IllegalArgumentException e) {
+                if (invalid == null) {
+                    invalid = e;
+                }
+            }
+        }
+        reader.endObject();
+
+        if (invalid != null) {
+            throw invalid;
+        }
+        if (request.apiKey == null || request.sender == null || request.subject == null || !hasRecipients) {
+            throw new IllegalArgumentException("Required value not found");
+        }
+
+        return request;
+    }
+
+    /**
+     * Reads the value of the property with the specified {@code name} from {@code reader} into the {@code request} provided.
+     * <p>
+     * The value is always consumed in its entirety before any {@code IllegalArgumentException} is thrown so that reading can continue.
+     * 
+     * @param reader
+     *            the {@link DocumentReader} from which the value is to be read
+     * @param request
+     *            the {@link SendRequest} to be populated
+     * @param name
+     *            the name of the property
+     * @throws IllegalArgumentException
+     *             If the value read is invalid.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the value is malformed.
+     */
+    private static void readProperty(DocumentReader reader, SendRequest request, String name) throws IOException, JSONException {
+        IllegalArgumentException invalid = null;
+
+        switch (name) {
+        case "apiKey":
+            request.setApiKey(reader.nextString());
+            break;
+        case "async":
+            request.setAsync(reader.nextBoolean());
+            break;
+        case "chunkSize":
+            request.setChunkSize(toChunkSize(reader.nextLong()));
+            break;
+        case "html":
+            request.setHtml(reader.nextStringOrNull());
+            break;
+        case "idempotencyKey":
+            request.setIdempotencyKey(reader.nextStringOrNull());
+            break;
+        case "merge":
+            request.setMerge(reader.nextBoolean());
+            break;
+        case "priority":
+            request.setPriority(Priority.forName(reader.nextString()));
+            break;
+        case "recipientVariables":
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String email = reader.nextName();
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String variable = reader.nextName();
+                    String value = reader.nextStringOrNull();
+
+                    try {
+                        request.putRecipientVariable(email, variable, value);
+                    } catch (IllegalArgumentException e) {
+                        invalid = invalid == null ? e : invalid;
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+            break;
+        case "recipients":
+            reader.beginArray();
+            while (reader.hasNext()) {
+                try {
+                    request.addRecipient(Contact.fromJSON(reader));
+                } catch (IllegalArgumentException e) {
+                    invalid = invalid == null ? e : invalid;
+                }
+            }
+            reader.endArray();
+            break;
+        case "sendAt":
+            request.setSendAt(reader.nextLong());
+            break;
+        case "sender":
+            request.setSender(Contact.fromJSON(reader));
+            break;
+        case "subject":
+            request.setSubject(reader.nextString());
+            break;
+        case "template":
+            request.setTemplate(reader.nextStringOrNull());
+            break;
+        case "text":
+            request.setText(reader.nextStringOrNull());
+            break;
+        case "variables":
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String variable = reader.nextName();
+                String value = reader.nextStringOrNull();
+
+                try {
+                    request.putVariable(variable, value);
+                } catch (IllegalArgumentException e) {
+                    invalid = invalid == null ? e : invalid;
+                }
+            }
+            reader.endObject();
+            break;
+        default:
+            reader.skipValue();
+        }
+
+        if (invalid != null) {
+            throw invalid;
+        }
+    }
+
+    /**
+     * Converts the specified {@code chunkSize} read from a request into an {@code int}.
+     * 
+     * @param chunkSize
+     *            the chunk size read
+     * @return The chunk size.
+     * @throws IllegalArgumentException
+     *             If {@code chunkSize} is negative or too large to be represented as an {@code int}.
+     */
+    private static int toChunkSize(long chunkSize) {
+        if (chunkSize < 0 || chunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        return (int) chunkSize;
+    }
+
+    /**
+     * Updates the specified {@code digest} with the {@code value} provided.
+     * 
+     * @param digest
+     *            the {@code MessageDigest} to be updated
+     * @param value
+     *            the value to be digested
+     */
+    private static void update(MessageDigest digest, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (value >>> shift));
+        }
+    }
+
+    /**
+     * Updates the specified {@code digest} with the entries of the {@code map} provided, in the order of their keys.
+     * 
+     * @param digest
+     *            the {@code MessageDigest} to be updated
+     * @param map
+     *            the map to be digested
+     */
+    private static void update(MessageDigest digest, Map<String, String> map) {
+        Map<String, String> sorted = new TreeMap<>(map);
+        update(digest, sorted.size());
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            update(digest, entry.getKey());
+            update(digest, entry.getValue());
+        }
+    }
+
+    /**
+     * Updates the specified {@code digest} with the {@code value} provided.
+     * <p>
+     * Each value is preceded by its length so that the boundaries between values are unambiguous, and {@code null} is distinguished from an empty string.
+     * 
+     * @param digest
+     *            the {@code MessageDigest} to be updated
+     * @param value
+     *            the value to be digested, which may be {@code null}
+     */
+    private static void update(MessageDigest digest, String value) {
+        if (value == null) {
+            update(digest, -1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        update(digest, bytes.length);
+        digest.update(bytes);
+    }
+
     private String apiKey;
+    private boolean async;
+    private List<Attachment> attachments = new ArrayList<>();
+    private int chunkSize;
     private String html;
+    private String idempotencyKey;
+    private boolean merge;
+    private Priority priority = Priority.NORMAL;
+    private Set<String> recipientEmails = new HashSet<>();
     private Set<Contact> recipients = new LinkedHashSet<>();
+    private Map<String, Map<String, String>> recipientVariables = new LinkedHashMap<>();
+    private long sendAt;
     private Contact sender;
     private String subject;
+    private String template;
     private String text;
+    private Map<String, String> variables = new LinkedHashMap<>();
 
     /**
      * Creates a new instance of {@link SendRequest}.
@@ -77,8 +365,26 @@ public class SendRequest {
     private SendRequest() {
     }
 
+    /**
+     * Adds the specified {@link Attachment} to the message.
+     * 
+     * @param attachment
+     *            the {@code Attachment} to be added
+     * @throws IllegalArgumentException
+     *             If {@code attachment} is {@code null}.
+     */
+    public void addAttachment(Attachment attachment) {
+        if (attachment == null) {
+            throw new IllegalArgumentException("Invalid attachment");
+        }
+        attachments.add(attachment);
+    }
+
     /**
      * Adds the specified {@link Contact} to the list of recipients for the message.
+     * <p>
+     * Recipients are identified by their normalized email address, so {@code recipient} is ignored if a recipient with the same normalized address, but
+     * possibly a different name, has already been added.
      * 
      * @param recipient
      *            the {@code Contact} to receive the message
@@ -89,7 +395,9 @@ public class SendRequest {
         if (recipient == null) {
             throw new IllegalArgumentException("Invalid recipient");
         }
-        recipients.add(recipient);
+        if (recipientEmails.add(recipient.getNormalizedEmail())) {
+            recipients.add(recipient);
+        }
     }
 
     /**
@@ -118,6 +426,81 @@ public class SendRequest {
         addRecipient(new Contact(email, name));
     }
 
+    /**
+     * Disposes of all of the {@link Attachment Attachments} for the message, releasing their storage.
+     * <p>
+     * This should be called once the message has been sent, or has failed to be sent, and does nothing if it has already been called.
+     */
+    public void disposeAttachments() {
+        for (Attachment attachment : attachments) {
+            attachment.dispose();
+        }
+    }
+
+    /**
+     * Calculates a SHA-256 digest of the canonical form of this {@link SendRequest}, including the contents of its {@link Attachment Attachments}.
+     * <p>
+     * Two requests have the same digest only if they would send the same messages, regardless of the order in which the names of their variables were
+     * given.
+     * 
+     * @return The digest.
+     * @throws IOException
+     *             If the contents of an {@link Attachment} cannot be read.
+     */
+    public byte[] digest() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+
+        update(digest, apiKey);
+        update(digest, async ? 1 : 0);
+        update(digest, chunkSize);
+        update(digest, html);
+        update(digest, idempotencyKey);
+        update(digest, merge ? 1 : 0);
+        update(digest, priority == null ? null : priority.getName());
+        update(digest, sendAt);
+        update(digest, sender == null ? null : sender.getEmail());
+        update(digest, sender == null ? null : sender.getName());
+        update(digest, subject);
+        update(digest, template);
+        update(digest, text);
+        update(digest, variables);
+
+        update(digest, recipients.size());
+        for (Contact recipient : recipients) {
+            update(digest, recipient.getEmail());
+            update(digest, recipient.getName());
+        }
+
+        Map<String, Map<String, String>> sortedRecipientVariables = new TreeMap<>(recipientVariables);
+        update(digest, sortedRecipientVariables.size());
+        for (Map.Entry<String, Map<String, String>> entry : sortedRecipientVariables.entrySet()) {
+            update(digest, entry.getKey());
+            update(digest, entry.getValue());
+        }
+
+        update(digest, attachments.size());
+        byte[] buffer = new byte[8192];
+        for (Attachment attachment : attachments) {
+            update(digest, attachment.getFileName());
+            update(digest, attachment.getContentType());
+            update(digest, attachment.getSize());
+
+            try (InputStream in = attachment.getInputStream()) {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+        }
+
+        return digest.digest();
+    }
+
     /**
      * Returns the API key of the application making this request.
      * 
@@ -142,6 +525,63 @@ public class SendRequest {
         this.apiKey = apiKey;
     }
 
+    /**
+     * Indicates whether the message is to be sent asynchronously.
+     * <p>
+     * If so, the request will be accepted as soon as it has been validated and the message will be sent later by a background worker.
+     * 
+     * @return {@code true} if the message is to be sent asynchronously; otherwise {@code false}.
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Sets whether the message is to be sent asynchronously to {@code async}.
+     * 
+     * @param async
+     *            {@code true} to send the message asynchronously; otherwise {@code false}
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Returns the {@link Attachment Attachments} for the message.
+     * 
+     * @return The {@code Attachments}.
+     */
+    public List<Attachment> getAttachments() {
+        return Collections.unmodifiableList(attachments);
+    }
+
+    /**
+     * Returns the maximum number of recipients to which each individual message is to be sent.
+     * <p>
+     * If this is positive, the recipients are fanned out into chunks of this size, each of which is sent as a separate message concurrently. This means
+     * that recipients only see the other recipients within their chunk and that an invalid address only prevents its own chunk from being sent.
+     * 
+     * @return The chunk size or zero if all recipients are to receive a single message.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the maximum number of recipients to which each individual message is to be sent to {@code chunkSize}.
+     * 
+     * @param chunkSize
+     *            the chunk size to be set, where {@code 1} sends a separate message to each recipient and zero disables fan-out
+     * @throws IllegalArgumentException
+     *             If {@code chunkSize} is negative.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
     /**
      * Returns the HTML content for the message.
      * <p>
@@ -164,6 +604,80 @@ public class SendRequest {
         this.html = html;
     }
 
+    /**
+     * Returns the key chosen by the application to identify this request when it is retried.
+     * <p>
+     * Requests from the same application with the same key are only sent once, with any repeats receiving the outcome of the original request.
+     * 
+     * @return The idempotency key or {@code null} if repeats of this request are to be sent again.
+     */
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    /**
+     * Sets the key chosen by the application to identify this request when it is retried to {@code idempotencyKey}.
+     * 
+     * @param idempotencyKey
+     *            the idempotency key to be set, which may be {@code null}
+     * @throws IllegalArgumentException
+     *             If {@code idempotencyKey} is empty or longer than {@link #MAX_IDEMPOTENCY_KEY_LENGTH}.
+     */
+    public void setIdempotencyKey(String idempotencyKey) {
+        if (idempotencyKey != null && (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            throw new IllegalArgumentException("Invalid idempotency key: " + idempotencyKey);
+        }
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    /**
+     * Indicates whether a separate message is to be rendered for, and sent to, each recipient.
+     * <p>
+     * If so, the content is treated as a template and is rendered for each recipient using the shared variables, overridden by any variables specific to
+     * that recipient. The {@code email} and {@code name} variables default to those of the recipient. Requests containing any recipient variables are
+     * always merged.
+     * 
+     * @return {@code true} if the message is to be merged for each recipient; otherwise {@code false}.
+     * @see #getRecipientVariables()
+     */
+    public boolean isMerge() {
+        return merge || !recipientVariables.isEmpty();
+    }
+
+    /**
+     * Sets whether a separate message is to be rendered for, and sent to, each recipient to {@code merge}.
+     * 
+     * @param merge
+     *            {@code true} to merge the message for each recipient; otherwise {@code false}
+     */
+    public void setMerge(boolean merge) {
+        this.merge = merge;
+    }
+
+    /**
+     * Returns the priority of the message, which determines the lane through which it is sent.
+     * 
+     * @return The {@link Priority}.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of the message to {@code priority}.
+     * 
+     * @param priority
+     *            the {@link Priority} to be set
+     * @throws IllegalArgumentException
+     *             If {@code priority} is {@code null}.
+     */
+    public void setPriority(Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+        this.priority = priority;
+    }
+
     /**
      * Returns the {@link Contact Contacts} that are to receive the message.
      * 
@@ -173,6 +687,49 @@ public class SendRequest {
         return recipients;
     }
 
+    /**
+     * Returns the values of the variables which are specific to each recipient when the message is merged.
+     * 
+     * @return The {@code Map} of variable values mapped to their names, mapped to the normalized email address of the recipient to which they belong.
+     * @see Contact#getNormalizedEmail()
+     * @see #isMerge()
+     */
+    public Map<String, Map<String, String>> getRecipientVariables() {
+        return recipientVariables;
+    }
+
+    /**
+     * Sets the value of the template variable with the specified {@code name} for the recipient with the {@code email} address provided to {@code value}.
+     * <p>
+     * The variables are held against the normalized form of {@code email}, in the same way that recipients are identified, so that they are found for
+     * the recipient regardless of the case in which the domain was given.
+     * 
+     * @param email
+     *            the email address of the recipient
+     * @param name
+     *            the name of the variable
+     * @param value
+     *            the value to be set, which may be {@code null}
+     * @throws IllegalArgumentException
+     *             If either {@code email} or {@code name} are {@code null} or empty.
+     */
+    public void putRecipientVariable(String email, String name, String value) {
+        if (email == null || email.trim().isEmpty()) {
+            throw new IllegalArgumentException("Invalid recipient email: " + email);
+        }
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Invalid variable name: " + name);
+        }
+
+        String normalizedEmail = Contact.normalize(email);
+        Map<String, String> values = recipientVariables.get(normalizedEmail);
+        if (values == null) {
+            values = new LinkedHashMap<>();
+            recipientVariables.put(normalizedEmail, values);
+        }
+        values.put(name, value);
+    }
+
     /**
      * Returns the {@link Contact} that is sending the message.
      * 
@@ -223,6 +780,33 @@ public class SendRequest {
         setSender(new Contact(email, name));
     }
 
+    /**
+     * Returns the time at which the message is to be sent.
+     * <p>
+     * A message with a send time is held in the schedule until it is due and is then sent asynchronously. Messages may be sent up to a minute or so after
+     * the requested time, as messages requested for the same time are spread out rather than all being sent at once.
+     * 
+     * @return The send time in milliseconds since the epoch or zero if the message is to be sent straight away.
+     */
+    public long getSendAt() {
+        return sendAt;
+    }
+
+    /**
+     * Sets the time at which the message is to be sent to {@code sendAt}.
+     * 
+     * @param sendAt
+     *            the send time in milliseconds since the epoch to be set or zero if the message is to be sent straight away
+     * @throws IllegalArgumentException
+     *             If {@code sendAt} is negative.
+     */
+    public void setSendAt(long sendAt) {
+        if (sendAt < 0) {
+            throw new IllegalArgumentException("Invalid send time: " + sendAt);
+        }
+        this.sendAt = sendAt;
+    }
+
     /**
      * Returns the subject for the message.
      * 
@@ -247,6 +831,28 @@ public class SendRequest {
         this.subject = subject;
     }
 
+    /**
+     * Returns the ID of the template from which the content for the message is to be rendered.
+     * <p>
+     * If a template is specified, its rendered content is used in place of any HTML or text content within this request.
+     * 
+     * @return The template ID or {@code null} if the content has been provided directly.
+     * @see #getVariables()
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Sets the ID of the template from which the content for the message is to be rendered to {@code template}.
+     * 
+     * @param template
+     *            the template ID to be set
+     */
+    public void setTemplate(String template) {
+        this.template = template;
+    }
+
     /**
      * Returns the text content for the message.
      * <p>
@@ -269,8 +875,37 @@ public class SendRequest {
         this.text = text;
     }
 
+    /**
+     * Returns the values of the variables which are to be substituted when rendering the template for the message.
+     * 
+     * @return The {@code Map} of variable values mapped to their names.
+     * @see #getTemplate()
+     */
+    public Map<String, String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Sets the value of the template variable with the specified {@code name} to {@code value}.
+     * 
+     * @param name
+     *            the name of the variable
+     * @param value
+     *            the value to be set, which may be {@code null}
+     * @throws IllegalArgumentException
+     *             If {@code name} is {@code null} or empty.
+     */
+    public void putVariable(String name, String value) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Invalid variable name: " + name);
+        }
+        variables.put(name, value);
+    }
+
     /**
      * Creates a {@code JSONObject} based on this {@link SendRequest}.
+     * <p>
+     * Any {@link Attachment Attachments} are not included.
      * 
      * @return The derived {@code JSONObject}.
      * @throws JSONException
@@ -279,10 +914,33 @@ public class SendRequest {
     public JSONObject toJSON() throws JSONException {
         JSONObject json = new JSONObject();
         json.put("apiKey", apiKey);
+        if (async) {
+            json.put("async", true);
+        }
+        if (chunkSize > 0) {
+            json.put("chunkSize", chunkSize);
+        }
         json.putOpt("html", html);
+        json.putOpt("idempotencyKey", idempotencyKey);
+        if (merge) {
+            json.put("merge", true);
+        }
+        if (priority != Priority.NORMAL) {
+            json.put("priority", priority.getName());
+        }
+        if (!recipientVariables.isEmpty()) {
+            json.put("recipientVariables", recipientVariables);
+        }
+        if (sendAt > 0) {
+            json.put("sendAt", sendAt);
+        }
         json.put("sender", sender.toJSON());
         json.put("subject", subject);
+        json.putOpt("template", template);
         json.putOpt("text", text);
+        if (!variables.isEmpty()) {
+            json.put("variables", variables);
+        }
 
         JSONArray array = new JSONArray();
         for (Contact recipient : recipients) {
@@ -301,11 +959,21 @@ public class SendRequest {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((apiKey == null) ? 0 : apiKey.hashCode());
+        result = prime * result + (async ? 1231 : 1237);
+        result = prime * result + ((attachments == null) ? 0 : attachments.hashCode());
+        result = prime * result + chunkSize;
         result = prime * result + ((html == null) ? 0 : html.hashCode());
+        result = prime * result + ((idempotencyKey == null) ? 0 : idempotencyKey.hashCode());
+        result = prime * result + (merge ? 1231 : 1237);
+        result = prime * result + ((priority == null) ? 0 : priority.hashCode());
         result = prime * result + ((recipients == null) ? 0 : recipients.hashCode());
+        result = prime * result + ((recipientVariables == null) ? 0 : recipientVariables.hashCode());
+        result = prime * result + (int) (sendAt ^ (sendAt >>> 32));
         result = prime * result + ((sender == null) ? 0 : sender.hashCode());
         result = prime * result + ((subject == null) ? 0 : subject.hashCode());
+        result = prime * result + ((template == null) ? 0 : template.hashCode());
         result = prime * result + ((text == null) ? 0 : text.hashCode());
+        result = prime * result + ((variables == null) ? 0 : variables.hashCode());
         return result;
     }
 
@@ -326,16 +994,41 @@ public class SendRequest {
                 return false;
         } else if (!apiKey.equals(other.apiKey))
             return false;
+        if (async != other.async)
+            return false;
+        if (attachments == null) {
+            if (other.attachments != null)
+                return false;
+        } else if (!attachments.equals(other.attachments))
+            return false;
+        if (chunkSize != other.chunkSize)
+            return false;
         if (html == null) {
             if (other.html != null)
                 return false;
         } else if (!html.equals(other.html))
             return false;
+        if (idempotencyKey == null) {
+            if (other.idempotencyKey != null)
+                return false;
+        } else if (!idempotencyKey.equals(other.idempotencyKey))
+            return false;
+        if (merge != other.merge)
+            return false;
+        if (priority != other.priority)
+            return false;
         if (recipients == null) {
             if (other.recipients != null)
                 return false;
         } else if (!recipients.equals(other.recipients))
             return false;
+        if (recipientVariables == null) {
+            if (other.recipientVariables != null)
+                return false;
+        } else if (!recipientVariables.equals(other.recipientVariables))
+            return false;
+        if (sendAt != other.sendAt)
+            return false;
         if (sender == null) {
             if (other.sender != null)
                 return false;
@@ -346,11 +1039,21 @@ public class SendRequest {
                 return false;
         } else if (!subject.equals(other.subject))
             return false;
+        if (template == null) {
+            if (other.template != null)
+                return false;
+        } else if (!template.equals(other.template))
+            return false;
         if (text == null) {
             if (other.text != null)
                 return false;
         } else if (!text.equals(other.text))
             return false;
+        if (variables == null) {
+            if (other.variables != null)
+                return false;
+        } else if (!variables.equals(other.variables))
+            return false;
         return true;
     }
 }
\ No newline at end of file
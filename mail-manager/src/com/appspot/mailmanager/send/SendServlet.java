@@ -20,37 +20,68 @@
  */
 package com.appspot.mailmanager.send;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.Properties;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.Multipart;
-import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.internet.AddressException;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.appspot.mailmanager.Contact;
+import com.appspot.mailmanager.CBORReader;
+import com.appspot.mailmanager.CountingInputStream;
+import com.appspot.mailmanager.DocumentReader;
+import com.appspot.mailmanager.JSONReader;
 import com.appspot.mailmanager.MailException;
+import com.appspot.mailmanager.MultipartReader;
+import com.appspot.mailmanager.RequestBody;
+import com.appspot.mailmanager.WireFormat;
 import com.appspot.mailmanager.application.Application;
 import com.appspot.mailmanager.application.ApplicationManager;
+import com.appspot.mailmanager.metrics.Metrics;
+import com.appspot.mailmanager.metrics.Phase;
+import com.appspot.mailmanager.metrics.Timed;
+import com.appspot.mailmanager.metrics.TimedInputStream;
+import com.appspot.mailmanager.metrics.TimedReader;
+import com.appspot.mailmanager.template.Template;
+import com.appspot.mailmanager.template.TemplateManager;
 import com.google.appengine.labs.repackaged.org.json.JSONException;
-import com.google.appengine.labs.repackaged.org.json.JSONObject;
 
 /**
  * The servlet responsible for sending emails on behalf of registered {@link Application Applications}. The responses are very simple JSON strings.
  * <p>
- * Only requests containing a valid API key will be completed.
+ * Only requests containing a valid API key will be completed and each {@link Application} is rate limited, with rejected requests being answered with a
+ * {@code 429} response containing a {@code Retry-After} header. Requests which ask for the message to be sent asynchronously are answered with a
+ * {@code 202} response containing the ID of the message as soon as they have been validated; the {@link SendStatusServlet} can then be polled using that ID.
+ * <p>
+ * Requests are shed with a {@code 503} response containing a {@code Retry-After} header, before their body is read, whenever the instance already has as
+ * many requests or bytes in flight as the {@link AdmissionController} allows, so that it keeps sending at a steady rate when overloaded rather than
+ * falling over. Once the body has been parsed, requests are also shed if their {@link Priority lane} has used up its share of the limit, and the bytes
+ * actually read from the body are claimed in place of its {@code Content-Length}.
+ * <p>
+ * Requests containing a {@code sendAt} time are answered in the same way, with the message being held in the schedule until it is due.
+ * <p>
+ * Requests may set a {@code priority} of {@code high}, {@code normal}, or {@code low}, so that transactional messages are sent through a separate
+ * {@link Priority lane} from bulk messages.
+ * <p>
+ * A message which cannot be sent straight away because the transport is unavailable is written to the outbox to be retried and is also answered with a
+ * {@code 202} response.
+ * <p>
+ * Request bodies may be compressed using either {@code gzip} or {@code deflate}, as indicated by their {@code Content-Encoding}, in which case they are
+ * decompressed as they are parsed.
+ * <p>
+ * Request bodies are JSON unless their {@code Content-Type} is {@code application/cbor}, in which case they are parsed as CBOR, and responses are only
+ * written as CBOR when the {@code Accept} header asks for it.
+ * <p>
+ * Files can be attached by submitting the request as {@code multipart/form-data}, in which case the first part must be named {@code request} and contain
+ * the JSON, or CBOR, for the request and each subsequent part containing a file is attached to the message. Attachments are held in memory as they are
+ * received, since files cannot be written, and their size is limited for each attachment, request, and application.
+ * <p>
+ * Requests containing an idempotency key can be retried safely; a repeated request is answered with the status of the original rather than the message
+ * being sent again.
  * 
  * @author Alasdair Mercer <mercer.alasdair@gmail.com>
  */
@@ -60,135 +91,312 @@ public class SendServlet extends HttpServlet {
     private static final String CLASS_NAME = SendServlet.class.getName();
     private static final Logger log = Logger.getLogger(CLASS_NAME);
 
+    /** The maximum number of characters, or bytes if it is CBOR, that can be read from the body of a request. */
+    static final long MAX_LENGTH = Long.getLong("mailmanager.send.maxLength", 10 * 1024 * 1024L);
+    /** The maximum number of characters within any individual string in the body of a request. */
+    static final int MAX_STRING_LENGTH = Integer.getInteger("mailmanager.send.maxStringLength", 5 * 1024 * 1024);
+
     /**
-     * Adds the plain text or HTML contents to the {@code message} accordingly.
-     * <p>
-     * Either plain text or HTML contents may be added to the {@code message}, but never both.
+     * Claims any bytes which have been read from the body of a request, as counted by the specified {@code counted}, beyond the number of {@code bytes}
+     * with which it has already been admitted.
      * 
-     * @param message
-     *            the {@code Message} to which the contents are to be added
-     * @param request
-     *            the {@link SendRequest} containing the contents
-     * @throws MessagingException
-     *             If an error occurs while adding the contents.
+     * @param admissionController
+     *            the {@link AdmissionController} which admitted the request
+     * @param counted
+     *            the {@link CountingInputStream} for the (decompressed) body of the request
+     * @param bytes
+     *            the number of bytes with which the request has already been admitted
+     * @return The number of bytes with which the request is now admitted.
+     * @throws OverloadException
+     *             If the additional bytes would exceed the limit on bytes in flight.
      */
-    private void addContent(Message message, SendRequest request) throws MessagingException {
-        log.entering(CLASS_NAME, "addContent", new Object[] { message, request });
-
-        if (request.getHtml() != null) {
-            Multipart content = new MimeMultipart();
-
-            MimeBodyPart html = new MimeBodyPart();
-            html.setContent(request.getHtml(), "text/html");
-            content.addBodyPart(html);
-
-            message.setContent(content);
-        } else if (request.getText() != null) {
-            message.setText(request.getText());
+    private static long claim(AdmissionController admissionController, CountingInputStream counted, long bytes) throws OverloadException {
+        long read = counted.getCount();
+        if (read <= bytes) {
+            return bytes;
         }
 
-        log.exiting(CLASS_NAME, "addContent");
+        admissionController.acquire(0, read - bytes);
+        return read;
     }
 
     /**
      * 
-     * Builds a {@link SendRequest} based on JSON data contained within the body of {@code req}.
+     * Builds a {@link SendRequest} based on the data read from the specified {@code reader}, which is closed afterwards.
+     * <p>
+     * The body is parsed as it is streamed so that it never needs to be held in memory in its entirety.
      * 
-     * @param req
-     *            the {@code HttpServletRequest} to be read
-     * @return The {@link SendRequest} derived from the body of {@code req}.
+     * @param reader
+     *            the {@link DocumentReader} for the body of the request
+     * @return The {@link SendRequest} derived from {@code reader}.
      * @throws MailException
-     *             If an {@code IOException} occurs when reading the body of {@code req} or a {@code JSONException} occurs while parsing the body into JSON.
+     *             If an {@code IOException} occurs when reading the body or a {@code JSONException} occurs while parsing it.
      */
-    private SendRequest deriveSendRequest(HttpServletRequest req) throws MailException {
-        log.entering(CLASS_NAME, "deriveSendRequest", req);
+    private SendRequest deriveSendRequest(DocumentReader reader) throws MailException {
+        log.entering(CLASS_NAME, "deriveSendRequest", reader);
 
-        StringBuffer buff = new StringBuffer();
-        String line = null;
-        BufferedReader reader = null;
+        SendRequest request = null;
 
         try {
-            reader = req.getReader();
-
-            while ((line = reader.readLine()) != null) {
-                buff.append(line);
-            }
+            request = SendRequest.fromJSON(reader);
         } catch (IOException e) {
             throw new MailException("Bad request", e);
+        } catch (IllegalArgumentException | JSONException e) {
+            throw new MailException("Invalid data", e);
         } finally {
             try {
-                if (reader != null) {
-                    reader.close();
-                }
+                reader.close();
             } catch (IOException e) {
                 log.log(Level.FINER, "Swallowing exception", e);
             }
         }
 
-        SendRequest request = null;
+        log.exiting(CLASS_NAME, "deriveSendRequest", request);
+        return request;
+    }
 
-        try {
-            request = SendRequest.fromJSON(new JSONObject(buff.toString()));
-        } catch (IllegalArgumentException | JSONException e) {
-            throw new MailException("Invalid data", e);
+    /**
+     * Ensures that the specified {@code request} has content to be sent, rendering it from its template if one has been specified.
+     * <p>
+     * Templates are rendered once here, before the message is sent, so that any problems can be reported to the caller straight away. Merged messages are
+     * instead rendered for each recipient as they are sent, so only the existence of their template is checked.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be prepared
+     * @throws MailException
+     *             If the template could not be found or {@code request} has no content.
+     */
+    static void prepareContent(SendRequest request) throws MailException {
+        log.entering(CLASS_NAME, "prepareContent", request);
+
+        if (request.getTemplate() != null) {
+            Template template = TemplateManager.getInstance().get(request.getApiKey(), request.getTemplate());
+            if (template == null) {
+                throw new MailException("Unrecognized template");
+            }
+
+            if (!request.isMerge()) {
+                request.setHtml(template.renderHtml(request.getVariables()));
+                request.setText(template.renderText(request.getVariables()));
+            }
+        } else if (request.getHtml() == null && request.getText() == null) {
+            throw new MailException("Missing content");
         }
 
-        log.exiting(CLASS_NAME, "deriveSendRequest", request);
-        return request;
+        log.exiting(CLASS_NAME, "prepareContent");
     }
 
-    /*
-     * @see HttpServlet#doPost(HttpServletRequest, HttpServletResponse)
+    /**
+     * Opens a {@link DocumentReader} for the part named {@code request}, which must be the first part of the specified {@code multipart} body.
+     * <p>
+     * The part is read as CBOR if its content type says so; otherwise as JSON using the charset given by its content type or UTF-8.
+     * 
+     * @param multipart
+     *            the {@link MultipartReader} for the body of the request
+     * @return The {@link DocumentReader} for the {@code request} part.
+     * @throws MailException
+     *             If an {@code IOException} occurs when reading {@code multipart} or the first part is not named {@code request}.
      */
-    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-        log.entering(CLASS_NAME, "doPost", new Object[] { req, resp });
+    private DocumentReader openRequestPart(MultipartReader multipart) throws MailException {
+        log.entering(CLASS_NAME, "openRequestPart", multipart);
 
+        MultipartReader.Part part;
         try {
-            SendRequest request = deriveSendRequest(req);
+            part = multipart.nextPart();
+        } catch (IOException e) {
+            throw new MailException("Bad request", e);
+        }
 
-            if (!ApplicationManager.getInstance().existsWithApiKey(request.getApiKey())) {
-                throw new MailException("Unrecognized API key");
-            } else if (request.getHtml() == null && request.getText() == null) {
-                throw new MailException("Missing content");
-            }
+        if (part == null || !"request".equals(part.getName()) || part.getFileName() != null) {
+            throw new MailException("Request part not found");
+        }
 
-            sendMail(request);
-        } catch (MailException e) {
-            log.log(Level.FINER, "Caught exception", e);
-            resp.sendError(500, e.getMessage());
+        DocumentReader reader;
+        if (WireFormat.forContentType(part.getContentType()) == WireFormat.CBOR) {
+            reader = new CBORReader(part.getInputStream(), MAX_LENGTH, MAX_STRING_LENGTH);
+        } else {
+            String charset = MultipartReader.getParameter(part.getContentType(), "charset");
+            try {
+                reader = new JSONReader(new InputStreamReader(part.getInputStream(), charset == null ? StandardCharsets.UTF_8 : Charset.forName(charset)),
+                        MAX_LENGTH, MAX_STRING_LENGTH);
+            } catch (IllegalArgumentException e) {
+                throw new MailException("Unsupported charset", e);
+            }
         }
 
-        log.exiting(CLASS_NAME, "doPost");
+        log.exiting(CLASS_NAME, "openRequestPart", reader);
+        return reader;
     }
 
     /**
-     * Sends an email based on the information contained within the specified {@code request}.
+     * Reads each of the remaining parts of the specified {@code multipart} body which contains a file as an {@link Attachment} for the {@code request}
+     * provided.
+     * <p>
+     * Parts which do not contain a file are ignored. Any {@link Attachment Attachments} read are added to {@code request} straight away, so they must be
+     * disposed of even if this method fails.
      * 
+     * @param multipart
+     *            the {@link MultipartReader} for the body of the request
      * @param request
-     *            the {@link SendRequest} to be used
+     *            the {@link SendRequest} to which the {@link Attachment Attachments} are to be added
      * @throws MailException
-     *             If an error occurs while constructing or sending the email.
+     *             If an {@code IOException} occurs when reading {@code multipart} or any of the limits on attachments are exceeded.
      */
-    private void sendMail(SendRequest request) throws MailException {
-        log.entering(CLASS_NAME, "sendMail", request);
+    private void readAttachments(MultipartReader multipart, SendRequest request) throws MailException {
+        log.entering(CLASS_NAME, "readAttachments", new Object[] { multipart, request });
+
+        AttachmentManager manager = AttachmentManager.getInstance();
+        long remaining = manager.getMaxRequestSize();
 
         try {
-            Message message = new MimeMessage(Session.getDefaultInstance(new Properties(), null));
-            message.setFrom(request.getSender().toInternetAddress());
-            for (Contact recipient : request.getRecipients()) {
-                message.addRecipient(Message.RecipientType.TO, recipient.toInternetAddress());
+            MultipartReader.Part part;
+            while ((part = multipart.nextPart()) != null) {
+                if (part.getFileName() == null) {
+                    continue;
+                }
+                if (request.getAttachments().size() >= manager.getMaxCount()) {
+                    throw new MailException("Too many attachments");
+                }
+
+                Attachment attachment = manager.read(request.getApiKey(), part.getFileName(), part.getContentType(), part.getInputStream(), remaining);
+                request.addAttachment(attachment);
+                remaining -= attachment.getSize();
             }
-            message.setSubject(request.getSubject());
+        } catch (IOException e) {
+            throw new MailException("Bad request", e);
+        }
+
+        log.exiting(CLASS_NAME, "readAttachments");
+    }
 
-            addContent(message, request);
+    /*
+     * @see HttpServlet#doPost(HttpServletRequest, HttpServletResponse)
+     */
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doPost", new Object[] { req, resp });
+
+        AdmissionController admissionController = AdmissionController.getInstance();
+        Metrics metrics = Metrics.getInstance();
+        String apiKey = null;
+        long bytes = Math.max(req.getContentLength(), 0);
+        boolean admitted = false;
+        CountingInputStream counted = null;
+        Timed body = null;
+        MultipartReader multipart = null;
+        SendRequest request = null;
+        boolean submitted = false;
+        long start = System.nanoTime();
+        long parsed = start;
+        long read = 0;
 
-            Transport.send(message);
-        } catch (AddressException | UnsupportedEncodingException e) {
-            throw new MailException("Invalid address", e);
-        } catch (MessagingException e) {
-            throw new MailException("Message could not be sent", e);
+        try {
+            admissionController.acquire(bytes);
+            admitted = true;
+
+            try {
+                counted = new CountingInputStream(RequestBody.openStream(req));
+
+                DocumentReader reader;
+                if (MultipartReader.isMultipart(req.getContentType())) {
+                    String boundary = MultipartReader.getBoundary(req.getContentType());
+                    if (boundary == null || boundary.isEmpty()) {
+                        throw new MailException("Multipart boundary not specified");
+                    }
+
+                    TimedInputStream stream = new TimedInputStream(counted);
+                    body = stream;
+                    multipart = new MultipartReader(stream, boundary);
+                    reader = openRequestPart(multipart);
+                } else if (WireFormat.forContentType(req.getContentType()) == WireFormat.CBOR) {
+                    TimedInputStream stream = new TimedInputStream(counted);
+                    body = stream;
+                    reader = new CBORReader(stream, MAX_LENGTH, MAX_STRING_LENGTH);
+                } else {
+                    TimedReader chars = new TimedReader(RequestBody.openReader(req, counted));
+                    body = chars;
+                    reader = new JSONReader(chars, MAX_LENGTH, MAX_STRING_LENGTH);
+                }
+                request = deriveSendRequest(reader);
+            } finally {
+                parsed = System.nanoTime();
+                read = body == null ? 0 : body.getElapsed();
+            }
+
+            Application application = ApplicationManager.getInstance().getByApiKey(request.getApiKey());
+            if (application == null) {
+                throw new MailException("Unrecognized API key");
+            }
+
+            apiKey = application.getApiKey();
+            metrics.record(Phase.LOOKUP, apiKey, System.nanoTime() - parsed);
+
+            admissionController.admit(request.getPriority());
+            bytes = claim(admissionController, counted, bytes);
+
+            RateLimiter.getInstance().acquire(application, request);
+
+            if (multipart != null) {
+                readAttachments(multipart, request);
+                bytes = claim(admissionController, counted, bytes);
+            }
+
+            prepareContent(request);
+
+            submitted = true;
+            if (request.isAsync() || request.getSendAt() > 0) {
+                SendStatus status = SendManager.getInstance().sendAsync(request);
+
+                resp.setStatus(202);
+                WireFormat.forAccept(req.getHeader("Accept")).write(resp, status.toJSON());
+            } else {
+                SendStatus status = SendManager.getInstance().send(request);
+
+                // Clients which predate the status being returned expect an empty response, so it is only written when they explicitly ask for it
+                WireFormat format = WireFormat.findAccepted(req.getHeader("Accept"));
+                if (format != null) {
+                    if (status.getState() == SendStatus.State.ACCEPTED) {
+                        resp.setStatus(202);
+                    }
+                    format.write(resp, status.toJSON());
+                } else if (status.getState() == SendStatus.State.FAILED) {
+                    throw new MailException(status.getError());
+                }
+            }
+
+            metrics.count(Metrics.REQUESTS, apiKey, Metrics.SUCCESS);
+        } catch (OverloadException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            metrics.count(Metrics.REQUESTS, apiKey, FailureReason.forException(e).getName());
+            resp.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            resp.sendError(503, e.getMessage());
+        } catch (RateLimitException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            metrics.count(Metrics.REQUESTS, apiKey, FailureReason.forException(e).getName());
+            resp.setHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            resp.sendError(429, e.getMessage());
+        } catch (MailException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            metrics.count(Metrics.REQUESTS, apiKey, FailureReason.forException(e).getName());
+            resp.sendError(500, e.getMessage());
+        } catch (JSONException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            metrics.count(Metrics.REQUESTS, apiKey, FailureReason.INTERNAL.getName());
+            resp.sendError(500, "Failed to write response");
+        } finally {
+            if (request != null && !submitted) {
+                request.disposeAttachments();
+            }
+            if (admitted) {
+                admissionController.release(bytes);
+            }
+
+            // Requests which were shed before their body was opened have nothing to record
+            if (body != null) {
+                metrics.record(Phase.READ, apiKey, read);
+                metrics.record(Phase.PARSE, apiKey, parsed - start - read);
+            }
         }
 
-        log.exiting(CLASS_NAME, "sendEmail");
+        log.exiting(CLASS_NAME, "doPost");
     }
 }
\ No newline at end of file
@@ -0,0 +1,325 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.appspot.mailmanager.Contact;
+
+import com.google.appengine.labs.repackaged.org.json.JSONArray;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * Contains the status of an email message that was accepted to be sent asynchronously.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class SendStatus {
+
+    /** The maximum number of failed recipients to be retained when a message is merged. */
+    private static final int MAX_FAILED_RECIPIENTS = 100;
+
+    /**
+     * The possible states of an email message that was accepted to be sent asynchronously.
+     */
+    public static enum State {
+
+        /** The message is waiting in the schedule until it is due to be sent. */
+        SCHEDULED,
+        /** The message has been accepted but has not yet been picked up by a worker. */
+        ACCEPTED,
+        /** The message is currently being sent by a worker. */
+        SENDING,
+        /** The message was sent successfully. */
+        SENT,
+        /** The message could not be sent. */
+        FAILED
+    }
+
+    /**
+     * Creates an instance of {@link SendStatus} for the application with the specified {@code apiKey} based on the {@code json} provided, which was
+     * created by {@link #toJSON()}.
+     * <p>
+     * The result is a snapshot of the original status, so it does not change as the message progresses.
+     * 
+     * @param json
+     *            the {@code JSONObject} to be used
+     * @param apiKey
+     *            the API key of the application that requested the message
+     * @return The {@link SendStatus} derived from {@code json}.
+     * @throws JSONException
+     *             If {@code json} is malformed.
+     */
+    static SendStatus fromJSON(JSONObject json, String apiKey) throws JSONException {
+        SendStatus status = new SendStatus(json.getString("id"), apiKey);
+        status.state = State.valueOf(json.getString("status"));
+        status.error = json.optString("error", null);
+
+        JSONArray chunks = json.optJSONArray("chunks");
+        if (chunks != null) {
+            List<SendChunk> list = new ArrayList<>(chunks.length());
+            for (int i = 0; i < chunks.length(); i++) {
+                JSONObject chunkJSON = chunks.getJSONObject(i);
+                JSONArray recipients = chunkJSON.getJSONArray("recipients");
+                List<Contact> contacts = new ArrayList<>(recipients.length());
+                for (int j = 0; j < recipients.length(); j++) {
+                    contacts.add(new Contact(recipients.getString(j)));
+                }
+
+                SendChunk chunk = new SendChunk(contacts);
+                chunk.setState(State.valueOf(chunkJSON.getString("status")));
+                String error = chunkJSON.optString("error", null);
+                if (error != null) {
+                    chunk.failed(error);
+                }
+                list.add(chunk);
+            }
+            status.chunks = list;
+        }
+
+        if (json.has("recipients")) {
+            status.recipientCount = json.getInt("recipients");
+            status.sent.set(json.getInt("sent"));
+            status.failures.set(json.getInt("failed"));
+
+            JSONArray failedRecipients = json.getJSONArray("failedRecipients");
+            for (int i = 0; i < failedRecipients.length(); i++) {
+                status.failedRecipients.add(failedRecipients.getString(i));
+            }
+        }
+
+        return status;
+    }
+
+    private final String apiKey;
+    private volatile List<SendChunk> chunks;
+    private volatile String error;
+    private final List<String> failedRecipients = new ArrayList<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final String id;
+    private volatile int recipientCount = -1;
+    private final AtomicInteger sent = new AtomicInteger();
+    private volatile State state = State.ACCEPTED;
+
+    /**
+     * Creates a new instance of {@link SendStatus} for the message with the specified {@code id} that was requested by the application with the
+     * {@code apiKey} provided.
+     * 
+     * @param id
+     *            the ID of the message
+     * @param apiKey
+     *            the API key of the application that requested the message
+     */
+    SendStatus(String id, String apiKey) {
+        this.id = id;
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Returns the API key of the application that requested the message.
+     * 
+     * @return The API key.
+     */
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Returns the outcome of each chunk of recipients to which the message was sent, if they were fanned out.
+     * 
+     * @return The {@link SendChunk SendChunks} or {@code null} if the recipients were not fanned out.
+     */
+    public List<SendChunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Sets the outcome of each chunk of recipients to which the message was sent to {@code chunks}.
+     * 
+     * @param chunks
+     *            the {@link SendChunk SendChunks} to be set
+     */
+    void setChunks(List<SendChunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns the reason why the message could not be sent.
+     * 
+     * @return The error message or {@code null} if the message has not failed.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Returns the email addresses of the recipients to which the merged message could not be sent.
+     * <p>
+     * Only a limited number of failed recipients are retained so that the memory used by a status is bounded, regardless of how many recipients the
+     * message has.
+     * 
+     * @return The email addresses of the failed recipients.
+     */
+    public List<String> getFailedRecipients() {
+        synchronized (failedRecipients) {
+            return Collections.unmodifiableList(new ArrayList<>(failedRecipients));
+        }
+    }
+
+    /**
+     * Returns the number of recipients to which the merged message could not be sent.
+     * 
+     * @return The failure count.
+     */
+    public int getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the ID of the message.
+     * 
+     * @return The ID.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the total number of recipients to which the message is being merged.
+     * 
+     * @return The recipient count or {@code -1} if the message is not being merged.
+     */
+    public int getRecipientCount() {
+        return recipientCount;
+    }
+
+    /**
+     * Sets the total number of recipients to which the message is being merged to {@code recipientCount}.
+     * 
+     * @param recipientCount
+     *            the recipient count to be set
+     */
+    void setRecipientCount(int recipientCount) {
+        this.recipientCount = recipientCount;
+    }
+
+    /**
+     * Returns the number of recipients to which the merged message has been sent.
+     * 
+     * @return The sent count.
+     */
+    public int getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * Returns the current state of the message.
+     * 
+     * @return The {@link State}.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Marks the message as having failed for the specified reason.
+     * 
+     * @param error
+     *            the reason why the message could not be sent
+     */
+    void failed(String error) {
+        this.error = error;
+        this.state = State.FAILED;
+    }
+
+    /**
+     * Records that the merged message could not be sent to the specified {@code recipient}.
+     * 
+     * @param recipient
+     *            the {@link Contact} to which the message could not be sent
+     */
+    void recipientFailed(Contact recipient) {
+        failures.incrementAndGet();
+
+        synchronized (failedRecipients) {
+            if (failedRecipients.size() < MAX_FAILED_RECIPIENTS) {
+                failedRecipients.add(recipient.getEmail());
+            }
+        }
+    }
+
+    /**
+     * Records that the merged message was sent to another recipient.
+     */
+    void recipientSent() {
+        sent.incrementAndGet();
+    }
+
+    /**
+     * Sets the current state of the message to {@code state}.
+     * 
+     * @param state
+     *            the {@link State} to be set
+     */
+    void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * Creates a {@code JSONObject} based on this {@link SendStatus}.
+     * 
+     * @return The derived {@code JSONObject}.
+     * @throws JSONException
+     *             If this {@link SendStatus} is malformed.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("status", state.name());
+        json.putOpt("error", error);
+
+        if (chunks != null) {
+            JSONArray array = new JSONArray();
+            for (SendChunk chunk : chunks) {
+                array.put(chunk.toJSON());
+            }
+            json.put("chunks", array);
+        }
+
+        if (recipientCount >= 0) {
+            json.put("recipients", recipientCount);
+            json.put("sent", sent.get());
+            json.put("failed", failures.get());
+
+            JSONArray array = new JSONArray();
+            for (String recipient : getFailedRecipients()) {
+                array.put(recipient);
+            }
+            json.put("failedRecipients", array);
+        }
+
+        return json;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * The servlet responsible for reporting the {@link SendStatus} of messages that were accepted to be sent asynchronously. The responses are very simple
+ * JSON strings or errors.
+ * <p>
+ * Only the application that requested a message can retrieve its status, so both the ID of the message and the API key must be provided.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@SuppressWarnings("serial")
+public class SendStatusServlet extends HttpServlet {
+
+    private static final String CLASS_NAME = SendStatusServlet.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /*
+     * @see HttpServlet#doGet(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doGet", new Object[] { req, resp });
+
+        String apiKey = req.getParameter("apiKey");
+        String id = req.getParameter("id");
+
+        if (apiKey == null || apiKey.isEmpty() || id == null || id.isEmpty()) {
+            resp.sendError(500, "API key and ID not specified");
+            return;
+        }
+
+        SendStatus status = SendManager.getInstance().getStatus(id);
+
+        if (status == null || !status.getApiKey().equals(apiKey)) {
+            resp.sendError(404, "Message not found");
+        } else {
+            try {
+                resp.setContentType("application/json");
+                resp.getWriter().println(status.toJSON().toString());
+            } catch (JSONException e) {
+                log.log(Level.FINER, "Caught exception", e);
+                resp.sendError(500, "Failed to write response");
+            }
+        }
+
+        log.exiting(CLASS_NAME, "doGet");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,122 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.io.Serializable;
+
+/**
+ * A store of idempotency keys which is shared by every instance so that a request which is repeated on another instance is not sent again.
+ * <p>
+ * The instance which sends the original request first claims its key using {@link #claim(String, byte[])}, which never replaces an existing claim, and
+ * then either records its outcome using {@link #complete(String, Record)} or releases its claim using {@link #release(String)} if it failed, so that the
+ * request can be retried. Claims expire if they are neither completed nor released in time, so that a request whose instance stopped while sending it
+ * can also be retried.
+ * <p>
+ * Implementations must never throw when the underlying service is unavailable and should instead behave as if every claim succeeded.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public interface SharedIdempotencyStore {
+
+    /**
+     * A claim on an idempotency key and, once the original request has completed, its outcome.
+     */
+    public static class Record implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] digest;
+        private final String status;
+
+        /**
+         * Creates a new instance of {@link Record} for a request with the specified {@code digest} and the {@code status} provided.
+         * 
+         * @param digest
+         *            the digest of the original request
+         * @param status
+         *            the JSON representation of the {@link SendStatus} of the original request or {@code null} if it is still in flight
+         */
+        public Record(byte[] digest, String status) {
+            this.digest = digest;
+            this.status = status;
+        }
+
+        /**
+         * Returns the digest of the original request.
+         * 
+         * @return The digest.
+         */
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        /**
+         * Returns the JSON representation of the {@link SendStatus} of the original request.
+         * 
+         * @return The status or {@code null} if the original request is still in flight.
+         */
+        public String getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Claims the specified {@code key} for the original request with the {@code digest} provided, unless it has already been claimed.
+     * 
+     * @param key
+     *            the key to be claimed
+     * @param digest
+     *            the digest of the request
+     * @param ttl
+     *            the number of milliseconds after which the claim expires unless it is completed
+     * @return {@code true} if {@code key} was claimed; otherwise {@code false}.
+     */
+    boolean claim(String key, byte[] digest, long ttl);
+
+    /**
+     * Records the outcome of the original request with the specified {@code key}.
+     * 
+     * @param key
+     *            the claimed key
+     * @param record
+     *            the {@link Record} containing the outcome
+     * @param ttl
+     *            the number of milliseconds for which the outcome is to be retained
+     */
+    void complete(String key, Record record, long ttl);
+
+    /**
+     * Returns the claim on the specified {@code key}.
+     * 
+     * @param key
+     *            the key whose claim is to be retrieved
+     * @return The {@link Record} of the claim or {@code null} if {@code key} has not been claimed.
+     */
+    Record get(String key);
+
+    /**
+     * Releases the claim on the specified {@code key} so that the request can be retried.
+     * 
+     * @param key
+     *            the key to be released
+     */
+    void release(String key);
+}
@@ -0,0 +1,163 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket which limits the rate at which permits can be acquired while allowing short bursts.
+ * <p>
+ * Any number of permits can be acquired at once. When more permits are acquired than the bucket holds, which is only allowed once it is full, the bucket
+ * goes into debt and no more can be acquired until it has been repaid. This allows a single large request through without it being rejected forever.
+ * <p>
+ * The entire state of the bucket (the time at which it was last refilled and the number of tokens it holds) is packed into a single {@code long} so that
+ * it can be updated atomically using compare-and-set rather than a lock. The upper bits hold the number of milliseconds since the bucket was created and
+ * the lower bits hold the number of thousandths of a token available, which limits the capacity to {@link #MAX_CAPACITY}. Debt is held by moving the
+ * time at which the bucket was last refilled into the future, by as long as it will take to be repaid.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+class TokenBucket {
+
+    /** The number of fractional units that make up a single token. */
+    private static final long SCALE = 1000;
+    /** The number of low bits used to hold the number of fractional tokens. */
+    private static final int TOKEN_BITS = 26;
+    /** The mask used to extract the number of fractional tokens. */
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    /** The maximum number of tokens that a {@link TokenBucket} can hold. */
+    static final int MAX_CAPACITY = (int) (TOKEN_MASK / SCALE);
+
+    /**
+     * Packs the specified {@code time} and {@code tokens} into a single state value.
+     * 
+     * @param time
+     *            the number of milliseconds since the bucket was created
+     * @param tokens
+     *            the number of fractional tokens
+     * @return The packed state.
+     */
+    private static long pack(long time, long tokens) {
+        return (time << TOKEN_BITS) | tokens;
+    }
+
+    private final long capacity;
+    private final int maxTokens;
+    private final long origin = System.nanoTime();
+    private final double rate;
+    private final AtomicLong state;
+
+    /**
+     * Creates a new instance of {@link TokenBucket} which starts full and is refilled at the {@code rate} provided.
+     * 
+     * @param rate
+     *            the number of tokens added to the bucket every second
+     * @param maxTokens
+     *            the maximum number of tokens that the bucket can hold
+     * @throws IllegalArgumentException
+     *             If {@code rate} is not positive or {@code maxTokens} is not positive or greater than {@link #MAX_CAPACITY}.
+     */
+    TokenBucket(double rate, int maxTokens) {
+        if (!(rate > 0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        }
+        if (maxTokens <= 0 || maxTokens > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid capacity: " + maxTokens);
+        }
+
+        this.rate = rate;
+        this.maxTokens = maxTokens;
+        this.capacity = maxTokens * SCALE;
+        this.state = new AtomicLong(pack(0, capacity));
+    }
+
+    /**
+     * Returns the maximum number of tokens that this {@link TokenBucket} can hold.
+     * 
+     * @return The capacity.
+     */
+    int getMaxTokens() {
+        return maxTokens;
+    }
+
+    /**
+     * Returns the number of tokens added to this {@link TokenBucket} every second.
+     * 
+     * @return The rate.
+     */
+    double getRate() {
+        return rate;
+    }
+
+    /**
+     * Attempts to take the specified number of {@code permits} from this {@link TokenBucket}.
+     * <p>
+     * Since the rate is expressed in tokens per second, it is also the number of fractional tokens added every millisecond. Only the time accounted for by
+     * whole fractional tokens is consumed when refilling, so frequent attempts do not lose the remainder.
+     * <p>
+     * If {@code permits} exceeds the capacity, they are only taken once the bucket is full, leaving it in debt.
+     * 
+     * @param permits
+     *            the number of permits to be taken
+     * @return Zero if the permits were taken; otherwise the number of milliseconds until they will be available.
+     * @throws IllegalArgumentException
+     *             If {@code permits} is not positive.
+     */
+    long tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Invalid permits: " + permits);
+        }
+
+        long cost = permits * SCALE;
+        long needed = Math.min(cost, capacity);
+        long now = (System.nanoTime() - origin) / 1000000L;
+
+        while (true) {
+            long current = state.get();
+            long time = current >>> TOKEN_BITS;
+            long tokens = current & TOKEN_MASK;
+
+            if (now > time) {
+                long refill = (long) ((now - time) * rate);
+
+                if (tokens + refill >= capacity) {
+                    tokens = capacity;
+                    time = now;
+                } else if (refill > 0) {
+                    tokens += refill;
+                    time += (long) (refill / rate);
+                }
+            }
+
+            if (tokens < needed) {
+                return Math.max(1, Math.max(0, time - now) + (long) Math.ceil((needed - tokens) / rate));
+            }
+
+            long remaining = tokens - cost;
+            long next = remaining >= 0 ? pack(time, remaining) : pack(time + (long) Math.ceil(-remaining / rate), 0);
+
+            if (state.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,57 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import com.appspot.mailmanager.MailException;
+
+/**
+ * The {@link MailException} that is used to indicate that a message could not be handed to the transport but may succeed if it is attempted again (e.g.
+ * because the mail server could not be reached).
+ * <p>
+ * This is distinct from failures caused by the message itself, such as invalid recipients, which will fail no matter how many times they are attempted.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@SuppressWarnings("serial")
+public class TransportException extends MailException {
+
+    /**
+     * Creates a new {@link TransportException} with the specified detail {@code message}.
+     * 
+     * @param message
+     *            the detail message to be used
+     */
+    public TransportException(String message) {
+        super(message);
+    }
+
+    /**
+     * Creates a new {@link TransportException} with the specified detail {@code message} and {@code cause}.
+     * 
+     * @param message
+     *            the detail message to be used
+     * @param cause
+     *            the cause to be used
+     */
+    public TransportException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,315 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * A bounded pool of connected {@code Transports} which can be borrowed to send messages without having to open, authenticate, and close a connection for
+ * each one.
+ * <p>
+ * Idle {@code Transports} are reused in most-recently-used order and any that have been idle for longer than the configured period are closed when the
+ * pool is next used. A {@code Transport} is checked to still be connected before it is handed out, which, for SMTP, results in a {@code NOOP} being sent to
+ * the server.
+ * <p>
+ * Each {@link Priority} may only borrow up to its own share of the {@code Transports} at the same time, so that a lane which is saturated cannot take
+ * every connection away from the others.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class TransportPool {
+
+    /**
+     * An idle {@code Transport} along with the time at which it was released.
+     */
+    private static class IdleTransport {
+
+        final long released;
+        final Transport transport;
+
+        IdleTransport(Transport transport, long released) {
+            this.transport = transport;
+            this.released = released;
+        }
+    }
+
+    private static final String CLASS_NAME = TransportPool.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    private final Deque<IdleTransport> idle = new ArrayDeque<>();
+    private final long maxIdle;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final Session session;
+    private final Map<Priority, Semaphore> shares = new EnumMap<>(Priority.class);
+    private final long timeout;
+
+    /**
+     * Creates a new instance of {@link TransportPool} for the {@code session} provided.
+     * <p>
+     * The share of each {@link Priority} is capped at {@code maxSize}.
+     * 
+     * @param session
+     *            the {@code Session} from which {@code Transports} are to be created
+     * @param maxSize
+     *            the maximum number of {@code Transports} that can be borrowed at the same time
+     * @param maxIdle
+     *            the number of milliseconds after which an idle {@code Transport} is to be closed
+     * @param timeout
+     *            the number of milliseconds to wait for a {@code Transport} to become available
+     * @throws IllegalArgumentException
+     *             If {@code maxSize} is not positive.
+     */
+    public TransportPool(Session session, int maxSize, long maxIdle, long timeout) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maxSize);
+        }
+
+        this.session = session;
+        this.maxSize = maxSize;
+        this.maxIdle = maxIdle;
+        this.timeout = timeout;
+        this.permits = new Semaphore(maxSize, true);
+
+        for (Priority priority : Priority.values()) {
+            shares.put(priority, new Semaphore(getShare(priority), true));
+        }
+    }
+
+    /**
+     * Borrows a connected {@code Transport} from this pool for a message with the specified {@code priority}, connecting a new one if no healthy idle
+     * {@code Transport} is available.
+     * <p>
+     * The {@code Transport} must always be returned using {@link #release(Transport, Priority, boolean)}.
+     * 
+     * @param priority
+     *            the {@link Priority} of the message to be sent
+     * @return A connected {@code Transport}.
+     * @throws PoolTimeoutException
+     *             If no {@code Transport} became available in time because the pool or the share of {@code priority} is exhausted.
+     * @throws MessagingException
+     *             If a new {@code Transport} could not be connected.
+     */
+    public Transport borrow(Priority priority) throws MessagingException {
+        log.entering(CLASS_NAME, "borrow", priority);
+
+        Semaphore share = shares.get(priority);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        try {
+            if (!share.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new PoolTimeoutException("Timed out waiting for transport");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PoolTimeoutException("Interrupted while waiting for transport", e);
+        }
+
+        try {
+            if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                share.release();
+                throw new PoolTimeoutException("Timed out waiting for transport");
+            }
+        } catch (InterruptedException e) {
+            share.release();
+            Thread.currentThread().interrupt();
+            throw new PoolTimeoutException("Interrupted while waiting for transport", e);
+        }
+
+        Transport transport = null;
+
+        try {
+            evictIdle();
+
+            IdleTransport candidate;
+            while (transport == null && (candidate = pollIdle()) != null) {
+                if (candidate.transport.isConnected()) {
+                    transport = candidate.transport;
+                } else {
+                    close(candidate.transport);
+                }
+            }
+
+            if (transport == null) {
+                transport = session.getTransport();
+                transport.connect();
+            }
+        } catch (MessagingException | RuntimeException e) {
+            permits.release();
+            share.release();
+            throw e;
+        }
+
+        log.exiting(CLASS_NAME, "borrow", transport);
+        return transport;
+    }
+
+    /**
+     * Closes all idle {@code Transports} held by this pool.
+     * <p>
+     * Any {@code Transports} that are currently borrowed are closed when they are released only if they are unhealthy.
+     */
+    public void clear() {
+        IdleTransport candidate;
+        while ((candidate = pollIdle()) != null) {
+            close(candidate.transport);
+        }
+    }
+
+    /**
+     * Closes the specified {@code transport}, swallowing any exception.
+     * 
+     * @param transport
+     *            the {@code Transport} to be closed
+     */
+    private void close(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            log.log(Level.FINER, "Swallowing exception", e);
+        }
+    }
+
+    /**
+     * Closes any {@code Transports} which have been idle for longer than the configured period.
+     */
+    private void evictIdle() {
+        long threshold = System.currentTimeMillis() - maxIdle;
+
+        while (true) {
+            IdleTransport candidate;
+            synchronized (idle) {
+                candidate = idle.peekLast();
+                if (candidate == null || candidate.released > threshold) {
+                    return;
+                }
+                idle.pollLast();
+            }
+            close(candidate.transport);
+        }
+    }
+
+    /**
+     * Returns the number of {@code Transports} that are currently borrowed from this pool.
+     * 
+     * @return The active count.
+     */
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    /**
+     * Returns the number of {@code Transports} that are currently borrowed from this pool for messages with the specified {@code priority}.
+     * 
+     * @param priority
+     *            the {@link Priority} whose active count is to be returned
+     * @return The active count.
+     */
+    public int getActiveCount(Priority priority) {
+        return getShare(priority) - shares.get(priority).availablePermits();
+    }
+
+    /**
+     * Returns the number of connected {@code Transports} that are currently idle within this pool.
+     * 
+     * @return The idle count.
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Returns the maximum number of {@code Transports} that can be borrowed from this pool at the same time.
+     * 
+     * @return The maximum size.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the maximum number of {@code Transports} that can be borrowed from this pool at the same time for messages with the specified
+     * {@code priority}.
+     * 
+     * @param priority
+     *            the {@link Priority} whose share is to be returned
+     * @return The share, which is always at least one and no more than the maximum size.
+     */
+    public int getShare(Priority priority) {
+        return Math.max(1, Math.min(priority.getConnections(), maxSize));
+    }
+
+    /**
+     * Removes and returns the most recently released idle {@code Transport}.
+     * 
+     * @return The {@link IdleTransport} or {@code null} if there are none.
+     */
+    private IdleTransport pollIdle() {
+        synchronized (idle) {
+            return idle.pollFirst();
+        }
+    }
+
+    /**
+     * Returns the specified {@code transport}, which was borrowed for a message with the {@code priority} provided, to this pool.
+     * <p>
+     * If {@code healthy} is {@code false}, possibly because an error occurred while it was being used, the {@code transport} is closed rather than being
+     * reused.
+     * 
+     * @param transport
+     *            the {@code Transport} being returned
+     * @param priority
+     *            the {@link Priority} for which {@code transport} was borrowed
+     * @param healthy
+     *            {@code true} if the {@code transport} can be reused; otherwise {@code false}
+     */
+    public void release(Transport transport, Priority priority, boolean healthy) {
+        log.entering(CLASS_NAME, "release", new Object[] { transport, priority, healthy });
+
+        try {
+            if (healthy) {
+                synchronized (idle) {
+                    idle.offerFirst(new IdleTransport(transport, System.currentTimeMillis()));
+                }
+            } else {
+                close(transport);
+            }
+        } finally {
+            permits.release();
+            shares.get(priority).release();
+        }
+
+        log.exiting(CLASS_NAME, "release");
+    }
+}
\ No newline at end of file
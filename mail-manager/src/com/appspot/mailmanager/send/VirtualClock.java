@@ -0,0 +1,168 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.send;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.appspot.mailmanager.application.Application;
+import com.appspot.mailmanager.application.ApplicationManager;
+
+/**
+ * A clock which tags messages so that, when they are served in order of their tags, each {@link Application} receives a share of the send pipeline in
+ * proportion to its weight, rather than the pipeline being taken over by whichever {@link Application} submits the most messages.
+ * <p>
+ * This implements start-time fair queuing. The clock keeps a virtual time, which advances to the tag of each message as it starts to be served, along with
+ * the virtual time at which the messages already tagged for each {@link Application} finish. A new message is tagged with the later of the two and its
+ * {@link Application} then finishes later still by the cost of the message, which is its number of recipients multiplied by a fixed cost and divided by
+ * the weight. An {@link Application} with a large backlog therefore has tags far ahead of the virtual time, while a message from an {@link Application}
+ * with nothing waiting is tagged at the virtual time itself and is served next.
+ * <p>
+ * Tags are virtual and are only meaningful when compared with other tags from the same clock; they must not be compared with real times, since a message
+ * whose tag is ahead of the wall clock would otherwise wait for no reason while workers are idle. Each clock is specific to a single queue on a single
+ * instance.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class VirtualClock {
+
+    /** The virtual time charged for each recipient of a message sent by an application with a weight of one. */
+    private static final long RECIPIENT_COST = Long.getLong("mailmanager.send.fair.recipientCost", 1000L);
+    /** The weight of applications which have not been given one. */
+    private static final int DEFAULT_WEIGHT = Integer.getInteger("mailmanager.send.fair.weight", 1);
+
+    /**
+     * Returns the cost of the specified {@code request} at a weight of one.
+     * 
+     * @param request
+     *            the {@link SendRequest} being sent
+     * @return The cost of {@code request} in virtual time.
+     */
+    static long getCost(SendRequest request) {
+        return Math.max(request.getRecipients().size(), 1) * RECIPIENT_COST;
+    }
+
+    /**
+     * Returns the weight of the {@link Application} with the specified {@code apiKey}.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application}
+     * @return The weight of the {@link Application} or the default if it has none or could not be found.
+     */
+    static int getWeight(String apiKey) {
+        Application application = ApplicationManager.getInstance().getByApiKey(apiKey);
+        int weight = application != null && application.getWeight() > 0 ? application.getWeight() : DEFAULT_WEIGHT;
+
+        return Math.max(weight, 1);
+    }
+
+    private final Map<String, Long> finishes = new HashMap<>();
+    private long time;
+
+    /**
+     * Creates a new instance of {@link VirtualClock} whose virtual time starts at {@code time}.
+     * 
+     * @param time
+     *            the initial virtual time
+     */
+    public VirtualClock(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Advances the virtual time to the specified {@code tag}, which belongs to a message that is starting to be served.
+     * <p>
+     * The virtual time never moves backwards.
+     * 
+     * @param tag
+     *            the tag of the message
+     */
+    public synchronized void advance(long tag) {
+        if (tag > time) {
+            time = tag;
+        }
+    }
+
+    /**
+     * Returns the amount of virtual time by which the messages already tagged for each {@link Application} finish after the current virtual time.
+     * <p>
+     * This is roughly how long a new message from each {@link Application} would wait behind its own backlog. {@link Application Applications} with no
+     * backlog are forgotten.
+     * 
+     * @return The lag of each {@link Application} with a backlog mapped to its API key.
+     */
+    public synchronized Map<String, Long> getLags() {
+        Map<String, Long> lags = new HashMap<>();
+
+        for (Iterator<Map.Entry<String, Long>> it = finishes.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Long> entry = it.next();
+
+            if (entry.getValue() <= time) {
+                it.remove();
+            } else {
+                lags.put(entry.getKey(), entry.getValue() - time);
+            }
+        }
+
+        return lags;
+    }
+
+    /**
+     * Returns the current virtual time.
+     * 
+     * @return The virtual time.
+     */
+    public synchronized long getTime() {
+        return time;
+    }
+
+    /**
+     * Tags the specified {@code request} so that it is served fairly with respect to the messages of other {@link Application Applications} which have been
+     * tagged by this clock.
+     * 
+     * @param request
+     *            the {@link SendRequest} to be tagged
+     * @return The tag.
+     */
+    public long tag(SendRequest request) {
+        return tag(request.getApiKey(), getWeight(request.getApiKey()), getCost(request));
+    }
+
+    /**
+     * Tags a message with the specified {@code cost} from the {@link Application} with the {@code apiKey} and {@code weight} provided.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application}
+     * @param weight
+     *            the weight of the {@link Application}
+     * @param cost
+     *            the cost of the message in virtual time at a weight of one
+     * @return The tag.
+     */
+    synchronized long tag(String apiKey, int weight, long cost) {
+        Long finish = finishes.get(apiKey);
+        long start = finish == null ? time : Math.max(time, finish);
+
+        finishes.put(apiKey, start + Math.max(cost / weight, 1));
+        return start;
+    }
+}
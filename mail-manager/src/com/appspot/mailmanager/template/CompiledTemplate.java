@@ -0,0 +1,177 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.template;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A template which has been parsed into alternating literal segments and variable names so that it can be rendered repeatedly without being re-parsed.
+ * <p>
+ * Variables are referenced within the source using {@code {{name}}}, where surrounding whitespace within the braces is ignored. Variables without a value
+ * are rendered as empty strings.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class CompiledTemplate {
+
+    private static final String CLOSE = "}}";
+    private static final String OPEN = "{{";
+
+    /**
+     * Parses the specified {@code source} into a {@link CompiledTemplate}.
+     * 
+     * @param source
+     *            the source of the template to be compiled
+     * @param escapeHtml
+     *            {@code true} if variable values are to be HTML-escaped when rendered; otherwise {@code false}
+     * @return The {@link CompiledTemplate} for {@code source}.
+     * @throws IllegalArgumentException
+     *             If {@code source} contains an unterminated or empty variable reference.
+     * @throws NullPointerException
+     *             If {@code source} is {@code null}.
+     */
+    public static CompiledTemplate compile(String source, boolean escapeHtml) {
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+
+        int pos = 0;
+        int start;
+        while ((start = source.indexOf(OPEN, pos)) != -1) {
+            int end = source.indexOf(CLOSE, start + OPEN.length());
+            if (end == -1) {
+                throw new IllegalArgumentException("Unterminated variable at " + start);
+            }
+
+            String name = source.substring(start + OPEN.length(), end).trim();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Empty variable at " + start);
+            }
+
+            literals.add(source.substring(pos, start));
+            names.add(name);
+            pos = end + CLOSE.length();
+        }
+        literals.add(source.substring(pos));
+
+        return new CompiledTemplate(literals.toArray(new String[literals.size()]), names.toArray(new String[names.size()]), escapeHtml);
+    }
+
+    /**
+     * Appends the specified {@code value} to {@code builder}, escaping any characters that have special meaning within HTML.
+     * 
+     * @param builder
+     *            the {@code StringBuilder} to which {@code value} is to be appended
+     * @param value
+     *            the value to be escaped
+     */
+    private static void escapeHtml(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '&':
+                builder.append("&amp;");
+                break;
+            case '<':
+                builder.append("&lt;");
+                break;
+            case '>':
+                builder.append("&gt;");
+                break;
+            case '"':
+                builder.append("&quot;");
+                break;
+            case '\'':
+                builder.append("&#39;");
+                break;
+            default:
+                builder.append(c);
+            }
+        }
+    }
+
+    private final boolean escapeHtml;
+    private final int literalLength;
+    private final String[] literals;
+    private final String[] names;
+
+    /**
+     * Creates a new instance of {@link CompiledTemplate} with the {@code literals} and variable {@code names} provided.
+     * 
+     * @param literals
+     *            the literal segments, of which there is always one more than {@code names}
+     * @param names
+     *            the variable names which separate each literal segment
+     * @param escapeHtml
+     *            {@code true} if variable values are to be HTML-escaped when rendered; otherwise {@code false}
+     */
+    private CompiledTemplate(String[] literals, String[] names, boolean escapeHtml) {
+        this.literals = literals;
+        this.names = names;
+        this.escapeHtml = escapeHtml;
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Returns the names of the variables referenced by this {@link CompiledTemplate}, in the order in which they appear.
+     * 
+     * @return The variable names.
+     */
+    public String[] getNames() {
+        return names.clone();
+    }
+
+    /**
+     * Renders this {@link CompiledTemplate} using the specified {@code variables}.
+     * 
+     * @param variables
+     *            the values of the variables to be substituted, which may be {@code null}
+     * @return The rendered string.
+     */
+    public String render(Map<String, String> variables) {
+        if (names.length == 0) {
+            return literals[0];
+        }
+
+        StringBuilder builder = new StringBuilder(literalLength + names.length * 16);
+        for (int i = 0; i < names.length; i++) {
+            builder.append(literals[i]);
+
+            String value = variables == null ? null : variables.get(names[i]);
+            if (value != null) {
+                if (escapeHtml) {
+                    escapeHtml(builder, value);
+                } else {
+                    builder.append(value);
+                }
+            }
+        }
+        builder.append(literals[names.length]);
+
+        return builder.toString();
+    }
+}
\ No newline at end of file
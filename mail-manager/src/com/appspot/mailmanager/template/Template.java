@@ -0,0 +1,260 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.template;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.appspot.mailmanager.DocumentReader;
+import com.appspot.mailmanager.application.Application;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+import com.google.appengine.labs.repackaged.org.json.JSONObject;
+
+/**
+ * Contains the HTML and/or text content of a message which is registered against an {@link Application} so that it can be sent without being uploaded on
+ * every request.
+ * <p>
+ * The content is compiled when the {@link Template} is created so that it can be rendered with different variables without being re-parsed. Variable values
+ * are HTML-escaped when rendered into the HTML content.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ * @see CompiledTemplate
+ */
+public class Template {
+
+    /** The kind name used to represent this object in the datastore. */
+    public static final String KIND = Template.class.getSimpleName();
+
+    /**
+     * Creates a {@code Key} for the {@code Entity} representing the {@link Template} with the specified {@code id} belonging to the {@link Application} with
+     * the {@code apiKey} provided.
+     * <p>
+     * The {@code Entity} is a child of the {@link Application} so that {@link Template Templates} are scoped to it.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to which the {@link Template} belongs
+     * @param id
+     *            the ID of the {@link Template}
+     * @return The derived {@code Key}.
+     * @throws IllegalArgumentException
+     *             If either {@code apiKey} or {@code id} are {@code null} or empty.
+     */
+    public static Key createKey(String apiKey, String id) {
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("Invalid template ID: " + id);
+        }
+        return KeyFactory.createKey(Application.createKey(apiKey), KIND, id);
+    }
+
+    /**
+     * Creates a new instance of {@link Template} based on the values derived from the specified {@code entity}.
+     * 
+     * @param entity
+     *            the {@code Entity} from which the details are to be derived
+     * @return The {@link Template} derived from {@code entity}.
+     * @throws NullPointerException
+     *             If {@code entity} is {@code null}.
+     */
+    public static Template fromEntity(Entity entity) {
+        Key key = entity.getKey();
+        Text html = (Text) entity.getProperty("html");
+        Text text = (Text) entity.getProperty("text");
+
+        return new Template(key.getParent().getName(), key.getName(), html == null ? null : html.getValue(), text == null ? null : text.getValue());
+    }
+
+    /**
+     * Creates a new instance of {@link Template} based on the values read from the next object within the specified {@code reader}.
+     * 
+     * @param reader
+     *            the {@link DocumentReader} from which the details are to be read
+     * @return The {@link Template} read from {@code reader}.
+     * @throws IllegalArgumentException
+     *             If any of the values read are invalid.
+     * @throws IOException
+     *             If an error occurs while reading.
+     * @throws JSONException
+     *             If the object is malformed.
+     * @throws NullPointerException
+     *             If {@code reader} is {@code null}.
+     */
+    public static Template fromJSON(DocumentReader reader) throws IOException, JSONException {
+        String apiKey = null;
+        String html = null;
+        String id = null;
+        String text = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "apiKey":
+                apiKey = reader.nextString();
+                break;
+            case "html":
+                html = reader.nextStringOrNull();
+                break;
+            case "id":
+                id = reader.nextString();
+                break;
+            case "text":
+                text = reader.nextStringOrNull();
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new Template(apiKey, id, html, text);
+    }
+
+    private final String apiKey;
+    private final String html;
+    private final CompiledTemplate compiledHtml;
+    private final String id;
+    private final String text;
+    private final CompiledTemplate compiledText;
+
+    /**
+     * Creates a new instance of {@link Template} with the information provided.
+     * 
+     * @param apiKey
+     *            the API key of the {@link Application} to which the {@link Template} belongs
+     * @param id
+     *            the ID of the {@link Template}
+     * @param html
+     *            the HTML content
+     * @param text
+     *            the text content
+     * @throws IllegalArgumentException
+     *             If either {@code apiKey} or {@code id} are {@code null} or empty, neither {@code html} nor {@code text} are provided, or either fail to
+     *             compile.
+     */
+    public Template(String apiKey, String id, String html, String text) {
+        if (apiKey == null || apiKey.isEmpty()) {
+            throw new IllegalArgumentException("Invalid application API key: " + apiKey);
+        }
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("Invalid template ID: " + id);
+        }
+        if (html == null && text == null) {
+            throw new IllegalArgumentException("Missing template content");
+        }
+
+        this.apiKey = apiKey;
+        this.id = id;
+        this.html = html;
+        this.text = text;
+        this.compiledHtml = html == null ? null : CompiledTemplate.compile(html, true);
+        this.compiledText = text == null ? null : CompiledTemplate.compile(text, false);
+    }
+
+    /**
+     * Returns the API key of the {@link Application} to which this {@link Template} belongs.
+     * 
+     * @return The API key.
+     */
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Returns the uncompiled HTML content of this {@link Template}.
+     * 
+     * @return The HTML content or {@code null} if there is none.
+     */
+    public String getHtml() {
+        return html;
+    }
+
+    /**
+     * Returns the ID of this {@link Template}.
+     * 
+     * @return The ID.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the uncompiled text content of this {@link Template}.
+     * 
+     * @return The text content or {@code null} if there is none.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Renders the HTML content of this {@link Template} using the specified {@code variables}.
+     * 
+     * @param variables
+     *            the values of the variables to be substituted, which may be {@code null}
+     * @return The rendered HTML content or {@code null} if there is none.
+     */
+    public String renderHtml(Map<String, String> variables) {
+        return compiledHtml == null ? null : compiledHtml.render(variables);
+    }
+
+    /**
+     * Renders the text content of this {@link Template} using the specified {@code variables}.
+     * 
+     * @param variables
+     *            the values of the variables to be substituted, which may be {@code null}
+     * @return The rendered text content or {@code null} if there is none.
+     */
+    public String renderText(Map<String, String> variables) {
+        return compiledText == null ? null : compiledText.render(variables);
+    }
+
+    /**
+     * Creates an {@code Entity} based on this {@link Template}.
+     * 
+     * @return The derived {@code Entity}.
+     */
+    public Entity toEntity() {
+        Entity entity = new Entity(createKey(apiKey, id));
+        entity.setUnindexedProperty("html", html == null ? null : new Text(html));
+        entity.setUnindexedProperty("text", text == null ? null : new Text(text));
+
+        return entity;
+    }
+
+    /**
+     * Creates a {@code JSONObject} based on this {@link Template}.
+     * 
+     * @return The derived {@code JSONObject}.
+     * @throws JSONException
+     *             If this {@link Template} is malformed.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.putOpt("html", html);
+        json.putOpt("text", text);
+
+        return json;
+    }
+}
\ No newline at end of file
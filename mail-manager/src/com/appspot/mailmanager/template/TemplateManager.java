@@ -0,0 +1,200 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.template;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+
+/**
+ * The class responsible for managing {@link Template Templates}.
+ * <p>
+ * Compiled {@link Template Templates} are held in a bounded in-memory cache so that they are only read from the datastore and parsed once per instance
+ * until they expire. Since other instances may still hold a cached copy, changes to a {@link Template} may take up to the configured time-to-live to be
+ * seen everywhere.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+public class TemplateManager {
+
+    /**
+     * A cached {@link Template} along with the time at which it expires.
+     */
+    private static class CachedTemplate {
+
+        final long expires;
+        final Template template;
+
+        CachedTemplate(Template template, long expires) {
+            this.template = template;
+            this.expires = expires;
+        }
+    }
+
+    private static final String CLASS_NAME = TemplateManager.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The maximum number of compiled {@link Template Templates} to be held in the cache. */
+    private static final int CACHE_MAX_SIZE = Integer.getInteger("mailmanager.template.cache.maxSize", 100);
+    /** The number of milliseconds for which a compiled {@link Template} is to be held in the cache. */
+    private static final long CACHE_TTL = Long.getLong("mailmanager.template.cache.ttl", 5 * 60 * 1000L);
+
+    private static TemplateManager instance;
+
+    /**
+     * Retrieves the singleton instance of {@link TemplateManager}.
+     * 
+     * @return The singleton instance.
+     */
+    public static synchronized TemplateManager getInstance() {
+        if (instance == null) {
+            instance = new TemplateManager();
+        }
+        return instance;
+    }
+
+    private final Map<String, CachedTemplate> cache = new LinkedHashMap<String, CachedTemplate>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedTemplate> eldest) {
+            return size() > CACHE_MAX_SIZE;
+        }
+    };
+
+    /**
+     * Creates a new instance of {@link TemplateManager}.
+     */
+    private TemplateManager() {
+    }
+
+    /**
+     * Returns the key used to cache the {@link Template} with the specified {@code id} belonging to the application with the {@code apiKey} provided.
+     * 
+     * @param apiKey
+     *            the API key of the application
+     * @param id
+     *            the ID of the {@link Template}
+     * @return The cache key.
+     */
+    private String cacheKey(String apiKey, String id) {
+        return apiKey + '\n' + id;
+    }
+
+    /**
+     * Returns the {@link Template} with the specified {@code id} belonging to the application with the {@code apiKey} provided.
+     * 
+     * @param apiKey
+     *            the API key of the application
+     * @param id
+     *            the ID of the {@link Template} to be retrieved
+     * @return The {@link Template} or {@code null} if none could be found.
+     * @throws IllegalArgumentException
+     *             If either {@code apiKey} or {@code id} are {@code null} or empty.
+     */
+    public Template get(String apiKey, String id) {
+        log.entering(CLASS_NAME, "get", new Object[] { apiKey, id });
+
+        String cacheKey = cacheKey(apiKey, id);
+        Template template = null;
+
+        synchronized (cache) {
+            CachedTemplate cached = cache.get(cacheKey);
+            if (cached != null) {
+                if (cached.expires > System.currentTimeMillis()) {
+                    template = cached.template;
+                } else {
+                    cache.remove(cacheKey);
+                }
+            }
+        }
+
+        if (template == null) {
+            DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+            try {
+                template = Template.fromEntity(datastore.get(Template.createKey(apiKey, id)));
+            } catch (EntityNotFoundException e) {
+                log.finer("Template not found: " + id);
+            }
+
+            if (template != null) {
+                synchronized (cache) {
+                    cache.put(cacheKey, new CachedTemplate(template, System.currentTimeMillis() + CACHE_TTL));
+                }
+            }
+        }
+
+        log.exiting(CLASS_NAME, "get", template);
+        return template;
+    }
+
+    /**
+     * Persists the specified {@code template}, replacing any existing {@link Template} with the same ID belonging to the same application.
+     * 
+     * @param template
+     *            the {@link Template} to be persisted
+     * @throws NullPointerException
+     *             If {@code template} is {@code null}.
+     */
+    public void put(Template template) {
+        log.entering(CLASS_NAME, "put", template);
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = template.toEntity();
+        datastore.put(entity);
+
+        synchronized (cache) {
+            cache.put(cacheKey(template.getApiKey(), template.getId()), new CachedTemplate(template, System.currentTimeMillis() + CACHE_TTL));
+        }
+
+        log.exiting(CLASS_NAME, "put");
+    }
+
+    /**
+     * Removes the persisted {@link Template} with the specified {@code id} belonging to the application with the {@code apiKey} provided.
+     * 
+     * @param apiKey
+     *            the API key of the application
+     * @param id
+     *            the ID of the {@link Template} to be deleted
+     * @throws IllegalArgumentException
+     *             If either {@code apiKey} or {@code id} are {@code null} or empty.
+     */
+    public void remove(String apiKey, String id) {
+        log.entering(CLASS_NAME, "remove", new Object[] { apiKey, id });
+
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        datastore.delete(Template.createKey(apiKey, id));
+
+        synchronized (cache) {
+            cache.remove(cacheKey(apiKey, id));
+        }
+
+        log.exiting(CLASS_NAME, "remove");
+    }
+}
\ No newline at end of file
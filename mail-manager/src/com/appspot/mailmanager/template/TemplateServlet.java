@@ -0,0 +1,141 @@
+/* Copyright (C) 2013 Alasdair Mercer, http://neocotic.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.appspot.mailmanager.template;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.appspot.mailmanager.JSONReader;
+import com.appspot.mailmanager.application.Application;
+import com.appspot.mailmanager.application.ApplicationManager;
+import com.google.appengine.labs.repackaged.org.json.JSONException;
+
+/**
+ * The servlet responsible for managing the {@link Template Templates} registered by {@link Application Applications}. The responses are very simple JSON
+ * strings or errors.
+ * <p>
+ * Only requests containing a valid API key will be completed and each {@link Application} can only access its own {@link Template Templates}.
+ * 
+ * @author Alasdair Mercer <mercer.alasdair@gmail.com>
+ */
+@SuppressWarnings("serial")
+public class TemplateServlet extends HttpServlet {
+
+    private static final String CLASS_NAME = TemplateServlet.class.getName();
+    private static final Logger log = Logger.getLogger(CLASS_NAME);
+
+    /** The maximum number of characters that can be read from the body of a request. */
+    private static final long MAX_LENGTH = Long.getLong("mailmanager.template.maxLength", 1024 * 1024L);
+
+    /*
+     * @see HttpServlet#doDelete(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doDelete", new Object[] { req, resp });
+
+        String apiKey = req.getParameter("apiKey");
+        String id = req.getParameter("id");
+
+        if (id == null || id.isEmpty()) {
+            resp.sendError(500, "Template ID not specified");
+        } else if (!ApplicationManager.getInstance().existsWithApiKey(apiKey)) {
+            resp.sendError(500, "Unrecognized API key");
+        } else {
+            TemplateManager.getInstance().remove(apiKey, id);
+        }
+
+        log.exiting(CLASS_NAME, "doDelete");
+    }
+
+    /*
+     * @see HttpServlet#doGet(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doGet", new Object[] { req, resp });
+
+        String apiKey = req.getParameter("apiKey");
+        String id = req.getParameter("id");
+
+        if (id == null || id.isEmpty()) {
+            resp.sendError(500, "Template ID not specified");
+        } else if (!ApplicationManager.getInstance().existsWithApiKey(apiKey)) {
+            resp.sendError(500, "Unrecognized API key");
+        } else {
+            Template template = TemplateManager.getInstance().get(apiKey, id);
+
+            if (template == null) {
+                resp.sendError(404, "Template not found");
+            } else {
+                try {
+                    resp.setContentType("application/json");
+                    resp.getWriter().println(template.toJSON().toString());
+                } catch (JSONException e) {
+                    log.log(Level.FINER, "Caught exception", e);
+                    resp.sendError(500, "Failed to write response");
+                }
+            }
+        }
+
+        log.exiting(CLASS_NAME, "doGet");
+    }
+
+    /*
+     * @see HttpServlet#doPut(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        log.entering(CLASS_NAME, "doPut", new Object[] { req, resp });
+
+        Template template = null;
+
+        try (JSONReader reader = new JSONReader(req.getReader(), MAX_LENGTH, (int) Math.min(MAX_LENGTH, Integer.MAX_VALUE))) {
+            template = Template.fromJSON(reader);
+        } catch (IllegalArgumentException | JSONException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            resp.sendError(500, "Invalid data");
+            return;
+        }
+
+        if (!ApplicationManager.getInstance().existsWithApiKey(template.getApiKey())) {
+            resp.sendError(500, "Unrecognized API key");
+            return;
+        }
+
+        TemplateManager.getInstance().put(template);
+
+        try {
+            resp.setContentType("application/json");
+            resp.getWriter().println(template.toJSON().toString());
+        } catch (JSONException e) {
+            log.log(Level.FINER, "Caught exception", e);
+            resp.sendError(500, "Failed to write response");
+        }
+
+        log.exiting(CLASS_NAME, "doPut");
+    }
+}
\ No newline at end of file